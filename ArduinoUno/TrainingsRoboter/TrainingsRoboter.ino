@@ -5,6 +5,9 @@
  * 2016, Robert Vogl
  */
 
+// Firmware version, reported by HELLO and ping
+#define FIRMWARE_VERSION 4
+
 // Pin configuration
 #define CLK       PD3 // Pin 3
 #define DATA_OUT  PD7 // Pin 7
@@ -23,6 +26,13 @@ const byte M2 = B00110000;
 const byte M3 = B00001100;
 const byte M4 = B00000011;
 
+// Motors M1-M3 with step counter and their tacho inputs E2, E4, E6
+const byte MOTORS[3] = {M1, M2, M3};
+const byte TACHOS[3] = {1, 3, 5};
+
+// No command owns the motor
+#define NO_OWNER 0xFF
+
 const byte M1_OFF = ~M1;
 const byte M2_OFF = ~M2;
 const byte M3_OFF = ~M3;
@@ -50,15 +60,103 @@ struct t_command_buffer *command_buffer; // Pointer to the Command Buffer.
 boolean e[8] = {LOW, LOW, LOW, LOW, LOW, LOW, LOW, LOW};
 boolean d[3] = {LOW, LOW, LOW};
 
-// The current motor tacho periods for motors M1-M3
+// The current motor tacho timestamps for motors M1-M3
 unsigned long ts[3] = {0, 0, 0};
 
+// The last motor tacho periods (ms) for motors M1-M3
+unsigned long tp[3] = {0, 0, 0};
+
+// The remaining steps for motors M1-M3
+int rs[3] = {0, 0, 0};
+
+// Sequence numbers of the commands that run the motors M1-M3
+byte owners[3] = {NO_OWNER, NO_OWNER, NO_OWNER};
+
+// Send extended ISB frames with telemetry data
+boolean telemetry = false;
+
+// Configuration keys for '#key,value\n'
+#define CONFIG_PING      0
+#define CONFIG_TELEMETRY 1
+#define CONFIG_SPEED     2
+#define CONFIG_HOLD      3
+#define CONFIG_PROGRAM   4
+
+// Control frames (Start Byte B11xxxxxx)
+#define CTRL_ACK   B11000001
+#define CTRL_HELLO B11000010
+#define CTRL_PROGRESS B11000011
+
+// Serial port speeds (Bit/s) in ascending order. The first one is used after reset.
+const long SPEEDS[] = {19200, 38400, 57600, 115200};
+#define SPEED_COUNT 4
+#define SPEED_FALLBACK_TIME 1000 // ms
+
+// Speed change not yet confirmed by the host
+boolean speedPending = false;
+unsigned long speedChanged;
+
+// Sequence numbers of the executed commands, one bit per sequence number [0, 63].
+// A retransmitted command ('%') is executed only if it's bit is not set.
+byte executed[8] = {0, 0, 0, 0, 0, 0, 0, 0};
+
 // CLK hold timer
 unsigned long clkHold;
 
+// CLK hold time (ms): the outputs are held that long after the last command.
+#define HOLD_TIME_DEFAULT 125
+#define HOLD_TIME_MAX 10000
+unsigned long holdTime = HOLD_TIME_DEFAULT;
+
 // Enable E1 as emergency OFF
 boolean e1_emerg_off;
 
+struct t_step {
+  byte mcb; // Motor Control Byte |M1|M2|M3|M4|.
+  int steps[3]; // Commanded steps for M1-M3. 0 = infinitive.
+  unsigned int duration; // Time to hold the outputs after the steps (ms).
+  char until; // Wait for E(n) = +5V if n > 0, for E(-n) = 0V if n < 0. 0 = no condition.
+  byte repeat; // Number of executions.
+};
+
+// The program buffer, uploaded step by step with '*'
+#define PROGRAM_SIZE 32
+struct t_step program[PROGRAM_SIZE];
+unsigned long programLoaded = 0; // one bit per uploaded step
+byte programStart = 0; // number of steps to run, set by CONFIG_PROGRAM
+boolean programStop = false; // stop requested by CONFIG_PROGRAM
+
+// Max. length of a frame without it's start char
+#define FRAME_SIZE 48
+
+/**
+ * The received frame without it's start char. The parsers read it like the serial port.
+ */
+class FrameStream : public Stream
+{
+  public:
+    byte buffer[FRAME_SIZE];
+    byte length = 0;
+    byte position = 0;
+
+    int available() { return length - position; }
+    int read() { return position < length ? buffer[position++] : -1; }
+    int peek() { return position < length ? buffer[position] : -1; }
+    size_t write(uint8_t b) { return 0; }
+    void flush() {}
+};
+
+// The frame pre-parser, see pollFrame()
+FrameStream frame;
+char frameStart = 0; // start char of the received frame, 0 = none
+boolean frameComplete = false;
+
+// Program states reported by CTRL_PROGRESS
+#define PROGRAM_RUNNING  0
+#define PROGRAM_FINISHED 2
+#define PROGRAM_ABORTED  3
+#define PROGRAM_FAILED   4
+
 void setup()
 {
   // Setup pins
@@ -94,9 +192,14 @@ void setup()
   // start CLK hold time
   clkHold = millis();
 
-  // init Serial
-  Serial.begin(19200);
+  // init Serial, the parsers never wait for data
+  frame.setTimeout(0);
+  Serial.begin(SPEEDS[0]);
   while (!Serial);
+
+  // tell the host that we are ready
+  Serial.write(CTRL_HELLO);
+  writeManchester(FIRMWARE_VERSION, 1);
 }
 
 void loop_2()
@@ -109,11 +212,32 @@ void loop_2()
 
 void loop()
 {
+  // process the received frames
+  while (pollFrame() != 0)
+  {
+    processFrame();
+  }
+
+  // fall back to the initial speed if the host did not confirm the new one
+  if (speedPending && millis() - speedChanged > SPEED_FALLBACK_TIME)
+  {
+    speedPending = false;
+    changeSpeed(SPEEDS[0]);
+  }
+
   // process next command from buffer
   struct t_command *command = removeCommandLast();
   if (command == NULL)
   {
-    if (millis() - clkHold < 125)
+    if (programStart > 0)
+    {
+      // the program runs after the buffered commands
+      byte length = programStart;
+      programStart = 0;
+      runProgram(length);
+      clkHold = millis();
+    }
+    else if (millis() - clkHold < holdTime)
     {
       writeDigitalInOutWithDelay(LOW, LOW, LOW, LOW);  
       writeDigitalInOutWithDelay(HIGH, LOW, LOW, LOW);  
@@ -136,16 +260,39 @@ void loop()
 
 void executeCommand(byte seqnr, byte mcb, int m1_steps, int m2_steps, int m3_steps)
 {
-  boolean m1_check = (mcb & M1) != 0 && m1_steps > 0;
-  boolean m2_check = (mcb & M2) != 0 && m2_steps > 0;
-  boolean m3_check = (mcb & M3) != 0 && m3_steps > 0;
+  int steps[3] = {m1_steps, m2_steps, m3_steps};
+  int stop[3] = {0, 0, 0};
+  boolean check[3];
+  boolean running = false;
 
-  int m1_stop = 0;
-  int m2_stop = 0;
-  int m3_stop = 0;
+  for (int i=0; i<3; i++)
+  {
+    check[i] = (mcb & MOTORS[i]) != 0 && steps[i] > 0;
+    rs[i] = check[i] ? steps[i] : 0;
+    owners[i] = seqnr;
+    running |= check[i];
+  }
+  markExecuted(seqnr, true);
    
-  while(m1_check | m2_check | m3_check)
+  while(running)
   {    
+    // Process the received frames. A priority command aborts the stepping command, it's processed by loop().
+    char c = pollFrame();
+    if (c == '!')
+    {
+      break;
+    }
+    else if (c == '&')
+    {
+      // Join command starts idle motors
+      joinCommand(&mcb, steps, check, owners);
+      endFrame();
+    }
+    else if (c != 0)
+    {
+      processFrame();
+    }
+
     // Command motors and read E1-E8.
     digitalInOut(mcb);
     
@@ -156,50 +303,263 @@ void executeCommand(byte seqnr, byte mcb, int m1_steps, int m2_steps, int m3_ste
       break;
     }
     
-    // M1
-    if (m1_check && d[0] == HIGH && e[1] == LOW) // e[1] = E2 = M1.
+    // M1-M3
+    running = false;
+    for (int i=0; i<3; i++)
     {
-      m1_stop = checkRPM(0, millis());
-      m1_steps--;
-      if (m1_steps <= m1_stop)
+      if (check[i] && d[i] == HIGH && e[TACHOS[i]] == LOW)
       {
-        mcb = mcb & M1_OFF;
-        m1_check = false;
+        stop[i] = checkRPM(i, millis());
+        steps[i]--;
+        rs[i] = steps[i];
+        if (steps[i] <= stop[i])
+        {
+          mcb = mcb & ~MOTORS[i];
+          check[i] = false;
+          completeOwner(owners[i], check, owners);
+        }
       }
+      d[i] = e[TACHOS[i]];
+      running |= check[i];
     }
-    d[0] = e[1];
+  }
+
+  // run (remaining) motor command
+  digitalInOut(mcb);
 
-    // M2
-    if (m2_check && d[1] == HIGH && e[3] == LOW) // e[3] = E4 = M2.
+  // return digital and analog input values for all commands not yet answered
+  for (int i=0; i<3; i++)
+  {
+    if (owners[i] != NO_OWNER)
     {
-      m2_stop = checkRPM(1, millis());
-      m2_steps--;
-      if (m2_steps <= m2_stop)
+      byte done = owners[i];
+      for (int j=0; j<3; j++)
       {
-        mcb = mcb & M2_OFF;
-        m2_check = false;
+        if (owners[j] == done)
+        {
+          owners[j] = NO_OWNER;
+        }
       }
+      writeISB(done);
     }
-    d[1] = e[3];
-    
-    // M3
-    if (m3_check && d[2] == HIGH && e[5] == LOW) // e[5] = E6 = M3.
+  }
+}
+
+/**
+ * Runs the first 'length' steps of the program buffer and reports the progress with CTRL_PROGRESS frames.
+ * The program is aborted by a priority command, by '#4,0' and by the emergency OFF.
+ */
+void runProgram(byte length)
+{
+  programStop = false;
+  for (byte i=0; i<length; i++)
+  {
+    if ((programLoaded & (1UL << i)) == 0)
+    {
+      writeProgress(PROGRAM_FAILED, i, 0); // step not uploaded
+      return;
+    }
+  }
+
+  for (byte i=0; i<length; i++)
+  {
+    for (byte r=1; r<=program[i].repeat; r++)
     {
-      m3_stop = checkRPM(2, millis());
-      m3_steps--;
-      if (m3_steps <= m3_stop)
+      writeProgress(PROGRAM_RUNNING, i, r);
+      if (!runStep(&program[i]))
       {
-        mcb = mcb & M3_OFF;
-        m3_check = false;
+        digitalInOut(0);
+        writeProgress(PROGRAM_ABORTED, i, r);
+        return;
       }
     }
-    d[2] = e[5];
   }
+  writeProgress(PROGRAM_FINISHED, length, 0);
+}
 
-  // run (remaining) motor command
+/**
+ * Executes a program step: performs the steps, then holds the outputs until the condition is fulfilled or the
+ * duration has elapsed. Returns false if the program has been aborted.
+ */
+boolean runStep(struct t_step *step)
+{
+  byte mcb = step->mcb;
+  int steps[3] = {step->steps[0], step->steps[1], step->steps[2]};
+  int stop[3] = {0, 0, 0};
+  boolean check[3];
+  boolean running = false;
+
+  for (int i=0; i<3; i++)
+  {
+    check[i] = (mcb & MOTORS[i]) != 0 && steps[i] > 0;
+    rs[i] = check[i] ? steps[i] : 0;
+    running |= check[i];
+  }
+
+  while (running)
+  {
+    if (isProgramAborted())
+    {
+      return false;
+    }
+    digitalInOut(mcb);
+    running = false;
+    for (int i=0; i<3; i++)
+    {
+      if (check[i] && d[i] == HIGH && e[TACHOS[i]] == LOW)
+      {
+        stop[i] = checkRPM(i, millis());
+        steps[i]--;
+        rs[i] = steps[i];
+        if (steps[i] <= stop[i])
+        {
+          mcb = mcb & ~MOTORS[i];
+          check[i] = false;
+        }
+      }
+      d[i] = e[TACHOS[i]];
+      running |= check[i];
+    }
+  }
+
+  // hold the outputs
+  unsigned long start = millis();
+  while ((step->until != 0 && step->duration == 0) || millis() - start < step->duration)
+  {
+    if (isProgramAborted())
+    {
+      return false;
+    }
+    digitalInOut(mcb);
+    if (step->until != 0 && isConditionMet(step->until))
+    {
+      break;
+    }
+  }
   digitalInOut(mcb);
+  return true;
+}
+
+/**
+ * Checks the input condition of a program step against E1-E8.
+ */
+boolean isConditionMet(char until)
+{
+  int i = abs(until) - 1;
+  boolean high = e[i] == LOW; // +5V
+  return until > 0 ? high : !high;
+}
+
+/**
+ * Checks whether the running program must be aborted. All received frames are processed right away, so '#4,0'
+ * and '!' are never blocked by frames queued before them: configuration commands are applied, motor commands are
+ * buffered until the program has ended. A priority command aborts the program and is left for loop().
+ */
+boolean isProgramAborted()
+{
+  if (e1_emerg_off && e[0] == HIGH)
+  {
+    return true;
+  }
+  char c;
+  while ((c = pollFrame()) != 0 && c != '!')
+  {
+    processFrame();
+  }
+  return c == '!' || programStop;
+}
 
-  // return digital and analog input values
+/**
+ * Write the CTRL_PROGRESS frame with the state of the program and the current input values.
+ */
+void writeProgress(byte state, byte step, byte repetition)
+{
+  Serial.write(CTRL_PROGRESS);
+  writeManchester(state, 1);
+  writeManchester(step, 1);
+  writeManchester(repetition, 1);
+  writeManchester(convInputToByte(), 1);
+  writeManchester(readAnalogX(), 1);
+  writeManchester(readAnalogY(), 1);
+}
+
+/**
+ * Answers the command with the given sequence number if none of it's motors is running any more.
+ */
+void completeOwner(byte seqnr, boolean check[], byte owner[])
+{
+  for (int i=0; i<3; i++)
+  {
+    if (check[i] && owner[i] == seqnr)
+    {
+      return;
+    }
+  }
+  for (int i=0; i<3; i++)
+  {
+    if (owner[i] == seqnr)
+    {
+      owner[i] = NO_OWNER;
+    }
+  }
+  writeISB(seqnr);
+}
+
+/**
+ * Reads a join command after the start char '&' while a stepping command is running. If all motors the join
+ * command steps are idle, they are started right away and run concurrently with the running command. The join
+ * command is answered as soon as it's motors have performed their steps. Otherwise it is buffered like a normal
+ * command.
+ */
+void joinCommand(byte *mcb, int steps[], boolean check[], byte owner[])
+{
+  struct t_command *first = command_buffer != NULL ? command_buffer->first : NULL;
+  readCommand(false);
+  if (command_buffer == NULL || command_buffer->first == first)
+  {
+    return; // invalid command
+  }
+
+  struct t_command *join = command_buffer->first;
+  int jsteps[3] = {join->m1_steps, join->m2_steps, join->m3_steps};
+  boolean joinable = false;
+  for (int i=0; i<3; i++)
+  {
+    if ((join->mcb & MOTORS[i]) != 0 && jsteps[i] > 0)
+    {
+      if (check[i])
+      {
+        return; // motor busy, keep it buffered
+      }
+      joinable = true;
+    }
+  }
+  if (!joinable)
+  {
+    return;
+  }
+
+  removeCommandFirst();
+  for (int i=0; i<3; i++)
+  {
+    if ((join->mcb & MOTORS[i]) != 0 && jsteps[i] > 0)
+    {
+      *mcb = (*mcb & ~MOTORS[i]) | (join->mcb & MOTORS[i]);
+      steps[i] = jsteps[i];
+      check[i] = true;
+      owner[i] = join->seqnr;
+      rs[i] = jsteps[i];
+    }
+  }
+  markExecuted(join->seqnr, true);
+  free(join);
+}
+
+/**
+ * Write the ISB frame with the current digital and analog input values.
+ */
+void writeISB(byte seqnr)
+{
   int ex = convToManchester(readAnalogX());
   int ey = convToManchester(readAnalogY());
   int di = convToManchester(convInputToByte());
@@ -210,6 +570,92 @@ void executeCommand(byte seqnr, byte mcb, int m1_steps, int m2_steps, int m3_ste
   Serial.write((byte) (ex >> 8) & 0xFF); // MSB
   Serial.write((byte) ey & 0xFF); // LSB
   Serial.write((byte) (ey >> 8) & 0xFF); // MSB
+
+  // extended ISB frame
+  if (telemetry)
+  {
+    writeManchester(millis(), 4);
+    for (int i=0; i<3; i++)
+    {
+      writeManchester(rs[i] < 0 ? 0 : rs[i], 2);
+    }
+    for (int i=0; i<3; i++)
+    {
+      writeManchester(tp[i] > 0xFFFF ? 0xFFFF : tp[i], 2);
+    }
+  }
+}
+
+/**
+ * Set or clear the executed bit of the given sequence number.
+ */
+void markExecuted(byte seqnr, boolean value)
+{
+  if (value)
+  {
+    executed[seqnr >> 3] |= _BV(seqnr & 7);
+  }
+  else
+  {
+    executed[seqnr >> 3] &= ~_BV(seqnr & 7);
+  }
+}
+
+/**
+ * Check whether a command with the given sequence number has been executed.
+ */
+boolean isExecuted(byte seqnr)
+{
+  return (executed[seqnr >> 3] & _BV(seqnr & 7)) != 0;
+}
+
+/**
+ * Check whether a command with the given sequence number runs a motor.
+ */
+boolean isRunning(byte seqnr)
+{
+  for (int i=0; i<3; i++)
+  {
+    if (owners[i] == seqnr)
+    {
+      return true;
+    }
+  }
+  return false;
+}
+
+/**
+ * Check whether a command with the given sequence number is waiting in the command buffer.
+ */
+boolean isBuffered(byte seqnr)
+{
+  if (command_buffer == NULL)
+  {
+    return false;
+  }
+  for (struct t_command *c = command_buffer->first; c != NULL; c = c->next)
+  {
+    if (c->seqnr == seqnr)
+    {
+      return true;
+    }
+  }
+  return false;
+}
+
+/**
+ * Write the lowest 'count' bytes of the given value, lowest byte first.
+ * Each byte is written Manchester-coded as LSB and MSB.
+ */
+void writeManchester(unsigned long value, int count)
+{
+  for (int i=0; i<count; i++)
+  {
+    int m = convToManchester((byte) (value & 0xFF));
+    Serial.write((byte) m & 0xFF); // LSB
+    Serial.write((byte) (m >> 8) & 0xFF); // MSB
+    value = value >> 8;
+  }
 }
 
 /**
@@ -219,6 +665,7 @@ int checkRPM(int i, unsigned long timestamp)
 {
   unsigned long ret = timestamp - ts[i];
   ts[i] = timestamp;
+  tp[i] = ret;
   if (ret < 16)
     return 2;
   else
@@ -280,78 +727,312 @@ int convToManchester(byte b)
  *    
  *    Commanded steps = 0: Non-stepping run of corresponding motor.
  *    Commanded steps < 0: Motor off (overrides Motor Command Byte).
+ *
+ * or a priority command with the start char '!' instead of '$'. All buffered commands are discarded
+ * and a running stepping command is aborted before it is executed.
+ *
+ * or a retransmitted command with the start char '%' instead of '$'. It is executed only if the
+ * original command has been lost. If it has already been executed, just the ISBs are sent again. A running
+ * command is answered when it's done.
+ *
+ * or a join command with the start char '&' instead of '$'. While a stepping command is running, it's stepping
+ * motors are started right away if they are idle (see joinCommand()). Otherwise it is buffered like '$'.
+ *
+ * or a program step in the following form, stored in the program buffer:
+ *    *index,mcb,a,b,c,duration,until,repeat\n
+ *
+ *    * = Start char.
+ *    index = Position in the program buffer (0..PROGRAM_SIZE-1).
+ *    mcb,a,b,c = Motor Command Byte and commanded steps M1-M3 as above.
+ *    duration = Time to hold the outputs after the steps (0..65535 ms).
+ *    until = Input condition to wait for: n = E(n) is +5V, -n = E(n) is 0V, 0 = none (-8..8).
+ *    repeat = Number of executions (1..255).
+ *    \n = Terminal char.
+ *
+ *    The program is started with the configuration command '#4,n' (first n steps) and stopped with '#4,0'.
+ *
+ * or a configuration command in the following form:
+ *    #key,value\n
+ *
+ *    # = Start char.
+ *    key = Configuration key in decimal notation, see CONFIG_*.
+ *    value = Configuration value in decimal notation.
+ *    \n = Terminal char.
+ *
+ * The frames are received by pollFrame() and processed by processFrame().
  */
-void serialEvent()
+void processFrame()
 {
-  while (Serial.available() > 0)
+  if (frameStart == '$')
+  {
+    readCommand(false);
+  }
+  else if (frameStart == '%')
+  {
+    readCommand(true);
+  }
+  else if (frameStart == '!')
+  {
+    clearCommands();
+    readCommand(false);
+  }
+  else if (frameStart == '&')
+  {
+    readCommand(false); // no stepping command to join
+  }
+  else if (frameStart == '*')
+  {
+    readStep();
+  }
+  else if (frameStart == '#')
   {
-    // Check if memory for command is available
-    struct t_command *command;
-    if ((command = (struct t_command*)malloc(sizeof(struct t_command))) == NULL)
+    readConfig();
+  }
+  endFrame();
+}
+
+/**
+ * Byte-level pre-parser: moves the received bytes into the frame buffer until the frame is complete (start char up
+ * to '\n'). Returns the start char of the complete frame, 0 if there is none yet. The frame is kept until
+ * endFrame() is called, the bytes behind it stay in the serial buffer. A frame that is too long or interrupted by
+ * another start char is discarded. Bytes outside of a frame are ignored.
+ */
+char pollFrame()
+{
+  while (!frameComplete && Serial.available() > 0)
+  {
+    int c = Serial.read();
+    if (c == '$' || c == '%' || c == '!' || c == '&' || c == '*' || c == '#')
     {
-      return;
+      frameStart = c;
+      frame.length = 0;
     }
-    command->prev = NULL;
-    command->next = NULL;
-
-    // read command
-    if (Serial.read() == '$')
+    else if (frameStart != 0)
     {
-      // next int is the motor command
-      byte mcb = lowByte(Serial.parseInt());
-
-      // Step count for M1
-      int m1_steps = Serial.parseInt();
-      if (m1_steps < 0)
+      if (frame.length == FRAME_SIZE)
       {
-        mcb = mcb & M1_OFF;
+        frameStart = 0;
       }
-      command->m1_steps = m1_steps;
-      
-      // Step count for M2
-      int m2_steps = Serial.parseInt();
-      if (m2_steps < 0)
+      else
       {
-        mcb = mcb & M2_OFF;
+        frame.buffer[frame.length++] = c;
+        frameComplete = c == '\n';
       }
-      command->m2_steps = m2_steps;
+    }
+  }
+  frame.position = 0;
+  return frameComplete ? frameStart : 0;
+}
 
-      // Step count for M3
-      int m3_steps = Serial.parseInt();
-      if (m3_steps < 0)
-      {
-        mcb = mcb & M3_OFF;
-      }
-      command->m3_steps = m3_steps;
-      command->mcb = mcb;
+/**
+ * Discards the complete frame, the next one is received by pollFrame().
+ */
+void endFrame()
+{
+  frameStart = 0;
+  frameComplete = false;
+  frame.length = 0;
+  frame.position = 0;
+}
+
+/**
+ * Reads a motor command after the start char '$' or '%' and adds it to the command buffer.
+ */
+void readCommand(boolean retransmission)
+{
+  // Check if memory for command is available
+  struct t_command *command;
+  if ((command = (struct t_command*)malloc(sizeof(struct t_command))) == NULL)
+  {
+    return;
+  }
+  command->prev = NULL;
+  command->next = NULL;
+
+  // next int is the motor command
+  byte mcb = lowByte(frame.parseInt());
+
+  // Step count for M1
+  int m1_steps = frame.parseInt();
+  if (m1_steps < 0)
+  {
+    mcb = mcb & M1_OFF;
+  }
+  command->m1_steps = m1_steps;
+  
+  // Step count for M2
+  int m2_steps = frame.parseInt();
+  if (m2_steps < 0)
+  {
+    mcb = mcb & M2_OFF;
+  }
+  command->m2_steps = m2_steps;
+
+  // Step count for M3
+  int m3_steps = frame.parseInt();
+  if (m3_steps < 0)
+  {
+    mcb = mcb & M3_OFF;
+  }
+  command->m3_steps = m3_steps;
+  command->mcb = mcb;
+
+  // expect Terminal char or Sequence Number
+  if (frame.peek() == '\n')
+  {
+    frame.read(); // Remove \n from buffer
+    command->seqnr = 0;
+    addCommandFirst(command);
+    speedPending = false;
+  }
+  else
+  {
+    // Sequence Number
+    byte seqnr = lowByte(frame.parseInt()) & B00111111;
 
-      // expect Terminal char or Sequence Number
-      if (Serial.peek() == '\n')
+    // Terminal char
+    if (frame.read() == '\n')
+    {
+      command->seqnr = seqnr;
+      speedPending = false;
+      if (!retransmission)
       {
-        Serial.read(); // Remove \n from buffer
-        command->seqnr = 0;
+        markExecuted(seqnr, false);
         addCommandFirst(command);
       }
-      else
+      else if (isExecuted(seqnr))
       {
-        // Sequence Number
-        byte seqnr = lowByte(Serial.parseInt()) & B00111111;
-
-        // Terminal char
-        if (Serial.read() == '\n')
+        if (!isRunning(seqnr))
         {
-          command->seqnr = seqnr;
-          addCommandFirst(command);
-        }      
+          writeISB(seqnr); // the ISBs got lost, a running command is answered when it's done
+        }
+        clkHold = millis(); // the host still commands the current outputs
       }
-    } // Serial.read() == '$'
-    
-    // if command was not added, free memory
-    if (command_buffer == NULL || command_buffer->first != command)
+      else if (!isBuffered(seqnr))
+      {
+        addCommandFirst(command); // the command got lost
+      }
+    }      
+  }
+  
+  // if command was not added, free memory
+  if (command_buffer == NULL || command_buffer->first != command)
+  {
+    free(command);
+  }
+}
+
+/**
+ * Reads a program step after the start char '*' and stores it in the program buffer.
+ */
+void readStep()
+{
+  long index = frame.parseInt();
+  struct t_step step;
+  step.mcb = lowByte(frame.parseInt());
+  for (int i=0; i<3; i++)
+  {
+    step.steps[i] = frame.parseInt();
+    if (step.steps[i] < 0)
     {
-      free(command);
+      step.mcb = step.mcb & ~MOTORS[i];
     }
-  } // while
+  }
+  step.duration = frame.parseInt();
+  long until = frame.parseInt();
+  long repeat = frame.parseInt();
+  if (frame.read() != '\n' || index < 0 || index >= PROGRAM_SIZE || until < -8 || until > 8 || repeat < 1)
+  {
+    return;
+  }
+  step.until = until;
+  step.repeat = repeat > 255 ? 255 : repeat;
+  program[index] = step;
+  programLoaded |= 1UL << index;
+}
+
+/**
+ * Reads a configuration command after the start char '#', applies it and
+ * acknowledges it with the applied value.
+ */
+void readConfig()
+{
+  long key = frame.parseInt();
+  long value = frame.parseInt();
+  if (frame.read() != '\n')
+  {
+    return;
+  }
+  speedPending = false;
+  
+  switch (key)
+  {
+    case CONFIG_PING:
+      value = FIRMWARE_VERSION;
+      break;
+    case CONFIG_TELEMETRY:
+      telemetry = value != 0;
+      break;
+    case CONFIG_SPEED:
+      value = selectSpeed(value);
+      break;
+    case CONFIG_HOLD:
+      value = constrain(value, 0, HOLD_TIME_MAX);
+      holdTime = value;
+      break;
+    case CONFIG_PROGRAM:
+      value = constrain(value, 0, PROGRAM_SIZE);
+      programStart = value;
+      programStop = value == 0;
+      break;
+    default:
+      return; // unknown key, no ACK
+  }
+  writeAck(key, value);
+
+  if (key == CONFIG_SPEED && value != SPEEDS[0])
+  {
+    changeSpeed(value);
+    speedPending = true;
+    speedChanged = millis();
+  }
+}
+
+/**
+ * Writes the ACK control frame for a configuration command.
+ */
+void writeAck(long key, long value)
+{
+  Serial.write(CTRL_ACK);
+  writeManchester(key, 1);
+  writeManchester(value, 4);
+}
+
+/**
+ * Returns the highest supported speed that is not greater than the requested one.
+ */
+long selectSpeed(long requested)
+{
+  long ret = SPEEDS[0];
+  for (int i=0; i<SPEED_COUNT; i++)
+  {
+    if (SPEEDS[i] <= requested)
+    {
+      ret = SPEEDS[i];
+    }
+  }
+  return ret;
+}
+
+/**
+ * Switches the serial port to the given speed after all pending data were sent.
+ */
+void changeSpeed(long speed)
+{
+  Serial.flush();
+  Serial.end();
+  Serial.begin(speed);
+  while (!Serial);
 }
 
 /**
@@ -377,6 +1058,46 @@ void addCommandFirst(struct t_command *newCommand)
   command_buffer->first = newCommand;
 }
 
+/**
+ * Removes and frees all buffered commands.
+ */
+void clearCommands()
+{
+  struct t_command *command;
+  while ((command = removeCommandLast()) != NULL)
+  {
+    free(command);
+  }
+}
+
+/**
+ * Removes the first (head) command from the list.
+ * To free the memory of the returned command is in the responsibility of the caller.
+ */
+struct t_command* removeCommandFirst()
+{
+  if (command_buffer == NULL)
+  {
+    return NULL;
+  }
+
+  struct t_command *first = command_buffer->first;  
+  if (first != NULL)
+  {
+    if (first->next != NULL)
+    {
+      first->next->prev = NULL;
+    }
+    else
+    {
+      command_buffer->last = NULL;
+    }
+    command_buffer->first = first->next;
+    first->next = NULL;
+  }
+  return first;
+}
+
 /**
  * Removes the last (tail) command from the list.
  * To free the memory of the returned command is in the responsibility of the caller.
@@ -0,0 +1,184 @@
+package de.voglrobe.ftinterface.io;
+
+import com.google.gson.Gson;
+import org.apache.commons.lang3.builder.EqualsBuilder;
+import org.apache.commons.lang3.builder.HashCodeBuilder;
+
+/**
+ * A condition on the inputs of an ISB, e.g. to wait for a switch in a motion program.
+ * <p>
+ * A digital input matches if it has the given state, an analog input matches if it's value is in the given range.
+ * JSON examples:
+ * <pre> {"input": "E1", "state": true}
+ * {"input": "EX", "min": 0, "max": 100}</pre>
+ *
+ * @author robert
+ */
+public class FtInputCondition
+{
+    /**
+     * The input names.
+     */
+    public enum Input
+    {
+        E1, E2, E3, E4, E5, E6, E7, E8, EX, EY
+    };
+
+    private Input input;
+    private boolean state;
+    private int min;
+    private int max;
+
+    /**
+     * Factory to create a new instance of this class from a JSON string.
+     *
+     * @param json A valid JSON string.
+     * @return A new instance of this class.
+     */
+    public static FtInputCondition fromJson(final String json)
+    {
+        Gson gson = new Gson();
+        return gson.fromJson(json, FtInputCondition.class);
+    }
+
+    /**
+     * Factory to create a condition on a digital input.
+     *
+     * @param in The digital input.
+     * @param state The state to wait for. TRUE = +5V, FALSE = 0V.
+     * @return A new instance of this class.
+     */
+    public static FtInputCondition digital(final FtInputs.IN in, final boolean state)
+    {
+        FtInputCondition ret = new FtInputCondition();
+        ret.input = Input.valueOf(in.name());
+        ret.state = state;
+        return ret;
+    }
+
+    /**
+     * Factory to create a condition on an analog input.
+     *
+     * @param input The analog input, either EX or EY.
+     * @param min The lower limit of the range [0, 255] (inclusive).
+     * @param max The upper limit of the range [0, 255] (inclusive).
+     * @return A new instance of this class.
+     */
+    public static FtInputCondition analog(final Input input, final int min, final int max)
+    {
+        if (input != Input.EX && input != Input.EY)
+        {
+            throw new IllegalArgumentException("Not an analog input.");
+        }
+        FtInputCondition ret = new FtInputCondition();
+        ret.input = input;
+        ret.min = min;
+        ret.max = max;
+        return ret;
+    }
+
+    /**
+     * Constructor.
+     *
+     * The default condition waits for E1 = 0V.
+     */
+    public FtInputCondition()
+    {
+        this.input = Input.E1;
+        this.state = false;
+        this.min = 0;
+        this.max = 255;
+    }
+
+    /**
+     * Returns the input this condition refers to.
+     *
+     * @return The input name.
+     */
+    public Input getInput()
+    {
+        return input;
+    }
+
+    /**
+     * Returns whether this condition refers to a digital input.
+     *
+     * @return TRUE for E1-E8, FALSE for EX and EY.
+     */
+    public boolean isDigital()
+    {
+        return input != Input.EX && input != Input.EY;
+    }
+
+    /**
+     * Returns the state a digital input must have.
+     *
+     * @return TRUE = +5V, FALSE = 0V.
+     */
+    public boolean getState()
+    {
+        return state;
+    }
+
+    /**
+     * Checks this condition against the given ISB.
+     *
+     * @param inputs The received ISB.
+     * @return TRUE if the condition is fulfilled.
+     */
+    public boolean matches(final FtInputs inputs)
+    {
+        if (input == null || inputs == null)
+        {
+            return false;
+        }
+        switch(input)
+        {
+            case EX:
+                return inputs.getEx() >= min && inputs.getEx() <= max;
+            case EY:
+                return inputs.getEy() >= min && inputs.getEy() <= max;
+            default:
+                return inputs.getDigitalIn().get(input.ordinal()) == state;
+        }
+    }
+
+    /**
+     * Serialize to JSON.
+     *
+     * @return An instance of this class serialized into JSON.
+     */
+    public String toJson()
+    {
+        Gson gson = new Gson();
+        return gson.toJson(this);
+    }
+
+    @Override
+    public int hashCode()
+    {
+        HashCodeBuilder hcb = new HashCodeBuilder(17, 67);
+        hcb.append(this.input);
+        hcb.append(this.state);
+        hcb.append(this.min);
+        hcb.append(this.max);
+        return hcb.toHashCode();
+    }
+
+    @Override
+    public boolean equals(Object obj)
+    {
+        if (!(obj instanceof FtInputCondition))
+        {
+            return false;
+        }
+        FtInputCondition rhs = (FtInputCondition) obj;
+        EqualsBuilder eqb = new EqualsBuilder();
+        eqb.append(this.input, rhs.input);
+        eqb.append(this.state, rhs.state);
+        eqb.append(this.min, rhs.min);
+        eqb.append(this.max, rhs.max);
+        return eqb.isEquals();
+    }
+
+}
@@ -2,6 +2,7 @@ package de.voglrobe.ftinterface.io;
 
 import com.google.gson.Gson;
 import com.google.gson.annotations.SerializedName;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
@@ -10,6 +11,18 @@ import org.apache.commons.lang3.builder.HashCodeBuilder;
 
 /**
  * Holds the digital and analog input data (ISBs).
+ * <p>
+ * The binary format (see {@link #toBinary()}) has a length of {@value #BINARY_LENGTH} bytes, followed by the
+ * optional telemetry:
+ * <pre> 0      type = {@value #BINARY_TYPE}
+ * 1      seqnr
+ * 2      digital inputs, E1 = bit 7 ... E8 = bit 0
+ * 3      ex
+ * 4      ey
+ * 5      flags: bit 0 = durationFinished, bit 1 = expired, bit 7 = telemetry follows
+ * 6-9    telemetry timestamp (unsigned)
+ * 10     n = number of steps, followed by n * 2 bytes of steps (unsigned)
+ * ...    m = number of periods, followed by m * 2 bytes of periods (unsigned)</pre>
  *
  * @author robert
  */
@@ -26,6 +39,23 @@ public class FtInputs
     @SerializedName("flags")    
     private FtInputsFlags flags;
 
+    @SerializedName("telemetry")
+    private FtInputsTelemetry telemetry;
+
+    /**
+     * The type byte of an ISB in the binary format.
+     */
+    public static final int BINARY_TYPE = 0x02;
+    
+    /**
+     * The length of an ISB without telemetry in the binary format.
+     */
+    public static final int BINARY_LENGTH = 6;
+    
+    private static final int FLAG_DURATION_FINISHED = 0x01;
+    private static final int FLAG_EXPIRED = 0x02;
+    private static final int FLAG_TELEMETRY = 0x80;
+    
     /**
      * The digital input names.
      */
@@ -46,6 +76,57 @@ public class FtInputs
         return gson.fromJson(json, FtInputs.class);
     }
 
+    /**
+     * Factory to create a new instance of this class from the binary format.
+     * 
+     * @param data The received data.
+     * @param offset The offset of the ISB in the data.
+     * @param length The length of the ISB.
+     * @return A new instance of this class.
+     * @throws IllegalArgumentException in case of an invalid ISB.
+     */
+    public static FtInputs fromBinary(final byte[] data, final int offset, final int length)
+            throws IllegalArgumentException
+    {
+        if (length < BINARY_LENGTH || data[offset] != BINARY_TYPE)
+        {
+            throw new IllegalArgumentException("Invalid binary ISB.");
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(data, offset + 1, length - 1);
+        FtInputs ret = new FtInputs(buffer.get() & 0xFF, buffer.get() & 0xFF, buffer.get() & 0xFF,
+                buffer.get() & 0xFF);
+        int flags = buffer.get() & 0xFF;
+        if ((flags & (FLAG_DURATION_FINISHED | FLAG_EXPIRED)) != 0)
+        {
+            ret.flags = new FtInputsFlags();
+            ret.flags.setDurationFinished((flags & FLAG_DURATION_FINISHED) != 0);
+            ret.flags.setExpired((flags & FLAG_EXPIRED) != 0);
+        }
+        if ((flags & FLAG_TELEMETRY) != 0)
+        {
+            try
+            {
+                long timestamp = buffer.getInt() & 0xFFFFFFFFL;
+                List<Integer> steps = new ArrayList<>();
+                for (int n = buffer.get() & 0xFF; n > 0; n--)
+                {
+                    steps.add(buffer.getShort() & 0xFFFF);
+                }
+                List<Integer> periods = new ArrayList<>();
+                for (int n = buffer.get() & 0xFF; n > 0; n--)
+                {
+                    periods.add(buffer.getShort() & 0xFFFF);
+                }
+                ret.telemetry = new FtInputsTelemetry(timestamp, steps, periods);
+            }
+            catch(RuntimeException e)
+            {
+                throw new IllegalArgumentException("Invalid binary ISB telemetry.", e);
+            }
+        }
+        return ret;
+    }
+
     /**
      * Constructor.
      *
@@ -67,6 +148,20 @@ public class FtInputs
         this.ey = ey;
     }
     
+    /**
+     * Copy constructor. The flags and the telemetry are not copied.
+     *
+     * @param seqNr The sequence number of the new ISB.
+     * @param inputs The ISB to copy the input values from.
+     */
+    public FtInputs(final int seqNr, final FtInputs inputs)
+    {
+        this.seqNr = seqNr;
+        this.digitalIn.addAll(inputs.digitalIn);
+        this.ex = inputs.ex;
+        this.ey = inputs.ey;
+    }
+    
     /**
      * Returns the sequence number of the corresponding MCC.
      * 
@@ -139,6 +234,26 @@ public class FtInputs
     {
         this.flags = flags;
     }
+
+    /**
+     * Returns the optional telemetry data of the extended ISB frame.
+     * 
+     * @return the telemetry data or NULL if the extended ISB frame is not enabled.
+     */
+    public FtInputsTelemetry getTelemetry()
+    {
+        return telemetry;
+    }
+
+    /**
+     * Sets the optional telemetry data.
+     * 
+     * @param telemetry telemetry data of the extended ISB frame.
+     */
+    public void setTelemetry(final FtInputsTelemetry telemetry)
+    {
+        this.telemetry = telemetry;
+    }
   
     
     /**
@@ -182,6 +297,47 @@ public class FtInputs
         return gson.toJson(this);
     }
 
+    /**
+     * Serialize to the binary format.
+     * 
+     * @return An instance of this class as {@value #BINARY_LENGTH} bytes plus the telemetry, if any.
+     */
+    public byte[] toBinary()
+    {
+        int di = 0;
+        for (int i=0; i<digitalIn.size() && i<8; i++)
+        {
+            if (digitalIn.get(i))
+            {
+                di |= 0x80 >> i;
+            }
+        }
+        int bits = 0;
+        if (flags != null)
+        {
+            bits |= flags.isDurationFinished() ? FLAG_DURATION_FINISHED : 0;
+            bits |= flags.isExpired() ? FLAG_EXPIRED : 0;
+        }
+        int length = BINARY_LENGTH;
+        if (telemetry != null)
+        {
+            bits |= FLAG_TELEMETRY;
+            length += 6 + 2 * (telemetry.getSteps().size() + telemetry.getPeriods().size());
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        buffer.put((byte) BINARY_TYPE).put((byte) seqNr).put((byte) di).put((byte) ex).put((byte) ey);
+        buffer.put((byte) bits);
+        if (telemetry != null)
+        {
+            buffer.putInt((int) telemetry.getTimestamp());
+            buffer.put((byte) telemetry.getSteps().size());
+            telemetry.getSteps().forEach((final Integer step) -> buffer.putShort(step.shortValue()));
+            buffer.put((byte) telemetry.getPeriods().size());
+            telemetry.getPeriods().forEach((final Integer period) -> buffer.putShort(period.shortValue()));
+        }
+        return buffer.array();
+    }
+
     @Override
     public int hashCode()
     {
@@ -191,6 +347,7 @@ public class FtInputs
         hcb.append(this.getEx());
         hcb.append(this.getEy());
         hcb.append(this.getFlags());
+        hcb.append(this.getTelemetry());
         return hcb.toHashCode();
     }
 
@@ -208,6 +365,7 @@ public class FtInputs
         eqb.append(this.getEx(), rhs.getEx());
         eqb.append(this.getEy(), rhs.getEy());
         eqb.append(this.getFlags(), rhs.getFlags());
+        eqb.append(this.getTelemetry(), rhs.getTelemetry());
         return eqb.isEquals();        
     }
 
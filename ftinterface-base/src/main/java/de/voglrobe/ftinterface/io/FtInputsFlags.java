@@ -12,6 +12,7 @@ import org.apache.commons.lang3.builder.HashCodeBuilder;
 public class FtInputsFlags
 {
     private boolean durationFinished;
+    private boolean expired;
    
     /**
      * Factory to create a new instance of this class from a JSON string.
@@ -31,6 +32,7 @@ public class FtInputsFlags
     public FtInputsFlags()
     {
         this.durationFinished = false;
+        this.expired = false;
     }
 
     /**
@@ -53,12 +55,32 @@ public class FtInputsFlags
         this.durationFinished = durationFinished;
     }
     
+    /**
+     * @return TRUE if the command of this ISB has been discarded because it's deadline had passed.
+     */
+    public boolean isExpired()
+    {
+        return expired;
+    }
+
+    /**
+     * A command that waited for transmission beyond it's deadline is never sent to the interface adapter. It's
+     * submitter gets an ISB with this flag set to TRUE instead. The input values are the last ones received.
+     * 
+     * @param expired TRUE if the command has expired.
+     */
+    public void setExpired(final boolean expired)
+    {
+        this.expired = expired;
+    }
+    
     /**
      * Reset all flags to their default state.
      */
     public void reset()
     {
         this.durationFinished = false;
+        this.expired = false;
     }
     
     /**
@@ -77,6 +99,7 @@ public class FtInputsFlags
     {
         HashCodeBuilder hcb = new HashCodeBuilder(17, 67);
         hcb.append(this.isDurationFinished());
+        hcb.append(this.isExpired());
         return hcb.toHashCode();
     }
 
@@ -90,6 +113,7 @@ public class FtInputsFlags
         FtInputsFlags rhs = (FtInputsFlags) obj;
         EqualsBuilder eqb = new EqualsBuilder();
         eqb.append(this.isDurationFinished(), rhs.isDurationFinished());
+        eqb.append(this.isExpired(), rhs.isExpired());
         return eqb.isEquals();        
     }
     
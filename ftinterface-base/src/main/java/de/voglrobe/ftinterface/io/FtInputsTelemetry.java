@@ -0,0 +1,121 @@
+package de.voglrobe.ftinterface.io;
+
+import com.google.gson.Gson;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import org.apache.commons.lang3.builder.EqualsBuilder;
+import org.apache.commons.lang3.builder.HashCodeBuilder;
+
+/**
+ * Optional telemetry data of the {@link FtInputs}, delivered by the extended ISB frame.
+ *
+ * @author robert
+ */
+public class FtInputsTelemetry
+{
+    private final long timestamp;
+    private final List<Integer> steps = new ArrayList<>();
+    private final List<Integer> periods = new ArrayList<>();
+
+    /**
+     * Factory to create a new instance of this class from a JSON string.
+     *
+     * @param json A valid JSON string.
+     * @return A new instance of this class.
+     */
+    public static FtInputsTelemetry fromJson(final String json)
+    {
+        Gson gson = new Gson();
+        return gson.fromJson(json, FtInputsTelemetry.class);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param timestamp The firmware timestamp (millis()) in ms when the ISB was sampled. Unsigned 32 bit.
+     * @param steps The remaining steps of the motors M1-M3 in the order index 0 = M1, index 2 = M3.
+     * @param periods The last tacho periods in ms of the motors M1-M3 in the order index 0 = M1, index 2 = M3.
+     */
+    public FtInputsTelemetry(final long timestamp, final List<Integer> steps, final List<Integer> periods)
+    {
+        this.timestamp = timestamp;
+        if (steps != null)
+        {
+            this.steps.addAll(steps);
+        }
+        if (periods != null)
+        {
+            this.periods.addAll(periods);
+        }
+    }
+
+    /**
+     * Returns the firmware timestamp.
+     *
+     * @return The value of millis() on the device when the ISB was sampled.
+     * Wraps around after approx. 49 days.
+     */
+    public long getTimestamp()
+    {
+        return timestamp;
+    }
+
+    /**
+     * Returns the remaining steps of the stepping motors.
+     *
+     * @return The remaining steps. Index 0 = M1, index 2 = M3. 0 = no steps left or non-stepping command.
+     */
+    public List<Integer> getSteps()
+    {
+        return Collections.unmodifiableList(steps);
+    }
+
+    /**
+     * Returns the last measured tacho periods of the stepping motors.
+     *
+     * @return The time in ms between the last two steps. Index 0 = M1, index 2 = M3.
+     * Saturates at 65535.
+     */
+    public List<Integer> getPeriods()
+    {
+        return Collections.unmodifiableList(periods);
+    }
+
+    /**
+     * Serialize to JSON.
+     *
+     * @return An instance of this class serialized into JSON.
+     */
+    public String toJson()
+    {
+        Gson gson = new Gson();
+        return gson.toJson(this);
+    }
+
+    @Override
+    public int hashCode()
+    {
+        HashCodeBuilder hcb = new HashCodeBuilder(17, 67);
+        hcb.append(this.getTimestamp());
+        hcb.append(this.getSteps());
+        hcb.append(this.getPeriods());
+        return hcb.toHashCode();
+    }
+
+    @Override
+    public boolean equals(Object obj)
+    {
+        if (!(obj instanceof FtInputsTelemetry))
+        {
+            return false;
+        }
+        FtInputsTelemetry rhs = (FtInputsTelemetry) obj;
+        EqualsBuilder eqb = new EqualsBuilder();
+        eqb.append(this.getTimestamp(), rhs.getTimestamp());
+        eqb.append(this.getSteps(), rhs.getSteps());
+        eqb.append(this.getPeriods(), rhs.getPeriods());
+        return eqb.isEquals();
+    }
+
+}
@@ -0,0 +1,172 @@
+package de.voglrobe.ftinterface.io;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonSyntaxException;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import org.apache.commons.lang3.builder.EqualsBuilder;
+import org.apache.commons.lang3.builder.HashCodeBuilder;
+
+/**
+ * This class implements a batch of MCC messages sent in one WebSocket frame. Each message has it's own duration,
+ * deadline and maximum age, see {@link FtMccMessage}. JSON example:
+ * <pre> {"batch": [
+ *    {"mcc": {"seqnr": 1, "mcb": 64, "m1steps": 100}},
+ *    {"mcc": {"seqnr": 2, "mcb": 16, "m2steps": 50}},
+ *    {"mcc": {"seqnr": 3, "mcb": 64}, "duration": 2}
+ *  ],
+ *  "atomic": true}</pre>
+ * The messages of an atomic batch are sent to the interface adapter contiguously, i.e. no MCC of another client
+ * gets in between. The messages of a pipelined batch (default) are sent in order, but may interleave with MCCs of
+ * other clients. The server answers a batch with one acknowledgement:
+ * <pre> {"ack": {"seqnrs": [1, 2, 3], "failed": []}}</pre>
+ * In the binary format a batch is the binary MCC messages back to back, see {@link FtMccMessage#toBinary()}.
+ * Binary batches are pipelined.
+ *
+ * @author robert
+ */
+public class FtMccBatch implements Serializable
+{
+    private static final long serialVersionUID = 6170834715229130512L;
+
+    private final List<FtMccMessage> batch;
+    private final boolean atomic;
+
+    /**
+     * Factory to create a new instance of this class from a JSON string.
+     *
+     * @param json A valid JSON string.
+     * @return A new instance of this class.
+     * @throws JsonSyntaxException in case of invalid JSON.
+     */
+    public static FtMccBatch fromJson(final String json) throws JsonSyntaxException
+    {
+        Gson gson = new Gson();
+        return gson.fromJson(json, FtMccBatch.class);
+    }
+
+    /**
+     * Factory to create a new pipelined instance of this class from the binary format.
+     *
+     * @param data The received data.
+     * @param offset The offset of the batch in the data.
+     * @param length The length of the batch. Must be a multiple of {@value FtMccMessage#BINARY_LENGTH}.
+     * @return A new instance of this class.
+     * @throws IllegalArgumentException in case of an invalid message.
+     */
+    public static FtMccBatch fromBinary(final byte[] data, final int offset, final int length)
+            throws IllegalArgumentException
+    {
+        if (length == 0 || length % FtMccMessage.BINARY_LENGTH != 0)
+        {
+            throw new IllegalArgumentException("Invalid binary MCC batch.");
+        }
+        List<FtMccMessage> messages = new ArrayList<>();
+        for (int i=0; i<length; i+=FtMccMessage.BINARY_LENGTH)
+        {
+            messages.add(FtMccMessage.fromBinary(data, offset + i, FtMccMessage.BINARY_LENGTH));
+        }
+        return new FtMccBatch(messages, false);
+    }
+
+    /**
+     * Checks whether the given JSON string is a message of this type rather than a {@link FtMccMessage}.
+     *
+     * @param json A valid JSON string.
+     * @return TRUE if it's a batch.
+     * @throws JsonSyntaxException in case of invalid JSON.
+     */
+    public static boolean isBatchMessage(final String json) throws JsonSyntaxException
+    {
+        JsonElement tree = new JsonParser().parse(json);
+        return tree.isJsonObject() && tree.getAsJsonObject().has("batch");
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param messages The MCC messages in the order to send.
+     * @param atomic TRUE to send the messages contiguously.
+     */
+    public FtMccBatch(final List<FtMccMessage> messages, final boolean atomic)
+    {
+        this.batch = new ArrayList<>(messages);
+        this.atomic = atomic;
+    }
+
+    /**
+     * Returns the MCC messages.
+     *
+     * @return The messages in the order to send, never NULL.
+     */
+    public List<FtMccMessage> getMessages()
+    {
+        return batch != null ? Collections.unmodifiableList(batch) : Collections.<FtMccMessage>emptyList();
+    }
+
+    /**
+     * Returns whether the messages are sent contiguously.
+     *
+     * @return TRUE if atomic, FALSE if pipelined.
+     */
+    public boolean isAtomic()
+    {
+        return atomic;
+    }
+
+    /**
+     * Returns an instance of this class in JSON.
+     *
+     * @return This class as JSON.
+     */
+    public String toJson()
+    {
+        Gson gson = new Gson();
+        return gson.toJson(this);
+    }
+
+    /**
+     * Serialize to the binary format. The atomic flag is not part of it.
+     *
+     * @return The binary messages back to back.
+     */
+    public byte[] toBinary()
+    {
+        List<FtMccMessage> messages = this.getMessages();
+        byte[] ret = new byte[messages.size() * FtMccMessage.BINARY_LENGTH];
+        for (int i=0; i<messages.size(); i++)
+        {
+            System.arraycopy(messages.get(i).toBinary(), 0, ret, i * FtMccMessage.BINARY_LENGTH,
+                    FtMccMessage.BINARY_LENGTH);
+        }
+        return ret;
+    }
+
+    @Override
+    public int hashCode()
+    {
+        HashCodeBuilder hcb = new HashCodeBuilder(17, 67);
+        hcb.append(this.getMessages());
+        hcb.append(this.isAtomic());
+        return hcb.toHashCode();
+    }
+
+    @Override
+    public boolean equals(Object obj)
+    {
+        if (!(obj instanceof FtMccBatch))
+        {
+            return false;
+        }
+        FtMccBatch rhs = (FtMccBatch) obj;
+        EqualsBuilder eqb = new EqualsBuilder();
+        eqb.append(this.getMessages(), rhs.getMessages());
+        eqb.append(this.isAtomic(), rhs.isAtomic());
+        return eqb.isEquals();
+    }
+
+}
@@ -3,11 +3,29 @@ package de.voglrobe.ftinterface.io;
 import com.google.gson.Gson;
 import com.google.gson.JsonSyntaxException;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
 import org.apache.commons.lang3.builder.EqualsBuilder;
 import org.apache.commons.lang3.builder.HashCodeBuilder;
 
 /**
  * This class implements a MCC message with additional information.
+ * <p>
+ * A message may carry a deadline and/or a maximum age. A MCC that has not been sent to the interface adapter in
+ * time is discarded and reported as expired, thus stale motion never reaches the robot after a traffic spike.
+ * Example: <code>{"mcc": {"seqnr": 42, "mcb": 64}, "duration": -1, "maxAge": 250}</code>.
+ * <p>
+ * The binary format (see {@link #toBinary()}) has a fixed length of {@value #BINARY_LENGTH} bytes, multi-byte
+ * values are big-endian:
+ * <pre> 0      type = {@value #BINARY_TYPE}
+ * 1      seqnr
+ * 2      mcb
+ * 3      mask
+ * 4-5    m1steps
+ * 6-7    m2steps
+ * 8-9    m3steps
+ * 10-13  duration in seconds (signed)
+ * 14-15  maxAge in ms (unsigned)</pre>
+ * It has no absolute deadline.
  * 
  * @author robert
  */
@@ -15,8 +33,21 @@ public class FtMccMessage implements Serializable
 {
 
     private static final long serialVersionUID = -2605271547507826857L;
+    
+    /**
+     * The type byte of a MCC message in the binary format.
+     */
+    public static final int BINARY_TYPE = 0x01;
+    
+    /**
+     * The length of a MCC message in the binary format.
+     */
+    public static final int BINARY_LENGTH = 16;
+    
     private final FtOutput mcc;
     private int duration;
+    private long deadline;
+    private long maxAge;
     
     /**
      * Factory to create a new instance of this class from a JSON string.
@@ -31,6 +62,29 @@ public class FtMccMessage implements Serializable
         return gson.fromJson(json, FtMccMessage.class);
     }
     
+    /**
+     * Factory to create a new instance of this class from the binary format.
+     * 
+     * @param data The received data.
+     * @param offset The offset of the message in the data.
+     * @param length The length of the message.
+     * @return A new instance of this class.
+     * @throws IllegalArgumentException in case of an invalid message.
+     */
+    public static FtMccMessage fromBinary(final byte[] data, final int offset, final int length)
+            throws IllegalArgumentException
+    {
+        if (length != BINARY_LENGTH || data[offset] != BINARY_TYPE)
+        {
+            throw new IllegalArgumentException("Invalid binary MCC message.");
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(data, offset + 1, length - 1);
+        FtMccMessage ret = new FtMccMessage(FtOutput.readBinary(buffer));
+        ret.setDuration(buffer.getInt());
+        ret.setMaxAge(buffer.getShort() & 0xFFFF);
+        return ret;
+    }
+    
     /**
      * Constructor.
      * 
@@ -40,6 +94,8 @@ public class FtMccMessage implements Serializable
     {
         this.mcc = mcc;
         this.duration = 0;
+        this.deadline = 0L;
+        this.maxAge = 0L;
     }
     
     /**
@@ -65,6 +121,64 @@ public class FtMccMessage implements Serializable
         return duration;
     }
     
+    /**
+     * Sets the point in time the MCC must be sent to the interface adapter by.
+     * 
+     * @param deadline The deadline in milliseconds since the epoch, see {@link System#currentTimeMillis()}.
+     * 0 = no deadline.
+     */
+    public void setDeadline(final long deadline)
+    {
+        this.deadline = deadline;
+    }
+    
+    /**
+     * Returns the point in time the MCC must be sent to the interface adapter by.
+     * 
+     * @return The deadline in milliseconds since the epoch or 0 if not set.
+     */
+    public long getDeadline()
+    {
+        return deadline;
+    }
+    
+    /**
+     * Sets the maximum time the MCC may wait for transmission after it has been received. Unlike the deadline
+     * it does not depend on the clock of the client.
+     * 
+     * @param maxAge The maximum age in milliseconds. 0 = unlimited.
+     */
+    public void setMaxAge(final long maxAge)
+    {
+        this.maxAge = maxAge;
+    }
+    
+    /**
+     * Returns the maximum time the MCC may wait for transmission after it has been received.
+     * 
+     * @return The maximum age in milliseconds or 0 if not set.
+     */
+    public long getMaxAge()
+    {
+        return maxAge;
+    }
+    
+    /**
+     * Returns the effective deadline of the MCC, i.e. the earlier of the deadline and the maximum age.
+     * 
+     * @param received The point in time the message has been received in milliseconds since the epoch.
+     * @return The deadline in milliseconds since the epoch or 0 if the MCC never expires.
+     */
+    public long getDeadline(final long received)
+    {
+        long ret = deadline > 0L ? deadline : Long.MAX_VALUE;
+        if (maxAge > 0L)
+        {
+            ret = Math.min(ret, received + maxAge);
+        }
+        return ret != Long.MAX_VALUE ? ret : 0L;
+    }
+    
     /**
      * Returns the MCC.
      * 
@@ -86,12 +200,30 @@ public class FtMccMessage implements Serializable
         return gson.toJson(this);
     }
     
+    /**
+     * Returns an instance of this class in the binary format. The deadline is not included, the max. age is
+     * limited to 65535 ms.
+     * 
+     * @return This class as {@value #BINARY_LENGTH} bytes.
+     */
+    public byte[] toBinary()
+    {
+        ByteBuffer buffer = ByteBuffer.allocate(BINARY_LENGTH);
+        buffer.put((byte) BINARY_TYPE);
+        mcc.writeBinary(buffer);
+        buffer.putInt(duration);
+        buffer.putShort((short) Math.min(maxAge, 0xFFFF));
+        return buffer.array();
+    }
+    
     @Override
     public int hashCode()
     {
         HashCodeBuilder hcb = new HashCodeBuilder(17, 67);
         hcb.append(this.getMcc());
         hcb.append(this.getDuration());
+        hcb.append(this.getDeadline());
+        hcb.append(this.getMaxAge());
         return hcb.toHashCode();
     }
     
@@ -106,6 +238,8 @@ public class FtMccMessage implements Serializable
         EqualsBuilder eqb = new EqualsBuilder();
         eqb.append(this.getMcc(), rhs.getMcc());
         eqb.append(this.getDuration(), rhs.getDuration());
+        eqb.append(this.getDeadline(), rhs.getDeadline());
+        eqb.append(this.getMaxAge(), rhs.getMaxAge());
         return eqb.isEquals();        
     }    
     
@@ -2,6 +2,7 @@ package de.voglrobe.ftinterface.io;
 
 import com.google.gson.Gson;
 import com.google.gson.annotations.SerializedName;
+import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 import org.apache.commons.lang3.builder.EqualsBuilder;
 import org.apache.commons.lang3.builder.HashCodeBuilder;
@@ -88,6 +89,12 @@ public class FtOutput
 
     public static final int MAX_STEPS = 32767;
     
+    public static final int MASK_M1  = 0B0001;
+    public static final int MASK_M2  = 0B0010;
+    public static final int MASK_M3  = 0B0100;
+    public static final int MASK_M4  = 0B1000;
+    public static final int MASK_ALL = MASK_M1 | MASK_M2 | MASK_M3 | MASK_M4;
+    
     /**
      * Turn direction of the motors.
      */
@@ -106,6 +113,7 @@ public class FtOutput
     private int m1steps;
     private int m2steps;
     private int m3steps;
+    private int mask;
     
 
     /**
@@ -123,7 +131,7 @@ public class FtOutput
     /**
      * Constructor.
      * 
-     * The default output is all OFF, Sequence Number = 0.
+     * The default output is all OFF, Sequence Number = 0, all motors commanded.
      */
     public FtOutput()
     {
@@ -132,6 +140,22 @@ public class FtOutput
         this.m1steps = 0;
         this.m2steps = 0;
         this.m3steps = 0;        
+        this.mask = MASK_ALL;
+    }
+    
+    /**
+     * Copy constructor.
+     * 
+     * @param other The MCC to copy.
+     */
+    public FtOutput(final FtOutput other)
+    {
+        this.seqNr = other.seqNr;
+        this.mcb = other.mcb;
+        this.m1steps = other.m1steps;
+        this.m2steps = other.m2steps;
+        this.m3steps = other.m3steps;
+        this.mask = other.mask;
     }
     
     /**
@@ -160,6 +184,69 @@ public class FtOutput
         return seqNr;
     }
     
+    /**
+     * Sets the motors this MCC commands. The other motors keep their last state if this MCC is merged into it,
+     * see {@link #merge(FtOutput)}. A MCC sent as is switches the uncommanded motors OFF.
+     * 
+     * @param mask A combination of MASK_M1, MASK_M2, MASK_M3 and MASK_M4. Default is MASK_ALL.
+     * @return THIS.
+     */
+    public FtOutput mask(final int mask)
+    {
+        if ((mask & ~MASK_ALL) != 0)
+        {
+            throw new IllegalArgumentException("Invalid motor mask.");
+        }
+        this.mask = mask;
+        return this;
+    }
+    
+    /**
+     * Gets the motors this MCC commands.
+     * 
+     * @return The motor mask.
+     */
+    public int getMask()
+    {
+        return mask;
+    }
+    
+    /**
+     * Merges the given MCC into this one. The motors commanded by the given MCC are taken from it, all other motors
+     * keep their state of this MCC. The sequence number is taken from the given MCC.
+     * <p>
+     * This MCC remains unchanged.
+     * 
+     * @param update The newer MCC.
+     * @return A new MCC that commands the motors of both MCCs.
+     */
+    public FtOutput merge(final FtOutput update)
+    {
+        FtOutput ret = new FtOutput(this);
+        ret.seqNr = update.seqNr;
+        ret.mask = this.mask | update.mask;
+        if ((update.mask & MASK_M1) != 0)
+        {
+            ret.mcb = (ret.mcb & M1_OFF) | (update.mcb & ~M1_OFF);
+            ret.m1steps = update.m1steps;
+        }
+        if ((update.mask & MASK_M2) != 0)
+        {
+            ret.mcb = (ret.mcb & M2_OFF) | (update.mcb & ~M2_OFF);
+            ret.m2steps = update.m2steps;
+        }
+        if ((update.mask & MASK_M3) != 0)
+        {
+            ret.mcb = (ret.mcb & M3_OFF) | (update.mcb & ~M3_OFF);
+            ret.m3steps = update.m3steps;
+        }
+        if ((update.mask & MASK_M4) != 0)
+        {
+            ret.mcb = (ret.mcb & M4_OFF) | (update.mcb & ~M4_OFF);
+        }
+        return ret;
+    }
+    
     /**
      * Run motor M1 in the given turn direction for the given number of steps.
      * 
@@ -365,6 +452,68 @@ public class FtOutput
         return this;
     }
     
+    /**
+     * Checks whether this MCC is a stepping command, i.e. at least one of the motors M1-M3 is on with a
+     * commanded number of steps.
+     * <p>
+     * The interface adapter answers stepping commands not before all steps have been performed.
+     * 
+     * @return TRUE if this is a stepping command, FALSE otherwise.
+     */
+    public boolean isStepping()
+    {
+        return this.getSteppingMask() != 0;
+    }
+    
+    /**
+     * Returns the motors that are on with a commanded number of steps.
+     * 
+     * @return A combination of MASK_M1, MASK_M2 and MASK_M3 or 0 if this is not a stepping command.
+     */
+    public int getSteppingMask()
+    {
+        int ret = 0;
+        if ((mcb & ~M1_OFF) != 0 && m1steps > 0)
+        {
+            ret |= MASK_M1;
+        }
+        if ((mcb & ~M2_OFF) != 0 && m2steps > 0)
+        {
+            ret |= MASK_M2;
+        }
+        if ((mcb & ~M3_OFF) != 0 && m3steps > 0)
+        {
+            ret |= MASK_M3;
+        }
+        return ret;
+    }
+    
+    /**
+     * Returns the outputs after all steps have been performed, i.e. all motors with a commanded number of steps
+     * are OFF. The other motors remain unchanged.
+     * <p>
+     * This MCC remains unchanged.
+     * 
+     * @return A new MCC.
+     */
+    public FtOutput settle()
+    {
+        FtOutput ret = new FtOutput(this);
+        if ((mcb & ~M1_OFF) != 0 && m1steps > 0)
+        {
+            ret.m1(Direction.OFF);
+        }
+        if ((mcb & ~M2_OFF) != 0 && m2steps > 0)
+        {
+            ret.m2(Direction.OFF);
+        }
+        if ((mcb & ~M3_OFF) != 0 && m3steps > 0)
+        {
+            ret.m3(Direction.OFF);
+        }
+        return ret;
+    }
+    
     /**
      * Builds the MCC as a UTF-8 String.
      * 
@@ -405,12 +554,42 @@ public class FtOutput
         Gson gson = new Gson();
         return gson.toJson(this);
     }
+    
+    /**
+     * Writes the MCC in the binary format: seqnr, mcb and mask (1 byte each), the steps of M1-M3 (2 bytes each).
+     * 
+     * @param buffer The buffer to write the 9 bytes to.
+     */
+    void writeBinary(final ByteBuffer buffer)
+    {
+        buffer.put((byte) seqNr).put((byte) mcb).put((byte) mask);
+        buffer.putShort((short) m1steps).putShort((short) m2steps).putShort((short) m3steps);
+    }
+    
+    /**
+     * Reads a MCC in the binary format, see {@link #writeBinary(ByteBuffer)}.
+     * 
+     * @param buffer The buffer to read the 9 bytes from.
+     * @return A new instance of this class.
+     * @throws IllegalArgumentException if the sequence number or the mask is invalid.
+     */
+    static FtOutput readBinary(final ByteBuffer buffer)
+    {
+        FtOutput ret = new FtOutput().seqNr(buffer.get() & 0xFF);
+        ret.mcb = buffer.get() & 0xFF;
+        ret.mask(buffer.get() & 0xFF);
+        ret.m1steps = buffer.getShort();
+        ret.m2steps = buffer.getShort();
+        ret.m3steps = buffer.getShort();
+        return ret;
+    }
 
     @Override
     public int hashCode()
     {
         HashCodeBuilder hcb = new HashCodeBuilder(17, 67);
         hcb.append(this.build());
+        hcb.append(this.mask);
         return hcb.toHashCode();
     }
     
@@ -424,6 +603,7 @@ public class FtOutput
         FtOutput rhs = (FtOutput) obj;
         EqualsBuilder eqb = new EqualsBuilder();
         eqb.append(this.build(), rhs.build());
+        eqb.append(this.mask, rhs.mask);
         return eqb.isEquals();        
     }    
     
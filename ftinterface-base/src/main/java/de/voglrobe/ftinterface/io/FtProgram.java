@@ -0,0 +1,99 @@
+package de.voglrobe.ftinterface.io;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonSyntaxException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import org.apache.commons.lang3.builder.EqualsBuilder;
+import org.apache.commons.lang3.builder.HashCodeBuilder;
+
+/**
+ * A motion program, i.e. a sequence of MCCs that is executed without any client round trip.
+ * JSON example:
+ * <pre> {
+ *  "steps": [
+ *    {"mcc": {"mcb": 64, "m1steps": 100}},
+ *    {"mcc": {"mcb": 16}, "until": {"input": "E1", "state": true}, "duration": 5000},
+ *    {"mcc": {"mcb": 1}, "duration": 500, "repeat": 3}
+ *  ]
+ * }</pre>
+ *
+ * @author robert
+ */
+public class FtProgram
+{
+    private final List<FtProgramStep> steps = new ArrayList<>();
+
+    /**
+     * Factory to create a new instance of this class from a JSON string.
+     *
+     * @param json A valid JSON string.
+     * @return A new instance of this class.
+     * @throws JsonSyntaxException in case of invalid JSON.
+     */
+    public static FtProgram fromJson(final String json) throws JsonSyntaxException
+    {
+        Gson gson = new Gson();
+        return gson.fromJson(json, FtProgram.class);
+    }
+
+    /**
+     * Appends a step.
+     *
+     * @param step The step to append.
+     * @return THIS.
+     */
+    public FtProgram add(final FtProgramStep step)
+    {
+        if (step == null || step.getMcc() == null)
+        {
+            throw new IllegalArgumentException("No MCC to execute.");
+        }
+        this.steps.add(step);
+        return this;
+    }
+
+    /**
+     * Returns the steps in order of execution.
+     *
+     * @return The steps.
+     */
+    public List<FtProgramStep> getSteps()
+    {
+        return Collections.unmodifiableList(steps);
+    }
+
+    /**
+     * Serialize to JSON.
+     *
+     * @return An instance of this class serialized into JSON.
+     */
+    public String toJson()
+    {
+        Gson gson = new Gson();
+        return gson.toJson(this);
+    }
+
+    @Override
+    public int hashCode()
+    {
+        HashCodeBuilder hcb = new HashCodeBuilder(17, 67);
+        hcb.append(this.steps);
+        return hcb.toHashCode();
+    }
+
+    @Override
+    public boolean equals(Object obj)
+    {
+        if (!(obj instanceof FtProgram))
+        {
+            return false;
+        }
+        FtProgram rhs = (FtProgram) obj;
+        EqualsBuilder eqb = new EqualsBuilder();
+        eqb.append(this.steps, rhs.steps);
+        return eqb.isEquals();
+    }
+
+}
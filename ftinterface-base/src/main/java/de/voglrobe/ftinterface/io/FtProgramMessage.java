@@ -0,0 +1,148 @@
+package de.voglrobe.ftinterface.io;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonSyntaxException;
+import java.io.Serializable;
+import org.apache.commons.lang3.builder.EqualsBuilder;
+import org.apache.commons.lang3.builder.HashCodeBuilder;
+
+/**
+ * This class implements a message to control the motion program of the server. JSON examples:
+ * <pre> {"program": {"steps": [{"mcc": {"mcb": 64, "m1steps": 100}, "repeat": 2}]}}
+ * {"action": "PAUSE"}</pre>
+ * The server answers with the progress of the program, see {@link FtProgramProgress}:
+ * <pre> {"progress": {"state": "RUNNING", "step": 0, "repetition": 2}}</pre>
+ *
+ * @author robert
+ */
+public class FtProgramMessage implements Serializable
+{
+    private static final long serialVersionUID = 4113402913263519720L;
+
+    /**
+     * The actions on the motion program.
+     */
+    public enum Action
+    {
+        /**
+         * Starts the program of this message. A running program is aborted.
+         */
+        START,
+        PAUSE,
+        RESUME,
+        ABORT
+    };
+
+    private final FtProgram program;
+    private Action action;
+
+    /**
+     * Factory to create a new instance of this class from a JSON string.
+     *
+     * @param json A valid JSON string.
+     * @return A new instance of this class.
+     * @throws JsonSyntaxException in case of invalid JSON.
+     */
+    public static FtProgramMessage fromJson(final String json) throws JsonSyntaxException
+    {
+        Gson gson = new Gson();
+        FtProgramMessage ret = gson.fromJson(json, FtProgramMessage.class);
+        if (ret != null && ret.action == null)
+        {
+            ret.action = Action.START;
+        }
+        return ret;
+    }
+
+    /**
+     * Checks whether the given JSON string is a message of this type rather than a {@link FtMccMessage}.
+     *
+     * @param json A valid JSON string.
+     * @return TRUE if it's a program message.
+     * @throws JsonSyntaxException in case of invalid JSON.
+     */
+    public static boolean isProgramMessage(final String json) throws JsonSyntaxException
+    {
+        JsonElement tree = new JsonParser().parse(json);
+        return tree.isJsonObject() && (tree.getAsJsonObject().has("program") || tree.getAsJsonObject().has("action"));
+    }
+
+    /**
+     * Constructor for a message that starts the given program.
+     *
+     * @param program The program to start.
+     */
+    public FtProgramMessage(final FtProgram program)
+    {
+        this.program = program;
+        this.action = Action.START;
+    }
+
+    /**
+     * Constructor for a message that controls the running program.
+     *
+     * @param action The action.
+     */
+    public FtProgramMessage(final Action action)
+    {
+        this.program = null;
+        this.action = action;
+    }
+
+    /**
+     * Returns the program to start.
+     *
+     * @return The program or NULL.
+     */
+    public FtProgram getProgram()
+    {
+        return program;
+    }
+
+    /**
+     * Returns the action.
+     *
+     * @return The action.
+     */
+    public Action getAction()
+    {
+        return action;
+    }
+
+    /**
+     * Returns an instance of this class in JSON.
+     *
+     * @return This class as JSON.
+     */
+    public String toJson()
+    {
+        Gson gson = new Gson();
+        return gson.toJson(this);
+    }
+
+    @Override
+    public int hashCode()
+    {
+        HashCodeBuilder hcb = new HashCodeBuilder(17, 67);
+        hcb.append(this.getProgram());
+        hcb.append(this.getAction());
+        return hcb.toHashCode();
+    }
+
+    @Override
+    public boolean equals(Object obj)
+    {
+        if (!(obj instanceof FtProgramMessage))
+        {
+            return false;
+        }
+        FtProgramMessage rhs = (FtProgramMessage) obj;
+        EqualsBuilder eqb = new EqualsBuilder();
+        eqb.append(this.getProgram(), rhs.getProgram());
+        eqb.append(this.getAction(), rhs.getAction());
+        return eqb.isEquals();
+    }
+
+}
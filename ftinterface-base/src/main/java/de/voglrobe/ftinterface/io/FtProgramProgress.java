@@ -0,0 +1,163 @@
+package de.voglrobe.ftinterface.io;
+
+import com.google.gson.Gson;
+import org.apache.commons.lang3.builder.EqualsBuilder;
+import org.apache.commons.lang3.builder.HashCodeBuilder;
+
+/**
+ * The progress of a motion program, see {@link FtProgram}.
+ *
+ * @author robert
+ */
+public class FtProgramProgress
+{
+    /**
+     * The states of a motion program.
+     */
+    public enum State
+    {
+        RUNNING,
+        PAUSED,
+        FINISHED,
+        ABORTED,
+        FAILED
+    };
+
+    private final State state;
+    private final int step;
+    private final int repetition;
+    private final FtInputs inputs;
+
+    /**
+     * Factory to create a new instance of this class from a JSON string.
+     *
+     * @param json A valid JSON string.
+     * @return A new instance of this class.
+     */
+    public static FtProgramProgress fromJson(final String json)
+    {
+        Gson gson = new Gson();
+        return gson.fromJson(json, FtProgramProgress.class);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param state The state of the program.
+     * @param step The index of the current step, starting with 0.
+     * @param repetition The current execution of the step, starting with 1. 0 if the program is finished.
+     */
+    public FtProgramProgress(final State state, final int step, final int repetition)
+    {
+        this(state, step, repetition, null);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param state The state of the program.
+     * @param step The index of the current step, starting with 0.
+     * @param repetition The current execution of the step, starting with 1. 0 if the program is finished.
+     * @param inputs The inputs at the time of the report or NULL.
+     */
+    public FtProgramProgress(final State state, final int step, final int repetition, final FtInputs inputs)
+    {
+        this.state = state;
+        this.step = step;
+        this.repetition = repetition;
+        this.inputs = inputs;
+    }
+
+    /**
+     * Returns the state of the program.
+     *
+     * @return The state.
+     */
+    public State getState()
+    {
+        return state;
+    }
+
+    /**
+     * Returns the index of the current step. If the program is finished it's the number of steps.
+     *
+     * @return The index of the step, starting with 0.
+     */
+    public int getStep()
+    {
+        return step;
+    }
+
+    /**
+     * Returns the current execution of the step.
+     *
+     * @return The repetition, starting with 1. 0 if the program is finished.
+     */
+    public int getRepetition()
+    {
+        return repetition;
+    }
+
+    /**
+     * Returns the inputs at the time of the report. Reported by programs that run on the interface adapter.
+     *
+     * @return The inputs (sequence number 0) or NULL.
+     */
+    public FtInputs getInputs()
+    {
+        return inputs;
+    }
+
+    /**
+     * Checks whether the program has ended.
+     *
+     * @return TRUE if the program is finished, aborted or failed.
+     */
+    public boolean isDone()
+    {
+        return state == State.FINISHED || state == State.ABORTED || state == State.FAILED;
+    }
+
+    /**
+     * Serialize to JSON.
+     *
+     * @return An instance of this class serialized into JSON.
+     */
+    public String toJson()
+    {
+        Gson gson = new Gson();
+        return gson.toJson(this);
+    }
+
+    @Override
+    public String toString()
+    {
+        return this.toJson();
+    }
+
+    @Override
+    public int hashCode()
+    {
+        HashCodeBuilder hcb = new HashCodeBuilder(17, 67);
+        hcb.append(this.state);
+        hcb.append(this.step);
+        hcb.append(this.repetition);
+        return hcb.toHashCode();
+    }
+
+    @Override
+    public boolean equals(Object obj)
+    {
+        if (!(obj instanceof FtProgramProgress))
+        {
+            return false;
+        }
+        FtProgramProgress rhs = (FtProgramProgress) obj;
+        EqualsBuilder eqb = new EqualsBuilder();
+        eqb.append(this.state, rhs.state);
+        eqb.append(this.step, rhs.step);
+        eqb.append(this.repetition, rhs.repetition);
+        return eqb.isEquals();
+    }
+
+}
@@ -0,0 +1,158 @@
+package de.voglrobe.ftinterface.io;
+
+import org.apache.commons.lang3.builder.EqualsBuilder;
+import org.apache.commons.lang3.builder.HashCodeBuilder;
+
+/**
+ * A step of a motion program, see {@link FtProgram}.
+ * <p>
+ * A step sends it's MCC and waits for the ISB, i.e. a stepping command is finished when all steps have been
+ * performed. Afterwards the outputs are held (motors with a commanded number of steps OFF)
+ * <ul>
+ * <li>until the given input condition is fulfilled, but not longer than the duration if a duration is set, or</li>
+ * <li>for the given duration if no input condition is set.</li>
+ * </ul>
+ * The step is executed the given number of times.
+ *
+ * @author robert
+ */
+public class FtProgramStep
+{
+    private FtOutput mcc;
+    private long duration;
+    private FtInputCondition until;
+    private int repeat;
+
+    /**
+     * Constructor for JSON.
+     */
+    private FtProgramStep()
+    {
+        this(new FtOutput());
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param mcc The MCC to send. The sequence number is assigned when the step is executed.
+     */
+    public FtProgramStep(final FtOutput mcc)
+    {
+        this.mcc = mcc;
+        this.duration = 0L;
+        this.until = null;
+        this.repeat = 1;
+    }
+
+    /**
+     * Sets the time to hold the outputs after the MCC has been executed.
+     *
+     * @param duration The duration in ms. 0 = do not hold (default) or no limit if an input condition is set.
+     * @return THIS.
+     */
+    public FtProgramStep duration(final long duration)
+    {
+        if (duration < 0)
+        {
+            throw new IllegalArgumentException("Invalid duration.");
+        }
+        this.duration = duration;
+        return this;
+    }
+
+    /**
+     * Sets the input condition to wait for after the MCC has been executed.
+     *
+     * @param until The condition or NULL (default).
+     * @return THIS.
+     */
+    public FtProgramStep until(final FtInputCondition until)
+    {
+        this.until = until;
+        return this;
+    }
+
+    /**
+     * Sets how often this step is executed.
+     *
+     * @param repeat The repeat count. Must be &gt;0. Default is 1.
+     * @return THIS.
+     */
+    public FtProgramStep repeat(final int repeat)
+    {
+        if (repeat <= 0)
+        {
+            throw new IllegalArgumentException("Invalid repeat count.");
+        }
+        this.repeat = repeat;
+        return this;
+    }
+
+    /**
+     * Returns the MCC.
+     *
+     * @return The MCC.
+     */
+    public FtOutput getMcc()
+    {
+        return mcc;
+    }
+
+    /**
+     * Returns the time to hold the outputs.
+     *
+     * @return The duration in ms.
+     */
+    public long getDuration()
+    {
+        return duration;
+    }
+
+    /**
+     * Returns the input condition to wait for.
+     *
+     * @return The condition or NULL.
+     */
+    public FtInputCondition getUntil()
+    {
+        return until;
+    }
+
+    /**
+     * Returns how often this step is executed.
+     *
+     * @return The repeat count.
+     */
+    public int getRepeat()
+    {
+        return repeat;
+    }
+
+    @Override
+    public int hashCode()
+    {
+        HashCodeBuilder hcb = new HashCodeBuilder(17, 67);
+        hcb.append(this.mcc);
+        hcb.append(this.duration);
+        hcb.append(this.until);
+        hcb.append(this.repeat);
+        return hcb.toHashCode();
+    }
+
+    @Override
+    public boolean equals(Object obj)
+    {
+        if (!(obj instanceof FtProgramStep))
+        {
+            return false;
+        }
+        FtProgramStep rhs = (FtProgramStep) obj;
+        EqualsBuilder eqb = new EqualsBuilder();
+        eqb.append(this.mcc, rhs.mcc);
+        eqb.append(this.duration, rhs.duration);
+        eqb.append(this.until, rhs.until);
+        eqb.append(this.repeat, rhs.repeat);
+        return eqb.isEquals();
+    }
+
+}
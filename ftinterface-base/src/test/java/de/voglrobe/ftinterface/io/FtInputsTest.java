@@ -1,5 +1,6 @@
 package de.voglrobe.ftinterface.io;
 
+import java.util.Arrays;
 import java.util.List;
 import org.junit.Assert;
 import org.junit.Test;
@@ -88,4 +89,71 @@ public class FtInputsTest
         Assert.assertTrue(flags.isDurationFinished());
     }
 
+    @Test
+    public void testToJsonWithTelemetry() throws Exception
+    {
+        FtInputs inputs = new FtInputs(63, 64, 231, 255);
+        inputs.setTelemetry(new FtInputsTelemetry(4294967295L, Arrays.asList(0, 12, 0), Arrays.asList(21, 18, 65535)));
+        
+        String json = inputs.toJson();
+        System.out.println(json);
+        Assert.assertEquals(inputs, FtInputs.fromJson(json));
+    }
+
+    @Test
+    public void testFromJsonWithTelemetry() throws Exception
+    {
+        String json = "{\"seqnr\":63,\"di\":[false,true,false,false,false,false,false,false],\"ex\":231,\"ey\":255"
+                + ",\"telemetry\":{\"timestamp\":123456,\"steps\":[1,2,3],\"periods\":[20,30,40]}}";
+        
+        FtInputs inputs = FtInputs.fromJson(json);
+        Assert.assertNull(inputs.getFlags());
+        
+        FtInputsTelemetry telemetry = inputs.getTelemetry();
+        Assert.assertNotNull(telemetry);
+        Assert.assertEquals(123456L, telemetry.getTimestamp());
+        Assert.assertEquals(Arrays.asList(1, 2, 3), telemetry.getSteps());
+        Assert.assertEquals(Arrays.asList(20, 30, 40), telemetry.getPeriods());
+    }
+
+    @Test
+    public void testFromJsonWithoutTelemetry() throws Exception
+    {
+        FtInputs inputs = new FtInputs(63, 64, 231, 255);
+        
+        String json = inputs.toJson();
+        Assert.assertFalse(json.contains("telemetry"));
+        Assert.assertNull(FtInputs.fromJson(json).getTelemetry());
+    }
+
+    @Test
+    public void testBinary() throws Exception
+    {
+        FtInputs inputs = new FtInputs(63, 0b1000_0010, 231, 255);
+        FtInputsFlags flags = new FtInputsFlags();
+        flags.setDurationFinished(true);
+        inputs.setFlags(flags);
+        
+        byte[] binary = inputs.toBinary();
+        Assert.assertEquals(FtInputs.BINARY_LENGTH, binary.length);
+        Assert.assertTrue(inputs.toJson().length() > 10 * binary.length);
+        FtInputs decoded = FtInputs.fromBinary(binary, 0, binary.length);
+        Assert.assertEquals(inputs, decoded);
+        Assert.assertTrue(decoded.getDigitalIn(FtInputs.IN.E1));
+        Assert.assertTrue(decoded.getDigitalIn(FtInputs.IN.E7));
+        
+        inputs.setTelemetry(new FtInputsTelemetry(4000000000L, Arrays.asList(1, 2, 40000), Arrays.asList(20, 30, 40)));
+        binary = inputs.toBinary();
+        Assert.assertEquals(inputs, FtInputs.fromBinary(binary, 0, binary.length));
+        
+        try
+        {
+            FtInputs.fromBinary(binary, 0, 3);
+            Assert.fail("Truncated ISB accepted.");
+        }
+        catch(IllegalArgumentException expected)
+        {
+        }
+    }
+
 }
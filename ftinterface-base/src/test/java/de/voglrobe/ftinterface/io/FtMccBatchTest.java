@@ -0,0 +1,51 @@
+package de.voglrobe.ftinterface.io;
+
+import java.util.Arrays;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ *
+ * @author robert
+ */
+public class FtMccBatchTest
+{
+    @Test
+    public void testFromJson() throws Exception
+    {
+        String json = "{\"batch\": [{\"mcc\": {\"seqnr\": 1, \"mcb\": 64, \"m1steps\": 100}},"
+                + " {\"mcc\": {\"seqnr\": 2, \"mcb\": 64}, \"duration\": 2}], \"atomic\": true}";
+        Assert.assertTrue(FtMccBatch.isBatchMessage(json));
+        Assert.assertFalse(FtMccBatch.isBatchMessage("{\"mcc\": {\"seqnr\": 1, \"mcb\": 64}}"));
+
+        FtMccBatch batch = FtMccBatch.fromJson(json);
+        Assert.assertTrue(batch.isAtomic());
+        Assert.assertEquals(2, batch.getMessages().size());
+        Assert.assertTrue(batch.getMessages().get(0).getMcc().isStepping());
+        Assert.assertEquals(2, batch.getMessages().get(1).getDuration());
+        Assert.assertEquals(batch, FtMccBatch.fromJson(batch.toJson()));
+
+        Assert.assertFalse(FtMccBatch.fromJson("{\"batch\": []}").isAtomic());
+    }
+
+    @Test
+    public void testBinary() throws Exception
+    {
+        FtMccMessage first = new FtMccMessage(new FtOutput().m1(FtOutput.Direction.LEFT, 100).seqNr(1));
+        FtMccMessage second = new FtMccMessage(new FtOutput().m2(FtOutput.Direction.RIGHT).seqNr(2));
+        second.setDuration(-1);
+        FtMccBatch batch = new FtMccBatch(Arrays.asList(first, second), false);
+
+        byte[] binary = batch.toBinary();
+        Assert.assertEquals(2 * FtMccMessage.BINARY_LENGTH, binary.length);
+        Assert.assertEquals(batch, FtMccBatch.fromBinary(binary, 0, binary.length));
+        try
+        {
+            FtMccBatch.fromBinary(binary, 0, binary.length - 1);
+            Assert.fail("Truncated batch accepted.");
+        }
+        catch(IllegalArgumentException expected)
+        {
+        }
+    }
+}
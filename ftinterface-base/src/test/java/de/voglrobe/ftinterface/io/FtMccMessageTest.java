@@ -32,5 +32,51 @@ public class FtMccMessageTest
         
         FtMccMessage mcc = FtMccMessage.fromJson(json);
         Assert.assertNotNull(mcc);
+        Assert.assertEquals(0L, mcc.getDeadline(1000L));
+    }
+    
+    @Test
+    public void testDeadline() throws Exception
+    {
+        FtMccMessage mcc = FtMccMessage.fromJson("{\"mcc\":{\"seqnr\":1,\"mcb\":64},\"maxAge\":250}");
+        Assert.assertEquals(250L, mcc.getMaxAge());
+        Assert.assertEquals(1250L, mcc.getDeadline(1000L));
+        
+        mcc.setDeadline(1100L);
+        Assert.assertEquals(1100L, mcc.getDeadline(1000L));
+        mcc.setMaxAge(0L);
+        Assert.assertEquals(1100L, mcc.getDeadline(5000L));
+        Assert.assertEquals(mcc, FtMccMessage.fromJson(mcc.toJson()));
+    }
+    
+    @Test
+    public void testBinary() throws Exception
+    {
+        FtMccMessage mcc = new FtMccMessage(new FtOutput()
+                .m1(FtOutput.Direction.LEFT, 32767)
+                .m2(FtOutput.Direction.RIGHT, 200)
+                .m4(FtOutput.Direction.ON)
+                .mask(FtOutput.MASK_M1 | FtOutput.MASK_M2 | FtOutput.MASK_M4)
+                .seqNr(63));
+        mcc.setDuration(-1);
+        mcc.setMaxAge(250L);
+        
+        byte[] binary = mcc.toBinary();
+        Assert.assertEquals(FtMccMessage.BINARY_LENGTH, binary.length);
+        Assert.assertEquals(mcc, FtMccMessage.fromBinary(binary, 0, binary.length));
+        
+        byte[] framed = new byte[binary.length + 2];
+        System.arraycopy(binary, 0, framed, 2, binary.length);
+        Assert.assertEquals(mcc, FtMccMessage.fromBinary(framed, 2, binary.length));
+        
+        binary[1] = 64;
+        try
+        {
+            FtMccMessage.fromBinary(binary, 0, binary.length);
+            Assert.fail("Invalid sequence number accepted.");
+        }
+        catch(IllegalArgumentException expected)
+        {
+        }
     }
 }
@@ -47,6 +47,49 @@ public class FtOutputTest
         Assert.assertEquals("$85,100,200,300\n", ret);
     }
 
+    @Test
+    public void testIsStepping() throws Exception
+    {
+        Assert.assertFalse(new FtOutput().isStepping());
+        Assert.assertFalse(new FtOutput().m1(FtOutput.Direction.ON).m4(FtOutput.Direction.LEFT).isStepping());
+        Assert.assertFalse(new FtOutput().m2(FtOutput.Direction.OFF, 100).isStepping());
+        Assert.assertTrue(new FtOutput().m1(FtOutput.Direction.ON).m3(FtOutput.Direction.LEFT, 10).isStepping());
+        Assert.assertEquals(FtOutput.MASK_M3,
+                new FtOutput().m1(FtOutput.Direction.ON).m3(FtOutput.Direction.LEFT, 10).getSteppingMask());
+    }
+
+    @Test
+    public void testMerge() throws Exception
+    {
+        FtOutput state = new FtOutput()
+                .m1(FtOutput.Direction.LEFT, 100)
+                .m2(FtOutput.Direction.RIGHT)
+                .m4(FtOutput.Direction.LEFT);
+        FtOutput update = new FtOutput()
+                .m2(FtOutput.Direction.OFF)
+                .m3(FtOutput.Direction.RIGHT, 50)
+                .mask(FtOutput.MASK_M2 | FtOutput.MASK_M3)
+                .seqNr(7);
+        
+        FtOutput merged = state.merge(update);
+        Assert.assertEquals("$134,100,0,50,7\n", merged.build());
+        Assert.assertEquals(FtOutput.MASK_ALL, merged.getMask());
+        Assert.assertEquals("$146,100,0,0\n", state.build()); // unchanged
+        
+        // an uncommanded motor is OFF if the MCC is sent as is.
+        Assert.assertEquals("$4,0,0,50,7\n", update.build());
+        
+        // stepping motors are OFF after all steps
+        Assert.assertEquals("$2,0,0,0,7\n", merged.settle().build());
+    }
+    
+    @Test
+    public void testFromJson_Mask() throws Exception
+    {
+        Assert.assertEquals(FtOutput.MASK_ALL, FtOutput.fromJson("{\"mcb\":64}").getMask());
+        Assert.assertEquals(FtOutput.MASK_M1, FtOutput.fromJson("{\"mcb\":64,\"mask\":1}").getMask());
+    }
+    
     @Test
     public void testToJson() throws Exception
     {
@@ -0,0 +1,45 @@
+package de.voglrobe.ftinterface.io;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ *
+ * @author robert
+ */
+public class FtProgramMessageTest
+{
+    @Test
+    public void testFromJson() throws Exception
+    {
+        String json = "{\"program\":{\"steps\":["
+                + "{\"mcc\":{\"mcb\":64,\"m1steps\":100},\"repeat\":2},"
+                + "{\"mcc\":{\"mcb\":16},\"until\":{\"input\":\"EX\",\"min\":0,\"max\":100},\"duration\":5000}]}}";
+        Assert.assertTrue(FtProgramMessage.isProgramMessage(json));
+        Assert.assertFalse(FtProgramMessage.isProgramMessage("{\"mcc\":{\"mcb\":85},\"duration\":0}"));
+
+        FtProgramMessage message = FtProgramMessage.fromJson(json);
+        Assert.assertEquals(FtProgramMessage.Action.START, message.getAction());
+
+        FtProgram expected = new FtProgram()
+                .add(new FtProgramStep(new FtOutput().m1(FtOutput.Direction.RIGHT, 100)).repeat(2))
+                .add(new FtProgramStep(new FtOutput().m2(FtOutput.Direction.ON))
+                        .until(FtInputCondition.analog(FtInputCondition.Input.EX, 0, 100)).duration(5000L));
+        Assert.assertEquals(expected, message.getProgram());
+        Assert.assertEquals(message, FtProgramMessage.fromJson(message.toJson()));
+
+        Assert.assertEquals(FtProgramMessage.Action.PAUSE, FtProgramMessage.fromJson("{\"action\":\"PAUSE\"}")
+                .getAction());
+    }
+
+    @Test
+    public void testCondition() throws Exception
+    {
+        FtInputs inputs = new FtInputs(1, 0B1000_0001, 42, 200);
+        Assert.assertTrue(FtInputCondition.digital(FtInputs.IN.E1, true).matches(inputs));
+        Assert.assertTrue(FtInputCondition.digital(FtInputs.IN.E2, false).matches(inputs));
+        Assert.assertTrue(FtInputCondition.digital(FtInputs.IN.E8, true).matches(inputs));
+        Assert.assertTrue(FtInputCondition.analog(FtInputCondition.Input.EX, 0, 100).matches(inputs));
+        Assert.assertFalse(FtInputCondition.analog(FtInputCondition.Input.EY, 0, 100).matches(inputs));
+    }
+}
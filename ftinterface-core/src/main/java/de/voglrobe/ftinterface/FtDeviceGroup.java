@@ -0,0 +1,265 @@
+package de.voglrobe.ftinterface;
+
+import de.voglrobe.ftinterface.exceptions.ComException;
+import de.voglrobe.ftinterface.io.FtOutput;
+import de.voglrobe.ftinterface.io.FtSerialPortSenderReceiver;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * This class implements a group of interfaces whose MCCs are started together, e.g. for the choreography of
+ * several robots.
+ * <p>
+ * A MCC is staged per interface. {@link #start(long)} locks the send()-methods of all interfaces, waits until
+ * their queued frames have been transmitted, encodes all MCCs and then writes them back-to-back from the calling
+ * thread. Thus the MCCs are written within microseconds, independent of thread scheduling. The measured skew is
+ * reported, see {@link Start}. Usage:
+ * <pre> FtDeviceGroup group = FtDeviceGroup.newInstance(robot1, robot2);
+ * group.stage(robot1, new FtOutput().m1(FtOutput.Direction.LEFT, 100))
+ *      .stage(robot2, new FtOutput().m1(FtOutput.Direction.RIGHT, 100));
+ * FtDeviceGroup.Start start = group.start(1000L);</pre>
+ * The MCCs are sent once like {@link FtInterfaceAsync#send(FtOutput)}.
+ *
+ * @author robert
+ */
+public class FtDeviceGroup
+{
+    private static final Logger LOGGER = Logger.getLogger(FtDeviceGroup.class.getName());
+
+    private static final long IDLE_WAIT = TimeUnit.MICROSECONDS.toNanos(100L);
+
+    /**
+     * The timing of a group start. All points in time are relative to the first write in nanoseconds.
+     */
+    public static class Start
+    {
+        private final List<FtInterfaceAsync> interfaces;
+        private final long[] written;
+        private final long[] transmitted;
+
+        private Start(final List<FtInterfaceAsync> interfaces, final long[][] times)
+        {
+            this.interfaces = Collections.unmodifiableList(new ArrayList<>(interfaces));
+            this.written = times[0].clone();
+            this.transmitted = times[1].clone();
+            long first = written[0];
+            for (int i=0; i<written.length; i++)
+            {
+                written[i] -= first;
+                transmitted[i] -= first;
+            }
+        }
+
+        /**
+         * Returns the started interfaces in the order their MCCs have been written.
+         *
+         * @return The interfaces.
+         */
+        public List<FtInterfaceAsync> getInterfaces()
+        {
+            return interfaces;
+        }
+
+        /**
+         * Returns the point in time the MCC of the given interface has been handed to the serial port.
+         *
+         * @param iface The interface.
+         * @return The time in ns relative to the first write or -1 if the interface has not been started.
+         */
+        public long getWritten(final FtInterfaceAsync iface)
+        {
+            int i = interfaces.indexOf(iface);
+            return i >= 0 ? written[i] : -1L;
+        }
+
+        /**
+         * Returns the estimated point in time the MCC of the given interface has been transmitted completely,
+         * i.e. it's execution begins.
+         *
+         * @param iface The interface.
+         * @return The time in ns relative to the first write or -1 if the interface has not been started.
+         */
+        public long getTransmitted(final FtInterfaceAsync iface)
+        {
+            int i = interfaces.indexOf(iface);
+            return i >= 0 ? transmitted[i] : -1L;
+        }
+
+        /**
+         * Returns the measured skew of the writes, i.e. the time between the first and the last one.
+         *
+         * @return The skew in ns.
+         */
+        public long getWriteSkew()
+        {
+            return skew(written);
+        }
+
+        /**
+         * Returns the estimated skew of the execution start. It adds the transmission time of each MCC, which
+         * depends on the port speed of it's interface adapter.
+         *
+         * @return The skew in ns.
+         */
+        public long getTransmitSkew()
+        {
+            return skew(transmitted);
+        }
+
+        private static long skew(final long[] times)
+        {
+            return Arrays.stream(times).max().getAsLong() - Arrays.stream(times).min().getAsLong();
+        }
+
+        @Override
+        public String toString()
+        {
+            return String.format("%d interfaces, write skew %d us, transmit skew %d us", interfaces.size(),
+                    TimeUnit.NANOSECONDS.toMicros(this.getWriteSkew()),
+                    TimeUnit.NANOSECONDS.toMicros(this.getTransmitSkew()));
+        }
+    }
+
+    private final List<FtInterfaceAsync> interfaces;
+    private final Map<FtInterfaceAsync, FtOutput> staged = new LinkedHashMap<>();
+
+    /**
+     * Factory method to create a new group.
+     *
+     * @param interfaces The interfaces of the group. The locks are acquired in this order.
+     * @return A new instance of this class.
+     */
+    public static FtDeviceGroup newInstance(final FtInterfaceAsync... interfaces)
+    {
+        if (interfaces == null || interfaces.length == 0)
+        {
+            throw new IllegalArgumentException("No interfaces.");
+        }
+        return new FtDeviceGroup(Arrays.asList(interfaces));
+    }
+
+    /**
+     * Hidden constructor.
+     */
+    private FtDeviceGroup(final List<FtInterfaceAsync> interfaces)
+    {
+        this.interfaces = new ArrayList<>(interfaces);
+    }
+
+    /**
+     * Returns the interfaces of this group.
+     *
+     * @return The interfaces.
+     */
+    public List<FtInterfaceAsync> getInterfaces()
+    {
+        return Collections.unmodifiableList(interfaces);
+    }
+
+    /**
+     * Stages the MCC to start on the given interface. A MCC staged before for this interface is replaced.
+     *
+     * @param iface The interface. Must be a member of this group.
+     * @param output The MCC.
+     * @return THIS.
+     */
+    public synchronized FtDeviceGroup stage(final FtInterfaceAsync iface, final FtOutput output)
+    {
+        if (!interfaces.contains(iface))
+        {
+            throw new IllegalArgumentException("Interface is not a member of this group.");
+        }
+        if (output == null)
+        {
+            throw new IllegalArgumentException("No output data to send.");
+        }
+        staged.put(iface, new FtOutput(output));
+        return this;
+    }
+
+    /**
+     * Discards all staged MCCs.
+     */
+    public synchronized void clear()
+    {
+        staged.clear();
+    }
+
+    /**
+     * Writes all staged MCCs together and discards them. Blocks until all interfaces of the group are available,
+     * i.e. a running send-with-duration delays the start.
+     *
+     * @param timeout The maximum time to wait for the interfaces in ms.
+     * @return The timing of the start.
+     * @throws ComException in case of errors or if the interfaces are not available within the timeout. No MCC is
+     * written in the latter case.
+     */
+    public synchronized Start start(final long timeout) throws ComException
+    {
+        if (staged.isEmpty())
+        {
+            throw new IllegalStateException("No MCCs staged.");
+        }
+        List<FtInterfaceAsync> started = new ArrayList<>();
+        List<FtSerialPortSenderReceiver> senders = new ArrayList<>();
+        List<FtOutput> outputs = new ArrayList<>();
+        for (FtInterfaceAsync iface : interfaces)
+        {
+            if (staged.containsKey(iface))
+            {
+                started.add(iface);
+                senders.add(iface.getSenderReceiver());
+                outputs.add(staged.get(iface));
+            }
+        }
+
+        long until = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+        List<FtInterfaceAsync> locked = new ArrayList<>();
+        try
+        {
+            for (FtInterfaceAsync iface : started)
+            {
+                long wait = TimeUnit.NANOSECONDS.toMillis(Math.max(0L, until - System.nanoTime()));
+                if (!iface.acquire(wait))
+                {
+                    throw new ComException("Interfaces of the group are busy.");
+                }
+                locked.add(iface);
+            }
+            while (!senders.stream().allMatch(FtSerialPortSenderReceiver::isIdle))
+            {
+                if (System.nanoTime() - until > 0)
+                {
+                    throw new ComException("Interfaces of the group are still transmitting.");
+                }
+                LockSupport.parkNanos(IDLE_WAIT);
+            }
+
+            Start ret = new Start(started, FtSerialPortSenderReceiver.writeTogether(senders, outputs));
+            staged.clear();
+            LOGGER.log(Level.FINE, "Group started: {0}", ret);
+            return ret;
+        }
+        catch(InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new ComException("Interrupted while waiting for the interfaces.", e);
+        }
+        finally
+        {
+            for (int i=locked.size()-1; i>=0; i--)
+            {
+                locked.get(i).release();
+            }
+        }
+    }
+
+}
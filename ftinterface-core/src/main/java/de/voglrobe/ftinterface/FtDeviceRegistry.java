@@ -0,0 +1,318 @@
+package de.voglrobe.ftinterface;
+
+import de.voglrobe.ftinterface.exceptions.ComException;
+import de.voglrobe.ftinterface.io.FtHealth;
+import de.voglrobe.ftinterface.io.FtInputs;
+import de.voglrobe.ftinterface.io.FtIoEngine;
+import de.voglrobe.ftinterface.io.FtSerialPortConfig;
+import de.voglrobe.ftinterface.io.IFtSerialPortProvider;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * This class implements a registry of the interface adapters driven by one process, e.g. a lab of robots.
+ * <p>
+ * The interfaces are opened, tracked and closed by their device id. All interfaces share the
+ * {@link FtIoEngine} of the registry, i.e. a few threads serve any number of interface adapters. Serial ports
+ * can be discovered (see {@link #discover()}): new ports are opened and registered with the file name of the
+ * port as device id, ports that have vanished are closed and removed. Usage:
+ * <pre> FtDeviceRegistry registry = FtDeviceRegistry.newInstance(new FtSerialPortConfig(), listener);
+ * registry.startDiscovery(2000L);
+ * registry.get("ttyACM0").send(new FtOutput().m1(FtOutput.Direction.ON));
+ * ...
+ * registry.destroy();</pre>
+ *
+ * @author robert
+ */
+public class FtDeviceRegistry
+{
+    private static final Logger LOGGER = Logger.getLogger(FtDeviceRegistry.class.getName());
+
+    /**
+     * The directory of the serial ports.
+     */
+    public static final File DEV_DIRECTORY = new File("/dev");
+
+    /**
+     * The name prefixes of the serial ports to discover: Arduino (CDC-ACM) and USB-serial adapters.
+     */
+    public static final List<String> PORT_PREFIXES = Collections.unmodifiableList(Arrays.asList("ttyACM", "ttyUSB"));
+
+    private static final int DEFAULT_LOOPS = 2;
+
+    private final FtSerialPortConfig template;
+    private final FtIoEngine engine;
+    private final boolean ownEngine;
+    private final IFtDeviceListener listener;
+    private final Map<String, FtInterfaceAsync> devices = new ConcurrentHashMap<>();
+    private final Map<String, File> discovered = new ConcurrentHashMap<>();
+    private ScheduledExecutorService discovery;
+
+    /**
+     * Factory method to create a new registry.
+     *
+     * @param template The configuration of the serial connections. If it has no I/O engine, the registry runs an
+     * engine of it's own.
+     * @param listener The callback object to notify on the events of all interface adapters or NULL.
+     * @return A new instance of this class.
+     */
+    public static FtDeviceRegistry newInstance(final FtSerialPortConfig template, final IFtDeviceListener listener)
+    {
+        if (template == null)
+        {
+            throw new IllegalArgumentException("Missing configuration.");
+        }
+        return new FtDeviceRegistry(template, listener);
+    }
+
+    /**
+     * Hidden constructor.
+     */
+    private FtDeviceRegistry(final FtSerialPortConfig template, final IFtDeviceListener listener)
+    {
+        this.ownEngine = template.getIoEngine() == null;
+        this.engine = ownEngine ? FtIoEngine.newInstance(DEFAULT_LOOPS) : template.getIoEngine();
+        this.template = new FtSerialPortConfig(template).ioEngine(engine);
+        this.listener = listener;
+        this.discovery = null;
+    }
+
+    /**
+     * Destructor.
+     *
+     * Stops the discovery, closes all interfaces and stops the I/O engine if it's owned by the registry.
+     */
+    public void destroy()
+    {
+        synchronized(this)
+        {
+            if (discovery != null)
+            {
+                discovery.shutdownNow();
+                this.discovery = null;
+            }
+        }
+        for (String deviceId : this.getDeviceIds())
+        {
+            this.close(deviceId);
+        }
+        if (ownEngine)
+        {
+            engine.destroy();
+        }
+    }
+
+    /**
+     * Opens the interface adapter at the given serial port and registers it.
+     *
+     * @param deviceId The id to register the interface adapter with.
+     * @param port The device name of the serial port, e.g. '/dev/ttyACM0'.
+     * @return The opened interface.
+     * @throws ComException if the port cannot be opened.
+     */
+    public FtInterfaceAsync open(final String deviceId, final String port) throws ComException
+    {
+        return this.open(deviceId, port, new FtSerialPortConfig(template));
+    }
+
+    /**
+     * Opens a simulated or otherwise provided interface adapter and registers it.
+     *
+     * @param deviceId The id to register the interface adapter with.
+     * @param portProvider The provider of the serial port, e.g. a
+     * {@link de.voglrobe.ftinterface.sim.SimulatedInterfaceAdapter}.
+     * @return The opened interface.
+     * @throws ComException if the port cannot be opened.
+     */
+    public FtInterfaceAsync open(final String deviceId, final IFtSerialPortProvider portProvider)
+            throws ComException
+    {
+        return this.open(deviceId, deviceId, new FtSerialPortConfig(template).portProvider(portProvider));
+    }
+
+    /**
+     * Opens and registers an interface.
+     */
+    private FtInterfaceAsync open(final String deviceId, final String port, final FtSerialPortConfig config)
+            throws ComException
+    {
+        if (deviceId == null || deviceId.isEmpty())
+        {
+            throw new IllegalArgumentException("Missing device id.");
+        }
+        if (devices.containsKey(deviceId))
+        {
+            throw new IllegalStateException("Device " + deviceId + " is already registered.");
+        }
+        FtInterfaceAsync iface = FtInterfaceAsync.newInstance(port, config, (final FtInputs inputs) ->
+        {
+            if (listener != null)
+            {
+                listener.onDataReceived(deviceId, inputs);
+            }
+        });
+        if (devices.putIfAbsent(deviceId, iface) != null)
+        {
+            iface.destroy();
+            throw new IllegalStateException("Device " + deviceId + " is already registered.");
+        }
+        iface.setHealthListener((final FtHealth health) ->
+        {
+            if (listener != null)
+            {
+                listener.onHealthChanged(deviceId, health);
+            }
+        });
+        LOGGER.log(Level.INFO, "Device {0} opened at {1}.", new Object[] {deviceId, port});
+        if (listener != null)
+        {
+            listener.onDeviceAdded(deviceId, iface);
+        }
+        return iface;
+    }
+
+    /**
+     * Closes the interface adapter and removes it from the registry. Does nothing if it's not registered.
+     *
+     * @param deviceId The id of the interface adapter.
+     */
+    public void close(final String deviceId)
+    {
+        FtInterfaceAsync iface = devices.remove(deviceId);
+        discovered.remove(deviceId);
+        if (iface == null)
+        {
+            return;
+        }
+        iface.destroy();
+        LOGGER.log(Level.INFO, "Device {0} closed.", deviceId);
+        if (listener != null)
+        {
+            listener.onDeviceRemoved(deviceId);
+        }
+    }
+
+    /**
+     * Returns the interface registered with the given id.
+     *
+     * @param deviceId The id of the interface adapter.
+     * @return The interface or NULL if not registered.
+     */
+    public FtInterfaceAsync get(final String deviceId)
+    {
+        return deviceId != null ? devices.get(deviceId) : null;
+    }
+
+    /**
+     * Returns the ids of all registered interface adapters.
+     *
+     * @return The ids in alphabetical order.
+     */
+    public Set<String> getDeviceIds()
+    {
+        return Collections.unmodifiableSet(new TreeSet<>(devices.keySet()));
+    }
+
+    /**
+     * Returns the I/O engine shared by the interfaces.
+     *
+     * @return The engine.
+     */
+    public FtIoEngine getIoEngine()
+    {
+        return engine;
+    }
+
+    /**
+     * Discovers the serial ports in {@link #DEV_DIRECTORY}, see {@link #discover(File)}.
+     *
+     * @return The ids of the newly registered interface adapters.
+     */
+    public List<String> discover()
+    {
+        return this.discover(DEV_DIRECTORY);
+    }
+
+    /**
+     * Discovers the serial ports whose names start with one of the {@link #PORT_PREFIXES}. Ports that are not yet
+     * registered are opened, ports that cannot be opened are tried again on the next discovery. Discovered
+     * interface adapters whose port has vanished are closed.
+     *
+     * @param directory The directory of the serial ports.
+     * @return The ids of the newly registered interface adapters.
+     */
+    public synchronized List<String> discover(final File directory)
+    {
+        discovered.forEach((final String deviceId, final File port) ->
+        {
+            if (!port.exists())
+            {
+                LOGGER.log(Level.INFO, "Port of device {0} has vanished.", deviceId);
+                this.close(deviceId);
+            }
+        });
+
+        List<String> ret = new ArrayList<>();
+        File[] ports = directory.listFiles((final File dir, final String name) ->
+                PORT_PREFIXES.stream().anyMatch(name::startsWith));
+        if (ports == null)
+        {
+            return ret;
+        }
+        Arrays.sort(ports);
+        for (File port : ports)
+        {
+            String deviceId = port.getName();
+            if (devices.containsKey(deviceId))
+            {
+                continue;
+            }
+            try
+            {
+                this.open(deviceId, port.getPath());
+                discovered.put(deviceId, port);
+                ret.add(deviceId);
+            }
+            catch(ComException | RuntimeException e)
+            {
+                LOGGER.log(Level.WARNING, "Unable to open discovered port {0}.", port);
+                LOGGER.log(Level.FINE, "Unable to open discovered port.", e);
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Discovers the serial ports in {@link #DEV_DIRECTORY} periodically, i.e. interface adapters are added and
+     * removed while they are plugged in and out.
+     *
+     * @param interval The time between two discoveries in ms.
+     */
+    public synchronized void startDiscovery(final long interval)
+    {
+        if (discovery != null)
+        {
+            return;
+        }
+        this.discovery = Executors.newSingleThreadScheduledExecutor((final Runnable runnable) ->
+        {
+            Thread thread = new Thread(runnable, "FtDeviceDiscovery");
+            thread.setDaemon(true);
+            return thread;
+        });
+        discovery.scheduleWithFixedDelay(this::discover, 0L, interval, TimeUnit.MILLISECONDS);
+    }
+
+}
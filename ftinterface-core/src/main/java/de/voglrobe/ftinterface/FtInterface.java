@@ -3,13 +3,10 @@ package de.voglrobe.ftinterface;
 import de.voglrobe.ftinterface.exceptions.ComException;
 import de.voglrobe.ftinterface.io.FtInputs;
 import de.voglrobe.ftinterface.io.FtOutput;
+import de.voglrobe.ftinterface.io.FtSerialPortConfig;
 import de.voglrobe.ftinterface.io.FtSerialPortSenderReceiver;
 import de.voglrobe.ftinterface.sync.ISBBuffer;
 import java.util.List;
-import java.util.concurrent.BrokenBarrierException;
-import java.util.concurrent.CyclicBarrier;
-import java.util.concurrent.TimeUnit;
-import java.util.concurrent.TimeoutException;
 
 /**
  * This class implements an abstraction of the ft-Interface. It supports synchronous communication
@@ -19,8 +16,10 @@ import java.util.concurrent.TimeoutException;
  */
 public class FtInterface
 {
+    private static final long SEND_TIMEOUT = 60000L; // ms
+    private static final long SEND_POLL_INTERVAL = 100L; // ms
+    
     private final ISBBuffer isbBuffer;
-    private final CyclicBarrier barrier;
     private FtSerialPortSenderReceiver senderReceiver;
     
     /**
@@ -30,7 +29,6 @@ public class FtInterface
     {
         this.senderReceiver = null;
         this.isbBuffer = new ISBBuffer();
-        this.barrier = new CyclicBarrier(2);
     }
     
     /**
@@ -41,9 +39,22 @@ public class FtInterface
      * @throws ComException in case of errors.
      */
     public static FtInterface newInstance(final String port) throws ComException
+    {
+        return newInstance(port, new FtSerialPortConfig());
+    }
+    
+    /**
+     * A factory to create a new instance of this class.
+     * 
+     * @param port The device name of the serial port, e.g. '/dev/ttyACM0'. 
+     * @param config The configuration of the serial connection, e.g. the port speed.
+     * @return A new and ready-to-use instance of this class.
+     * @throws ComException in case of errors.
+     */
+    public static FtInterface newInstance(final String port, final FtSerialPortConfig config) throws ComException
     {
         FtInterface ret = new FtInterface();
-        ret.init(port);
+        ret.init(port, config);
         return ret;
     }
     
@@ -51,22 +62,15 @@ public class FtInterface
      * Initialization.
      * 
      * @param port Name of the serial COM port.
+     * @param config The configuration of the serial connection.
      * @throws ComException 
      */
-    private void init(final String port) throws ComException
+    private void init(final String port, final FtSerialPortConfig config) throws ComException
     {
-        this.senderReceiver = FtSerialPortSenderReceiver.newInstance(port);
+        this.senderReceiver = FtSerialPortSenderReceiver.newInstance(port, config);
         senderReceiver.setInputReceiver((final FtInputs inputs)->
         {
             isbBuffer.store(inputs.getSeqNr(), inputs);
-            try
-            {
-                barrier.await(60L, TimeUnit.SECONDS);
-            }
-            catch (InterruptedException | BrokenBarrierException | TimeoutException e)
-            {
-                barrier.reset();
-            }
         });
     }
     
@@ -83,9 +87,25 @@ public class FtInterface
         }
     }
     
+    /**
+     * Switches the extended ISB frame with telemetry data on or off.
+     * See {@link FtInputs#getTelemetry()}.
+     * 
+     * @param telemetry TRUE to receive ISBs with telemetry data, FALSE for standard ISBs.
+     * @throws ComException in case of errors.
+     */
+    public void setTelemetry(final boolean telemetry) throws ComException
+    {
+        if (senderReceiver != null)
+        {
+            senderReceiver.setTelemetry(telemetry);
+        }
+    }
+    
     /**
      * Sends a MCC to the interface and blocks until the corresponding ISBs have been returned.
-     * Times out after 60 seconds.
+     * The MCC is retransmitted if the ISBs are missing (see {@link FtSerialPortConfig#maxRetries(int)}).
+     * Fails as soon as the MCC has been given up, at the latest after 60 seconds.
      * 
      * @param output The MCC to send. The sequence number will be overwritten.
      * @return A single set of ISBs.
@@ -101,20 +121,26 @@ public class FtInterface
         int seqNr = isbBuffer.requestSeqNr();
         
         // send and wait
-        this.senderReceiver.send(output.seqNr(seqNr).bytes());
+        this.senderReceiver.send(output.seqNr(seqNr), null);
+        long stop = System.currentTimeMillis() + SEND_TIMEOUT;
         try
         {
-            do
+            FtInputs ret;
+            while ((ret = isbBuffer.await(seqNr, SEND_POLL_INTERVAL)) == null)
             {
-                barrier.await(60L, TimeUnit.SECONDS);
-                barrier.reset();
+                if (!senderReceiver.isPending(seqNr) && !isbBuffer.contains(seqNr))
+                {
+                    throw new ComException("No ISBs received for sequence number " + seqNr + ".");
+                }
+                if (System.currentTimeMillis() > stop)
+                {
+                    throw new ComException("Timeout while waiting for ISBs.");
+                }
             }
-            while (!isbBuffer.contains(seqNr));
-            return isbBuffer.pop(seqNr);
+            return ret;
         }
-        catch(InterruptedException | BrokenBarrierException | TimeoutException e)
+        catch(InterruptedException e)
         {
-            barrier.reset();
             throw new ComException(e);
         }
     }
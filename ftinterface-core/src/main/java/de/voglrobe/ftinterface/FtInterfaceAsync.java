@@ -1,18 +1,58 @@
 package de.voglrobe.ftinterface;
 
+import de.voglrobe.ftinterface.async.ConnectionSupervisorThread;
+import de.voglrobe.ftinterface.async.DeviceProgram;
 import de.voglrobe.ftinterface.async.MccExecutorThread;
-import de.voglrobe.ftinterface.async.SequenceLockHelper;
+import de.voglrobe.ftinterface.async.MotorScheduler;
+import de.voglrobe.ftinterface.async.SequenceNumberAllocator;
+import de.voglrobe.ftinterface.async.ProgramRunner;
 import de.voglrobe.ftinterface.exceptions.ComException;
+import de.voglrobe.ftinterface.io.FtHealth;
+import de.voglrobe.ftinterface.io.FtInputs;
 import de.voglrobe.ftinterface.io.FtInputsFlags;
+import de.voglrobe.ftinterface.io.FtIoEngine;
 import de.voglrobe.ftinterface.io.FtOutput;
+import de.voglrobe.ftinterface.io.FtProgram;
+import de.voglrobe.ftinterface.io.FtProgramProgress;
+import de.voglrobe.ftinterface.io.FtSerialPortConfig;
 import de.voglrobe.ftinterface.io.FtSerialPortSenderReceiver;
+import de.voglrobe.ftinterface.io.IFtGiveUpListener;
+import de.voglrobe.ftinterface.io.IFtHealthListener;
 import de.voglrobe.ftinterface.io.IFtInputReceiver;
+import de.voglrobe.ftinterface.io.IFtProgramListener;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.LockSupport;
 import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * This class implements an abstraction of the ft-Interface. It supports asynchronous communication
  * with the hardware.
+ * <p>
+ * The connection is supervised and re-established automatically if it breaks or stalls.
+ * See {@link FtSerialPortConfig#watchdogTimeout(long)} and {@link #getHealth()}.
+ * <p>
+ * Clients that stream MCCs faster than the serial link carries them (e.g. a joystick) should switch on the
+ * conflating mode: the interface adapter gets the latest MCC only, thus the latency stays bounded.
+ * See {@link #setConflating(boolean)}.
+ * <p>
+ * Multi-step routines can be run as a motion program on the host, i.e. without a client round trip per step.
+ * See {@link #runProgram(FtProgram, IFtProgramListener)}. Timing-critical routines run on the interface adapter
+ * itself, see {@link #uploadDeviceProgram(FtProgram)}.
+ * <p>
+ * MCCs may carry a deadline. A MCC that is still waiting for the lock or the serial link when it's deadline has
+ * passed is discarded and answered with an ISB that has the 'expired' flag set. See {@link #getExpiredCount()}.
+ * <p>
+ * MCCs for several interfaces can be started together, see {@link FtDeviceGroup}.
+ * <p>
+ * The ISBs of MCCs with a sequence number are tracked. Clients that track them besides the stepping scheduler and
+ * the motion programs take their sequence numbers from {@link #getSequenceNumberAllocator()}.
+ * <p>
+ * Many interfaces on one host should share a {@link FtIoEngine} instead of running threads of their own, see
+ * {@link FtSerialPortConfig#ioEngine(FtIoEngine)}.
  *
  * @author robert
  */
@@ -20,9 +60,17 @@ public class FtInterfaceAsync
 {
     private final Lock lock = new ReentrantLock();
     private FtSerialPortSenderReceiver senderReceiver;
-    private MccExecutorThread mccExecutor;
+    private volatile MccExecutorThread mccExecutor;
+    private ConnectionSupervisorThread supervisor;
+    private MotorScheduler motorScheduler;
+    private volatile IFtInputReceiver inputReceiver;
+    private volatile IFtGiveUpListener giveUpListener;
+    private ExecutorService programExecutor;
+    private volatile ProgramRunner programRunner;
+    private DeviceProgram deviceProgram;
     
     private volatile FtOutput interruptAction;
+    private volatile Thread durationThread;
     
     
     /**
@@ -36,9 +84,25 @@ public class FtInterfaceAsync
      */
     public static FtInterfaceAsync newInstance(final String port, final IFtInputReceiver inputReceiver)
             throws ComException
+    {
+        return newInstance(port, new FtSerialPortConfig(), inputReceiver);
+    }
+
+    /**
+     * A factory to create a new instance of this class.
+     * 
+     * @param port The device name of the serial port, e.g. '/dev/ttyACM0'. 
+     * @param config The configuration of the serial connection, e.g. the port speed.
+     * @param inputReceiver The input receiver callback object to set or NULL.
+     * The InputReceiver will be asynchronously notified on each incoming ISB set.
+     * @return A new and ready-to-use instance of this class.
+     * @throws ComException in case of errors.
+     */
+    public static FtInterfaceAsync newInstance(final String port, final FtSerialPortConfig config,
+            final IFtInputReceiver inputReceiver) throws ComException
     {
         FtInterfaceAsync ret = new FtInterfaceAsync();
-        ret.init(port, inputReceiver);
+        ret.init(port, config, inputReceiver);
         return ret;
     }
 
@@ -54,9 +118,7 @@ public class FtInterfaceAsync
     public static FtInterfaceAsync newInstance(final String port)
             throws ComException
     {
-        FtInterfaceAsync ret = new FtInterfaceAsync();
-        ret.init(port, null);
-        return ret;
+        return newInstance(port, new FtSerialPortConfig(), null);
     }
 
     /**
@@ -66,24 +128,53 @@ public class FtInterfaceAsync
     {
         this.senderReceiver = null;
         this.interruptAction = null;
+        this.durationThread = null;
         this.mccExecutor = null;
+        this.supervisor = null;
+        this.motorScheduler = null;
+        this.inputReceiver = null;
+        this.programExecutor = null;
+        this.programRunner = null;
+        this.deviceProgram = null;
     }
 
     /**
      * Initialization.
      * 
      * @param port name of the serial COM port.
+     * @param config The configuration of the serial connection.
      * @param inputReceiver The input receiver callback object to set.
      * @throws ComException 
      */
-    private void init(final String port, final IFtInputReceiver inputReceiver) throws ComException
+    private void init(final String port, final FtSerialPortConfig config, final IFtInputReceiver inputReceiver)
+            throws ComException
     {
-        this.senderReceiver = FtSerialPortSenderReceiver.newInstance(port);
-        senderReceiver.setInputReceiver(inputReceiver);
+        this.senderReceiver = FtSerialPortSenderReceiver.newInstance(port, config);
+        this.motorScheduler = new MotorScheduler(senderReceiver);
+        this.deviceProgram = new DeviceProgram(senderReceiver);
+        this.inputReceiver = inputReceiver;
+        senderReceiver.setInputReceiver(this::onDataReceived);
+        senderReceiver.setGiveUpListener(this::onGiveUp);
         
         // start Runnable with new MCC.
         this.mccExecutor = new MccExecutorThread(senderReceiver);
-        this.mccExecutor.start();
+        this.mccExecutor.start(config.getIoEngine());
+        
+        this.programExecutor = Executors.newSingleThreadExecutor((final Runnable runnable) ->
+        {
+            Thread thread = new Thread(runnable, "ProgramRunner");
+            thread.setDaemon(true);
+            return thread;
+        });
+        
+        // the interface adapter lost all stepping commands and it's program buffer with the reset.
+        this.supervisor = new ConnectionSupervisorThread(senderReceiver, () ->
+        {
+            motorScheduler.cancel();
+            this.abortProgram();
+            deviceProgram.cancel();
+        });
+        this.supervisor.start(config.getIoEngine());
     }
 
     /**
@@ -93,6 +184,12 @@ public class FtInterfaceAsync
      */
     public void destroy()
     {
+        this.terminateSupervisor();
+        this.abortProgram();
+        if (programExecutor != null)
+        {
+            programExecutor.shutdownNow();
+        }
         this.terminateMccExecutor();
         if (senderReceiver != null)
         {
@@ -107,13 +204,139 @@ public class FtInterfaceAsync
      * @throws ComException in case of errors.
      */
     public void setInputReceiver(final IFtInputReceiver inputReceiver) throws ComException
+    {
+        this.inputReceiver = inputReceiver;
+    }
+    
+    /**
+     * Called when the ISB of a MCC will not arrive anymore.
+     * 
+     * @param seqNr The sequence number of the given-up MCC.
+     */
+    private void onGiveUp(final int seqNr)
+    {
+        motorScheduler.onGiveUp(seqNr);
+        ProgramRunner runner = this.programRunner;
+        if (runner != null)
+        {
+            runner.onGiveUp(seqNr);
+        }
+        IFtGiveUpListener listener = this.giveUpListener;
+        if (listener != null)
+        {
+            listener.onGiveUp(seqNr);
+        }
+    }
+
+    /**
+     * Called on each incoming ISB.
+     * 
+     * @param inputs The received ISB.
+     */
+    private void onDataReceived(final FtInputs inputs)
+    {
+        motorScheduler.onDataReceived(inputs);
+        ProgramRunner runner = this.programRunner;
+        if (runner != null)
+        {
+            runner.onDataReceived(inputs);
+        }
+        IFtInputReceiver callback = this.inputReceiver;
+        if (callback != null)
+        {
+            callback.onDataReceived(inputs);
+        }
+    }
+
+    /**
+     * Sets the callback object to get notified when the health of the connection changes, e.g. on reconnect.
+     * 
+     * @param healthListener The callback object to set or NULL.
+     */
+    public void setHealthListener(final IFtHealthListener healthListener)
+    {
+        if (supervisor != null)
+        {
+            supervisor.setHealthListener(healthListener);
+        }
+    }
+    
+    /**
+     * Sets the callback object to get notified when a MCC has been given up, i.e. it's ISB will not arrive anymore
+     * even after the last retransmission. See {@link FtSerialPortConfig#maxRetries(int)}.
+     * 
+     * @param giveUpListener The callback object to set or NULL.
+     */
+    public void setGiveUpListener(final IFtGiveUpListener giveUpListener)
+    {
+        this.giveUpListener = giveUpListener;
+    }
+    
+    /**
+     * Returns the allocator of the sequence numbers of this interface.
+     * 
+     * @return The allocator or NULL if not initialized.
+     */
+    public SequenceNumberAllocator getSequenceNumberAllocator()
+    {
+        return senderReceiver != null ? senderReceiver.getSequenceNumberAllocator() : null;
+    }
+    
+    /**
+     * Returns the current health of the connection to the interface adapter.
+     * 
+     * @return The health state.
+     */
+    public FtHealth getHealth()
+    {
+        return supervisor != null ? supervisor.getHealth() : FtHealth.DISCONNECTED;
+    }
+    
+    /**
+     * Switches the extended ISB frame with telemetry data on or off.
+     * See {@link de.voglrobe.ftinterface.io.FtInputs#getTelemetry()}.
+     * 
+     * @param telemetry TRUE to receive ISBs with telemetry data, FALSE for standard ISBs.
+     * @throws ComException in case of errors.
+     */
+    public void setTelemetry(final boolean telemetry) throws ComException
     {
         if (senderReceiver != null)
         {
-            senderReceiver.setInputReceiver(inputReceiver);
+            senderReceiver.setTelemetry(telemetry);
         }
     }
 
+    /**
+     * Switches the conflating mode on or off.
+     * <p>
+     * In conflating mode the MCCs are not queued. Each device has a mailbox for a single MCC and a newer MCC
+     * replaces a MCC that has not been written to the interface adapter yet. MCCs are merged per motor, i.e. a MCC
+     * that commands some motors only (see {@link FtOutput#mask(int)}) leaves the other motors in their last state.
+     * Thus a MCC is on the wire at most two frame times after it has been sent, regardless of the rate of MCCs.
+     * <p>
+     * The ISBs of replaced MCCs never arrive and their Sync-Locks are released. Stepping commands are never replaced.
+     * 
+     * @param conflating TRUE to switch the conflating mode on, FALSE to queue all MCCs in order (default).
+     */
+    public void setConflating(final boolean conflating)
+    {
+        if (senderReceiver != null)
+        {
+            senderReceiver.setConflating(conflating);
+        }
+    }
+    
+    /**
+     * Returns whether the conflating mode is switched on.
+     * 
+     * @return TRUE if switched on.
+     */
+    public boolean isConflating()
+    {
+        return senderReceiver != null && senderReceiver.isConflating();
+    }
+
     /**
      * Sends a MCC to the interface and returns immediately.
      * May block if the RS232 TX Buffer has not enough free space.
@@ -145,6 +368,24 @@ public class FtInterfaceAsync
      * @throws ComException in case of errors.
      */
     public void send(final FtOutput output, final boolean syncLock, final FtInputsFlags flags) throws ComException
+    {
+        this.send(output, syncLock, flags, 0L);
+    }
+    
+    /**
+     * Sends a MCC to the interface and returns immediately. The MCC is discarded if it cannot be sent by the given
+     * deadline, e.g. because it waits for the lock or behind other MCCs. It's ISB has the 'expired' flag set then.
+     * <p>
+     * This method is locked as long as other send()-methods are being executed.
+     * 
+     * @param output The MCC to send.
+     * @param syncLock If TRUE a Sync-Lock is set.
+     * @param flags Optional flags for the sender and receiver or NULL.
+     * @param deadline The point in time the MCC must be sent by in milliseconds since the epoch. 0 = no deadline.
+     * @throws ComException in case of errors.
+     */
+    public void send(final FtOutput output, final boolean syncLock, final FtInputsFlags flags, final long deadline)
+            throws ComException
     {
         if (output == null)
         {
@@ -152,14 +393,9 @@ public class FtInterfaceAsync
         }
         
         lock.lock();
-        this.mccExecutor.pause();
         try
         {
-            if (syncLock)
-            {
-                SequenceLockHelper.INSTANCE.addSeqNr(output.getSeqNr());
-            }
-            this.senderReceiver.send(output.bytes(), flags);
+            this.transmit(output, syncLock, flags, deadline);
         }
         finally
         {
@@ -168,6 +404,188 @@ public class FtInterfaceAsync
         }
     }
     
+    /**
+     * Pauses the MCC executor and queues the given MCC. The caller must hold the lock.
+     * 
+     * @param output The MCC to send.
+     * @param syncLock If TRUE a Sync-Lock is set.
+     * @param flags Optional flags for the sender and receiver or NULL.
+     * @param deadline The point in time the MCC must be sent by or 0.
+     * @throws ComException in case of errors.
+     */
+    private void transmit(final FtOutput output, final boolean syncLock, final FtInputsFlags flags,
+            final long deadline) throws ComException
+    {
+        if (isExpired(deadline))
+        {
+            // a stale MCC must not stop the keep-alive of the current one
+            this.senderReceiver.send(output, flags, deadline);
+            return;
+        }
+        this.mccExecutor.pause();
+        if (syncLock)
+        {
+            senderReceiver.getSequenceLockHelper().addSeqNr(output.getSeqNr());
+        }
+        this.senderReceiver.send(output, flags, deadline);
+    }
+    
+    /**
+     * Checks whether the given deadline has passed.
+     * 
+     * @param deadline The deadline in milliseconds since the epoch or 0.
+     * @return TRUE if the deadline has passed.
+     */
+    private static boolean isExpired(final long deadline)
+    {
+        return deadline > 0L && System.currentTimeMillis() > deadline;
+    }
+    
+    /**
+     * Returns the number of MCCs discarded because their deadline had passed.
+     * 
+     * @return The number of expired MCCs.
+     */
+    public long getExpiredCount()
+    {
+        return senderReceiver != null ? senderReceiver.getExpiredCount() : 0L;
+    }
+    
+    /**
+     * Schedules a stepping command per motor and returns immediately.
+     * <p>
+     * Stepping commands for different motors run concurrently: a stepping command for idle motors is started right
+     * away even if the interface adapter is performing another stepping command. Stepping commands for the same
+     * motor are performed in order. Only the motors with a commanded number of steps are affected, all other motors
+     * keep their state. See {@link MotorScheduler}.
+     * <p>
+     * Scheduled stepping commands are cancelled by {@link #softInterrupt(FtOutput)} and on reconnect.
+     * 
+     * @param output The stepping command.
+     * @return A future that is completed with the ISB as soon as the motors have performed their steps.
+     * @throws ComException in case of errors.
+     */
+    public CompletableFuture<FtInputs> schedule(final FtOutput output) throws ComException
+    {
+        this.mccExecutor.pause();
+        return motorScheduler.submit(output);
+    }
+    
+    /**
+     * Runs a motion program on the host and returns immediately. A running program is aborted.
+     * <p>
+     * The steps are advanced by the received ISBs, thus no client round trip is required. See {@link ProgramRunner}.
+     * Other MCCs sent in the meantime interfere with the program, e.g. they stop the hold of the outputs.
+     * <p>
+     * The program is aborted by {@link #softInterrupt(FtOutput)} and on reconnect.
+     * 
+     * @param program The program to run.
+     * @param listener The callback object to notify on progress or NULL.
+     * @return The runner of the program to control and monitor it.
+     */
+    public ProgramRunner runProgram(final FtProgram program, final IFtProgramListener listener)
+    {
+        ProgramRunner runner = new ProgramRunner(senderReceiver, mccExecutor, program, listener);
+        ProgramRunner previous = this.programRunner;
+        this.programRunner = runner;
+        if (previous != null)
+        {
+            previous.abort();
+        }
+        programExecutor.execute(runner);
+        return runner;
+    }
+    
+    /**
+     * Pauses the running motion program. Does nothing if no program is running.
+     */
+    public void pauseProgram()
+    {
+        ProgramRunner runner = this.programRunner;
+        if (runner != null)
+        {
+            runner.pause();
+        }
+    }
+    
+    /**
+     * Resumes the paused motion program. Does nothing if no program is running.
+     */
+    public void resumeProgram()
+    {
+        ProgramRunner runner = this.programRunner;
+        if (runner != null)
+        {
+            runner.resume();
+        }
+    }
+    
+    /**
+     * Aborts the running motion program. Does nothing if no program is running.
+     */
+    public void abortProgram()
+    {
+        ProgramRunner runner = this.programRunner;
+        if (runner != null)
+        {
+            runner.abort();
+        }
+    }
+    
+    /**
+     * Uploads a motion program into the program buffer of the interface adapter and returns immediately.
+     * <p>
+     * Unlike {@link #runProgram(FtProgram, IFtProgramListener)} the program is executed by the firmware, i.e. with
+     * microcontroller-level timing. The firmware supports up to 32 steps, hold durations up to 65535 ms and
+     * conditions on digital inputs only. See {@link FtSerialPortSenderReceiver#uploadProgram(FtProgram)}.
+     * The program buffer is lost on reconnect.
+     * 
+     * @param program The program to upload.
+     * @throws ComException in case of errors, e.g. the firmware does not support programs.
+     */
+    public void uploadDeviceProgram(final FtProgram program) throws ComException
+    {
+        deviceProgram.upload(program);
+    }
+    
+    /**
+     * Starts the uploaded program on the interface adapter and returns immediately. The program runs after all
+     * MCCs sent before. The interface adapter reports each step and the end of the program.
+     * <p>
+     * MCCs sent while the program is running are executed after the program has ended. The program is stopped
+     * by {@link #softInterrupt(FtOutput)} and {@link #stopDeviceProgram()}.
+     * 
+     * @param listener The callback object to notify on progress or NULL.
+     * @return A future that is completed with the final progress, i.e. FINISHED, ABORTED or FAILED.
+     * @throws ComException in case of errors.
+     */
+    public CompletableFuture<FtProgramProgress> startDeviceProgram(final IFtProgramListener listener)
+            throws ComException
+    {
+        this.mccExecutor.pause();
+        return deviceProgram.start(listener);
+    }
+    
+    /**
+     * Stops the program on the interface adapter. The outputs are switched off.
+     * 
+     * @throws ComException in case of errors.
+     */
+    public void stopDeviceProgram() throws ComException
+    {
+        deviceProgram.stop();
+    }
+    
+    /**
+     * Returns the last progress reported by the program on the interface adapter.
+     * 
+     * @return The progress or NULL if no program has been started.
+     */
+    public FtProgramProgress getDeviceProgramProgress()
+    {
+        return deviceProgram != null ? deviceProgram.getProgress() : null;
+    }
+    
     /**
      * Sends a MCC to the interface and executes it for a given duration of time.
      * Blocks until duration has been elapsed.
@@ -178,7 +596,7 @@ public class FtInterfaceAsync
      * of the analog and digital inputs.
      * <p>
      * This method is interruptible with {@link #softInterrupt(de.voglrobe.ftinterface.io.FtOutput)}.
-     * The interrupt action will be executed as soon as possible (within 200 ms).
+     * The interrupt action is executed immediately and this method returns.
      * <p>
      * In order to allow a seamless execution with the probably following MCC, this method does NOT execute a
      * OFF-command when the duration time has been elapsed, i.e. all outputs remain active
@@ -189,6 +607,24 @@ public class FtInterfaceAsync
      * @throws ComException In case of errors.
      */
     public void send(final FtOutput output, final long duration) throws ComException
+    {
+        this.send(output, duration, 0L);
+    }
+    
+    /**
+     * Sends a MCC to the interface and executes it as long as the given duration. This method is <b>blocking</b>.
+     * <p>
+     * The MCC is discarded if it cannot be started by the given deadline, e.g. because it waits behind another
+     * send-with-duration. It's final ISB has both the 'expired' and the 'durationFinished' flag set then. Once started
+     * the MCC is executed for the whole duration. See {@link #send(FtOutput, long)}.
+     * 
+     * @param output The MCC to send.
+     * @param duration The duration in seconds. Must be &gt;0.
+     * @param deadline The point in time the MCC must be started by in milliseconds since the epoch.
+     * 0 = no deadline.
+     * @throws ComException In case of errors.
+     */
+    public void send(final FtOutput output, final long duration, final long deadline) throws ComException
     {
         if (output == null || duration <= 0)
         {
@@ -197,9 +633,24 @@ public class FtInterfaceAsync
         
         lock.lock();
         
-        // blocks until a previous async MCC has been finished (by received ISB).
-        SequenceLockHelper.INSTANCE.check();
+        // blocks until a previous async MCC has been finished (by received ISB) or given up.
+        senderReceiver.getSequenceLockHelper().check(senderReceiver.getConfig().getGiveUpTimeout());
+        if (isExpired(deadline))
+        {
+            try
+            {
+                FtInputsFlags flags = new FtInputsFlags();
+                flags.setDurationFinished(true);
+                this.transmit(output, false, flags, deadline);
+                return;
+            }
+            finally
+            {
+                lock.unlock();
+            }
+        }
         this.interruptAction = null;
+        this.durationThread = Thread.currentThread();
         try
         {
             long stop = System.currentTimeMillis() + duration * 1000L;
@@ -207,27 +658,25 @@ public class FtInterfaceAsync
             {
                 if (this.interruptAction != null)
                 {
-                    this.send(interruptAction, false, null);
-                    break;
-                }
-                this.send(output, false, null);
-                try
-                {
-                    Thread.sleep(200);
-                }
-                catch(InterruptedException dontcare)
-                {
+                    break; // already sent in the priority lane
                 }
+                this.transmit(output, false, null, 0L);
+                
+                // woken up by softInterrupt()
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(200));
             }
             while(System.currentTimeMillis() < stop);
 
             // 'durationFinished' flag for the final ISB.
             FtInputsFlags flags = new FtInputsFlags();
             flags.setDurationFinished(true);
-            this.send(output, false, flags);
+            FtOutput interrupt = this.interruptAction;
+            this.transmit(interrupt != null ? interrupt : output, false, flags, 0L);
         }
         finally
         {
+            this.durationThread = null;
+            this.interruptAction = null;
             lock.unlock();
         }
     }
@@ -238,11 +687,13 @@ public class FtInterfaceAsync
      * <p>
      * This method is only applicable for <b>non-stepping</b> commands.
      * <p>
-     * If an input receiver callback object is set it will be notfied every 200 ms with the current state
+     * The MCC is refreshed before the hold time of the interface adapter elapses, i.e. every 200 ms by default.
+     * Refreshes are skipped while other MCCs are sent. See {@link FtSerialPortConfig#holdTime(long)}.
+     * If an input receiver callback object is set it will be notfied on each refresh with the current state
      * of the analog and digital inputs.
      * <p>
      * This method is interruptible with {@link #softInterrupt(de.voglrobe.ftinterface.io.FtOutput)}.
-     * The interrupt action will be executed as soon as possible (within 200 ms).
+     * The interrupt action is executed immediately.
      * <p>
      * In order to allow a seamless execution with the probably following MCC, this method does NOT execute a
      * OFF-command after termination (unless otherwise specified by the interrupt action).
@@ -251,6 +702,23 @@ public class FtInterfaceAsync
      * @throws ComException In case of errors.
      */
     public void sendInfinite(final FtOutput output) throws ComException
+    {
+        this.sendInfinite(output, 0L);
+    }
+    
+    /**
+     * Sends a MCC to the interface and executes it until it either gets overwritten with a new MCC
+     * or the execution is interrupted. This method is <b>non-blocking</b> and returns immediately.
+     * <p>
+     * The MCC is discarded if it cannot be started by the given deadline, e.g. because it waits for the lock.
+     * It's ISB has the 'expired' flag set then and the current MCC keeps running. See {@link #sendInfinite(FtOutput)}.
+     * 
+     * @param output The MCC to send.
+     * @param deadline The point in time the MCC must be started by in milliseconds since the epoch.
+     * 0 = no deadline.
+     * @throws ComException In case of errors.
+     */
+    public void sendInfinite(final FtOutput output, final long deadline) throws ComException
     {
         if (output == null)
         {
@@ -260,6 +728,12 @@ public class FtInterfaceAsync
         lock.lock();
         try
         {
+            if (isExpired(deadline))
+            {
+                this.senderReceiver.send(output, null, deadline);
+                return;
+            }
+            
             // pause Runnable of old MCC.
             this.mccExecutor.pause();
             
@@ -274,23 +748,120 @@ public class FtInterfaceAsync
     
     /**
      * Interrupts a long running command by the given command.
+     * <p>
+     * The command is sent in the priority lane of the sender, i.e. it bypasses all queued MCCs and cancels them.
+     * The interface adapter discards it's buffered MCCs and aborts a running stepping command.
+     * All scheduled stepping commands are cancelled, see {@link #schedule(FtOutput)}, and a running motion program
+     * is aborted. So is the program on the interface adapter.
+     * The keep-alive of {@link #sendInfinite(FtOutput)} and a running
+     * {@link #send(FtOutput, long)} are stopped. This method does not wait for any lock.
      * 
      * @param output The command to perform as interrupt action. 
      */
-    public synchronized void softInterrupt(final FtOutput output)
+    public void softInterrupt(final FtOutput output)
     {
         this.interruptAction = output;      
         
         // stop Runnable of old MCC.
-        if (mccExecutor != null)
+        MccExecutorThread executor = this.mccExecutor;
+        if (executor != null)
         {
+            executor.pause();
             try
             {
-                this.send(interruptAction);
+                senderReceiver.sendPriority(output);
             }
             catch (ComException dontcare)
             {
             }
+            motorScheduler.cancel();
+            this.abortProgram();
+        }
+        
+        // stop a running send-with-duration
+        Thread worker = this.durationThread;
+        if (worker != null)
+        {
+            LockSupport.unpark(worker);
+        }
+    }
+
+    /**
+     * Sends several MCCs contiguously, i.e. no MCC of another thread gets in between. The action calls the
+     * send()-methods of this interface, which do not wait for the lock then. A send-with-duration blocks the
+     * action as usual. Blocks until the action has returned.
+     * 
+     * @param action The action that sends the MCCs.
+     * @throws ComException in case of errors of the action.
+     */
+    public void sendAtomically(final IFtAtomicAction action) throws ComException
+    {
+        lock.lock();
+        try
+        {
+            action.run();
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Acquires the lock of the send()-methods and pauses the MCC executor, e.g. to write a MCC of a
+     * {@link FtDeviceGroup}.
+     * 
+     * @param timeout The maximum time to wait for the lock in ms.
+     * @return TRUE if the lock has been acquired.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    boolean acquire(final long timeout) throws InterruptedException
+    {
+        if (!lock.tryLock(timeout, TimeUnit.MILLISECONDS))
+        {
+            return false;
+        }
+        MccExecutorThread executor = this.mccExecutor;
+        if (executor != null)
+        {
+            executor.pause();
+        }
+        return true;
+    }
+    
+    /**
+     * Releases the lock acquired by {@link #acquire(long)}.
+     */
+    void release()
+    {
+        lock.unlock();
+    }
+    
+    /**
+     * Returns the sender of this interface.
+     * 
+     * @return The sender.
+     */
+    FtSerialPortSenderReceiver getSenderReceiver()
+    {
+        return senderReceiver;
+    }
+
+    /**
+     * Stopp and eliminate the connection supervisor.
+     */
+    private synchronized void terminateSupervisor()
+    {
+        if (supervisor != null)
+        {
+            supervisor.terminate();
+            try
+            {
+                supervisor.join();
+            }
+            catch(InterruptedException dontcare)
+            {
+            }
         }
     }
 
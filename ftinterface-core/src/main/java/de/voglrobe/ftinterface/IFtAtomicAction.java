@@ -0,0 +1,19 @@
+package de.voglrobe.ftinterface;
+
+import de.voglrobe.ftinterface.exceptions.ComException;
+
+/**
+ * Callback interface for MCCs to send contiguously, see {@link FtInterfaceAsync#sendAtomically(IFtAtomicAction)}.
+ *
+ * @author robert
+ */
+@FunctionalInterface
+public interface IFtAtomicAction
+{
+    /**
+     * Sends the MCCs by the send()-methods of the interface.
+     *
+     * @throws ComException in case of errors.
+     */
+    void run() throws ComException;
+}
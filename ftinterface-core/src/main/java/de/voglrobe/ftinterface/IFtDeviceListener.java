@@ -0,0 +1,44 @@
+package de.voglrobe.ftinterface;
+
+import de.voglrobe.ftinterface.io.FtHealth;
+import de.voglrobe.ftinterface.io.FtInputs;
+
+/**
+ * Callback interface to get notified on the events of the interface adapters of a {@link FtDeviceRegistry}.
+ * The callbacks may be called by the I/O engine of the registry and must not block.
+ *
+ * @author robert
+ */
+public interface IFtDeviceListener
+{
+    /**
+     * Called when an interface adapter has been opened and registered, e.g. to apply settings to it.
+     *
+     * @param deviceId The id of the interface adapter.
+     * @param iface The interface.
+     */
+    void onDeviceAdded(String deviceId, FtInterfaceAsync iface);
+
+    /**
+     * Called when an interface adapter has been removed and closed.
+     *
+     * @param deviceId The id of the interface adapter.
+     */
+    void onDeviceRemoved(String deviceId);
+
+    /**
+     * Called when new input data were received from an interface adapter.
+     *
+     * @param deviceId The id of the interface adapter.
+     * @param inputs The received data.
+     */
+    void onDataReceived(String deviceId, FtInputs inputs);
+
+    /**
+     * Called when the health state of the connection to an interface adapter has changed.
+     *
+     * @param deviceId The id of the interface adapter.
+     * @param health The new health state.
+     */
+    void onHealthChanged(String deviceId, FtHealth health);
+}
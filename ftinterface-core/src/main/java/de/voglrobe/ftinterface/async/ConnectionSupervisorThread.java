@@ -0,0 +1,300 @@
+package de.voglrobe.ftinterface.async;
+
+import de.voglrobe.ftinterface.exceptions.ComException;
+import de.voglrobe.ftinterface.io.FtHealth;
+import de.voglrobe.ftinterface.io.FtIoEngine;
+import de.voglrobe.ftinterface.io.FtSerialPortConfig;
+import de.voglrobe.ftinterface.io.FtSerialPortSenderReceiver;
+import de.voglrobe.ftinterface.io.IFtHealthListener;
+import de.voglrobe.ftinterface.io.IFtIoTask;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * This class implements a Thread that supervises the connection to the interface adapter.
+ * <p>
+ * A broken connection (receiver thread died, write failed) is re-established automatically. If a watchdog timeout
+ * is configured, a connection whose MCCs are not answered within that time is considered stalled and is
+ * re-established as well. Reconnect attempts are repeated with exponential backoff until they succeed or the
+ * Thread is terminated.
+ * <p>
+ * As a task of a {@link FtIoEngine} the connection is checked by the event loop and re-established by a worker
+ * of the engine, see {@link #start(FtIoEngine)}.
+ * <p>
+ * This Thread is not reusable. Once terminated it cannot be restarted.
+ *
+ * @author robert
+ */
+public class ConnectionSupervisorThread extends Thread implements IFtIoTask
+{
+    private static final Logger LOGGER = Logger.getLogger(ConnectionSupervisorThread.class.getName());
+
+    private static final long POLL_INTERVAL = 100L; // ms
+
+    private final FtSerialPortSenderReceiver ftSenderReceiver;
+    private final Runnable onReconnected;
+
+    private volatile IFtHealthListener healthListener;
+    private volatile FtHealth health;
+    private volatile boolean stopped;
+    private volatile boolean recovering;
+    private volatile int reconnects;
+    private volatile FtIoEngine engine;
+    private volatile FtIoEngine.Registration registration;
+
+
+    /**
+     * Constructor.
+     *
+     * @param ftSenderReceiver An object to access of the serial interface.
+     * @param onReconnected Executed after each successful reconnect or NULL.
+     */
+    public ConnectionSupervisorThread(final FtSerialPortSenderReceiver ftSenderReceiver,
+            final Runnable onReconnected)
+    {
+        this.ftSenderReceiver = ftSenderReceiver;
+        this.onReconnected = onReconnected;
+        this.healthListener = null;
+        this.health = FtHealth.CONNECTED;
+        this.stopped = false;
+        this.recovering = false;
+        this.reconnects = 0;
+        this.engine = null;
+        this.registration = null;
+        this.setDaemon(true);
+    }
+
+    /**
+     * Sets the callback object to get notified on health changes.
+     *
+     * @param healthListener The callback object or NULL.
+     */
+    public void setHealthListener(final IFtHealthListener healthListener)
+    {
+        this.healthListener = healthListener;
+    }
+
+    /**
+     * Returns the current health of the connection.
+     *
+     * @return The health state.
+     */
+    public FtHealth getHealth()
+    {
+        return health;
+    }
+
+    /**
+     * Returns the number of successful reconnects.
+     *
+     * @return The number of reconnects since start.
+     */
+    public int getReconnects()
+    {
+        return reconnects;
+    }
+
+    /**
+     * Asks the Thread to terminate and returns immediately.
+     * The caller should sync with the Thread and await it's termination.
+     */
+    public void terminate()
+    {
+        LOGGER.log(Level.INFO, "Stopping ConnectionSupervisorThread...");
+        synchronized(this)
+        {
+            this.stopped = true;
+            this.notifyAll();
+        }
+        if (registration != null)
+        {
+            registration.cancel();
+            this.awaitRecovery();
+            this.setHealth(FtHealth.DISCONNECTED);
+        }
+    }
+
+    /**
+     * Starts the supervisor as a task of the given engine or as a Thread of it's own.
+     *
+     * @param engine The engine or NULL.
+     */
+    public void start(final FtIoEngine engine)
+    {
+        if (engine == null)
+        {
+            this.start();
+            return;
+        }
+        this.engine = engine;
+        this.registration = engine.register(ftSenderReceiver, this);
+    }
+
+    /**
+     * Waits until a recovery run by a worker of the engine has given up.
+     */
+    private synchronized void awaitRecovery()
+    {
+        while (recovering)
+        {
+            try
+            {
+                this.wait(POLL_INTERVAL);
+            }
+            catch(InterruptedException dontcare)
+            {
+            }
+        }
+    }
+
+    /**
+     * Sets the new health state and notifies the listener if changed.
+     *
+     * @param health The new health state.
+     */
+    private void setHealth(final FtHealth health)
+    {
+        if (this.health == health)
+        {
+            return;
+        }
+        LOGGER.log(Level.INFO, "Connection health: {0}", health);
+        this.health = health;
+        IFtHealthListener listener = this.healthListener;
+        if (listener != null)
+        {
+            listener.onHealthChanged(health);
+        }
+    }
+
+    /**
+     * Waits the given time unless the Thread is terminated.
+     *
+     * @param time The time to wait in ms.
+     */
+    private synchronized void pause(final long time)
+    {
+        if (stopped)
+        {
+            return;
+        }
+        try
+        {
+            this.wait(time);
+        }
+        catch(InterruptedException dontcare)
+        {
+        }
+    }
+
+    /**
+     * Re-establishes the connection. Blocks until the connection is up or the Thread has been terminated.
+     */
+    private void recover()
+    {
+        FtSerialPortConfig config = ftSenderReceiver.getConfig();
+        long delay = config.getReconnectDelay();
+        this.setHealth(FtHealth.RECONNECTING);
+        while(!stopped)
+        {
+            try
+            {
+                ftSenderReceiver.reconnect();
+                this.reconnects++;
+                LOGGER.log(Level.INFO, "Reconnected to interface adapter ({0}).", reconnects);
+                this.setHealth(FtHealth.CONNECTED);
+                if (onReconnected != null)
+                {
+                    onReconnected.run();
+                }
+                return;
+            }
+            catch(ComException e)
+            {
+                LOGGER.log(Level.WARNING, "Reconnect failed. Next attempt in {0} ms.", delay);
+                LOGGER.log(Level.FINE, "Reconnect failed.", e);
+            }
+            this.pause(delay);
+            delay = Math.min(2 * delay, config.getReconnectMaxDelay());
+        }
+    }
+
+    /**
+     * Checks the connection and re-establishes it if it's broken or stalled.
+     *
+     * @param recovery Runs the blocking recovery.
+     */
+    private void check(final Runnable recovery)
+    {
+        long watchdogTimeout = ftSenderReceiver.getConfig().getWatchdogTimeout();
+        long unansweredSince = ftSenderReceiver.getUnansweredSince();
+        if (ftSenderReceiver.isBroken())
+        {
+            LOGGER.log(Level.WARNING, "Connection to interface adapter is broken.");
+            recovery.run();
+        }
+        else if (watchdogTimeout > 0 && unansweredSince > 0
+                && System.currentTimeMillis() - unansweredSince > watchdogTimeout)
+        {
+            LOGGER.log(Level.WARNING, "Interface adapter did not answer within {0} ms.", watchdogTimeout);
+            this.setHealth(FtHealth.STALLED);
+            recovery.run();
+        }
+    }
+
+    /**
+     * Checks the connection. The recovery is handed to a worker of the engine.
+     *
+     * @return The time in ns until the next check.
+     */
+    @Override
+    public long poll()
+    {
+        if (stopped)
+        {
+            return Long.MAX_VALUE;
+        }
+        if (!recovering)
+        {
+            this.check(() ->
+            {
+                this.recovering = true;
+                engine.execute(() ->
+                {
+                    try
+                    {
+                        this.recover();
+                    }
+                    finally
+                    {
+                        synchronized(this)
+                        {
+                            this.recovering = false;
+                            this.notifyAll();
+                        }
+                    }
+                });
+            });
+        }
+        return TimeUnit.MILLISECONDS.toNanos(POLL_INTERVAL);
+    }
+
+    @Override
+    public void run()
+    {
+        if (ftSenderReceiver == null)
+        {
+            return;
+        }
+
+        while(!stopped)
+        {
+            this.check(this::recover);
+            this.pause(POLL_INTERVAL);
+        }
+        this.setHealth(FtHealth.DISCONNECTED);
+        LOGGER.log(Level.INFO, "ConnectionSupervisorThread stopped.");
+    }
+
+}
@@ -0,0 +1,180 @@
+package de.voglrobe.ftinterface.async;
+
+import de.voglrobe.ftinterface.exceptions.ComException;
+import de.voglrobe.ftinterface.io.FtProgram;
+import de.voglrobe.ftinterface.io.FtProgramProgress;
+import de.voglrobe.ftinterface.io.FtSerialPortSenderReceiver;
+import de.voglrobe.ftinterface.io.IFtProgramListener;
+import java.util.concurrent.CompletableFuture;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * This class implements the control of a motion program that runs on the interface adapter itself.
+ * <p>
+ * The program is uploaded into the program buffer of the firmware once and can be started any number of times.
+ * It's timing does not depend on the serial link or the JVM. See
+ * {@link FtSerialPortSenderReceiver#uploadProgram(FtProgram)} for the limits of the firmware.
+ *
+ * @author robert
+ */
+public class DeviceProgram
+{
+    private static final Logger LOGGER = Logger.getLogger(DeviceProgram.class.getName());
+
+    private final FtSerialPortSenderReceiver ftSenderReceiver;
+
+    private int steps;
+    private volatile IFtProgramListener listener;
+    private CompletableFuture<FtProgramProgress> result;
+    private volatile FtProgramProgress progress;
+
+
+    /**
+     * Constructor.
+     *
+     * @param ftSenderReceiver An object to access of the serial interface.
+     */
+    public DeviceProgram(final FtSerialPortSenderReceiver ftSenderReceiver)
+    {
+        this.ftSenderReceiver = ftSenderReceiver;
+        this.steps = 0;
+        this.listener = null;
+        this.result = null;
+        this.progress = null;
+        ftSenderReceiver.setProgramListener(this::onProgress);
+    }
+
+    /**
+     * Uploads the given program into the program buffer. A running program is not affected.
+     *
+     * @param program The program.
+     * @throws ComException in case of errors.
+     */
+    public synchronized void upload(final FtProgram program) throws ComException
+    {
+        if (program == null)
+        {
+            throw new IllegalArgumentException("No program to upload.");
+        }
+        ftSenderReceiver.uploadProgram(program);
+        this.steps = program.getSteps().size();
+    }
+
+    /**
+     * Starts the uploaded program. The program runs after all MCCs sent before.
+     *
+     * @param listener The callback object to notify on progress or NULL.
+     * @return A future that is completed with the final progress, i.e. FINISHED, ABORTED or FAILED.
+     * @throws ComException in case of errors.
+     */
+    public synchronized CompletableFuture<FtProgramProgress> start(final IFtProgramListener listener)
+            throws ComException
+    {
+        if (steps == 0)
+        {
+            throw new IllegalStateException("No program uploaded.");
+        }
+        if (result != null && !result.isDone())
+        {
+            throw new IllegalStateException("Program is running.");
+        }
+        this.listener = listener;
+        this.result = new CompletableFuture<>();
+        this.progress = new FtProgramProgress(FtProgramProgress.State.RUNNING, 0, 1);
+        CompletableFuture<FtProgramProgress> ret = this.result;
+        try
+        {
+            ftSenderReceiver.startProgram(steps);
+        }
+        catch(ComException e)
+        {
+            this.result = null;
+            throw e;
+        }
+        return ret;
+    }
+
+    /**
+     * Stops the running program. The outputs are switched off.
+     *
+     * @throws ComException in case of errors.
+     */
+    public void stop() throws ComException
+    {
+        ftSenderReceiver.stopProgram();
+    }
+
+    /**
+     * Returns the last reported progress of the program.
+     *
+     * @return The progress or NULL if no program has been started.
+     */
+    public FtProgramProgress getProgress()
+    {
+        return progress;
+    }
+
+    /**
+     * Forgets the uploaded program, e.g. after the interface adapter has been reset. A running program is
+     * reported as aborted.
+     */
+    public void cancel()
+    {
+        CompletableFuture<FtProgramProgress> done;
+        FtProgramProgress last;
+        synchronized(this)
+        {
+            this.steps = 0;
+            done = this.result;
+            last = this.progress;
+            this.result = null;
+        }
+        if (done != null && !done.isDone())
+        {
+            FtProgramProgress aborted = new FtProgramProgress(FtProgramProgress.State.ABORTED,
+                    last != null ? last.getStep() : 0, last != null ? last.getRepetition() : 0);
+            this.onProgress(aborted, done);
+        }
+    }
+
+    /**
+     * Called on each progress frame of the interface adapter.
+     *
+     * @param progress The reported progress.
+     */
+    private void onProgress(final FtProgramProgress progress)
+    {
+        CompletableFuture<FtProgramProgress> current;
+        synchronized(this)
+        {
+            current = this.result;
+        }
+        this.onProgress(progress, current);
+    }
+
+    /**
+     * Updates the progress, notifies the listener and completes the given future if the program has ended.
+     */
+    private void onProgress(final FtProgramProgress progress, final CompletableFuture<FtProgramProgress> future)
+    {
+        this.progress = progress;
+        IFtProgramListener callback = this.listener;
+        if (callback != null)
+        {
+            try
+            {
+                callback.onProgress(progress);
+            }
+            catch(RuntimeException e)
+            {
+                LOGGER.log(Level.WARNING, "Program listener failed.", e);
+            }
+        }
+        if (progress.isDone() && future != null)
+        {
+            future.complete(progress);
+        }
+    }
+
+}
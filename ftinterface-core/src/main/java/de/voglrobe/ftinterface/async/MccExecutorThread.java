@@ -2,25 +2,45 @@ package de.voglrobe.ftinterface.async;
 
 import de.voglrobe.ftinterface.exceptions.ComException;
 import de.voglrobe.ftinterface.io.FtOutput;
+import de.voglrobe.ftinterface.io.FtIoEngine;
 import de.voglrobe.ftinterface.io.FtSerialPortSenderReceiver;
+import de.voglrobe.ftinterface.io.IFtIoTask;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
  * This class implements a Thread that executes the given MCC until it's termination.
+ * <p>
+ * The MCC is refreshed before the hold time of the interface adapter elapses. A refresh is skipped as long as
+ * another MCC has been sent within the refresh interval, because the interface adapter holds the outputs anyway.
+ * Received ISBs do not count, the interface adapter restarts it's hold time on MCCs only. See {@link de.voglrobe.ftinterface.io.FtSerialPortConfig#holdTime(long)}.
+ * <p>
+ * The executor runs either as a Thread of it's own or as a task of a {@link FtIoEngine}, see
+ * {@link #start(FtIoEngine)}.
+ * <p>
  * This Thread is not reusable. Once terminated it cannot be restarted.
  * 
  * @author vlr
  */
-public class MccExecutorThread extends Thread
+public class MccExecutorThread extends Thread implements IFtIoTask
 {
     private static final Logger LOGGER = Logger.getLogger(MccExecutorThread.class.getName());
     
+    private static final long DEFAULT_REFRESH_INTERVAL = 200L; // ms, for the default hold time of the adapter
+    private static final long REFRESH_MARGIN = 50L; // ms before the hold time elapses
+    private static final long MIN_REFRESH_INTERVAL = 20L; // ms
+    
     private final FtSerialPortSenderReceiver ftSenderReceiver;
     
     private volatile FtOutput mcc;    
     private volatile boolean stopped;
     private volatile boolean paused;
+    private volatile boolean due;
+    private volatile boolean failed;
+    private volatile FtIoEngine.Registration registration;
+    private volatile long lastRefresh;
+    private volatile long refreshes;
     
     
     /**
@@ -34,6 +54,11 @@ public class MccExecutorThread extends Thread
         this.paused = true;
         this.mcc = null;
         this.stopped = false;
+        this.due = false;
+        this.failed = false;
+        this.registration = null;
+        this.lastRefresh = 0L;
+        this.refreshes = 0L;
     }
     
     /**
@@ -42,10 +67,11 @@ public class MccExecutorThread extends Thread
     public synchronized void pause()
     {
         this.paused = true;
+        this.due = false;
     }
     
     /**
-     * Proceeds sending the given MCC. Does nothing if mcc argument is NULL.
+     * Proceeds sending the given MCC. The MCC is sent immediately. Does nothing if mcc argument is NULL.
      * 
      * @param mcc The MCC to send recurrently. 
      */
@@ -53,17 +79,125 @@ public class MccExecutorThread extends Thread
     {
         this.mcc = mcc;
         this.paused = false;
+        this.due = true;
+        this.notifyAll();
+        if (registration != null)
+        {
+            registration.wakeup();
+        }
+    }
+    
+    /**
+     * Returns the number of MCCs sent by this executor.
+     * 
+     * @return The number of refreshes.
+     */
+    public long getRefreshes()
+    {
+        return refreshes;
+    }
+    
+    /**
+     * Returns the time after which the outputs must be refreshed.
+     * 
+     * @return The refresh interval in ms.
+     */
+    private long getRefreshInterval()
+    {
+        long holdTime = ftSenderReceiver.getHoldTime();
+        return holdTime > 0 ? Math.max(MIN_REFRESH_INTERVAL, holdTime - REFRESH_MARGIN) : DEFAULT_REFRESH_INTERVAL;
+    }
+    
+    /**
+     * Refreshes the outputs if no MCC has been sent within the refresh interval.
+     * 
+     * @return The time in ms until the next refresh is due.
+     * @throws ComException in case of errors.
+     */
+    private long refresh() throws ComException
+    {
+        FtOutput current = this.mcc;
+        long interval = this.getRefreshInterval();
+        if (paused || current == null)
+        {
+            return interval;
+        }
+        long now = System.currentTimeMillis();
+        // only a MCC restarts the hold time of the interface adapter, a received ISB does not
+        long proof = Math.max(lastRefresh, ftSenderReceiver.getLastSent());
+        if (!due && now - proof < interval)
+        {
+            return interval - (now - proof);
+        }
+        this.due = false;
+        this.lastRefresh = now;
+        ftSenderReceiver.send(current, null);
+        this.refreshes++;
+        return interval;
     }
     
     /**
      * Asks the Thread to terminate and returns immediately.
      * The caller should sync with the Thread and await it's termination.
      */
-    public synchronized void terminate()
+    public void terminate()
     {
         LOGGER.log(Level.INFO, "Stopping MccExecutorThread...");
-        this.mcc = null;
-        this.stopped = true;
+        synchronized(this)
+        {
+            this.mcc = null;
+            this.stopped = true;
+            this.notifyAll();
+        }
+        if (registration != null)
+        {
+            registration.cancel();
+        }
+    }
+
+    /**
+     * Starts the executor as a task of the given engine or as a Thread of it's own.
+     *
+     * @param engine The engine or NULL.
+     */
+    public void start(final FtIoEngine engine)
+    {
+        if (engine == null)
+        {
+            this.start();
+            return;
+        }
+        this.registration = engine.register(ftSenderReceiver, this);
+    }
+
+    /**
+     * Refreshes the outputs if due.
+     *
+     * @return The time in ns until the next refresh is due.
+     */
+    @Override
+    public long poll()
+    {
+        if (stopped)
+        {
+            return Long.MAX_VALUE;
+        }
+        long wait = DEFAULT_REFRESH_INTERVAL;
+        try
+        {
+            wait = this.refresh();
+            this.failed = false;
+        }
+        catch(ComException e)
+        {
+            // keep on running, the connection is re-established by the ConnectionSupervisorThread.
+            if (!failed)
+            {
+                LOGGER.log(Level.WARNING, "The MccExecutorThread is unable to send.", e);
+                this.failed = true;
+            }
+        }
+        return TimeUnit.MILLISECONDS.toNanos(Math.max(1L, wait));
     }
     
     @Override
@@ -76,21 +210,19 @@ public class MccExecutorThread extends Thread
         
         do
         {
-            try
+            long wait = TimeUnit.NANOSECONDS.toMillis(this.poll());
+            synchronized(this)
             {
-                if (!paused &&  mcc != null)
+                try
+                {
+                    if (!stopped && !due)
+                    {
+                        this.wait(Math.max(1L, wait));
+                    }
+                }
+                catch(InterruptedException dontcare)
                 {
-                    ftSenderReceiver.send(mcc.bytes());
                 }
-                Thread.sleep(200);
-            }
-            catch(InterruptedException dontcare)
-            {
-            }
-            catch(ComException e)
-            {
-                LOGGER.log(Level.SEVERE, "The MccExecutorThread dies unexpectedly.", e);
-                break;
             }
         } while(!stopped);
         LOGGER.log(Level.INFO, "MccExecutorThread stopped.");
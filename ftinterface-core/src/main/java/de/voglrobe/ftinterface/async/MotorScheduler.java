@@ -0,0 +1,263 @@
+package de.voglrobe.ftinterface.async;
+
+import de.voglrobe.ftinterface.exceptions.ComException;
+import de.voglrobe.ftinterface.io.FtInputs;
+import de.voglrobe.ftinterface.io.FtOutput;
+import de.voglrobe.ftinterface.io.FtSerialPortSenderReceiver;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * This class implements a per-motor scheduler for stepping commands.
+ * <p>
+ * Each request steps some of the motors M1-M3 and leaves the others in their state. Requests for idle motors are
+ * merged into a single MCC. If the interface adapter is performing a stepping command already, the MCC joins it,
+ * i.e. the motors start right away and run concurrently (see
+ * {@link FtSerialPortSenderReceiver#sendJoin(FtOutput, de.voglrobe.ftinterface.io.FtInputsFlags)}). Requests for busy
+ * motors wait in order. A request is complete as soon as the ISB of it's MCC arrives. If the MCC is given up
+ * because it's ISB does not arrive, the request fails with a ComException and it's motors are free again.
+ * <p>
+ * The sequence numbers of the MCCs are taken from the {@link SequenceNumberAllocator} of the connection.
+ *
+ * @author robert
+ */
+public class MotorScheduler
+{
+    private static final Logger LOGGER = Logger.getLogger(MotorScheduler.class.getName());
+
+    /**
+     * A stepping request.
+     */
+    private static class Request
+    {
+        private final FtOutput output;
+        private final int motors;
+        private final CompletableFuture<FtInputs> result;
+
+        private Request(final FtOutput output)
+        {
+            this.motors = output.getSteppingMask();
+            this.output = new FtOutput(output).mask(motors);
+            this.result = new CompletableFuture<>();
+        }
+    }
+
+    private final FtSerialPortSenderReceiver ftSenderReceiver;
+    private final SequenceNumberAllocator allocator;
+
+    // waiting requests in order of arrival
+    private final List<Request> waiting = new LinkedList<>();
+
+    // requests sent by sequence number
+    private final Map<Integer, List<Request>> inFlight = new HashMap<>();
+
+    private int busy;
+
+
+    /**
+     * Constructor.
+     *
+     * @param ftSenderReceiver An object to access of the serial interface.
+     */
+    public MotorScheduler(final FtSerialPortSenderReceiver ftSenderReceiver)
+    {
+        this.ftSenderReceiver = ftSenderReceiver;
+        this.allocator = ftSenderReceiver.getSequenceNumberAllocator();
+        this.busy = 0;
+    }
+
+    /**
+     * Schedules a stepping command.
+     *
+     * @param output The stepping command. Only the motors with a commanded number of steps are scheduled, the
+     * other motors keep their state.
+     * @return A future that is completed with the ISB of the MCC that performed the steps.
+     * @throws ComException in case of errors.
+     */
+    public synchronized CompletableFuture<FtInputs> submit(final FtOutput output) throws ComException
+    {
+        if (output == null || !output.isStepping())
+        {
+            throw new IllegalArgumentException("Not a stepping command.");
+        }
+        Request request = new Request(output);
+        waiting.add(request);
+        try
+        {
+            this.dispatch();
+        }
+        catch(ComException e)
+        {
+            waiting.remove(request);
+            throw e;
+        }
+        return request.result;
+    }
+
+    /**
+     * Completes the requests answered by the given ISB and sends the next requests.
+     * Must be called with each received ISB.
+     *
+     * @param inputs The received ISB.
+     */
+    public void onDataReceived(final FtInputs inputs)
+    {
+        List<Request> done;
+        synchronized(this)
+        {
+            done = this.remove(inputs.getSeqNr());
+            if (done == null)
+            {
+                return;
+            }
+        }
+        done.forEach((Request request) -> request.result.complete(inputs));
+    }
+
+    /**
+     * Fails the requests of the given-up MCC and sends the next requests. It's motors are considered idle.
+     * Must be called with each given-up MCC.
+     *
+     * @param seqNr The sequence number of the given-up MCC.
+     */
+    public void onGiveUp(final int seqNr)
+    {
+        List<Request> failed;
+        synchronized(this)
+        {
+            failed = this.remove(seqNr);
+            if (failed == null)
+            {
+                return;
+            }
+        }
+        ComException e = new ComException("The ISB of stepping command " + seqNr + " did not arrive.");
+        failed.forEach((Request request) -> request.result.completeExceptionally(e));
+    }
+
+    /**
+     * Removes the requests of a MCC that is done, frees it's motors and sends the next requests. Must be called
+     * while holding the lock.
+     *
+     * @param seqNr The sequence number of the MCC.
+     * @return The requests or NULL if the MCC is not outstanding.
+     */
+    private List<Request> remove(final int seqNr)
+    {
+        List<Request> ret = inFlight.remove(seqNr);
+        if (ret == null)
+        {
+            return null;
+        }
+        allocator.release(seqNr, this);
+        ret.forEach((Request request) -> this.busy &= ~request.motors);
+        try
+        {
+            this.dispatch();
+        }
+        catch(ComException e)
+        {
+            LOGGER.log(Level.WARNING, "Unable to send the next stepping command.", e);
+        }
+        return ret;
+    }
+
+    /**
+     * Cancels all waiting and outstanding requests, e.g. after the interface adapter has been reset or the
+     * stepping commands have been aborted.
+     */
+    public void cancel()
+    {
+        List<Request> cancelled = new ArrayList<>();
+        synchronized(this)
+        {
+            cancelled.addAll(waiting);
+            inFlight.values().forEach(cancelled::addAll);
+            inFlight.keySet().forEach((Integer seqNr) -> allocator.release(seqNr, this));
+            waiting.clear();
+            inFlight.clear();
+            this.busy = 0;
+        }
+        cancelled.forEach((Request request) -> request.result.cancel(false));
+    }
+
+    /**
+     * Returns the motors that are performing a scheduled stepping command.
+     *
+     * @return A combination of {@link FtOutput#MASK_M1}, {@link FtOutput#MASK_M2} and {@link FtOutput#MASK_M3}.
+     */
+    public synchronized int getBusyMotors()
+    {
+        return busy;
+    }
+
+    /**
+     * Merges the waiting requests for idle motors into one MCC and sends it. A request waits as long as an earlier
+     * request for one of it's motors is waiting.
+     *
+     * @throws ComException in case of errors.
+     */
+    private void dispatch() throws ComException
+    {
+        int blocked = busy;
+        FtOutput merged = null;
+        List<Request> batch = new ArrayList<>();
+        Iterator<Request> it = waiting.iterator();
+        while (it.hasNext())
+        {
+            Request request = it.next();
+            if ((request.motors & blocked) == 0)
+            {
+                merged = merged == null ? request.output : merged.merge(request.output);
+                batch.add(request);
+                it.remove();
+            }
+            blocked |= request.motors;
+        }
+        if (merged == null)
+        {
+            return;
+        }
+
+        FtOutput mcc;
+        try
+        {
+            mcc = new FtOutput(merged).seqNr(allocator.allocate(this));
+        }
+        catch(ComException e)
+        {
+            waiting.addAll(0, batch);
+            throw e;
+        }
+        boolean join = busy != 0;
+        inFlight.put(mcc.getSeqNr(), batch);
+        this.busy |= mcc.getSteppingMask();
+        try
+        {
+            if (join)
+            {
+                ftSenderReceiver.sendJoin(mcc, null);
+            }
+            else
+            {
+                ftSenderReceiver.send(mcc, null);
+            }
+        }
+        catch(ComException e)
+        {
+            inFlight.remove(mcc.getSeqNr());
+            allocator.release(mcc.getSeqNr(), this);
+            this.busy &= ~mcc.getSteppingMask();
+            waiting.addAll(0, batch);
+            throw e;
+        }
+    }
+
+}
@@ -0,0 +1,378 @@
+package de.voglrobe.ftinterface.async;
+
+import de.voglrobe.ftinterface.exceptions.ComException;
+import de.voglrobe.ftinterface.io.FtInputCondition;
+import de.voglrobe.ftinterface.io.FtInputs;
+import de.voglrobe.ftinterface.io.FtOutput;
+import de.voglrobe.ftinterface.io.FtProgram;
+import de.voglrobe.ftinterface.io.FtProgramProgress;
+import de.voglrobe.ftinterface.io.FtProgramStep;
+import de.voglrobe.ftinterface.io.FtSerialPortSenderReceiver;
+import de.voglrobe.ftinterface.io.IFtProgramListener;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * This class implements the execution of a motion program on the host.
+ * <p>
+ * Each step is advanced by the received ISBs, i.e. a step is finished as soon as the ISB of it's MCC has arrived
+ * and, if set, the input condition is fulfilled or the duration has elapsed. See {@link FtProgramStep}. Outputs are
+ * held by the MCC executor in the meantime.
+ * <p>
+ * A pause takes effect at the next step or during the hold of the outputs. A running stepping command is never
+ * interrupted. While paused the outputs are not refreshed, i.e. the interface adapter switches them off when it's
+ * hold time elapses. The remaining duration of the step continues on resume.
+ * <p>
+ * The program fails if the ISB of a step does not arrive, i.e. the MCC is given up or the ISB is overdue by the
+ * stepping timeout plus the retransmissions. The sequence numbers of the MCCs are taken from the
+ * {@link SequenceNumberAllocator} of the connection. A runner is not reusable.
+ *
+ * @author robert
+ */
+public class ProgramRunner implements Runnable
+{
+    private static final Logger LOGGER = Logger.getLogger(ProgramRunner.class.getName());
+
+    private static final long RETRY_MARGIN = 5000L; // ms, the maximum RTO
+
+    private final FtSerialPortSenderReceiver ftSenderReceiver;
+    private final SequenceNumberAllocator allocator;
+    private final long ackTimeout;
+    private final MccExecutorThread mccExecutor;
+    private final FtProgram program;
+    private final IFtProgramListener listener;
+    private final CompletableFuture<FtProgramProgress> result;
+
+    private volatile FtProgramProgress progress;
+    private boolean paused;
+    private boolean aborted;
+    private ComException failure;
+
+    // the MCC being executed
+    private int awaited;
+    private boolean acknowledged;
+    private FtInputCondition condition;
+    private boolean matched;
+
+
+    /**
+     * Constructor.
+     *
+     * @param ftSenderReceiver An object to access of the serial interface.
+     * @param mccExecutor The executor to hold the outputs.
+     * @param program The program to run.
+     * @param listener The callback object to notify on progress or NULL.
+     */
+    public ProgramRunner(final FtSerialPortSenderReceiver ftSenderReceiver, final MccExecutorThread mccExecutor,
+            final FtProgram program, final IFtProgramListener listener)
+    {
+        if (program == null)
+        {
+            throw new IllegalArgumentException("No program to run.");
+        }
+        this.ftSenderReceiver = ftSenderReceiver;
+        this.allocator = ftSenderReceiver.getSequenceNumberAllocator();
+        this.ackTimeout = ftSenderReceiver.getConfig().getSteppingTimeout()
+                + (ftSenderReceiver.getConfig().getMaxRetries() + 1) * RETRY_MARGIN;
+        this.mccExecutor = mccExecutor;
+        this.program = program;
+        this.listener = listener;
+        this.result = new CompletableFuture<>();
+        this.progress = new FtProgramProgress(FtProgramProgress.State.RUNNING, 0, 1);
+        this.paused = false;
+        this.aborted = false;
+        this.failure = null;
+        this.awaited = -1;
+        this.acknowledged = false;
+        this.condition = null;
+        this.matched = false;
+    }
+
+    /**
+     * Pauses the program.
+     */
+    public synchronized void pause()
+    {
+        this.paused = true;
+        this.notifyAll();
+    }
+
+    /**
+     * Resumes a paused program.
+     */
+    public synchronized void resume()
+    {
+        this.paused = false;
+        this.notifyAll();
+    }
+
+    /**
+     * Aborts the program and returns immediately. A running stepping command is not interrupted.
+     */
+    public synchronized void abort()
+    {
+        this.aborted = true;
+        this.notifyAll();
+    }
+
+    /**
+     * Returns the current progress of the program.
+     *
+     * @return The progress.
+     */
+    public FtProgramProgress getProgress()
+    {
+        return progress;
+    }
+
+    /**
+     * Returns a future that is completed when the program has ended.
+     *
+     * @return The future of the final progress, i.e. FINISHED, ABORTED or FAILED.
+     */
+    public CompletableFuture<FtProgramProgress> getResult()
+    {
+        return result;
+    }
+
+    /**
+     * Advances the program. Must be called with each received ISB.
+     *
+     * @param inputs The received ISB.
+     */
+    public synchronized void onDataReceived(final FtInputs inputs)
+    {
+        if (inputs.getSeqNr() != awaited)
+        {
+            return;
+        }
+        this.acknowledged = true;
+        if (condition != null && condition.matches(inputs))
+        {
+            this.matched = true;
+        }
+        this.notifyAll();
+    }
+
+    /**
+     * Fails the program if the given-up MCC is the one of the current step. Must be called with each given-up MCC.
+     *
+     * @param seqNr The sequence number of the given-up MCC.
+     */
+    public synchronized void onGiveUp(final int seqNr)
+    {
+        if (seqNr != awaited || acknowledged)
+        {
+            return;
+        }
+        this.failure = new ComException("The ISB of step MCC " + seqNr + " did not arrive.");
+        this.notifyAll();
+    }
+
+    @Override
+    public void run()
+    {
+        List<FtProgramStep> steps = program.getSteps();
+        int index = 0;
+        int repetition = 1;
+        FtProgramProgress.State end = FtProgramProgress.State.FINISHED;
+        try
+        {
+            steps:
+            for (index=0; index<steps.size(); index++)
+            {
+                FtProgramStep step = steps.get(index);
+                for (repetition=1; repetition<=step.getRepeat(); repetition++)
+                {
+                    if (!this.awaitResumed(index, repetition))
+                    {
+                        break steps;
+                    }
+                    this.report(FtProgramProgress.State.RUNNING, index, repetition);
+                    if (!this.execute(step, index, repetition))
+                    {
+                        break steps;
+                    }
+                }
+            }
+            if (this.isAborted())
+            {
+                end = FtProgramProgress.State.ABORTED;
+            }
+            else
+            {
+                index = steps.size();
+                repetition = 0;
+            }
+        }
+        catch(InterruptedException e)
+        {
+            end = FtProgramProgress.State.ABORTED;
+        }
+        catch(ComException e)
+        {
+            LOGGER.log(Level.WARNING, "The motion program failed.", e);
+            end = FtProgramProgress.State.FAILED;
+        }
+        finally
+        {
+            mccExecutor.pause();
+            synchronized(this)
+            {
+                this.awaited = -1;
+            }
+        }
+        this.report(end, index, repetition);
+        result.complete(progress);
+    }
+
+    /**
+     * Executes a step once.
+     *
+     * @return FALSE if the program has been aborted.
+     */
+    private boolean execute(final FtProgramStep step, final int index, final int repetition)
+            throws ComException, InterruptedException
+    {
+        FtOutput mcc = new FtOutput(step.getMcc()).seqNr(allocator.allocate(this));
+        try
+        {
+            return this.execute(step, mcc, index, repetition);
+        }
+        finally
+        {
+            allocator.release(mcc.getSeqNr(), this);
+        }
+    }
+
+    /**
+     * Executes a step once with the given MCC.
+     *
+     * @return FALSE if the program has been aborted.
+     */
+    private boolean execute(final FtProgramStep step, final FtOutput mcc, final int index, final int repetition)
+            throws ComException, InterruptedException
+    {
+        synchronized(this)
+        {
+            this.awaited = mcc.getSeqNr();
+            this.acknowledged = false;
+            this.condition = step.getUntil();
+            this.matched = false;
+        }
+        mccExecutor.pause();
+        ftSenderReceiver.send(mcc, null);
+
+        // the MCC is executed even if paused.
+        synchronized(this)
+        {
+            long deadline = System.currentTimeMillis() + ackTimeout;
+            long remaining = ackTimeout;
+            while (!acknowledged && !aborted && failure == null && remaining > 0L)
+            {
+                this.wait(remaining);
+                remaining = deadline - System.currentTimeMillis();
+            }
+            if (failure != null)
+            {
+                throw failure;
+            }
+            if (!acknowledged && !aborted)
+            {
+                throw new ComException("The ISB of step MCC " + mcc.getSeqNr() + " is overdue.");
+            }
+        }
+        if (step.getDuration() == 0L && step.getUntil() == null)
+        {
+            return !this.isAborted();
+        }
+
+        FtOutput hold = mcc.settle();
+        long remaining = step.getDuration() > 0L ? step.getDuration() : Long.MAX_VALUE;
+        mccExecutor.activate(hold);
+        while (true)
+        {
+            synchronized(this)
+            {
+                long last = System.currentTimeMillis();
+                while (!aborted && !matched && !paused && remaining > 0L)
+                {
+                    this.wait(remaining);
+                    long now = System.currentTimeMillis();
+                    remaining -= now - last;
+                    last = now;
+                }
+                if (aborted || matched || remaining <= 0L)
+                {
+                    break;
+                }
+            }
+            mccExecutor.pause();
+            if (!this.awaitResumed(index, repetition))
+            {
+                break;
+            }
+            this.report(FtProgramProgress.State.RUNNING, index, repetition);
+            mccExecutor.activate(hold);
+        }
+        mccExecutor.pause();
+        return !this.isAborted();
+    }
+
+    /**
+     * Blocks as long as the program is paused.
+     *
+     * @return FALSE if the program has been aborted.
+     * @throws ComException if the program has failed in the meantime.
+     */
+    private boolean awaitResumed(final int index, final int repetition) throws ComException, InterruptedException
+    {
+        synchronized(this)
+        {
+            if (!paused || aborted)
+            {
+                return !aborted;
+            }
+        }
+        this.report(FtProgramProgress.State.PAUSED, index, repetition);
+        synchronized(this)
+        {
+            while (paused && !aborted && failure == null)
+            {
+                this.wait();
+            }
+            if (failure != null)
+            {
+                throw failure;
+            }
+            return !aborted;
+        }
+    }
+
+    private synchronized boolean isAborted()
+    {
+        return aborted;
+    }
+
+    /**
+     * Updates the progress and notifies the listener.
+     */
+    private void report(final FtProgramProgress.State state, final int index, final int repetition)
+    {
+        this.progress = new FtProgramProgress(state, index, repetition);
+        if (listener != null)
+        {
+            try
+            {
+                listener.onProgress(progress);
+            }
+            catch(RuntimeException e)
+            {
+                LOGGER.log(Level.WARNING, "Program listener failed.", e);
+            }
+        }
+    }
+
+}
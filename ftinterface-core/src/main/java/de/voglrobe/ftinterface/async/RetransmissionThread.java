@@ -0,0 +1,541 @@
+package de.voglrobe.ftinterface.async;
+
+import de.voglrobe.ftinterface.exceptions.ComException;
+import de.voglrobe.ftinterface.io.FtIoEngine;
+import de.voglrobe.ftinterface.io.FtSerialPortConfig;
+import de.voglrobe.ftinterface.io.FtSerialPortSenderReceiver;
+import de.voglrobe.ftinterface.io.IFtGiveUpListener;
+import de.voglrobe.ftinterface.io.IFtIoTask;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * This class implements a Thread that retransmits MCCs whose ISBs are missing.
+ * <p>
+ * The retransmission timeout (RTO) is derived from the smoothed round-trip time (SRTT) and it's variation
+ * (RTTVAR) as TCP does (RFC 6298): RTO = SRTT + 4 * RTTVAR. Each retransmission of the same MCC doubles it's
+ * timeout. Round-trip times of retransmitted MCCs are not sampled because the answer is ambiguous (Karn).
+ * <p>
+ * Stepping commands are answered not before all steps have been performed. They are retransmitted if the ISB of a
+ * later MCC arrives first or if they execute longer than the stepping timeout plus RTO, see
+ * {@link FtSerialPortConfig#steppingTimeout(long)}. As long as a stepping command is executing, the timers of all
+ * other MCCs are held because the interface adapter executes the MCCs in order. Join commands ('&') run
+ * concurrently with the stepping command they join, thus their ISBs do not overtake other stepping commands.
+ * <p>
+ * A MCC that is still not answered after the last retransmission is given up: it's Sync-Lock is released and the
+ * {@link IFtGiveUpListener} is notified.
+ * <p>
+ * As a task of a {@link FtIoEngine} the timeouts are checked when the next one is due instead of periodically.
+ * <p>
+ * This Thread is not reusable. Once terminated it cannot be restarted.
+ *
+ * @author robert
+ */
+public class RetransmissionThread extends Thread implements IFtIoTask
+{
+    private static final Logger LOGGER = Logger.getLogger(RetransmissionThread.class.getName());
+
+    private static final long POLL_INTERVAL = 5L; // ms
+    private static final long INITIAL_RTO = 500L; // ms
+    private static final long MIN_RTO = 30L; // ms
+    private static final int MAX_BACKOFF = 16; // doublings of the RTO
+
+    /**
+     * The upper limit of the retransmission timeout in ms.
+     */
+    public static final long MAX_RTO = 5000L;
+
+    /**
+     * A MCC waiting for it's ISB.
+     */
+    private static class Pending
+    {
+        private final byte[] mcc;
+        private final boolean stepping;
+        private final boolean joined;
+        private final long order;
+        private final long trackedAt;
+        private long sentAt;
+        private int retries;
+        private boolean held;
+
+        private Pending(final byte[] mcc, final boolean stepping, final long order)
+        {
+            this.mcc = mcc;
+            this.stepping = stepping;
+            this.joined = mcc.length > 0 && mcc[0] == '&';
+            this.order = order;
+            this.trackedAt = System.currentTimeMillis();
+            this.sentAt = trackedAt;
+            this.retries = 0;
+            this.held = false;
+        }
+
+        /**
+         * A stepping command is executing as long as it has been neither answered nor overtaken, but not longer than
+         * the given limit.
+         *
+         * @param now The current time in ms.
+         * @param limit The max. execution time in ms.
+         */
+        private boolean isExecuting(final long now, final long limit)
+        {
+            return stepping && retries == 0 && sentAt > 0 && now - trackedAt <= limit;
+        }
+    }
+
+    private final FtSerialPortSenderReceiver ftSenderReceiver;
+    private final int maxRetries;
+    private final long steppingTimeout;
+
+    // outstanding MCCs by sequence number
+    private final Map<Integer, Pending> pendings = new HashMap<>();
+
+    // sequence numbers answered after retransmission, i.e. a second ISB may follow
+    private final Set<Integer> retransmitted = new HashSet<>();
+
+    private volatile boolean stopped;
+    private volatile FtIoEngine.Registration registration;
+    private volatile IFtGiveUpListener giveUpListener;
+    private long order;
+    private double srtt;
+    private double rttvar;
+    private long rto;
+
+    private volatile long samples;
+    private volatile long retransmissions;
+    private volatile long lost;
+    private volatile long duplicates;
+
+
+    /**
+     * Constructor.
+     *
+     * @param ftSenderReceiver An object to access of the serial interface.
+     * @param maxRetries The maximum number of retransmissions of a MCC. Must be &gt; 0.
+     */
+    public RetransmissionThread(final FtSerialPortSenderReceiver ftSenderReceiver, final int maxRetries)
+    {
+        this(ftSenderReceiver, maxRetries, FtSerialPortConfig.DEFAULT_STEPPING_TIMEOUT);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param ftSenderReceiver An object to access of the serial interface.
+     * @param maxRetries The maximum number of retransmissions of a MCC. Must be &gt; 0.
+     * @param steppingTimeout The maximum time a stepping command is expected to execute in ms.
+     */
+    public RetransmissionThread(final FtSerialPortSenderReceiver ftSenderReceiver, final int maxRetries,
+            final long steppingTimeout)
+    {
+        this.ftSenderReceiver = ftSenderReceiver;
+        this.maxRetries = maxRetries;
+        this.steppingTimeout = steppingTimeout;
+        this.stopped = false;
+        this.registration = null;
+        this.giveUpListener = null;
+        this.order = 0L;
+        this.srtt = 0.0;
+        this.rttvar = 0.0;
+        this.rto = INITIAL_RTO;
+        this.samples = 0L;
+        this.retransmissions = 0L;
+        this.lost = 0L;
+        this.duplicates = 0L;
+        this.setDaemon(true);
+    }
+
+    /**
+     * Sets the callback object to get notified when a MCC has been given up.
+     *
+     * @param giveUpListener The callback object to set or NULL.
+     */
+    public void setGiveUpListener(final IFtGiveUpListener giveUpListener)
+    {
+        this.giveUpListener = giveUpListener;
+    }
+
+    /**
+     * Registers a MCC that has been sent and waits for it's ISB. A pending MCC with the same sequence number is
+     * replaced.
+     *
+     * @param seqNr The sequence number of the MCC. Must be &gt; 0.
+     * @param mcc The MCC as sent.
+     * @param stepping TRUE if the MCC is a stepping command.
+     */
+    public synchronized void track(final int seqNr, final byte[] mcc, final boolean stepping)
+    {
+        retransmitted.remove(seqNr);
+        pendings.put(seqNr, new Pending(mcc, stepping, order++));
+        this.wakeup();
+    }
+
+    /**
+     * Checks whether the ISB with the given sequence number is the second answer to a retransmitted MCC.
+     * Must be called before {@link #acknowledge(int)}.
+     *
+     * @param seqNr The sequence number of the received ISB.
+     * @return TRUE if the ISB is a duplicate and should be dropped.
+     */
+    public synchronized boolean isDuplicate(final int seqNr)
+    {
+        if (!pendings.containsKey(seqNr) && retransmitted.remove(seqNr))
+        {
+            this.duplicates++;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Completes the MCC with the given sequence number and samples it's round-trip time.
+     *
+     * @param seqNr The sequence number of the received ISB.
+     */
+    public synchronized void acknowledge(final int seqNr)
+    {
+        Pending pending = pendings.remove(seqNr);
+        if (pending == null)
+        {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        if (pending.retries == 0 && !pending.held && !pending.stepping)
+        {
+            this.sample(now - pending.sentAt);
+        }
+        if (pending.retries > 0)
+        {
+            retransmitted.add(seqNr);
+        }
+
+        // MCCs are executed in order: the ISBs of earlier stepping commands got lost.
+        if (pending.joined)
+        {
+            return;
+        }
+        pendings.values().stream()
+                .filter((Pending p) -> p.order < pending.order && p.stepping)
+                .forEach((Pending p) -> p.sentAt = 0L);
+        this.wakeup();
+    }
+
+    /**
+     * Checks whether the MCC with the given sequence number is still waiting for it's ISB.
+     *
+     * @param seqNr The sequence number.
+     * @return TRUE if the ISB is outstanding, FALSE if it has been received or the MCC has been given up.
+     */
+    public synchronized boolean isPending(final int seqNr)
+    {
+        return pendings.containsKey(seqNr);
+    }
+
+    /**
+     * Forgets all outstanding MCCs, e.g. after the interface adapter has been reset.
+     */
+    public synchronized void flush()
+    {
+        pendings.clear();
+        retransmitted.clear();
+        this.notifyAll();
+        this.wakeup();
+    }
+
+    /**
+     * Updates SRTT, RTTVAR and RTO with a new round-trip time measurement.
+     *
+     * @param rtt The measured round-trip time in ms.
+     */
+    private void sample(final long rtt)
+    {
+        if (samples == 0)
+        {
+            this.srtt = rtt;
+            this.rttvar = rtt / 2.0;
+        }
+        else
+        {
+            this.rttvar = 0.75 * rttvar + 0.25 * Math.abs(srtt - rtt);
+            this.srtt = 0.875 * srtt + 0.125 * rtt;
+        }
+        this.samples++;
+        this.rto = Math.min(MAX_RTO, Math.max(MIN_RTO, Math.round(srtt + 4.0 * rttvar)));
+    }
+
+    /**
+     * Returns the smoothed round-trip time.
+     *
+     * @return SRTT in ms. 0 if not yet measured.
+     */
+    public synchronized double getSmoothedRtt()
+    {
+        return srtt;
+    }
+
+    /**
+     * Returns the variation of the round-trip time.
+     *
+     * @return RTTVAR in ms.
+     */
+    public synchronized double getRttVariation()
+    {
+        return rttvar;
+    }
+
+    /**
+     * Returns the current retransmission timeout.
+     *
+     * @return RTO in ms.
+     */
+    public synchronized long getRto()
+    {
+        return rto;
+    }
+
+    /**
+     * Returns the number of round-trip time measurements.
+     *
+     * @return The number of samples.
+     */
+    public long getSamples()
+    {
+        return samples;
+    }
+
+    /**
+     * Returns the number of retransmitted MCCs.
+     *
+     * @return The number of retransmissions.
+     */
+    public long getRetransmissions()
+    {
+        return retransmissions;
+    }
+
+    /**
+     * Returns the number of MCCs given up after the last retransmission.
+     *
+     * @return The number of lost MCCs.
+     */
+    public long getLost()
+    {
+        return lost;
+    }
+
+    /**
+     * Returns the number of dropped duplicate ISBs.
+     *
+     * @return The number of duplicates.
+     */
+    public long getDuplicates()
+    {
+        return duplicates;
+    }
+
+    /**
+     * Asks the Thread to terminate and returns immediately.
+     * The caller should sync with the Thread and await it's termination.
+     */
+    public void terminate()
+    {
+        LOGGER.log(Level.INFO, "Stopping RetransmissionThread...");
+        synchronized(this)
+        {
+            this.stopped = true;
+            this.notifyAll();
+        }
+        if (registration != null)
+        {
+            registration.cancel();
+        }
+    }
+
+    /**
+     * Starts the retransmission as a task of the given engine or as a Thread of it's own.
+     *
+     * @param engine The engine or NULL.
+     */
+    public void start(final FtIoEngine engine)
+    {
+        if (engine == null)
+        {
+            this.start();
+            return;
+        }
+        this.registration = engine.register(ftSenderReceiver, this);
+    }
+
+    /**
+     * Asks the engine to check the timeouts, e.g. because a MCC has been registered.
+     */
+    private void wakeup()
+    {
+        FtIoEngine.Registration task = this.registration;
+        if (task != null)
+        {
+            task.wakeup();
+        }
+    }
+
+    /**
+     * Returns the retransmission timeout after the given number of retries, doubled with each retry. The shift is
+     * limited, thus it cannot overflow for any maxRetries. Must be called while holding the lock.
+     */
+    private long backoff(final int retries)
+    {
+        return Math.min(MAX_RTO, rto << Math.min(retries, MAX_BACKOFF));
+    }
+
+    /**
+     * Retransmits or gives up the MCCs whose timeout has elapsed.
+     *
+     * @return The time in ms until the next timeout or {@link Long#MAX_VALUE} if no MCC is outstanding.
+     */
+    private long checkTimeouts()
+    {
+        long now = System.currentTimeMillis();
+        long next = Long.MAX_VALUE;
+        Map<Integer, byte[]> resend = new HashMap<>();
+        synchronized(this)
+        {
+            // a stepping command beyond the timeout is retransmitted after RTO
+            boolean stepping = pendings.values().stream()
+                    .anyMatch((Pending p) -> p.isExecuting(now, steppingTimeout));
+            for (Map.Entry<Integer, Pending> entry : pendings.entrySet())
+            {
+                Pending pending = entry.getValue();
+                if (pending.isExecuting(now, steppingTimeout) || (stepping && !pending.stepping))
+                {
+                    // wait for the end of the stepping command.
+                    pending.sentAt = now;
+                    pending.held = pending.held || !pending.stepping;
+                    next = Math.min(next, POLL_INTERVAL);
+                    continue;
+                }
+                long timeout = this.backoff(pending.retries);
+                if (now - pending.sentAt <= timeout)
+                {
+                    next = Math.min(next, timeout - (now - pending.sentAt));
+                    continue;
+                }
+                if (pending.retries < maxRetries)
+                {
+                    pending.retries++;
+                    pending.sentAt = now;
+                    resend.put(entry.getKey(), pending.mcc);
+                    next = Math.min(next, this.backoff(pending.retries));
+                }
+                else
+                {
+                    resend.put(entry.getKey(), null);
+                }
+            }
+            resend.forEach((Integer seqNr, byte[] mcc) ->
+            {
+                if (mcc == null)
+                {
+                    pendings.remove(seqNr);
+                    this.lost++;
+                }
+                else
+                {
+                    this.retransmissions++;
+                }
+            });
+        }
+
+        for (Map.Entry<Integer, byte[]> entry : resend.entrySet())
+        {
+            if (entry.getValue() == null)
+            {
+                LOGGER.log(Level.WARNING, "No ISB for sequence number {0}. MCC given up.", entry.getKey());
+                ftSenderReceiver.getSequenceLockHelper().removeSeqNr(entry.getKey());
+                this.notifyGiveUp(entry.getKey());
+                continue;
+            }
+            try
+            {
+                LOGGER.log(Level.FINE, "Retransmitting MCC with sequence number {0}.", entry.getKey());
+                ftSenderReceiver.retransmit(entry.getValue());
+            }
+            catch(ComException e)
+            {
+                LOGGER.log(Level.FINE, "Retransmission failed.", e);
+            }
+        }
+        return next;
+    }
+
+    /**
+     * Notifies the listener that a MCC has been given up.
+     *
+     * @param seqNr The sequence number of the MCC.
+     */
+    private void notifyGiveUp(final int seqNr)
+    {
+        IFtGiveUpListener listener = this.giveUpListener;
+        if (listener != null)
+        {
+            try
+            {
+                listener.onGiveUp(seqNr);
+            }
+            catch(RuntimeException e)
+            {
+                LOGGER.log(Level.WARNING, "Give-up listener failed.", e);
+            }
+        }
+    }
+
+    /**
+     * Checks the timeouts.
+     *
+     * @return The time in ns until the next timeout or {@link Long#MAX_VALUE} if no MCC is outstanding.
+     */
+    @Override
+    public long poll()
+    {
+        if (stopped)
+        {
+            return Long.MAX_VALUE;
+        }
+        long next = this.checkTimeouts();
+        return next != Long.MAX_VALUE ? TimeUnit.MILLISECONDS.toNanos(Math.max(1L, next)) : Long.MAX_VALUE;
+    }
+
+    @Override
+    public void run()
+    {
+        if (ftSenderReceiver == null)
+        {
+            return;
+        }
+
+        while(!stopped)
+        {
+            this.checkTimeouts();
+            synchronized(this)
+            {
+                try
+                {
+                    if (!stopped)
+                    {
+                        this.wait(POLL_INTERVAL);
+                    }
+                }
+                catch(InterruptedException dontcare)
+                {
+                }
+            }
+        }
+        LOGGER.log(Level.INFO, "RetransmissionThread stopped.");
+    }
+
+}
@@ -1,97 +1,119 @@
 package de.voglrobe.ftinterface.async;
 
+import de.voglrobe.ftinterface.io.FtSerialPortConfig;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
- * This class is a Singleton, that helps to synchronize the execution of blocking and non-blocking send()-Methods.
- * 
+ * This class helps to synchronize the execution of blocking and non-blocking send()-Methods.
+ * There is one instance per connection to an interface adapter.
+ *
  * @author robert
  */
-public enum SequenceLockHelper
+public class SequenceLockHelper
 {
-    INSTANCE;
-    
     private static final Logger LOGGER = Logger.getLogger(SequenceLockHelper.class.getName());
-    
+
     // list of Sequence Numbers of uncompleted MCCs (waiting for ISB).
     private final List<Integer> processingSeqNrs = new ArrayList<>();
-    
+
     /**
      * Constructor.
      */
-    private SequenceLockHelper()
+    public SequenceLockHelper()
     {
     }
-    
+
     /**
      * Adds a Sequence Number to the list of unconpleted MCCs.
-     * 
+     *
      * @param seqNr The Sequence Number to add.
      */
     public void addSeqNr(final int seqNr)
     {
-        if (!processingSeqNrs.contains(seqNr))
+        synchronized(processingSeqNrs)
         {
-            synchronized(processingSeqNrs)
+            if (!processingSeqNrs.contains(seqNr))
             {
                 processingSeqNrs.add(seqNr);
             }
-        }        
+        }
     }
-    
+
     /**
      * Removes a Sequence Number because the MCC has been finished (by incoming ISB).
-     * 
+     *
      * @param seqNr The Sequence Number to remove.
      */
     public void removeSeqNr(final int seqNr)
     {
-        if (processingSeqNrs.contains(seqNr))
+        synchronized(processingSeqNrs)
         {
-            this.processingSeqNrs.remove(Integer.valueOf(seqNr));
-            synchronized(processingSeqNrs)
+            if (processingSeqNrs.remove(Integer.valueOf(seqNr)))
             {
-                processingSeqNrs.notify();                    
+                processingSeqNrs.notifyAll();
             }
-        }        
+        }
+    }
+
+    /**
+     * Returns the Sequence Numbers of all uncompleted MCCs.
+     *
+     * @return A snapshot of the Sequence Numbers waiting for their ISB.
+     */
+    public List<Integer> getSeqNrs()
+    {
+        synchronized(processingSeqNrs)
+        {
+            return new ArrayList<>(processingSeqNrs);
+        }
     }
-    
+
     /**
-     * Blocks until all MCCs are completed, i.e. confirmed by received ISB.
+     * Blocks until all MCCs are completed, i.e. confirmed by received ISB, but not longer than the given timeout.
+     * The MCCs still uncompleted then are regarded as lost and removed, e.g. if retransmission is off and an ISB
+     * did not arrive.
+     *
+     * @param timeout The maximum time to wait in ms, see {@link FtSerialPortConfig#getGiveUpTimeout()}.
      */
-    public void check()
+    public void check(final long timeout)
     {
-        while(!processingSeqNrs.isEmpty())
+        synchronized(processingSeqNrs)
         {
-            try
+            long deadline = System.currentTimeMillis() + timeout;
+            long remaining;
+            while(!processingSeqNrs.isEmpty() && (remaining = deadline - System.currentTimeMillis()) > 0)
             {
-                synchronized(processingSeqNrs)
+                try
+                {
+                    processingSeqNrs.wait(remaining);
+                }
+                catch (InterruptedException e)
                 {
-                    processingSeqNrs.wait();
                 }
             }
-            catch (InterruptedException e)
+            if (!processingSeqNrs.isEmpty())
             {
+                LOGGER.log(Level.WARNING, "No ISB of the MCCs with sequence numbers {0} within {1} ms.",
+                        new Object[]{processingSeqNrs, String.valueOf(timeout)});
+                processingSeqNrs.clear();
             }
         }
         LOGGER.log(Level.INFO, "SequenceLockHelper.removeSeqNr(): Sync-Lock is FREE.");
     }
-    
+
     /**
      * Removes all registered Sequence Numbers and frees the Sync-Lock.
      */
     public void flush()
     {
-        this.processingSeqNrs.clear();
         synchronized(processingSeqNrs)
         {
-            processingSeqNrs.notify();            
+            this.processingSeqNrs.clear();
+            processingSeqNrs.notifyAll();
         }
     }
-    
-    
-    
+
 }
@@ -0,0 +1,111 @@
+package de.voglrobe.ftinterface.async;
+
+import de.voglrobe.ftinterface.exceptions.ComException;
+
+/**
+ * This class allocates the sequence numbers of the MCCs whose ISBs are tracked, e.g. by the {@link MotorScheduler},
+ * the {@link ProgramRunner} or the sessions of a server. There is one instance per connection to an interface
+ * adapter, thus no two owners wait for the ISB of the same sequence number.
+ * <p>
+ * Only the sequence numbers [1, 63] are allocated. MCCs with sequence number 0 are not tracked, their ISBs concern
+ * everyone. The numbers are allocated round-robin, i.e. a released number is reused as late as possible. The last
+ * owner of a number is kept after the release until the number is allocated again, so a late ISB can still be
+ * related to it's MCC.
+ *
+ * @author robert
+ */
+public class SequenceNumberAllocator
+{
+    public static final int MAX_SEQNR = 63;
+
+    private final Object[] owners = new Object[MAX_SEQNR + 1];
+    private final boolean[] allocated = new boolean[MAX_SEQNR + 1];
+    private int seqNr;
+    private int count;
+
+    /**
+     * Constructor.
+     */
+    public SequenceNumberAllocator()
+    {
+        this.seqNr = 0;
+        this.count = 0;
+    }
+
+    /**
+     * Allocates the next free sequence number.
+     *
+     * @param owner The owner of the sequence number, e.g. the object that waits for the ISB.
+     * @return The sequence number [1, 63].
+     * @throws ComException if all sequence numbers are allocated.
+     */
+    public synchronized int allocate(final Object owner) throws ComException
+    {
+        if (owner == null)
+        {
+            throw new IllegalArgumentException("Missing owner.");
+        }
+        if (count == MAX_SEQNR)
+        {
+            throw new ComException("All sequence numbers are in use.");
+        }
+        do
+        {
+            this.seqNr = seqNr % MAX_SEQNR + 1;
+        }
+        while (allocated[seqNr]);
+        allocated[seqNr] = true;
+        owners[seqNr] = owner;
+        count++;
+        return seqNr;
+    }
+
+    /**
+     * Releases a sequence number, e.g. because it's ISB has arrived. Does nothing if the sequence number is not
+     * allocated by the given owner.
+     *
+     * @param seqNr The sequence number.
+     * @param owner The owner of the sequence number.
+     */
+    public synchronized void release(final int seqNr, final Object owner)
+    {
+        if (this.isAllocated(seqNr) && owners[seqNr] == owner)
+        {
+            allocated[seqNr] = false;
+            count--;
+        }
+    }
+
+    /**
+     * Returns whether the given sequence number is allocated.
+     *
+     * @param seqNr The sequence number.
+     * @return TRUE if allocated, FALSE if free or out of range.
+     */
+    public synchronized boolean isAllocated(final int seqNr)
+    {
+        return seqNr > 0 && seqNr <= MAX_SEQNR && allocated[seqNr];
+    }
+
+    /**
+     * Returns the current or last owner of the given sequence number.
+     *
+     * @param seqNr The sequence number.
+     * @return The owner or NULL if the sequence number has never been allocated.
+     */
+    public synchronized Object getOwner(final int seqNr)
+    {
+        return seqNr > 0 && seqNr <= MAX_SEQNR ? owners[seqNr] : null;
+    }
+
+    /**
+     * Returns the number of allocated sequence numbers.
+     *
+     * @return The number of sequence numbers [0, 63].
+     */
+    public synchronized int getAllocated()
+    {
+        return count;
+    }
+
+}
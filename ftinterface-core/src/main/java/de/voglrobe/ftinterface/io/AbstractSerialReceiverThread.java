@@ -5,12 +5,16 @@ import gnu.io.SerialPort;
 /**
  * The abstract base class for a thread to receive incoming data from the serial port.
  * The thread must be implemented in such a way that it can be terminted by calling {@link #terminate()}.
+ * An implementation that supports a {@link FtIoEngine} overrides {@link #start(FtIoEngine, Object)} and
+ * {@link #isRunning()}.
  * 
  * @author robert
  */
 public abstract class AbstractSerialReceiverThread extends Thread
 {
     protected final SerialPort serPort;
+    protected volatile boolean telemetry;
+    protected volatile IFtProgramListener programListener;
     
     /**
      * Constructor.
@@ -20,11 +24,34 @@ public abstract class AbstractSerialReceiverThread extends Thread
     public AbstractSerialReceiverThread(final SerialPort serPort)
     {
         this.serPort = serPort;
+        this.telemetry = false;
+        this.programListener = null;
     }
     
     @Override
     abstract public void run();
     
+    /**
+     * Starts the receiver. The default implementation ignores the engine and starts this thread.
+     *
+     * @param engine The I/O engine of the connection or NULL.
+     * @param device The interface adapter to register the receiver for with the engine.
+     */
+    public void start(final FtIoEngine engine, final Object device)
+    {
+        this.start();
+    }
+
+    /**
+     * Returns whether the receiver is running, i.e. it has been started and has not terminated.
+     *
+     * @return TRUE if running.
+     */
+    public boolean isRunning()
+    {
+        return this.isAlive();
+    }
+
     /**
      * Sets flags for the ISB receiver.
      * 
@@ -32,6 +59,26 @@ public abstract class AbstractSerialReceiverThread extends Thread
      */
     abstract public void setFlags(final FtInputsFlags flags);
 
+    /**
+     * Tells the receiver whether the interface adapter sends extended ISB frames with telemetry data.
+     * 
+     * @param telemetry TRUE if extended ISB frames are expected, FALSE for standard ISB frames.
+     */
+    public void setTelemetry(final boolean telemetry)
+    {
+        this.telemetry = telemetry;
+    }
+
+    /**
+     * Sets the callback object to notify on each progress frame of a program running on the interface adapter.
+     * 
+     * @param programListener The callback object or NULL.
+     */
+    public void setProgramListener(final IFtProgramListener programListener)
+    {
+        this.programListener = programListener;
+    }
+
     /**
      * Must be called at the end of the life-cycle to request this thread to terminate.
      * The caller should join with this thread to await it's termination.
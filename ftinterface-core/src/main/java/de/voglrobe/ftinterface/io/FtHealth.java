@@ -0,0 +1,29 @@
+package de.voglrobe.ftinterface.io;
+
+/**
+ * The health state of the connection to the interface adapter.
+ * 
+ * @author robert
+ */
+public enum FtHealth
+{
+    /**
+     * The connection is up and ISBs are received as expected.
+     */
+    CONNECTED,
+    
+    /**
+     * The interface adapter did not answer within the watchdog timeout. Recovery is about to start.
+     */
+    STALLED,
+    
+    /**
+     * The connection is lost and being re-established.
+     */
+    RECONNECTING,
+    
+    /**
+     * The connection has been closed.
+     */
+    DISCONNECTED
+}
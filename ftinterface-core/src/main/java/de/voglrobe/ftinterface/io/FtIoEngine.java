@@ -0,0 +1,354 @@
+package de.voglrobe.ftinterface.io;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * This class implements an I/O engine that serves many interface adapters with a few event-loop threads.
+ * <p>
+ * Without an engine each connection runs a receiver, a transmitter, a retransmission, a MCC executor and a
+ * supervisor thread, which mostly sleep or poll. With an engine these components are tasks (see
+ * {@link IFtIoTask}) that are run by the event loops: a task is called when it's timer is due or when it's woken
+ * up, e.g. by a data-available event of the serial port or by a queued frame. All tasks of the same interface
+ * adapter are run by the same loop, the interface adapters are distributed round-robin. Blocking work such as
+ * re-establishing a connection is run by a worker pool, see {@link #execute(Runnable)}. Usage:
+ * <pre> FtIoEngine engine = FtIoEngine.newInstance(2);
+ * FtInterfaceAsync robot = FtInterfaceAsync.newInstance("/dev/ttyACM0",
+ *         new FtSerialPortConfig().ioEngine(engine), receiver);
+ * ...
+ * robot.destroy();
+ * engine.destroy();</pre>
+ * The callbacks of the connections (e.g. {@link IFtInputReceiver}) are called on the loop threads and must not
+ * block.
+ *
+ * @author robert
+ */
+public class FtIoEngine
+{
+    private static final Logger LOGGER = Logger.getLogger(FtIoEngine.class.getName());
+
+    private static final long ERROR_DELAY = TimeUnit.MILLISECONDS.toNanos(100L);
+
+    /**
+     * The registration of a task with the engine.
+     */
+    public static class Registration
+    {
+        private final Loop loop;
+        private final IFtIoTask task;
+        private final AtomicBoolean queued = new AtomicBoolean();
+        private volatile boolean cancelled;
+        private volatile Thread running;
+        private long generation; // guarded by the loop
+
+        private Registration(final Loop loop, final IFtIoTask task)
+        {
+            this.loop = loop;
+            this.task = task;
+            this.cancelled = false;
+            this.running = null;
+            this.generation = 0L;
+        }
+
+        /**
+         * Asks the engine to call the task as soon as possible. Wakeups are coalesced, i.e. any number of wakeups
+         * before the call result in a single call. May be called from any thread.
+         */
+        public void wakeup()
+        {
+            if (!cancelled && queued.compareAndSet(false, true))
+            {
+                loop.ready.offer(this);
+                LockSupport.unpark(loop);
+            }
+        }
+
+        /**
+         * Removes the task from the engine. Blocks until a running call of the task has returned unless called by
+         * the task itself.
+         */
+        public void cancel()
+        {
+            this.cancelled = true;
+            Thread current = Thread.currentThread();
+            Thread runner;
+            while ((runner = this.running) != null && runner != current)
+            {
+                LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(50L));
+            }
+        }
+
+        /**
+         * Returns whether the task has been removed from the engine.
+         *
+         * @return TRUE if cancelled.
+         */
+        public boolean isCancelled()
+        {
+            return cancelled;
+        }
+    }
+
+    /**
+     * A due time of a task. A timer is outdated as soon as the task has been called again.
+     */
+    private static class Timer implements Comparable<Timer>
+    {
+        private final Registration registration;
+        private final long due;
+        private final long generation;
+
+        private Timer(final Registration registration, final long due)
+        {
+            this.registration = registration;
+            this.due = due;
+            this.generation = registration.generation;
+        }
+
+        @Override
+        public int compareTo(final Timer other)
+        {
+            return Long.signum(due - other.due);
+        }
+    }
+
+    /**
+     * An event loop.
+     */
+    private class Loop extends Thread
+    {
+        private final Queue<Registration> ready = new ConcurrentLinkedQueue<>();
+        private final PriorityQueue<Timer> timers = new PriorityQueue<>();
+
+        private Loop(final int index)
+        {
+            this.setName("FtIoLoop-" + index);
+            this.setDaemon(true);
+        }
+
+        /**
+         * Calls the task and schedules the next call.
+         */
+        private void call(final Registration registration)
+        {
+            if (registration.cancelled)
+            {
+                return;
+            }
+            registration.running = this;
+            long delay;
+            try
+            {
+                delay = registration.cancelled ? Long.MAX_VALUE : registration.task.poll();
+            }
+            catch(RuntimeException e)
+            {
+                LOGGER.log(Level.SEVERE, "I/O task failed.", e);
+                delay = ERROR_DELAY;
+            }
+            finally
+            {
+                registration.running = null;
+            }
+            polls.incrementAndGet();
+            registration.generation++;
+            if (delay <= 0L)
+            {
+                registration.wakeup();
+            }
+            else if (delay != Long.MAX_VALUE)
+            {
+                timers.add(new Timer(registration, System.nanoTime() + delay));
+            }
+        }
+
+        @Override
+        public void run()
+        {
+            while (!stopped)
+            {
+                Registration registration;
+                while ((registration = ready.poll()) != null)
+                {
+                    registration.queued.set(false);
+                    this.call(registration);
+                }
+
+                long now = System.nanoTime();
+                Timer timer;
+                while ((timer = timers.peek()) != null && timer.due - now <= 0)
+                {
+                    timers.poll();
+                    if (timer.generation == timer.registration.generation)
+                    {
+                        this.call(timer.registration);
+                    }
+                }
+                if (!ready.isEmpty() || stopped)
+                {
+                    continue;
+                }
+
+                timer = timers.peek();
+                if (timer == null)
+                {
+                    LockSupport.park(this);
+                }
+                else
+                {
+                    long wait = timer.due - System.nanoTime();
+                    if (wait <= 0)
+                    {
+                        continue;
+                    }
+                    LockSupport.parkNanos(this, wait);
+                }
+                wakeups.incrementAndGet();
+            }
+        }
+    }
+
+    private final Loop[] loops;
+    private final Map<Object, Loop> devices = Collections.synchronizedMap(new WeakHashMap<>());
+    private final AtomicInteger next = new AtomicInteger();
+    private final AtomicLong wakeups = new AtomicLong();
+    private final AtomicLong polls = new AtomicLong();
+    private final ExecutorService workers;
+    private volatile boolean stopped;
+
+    /**
+     * Factory method to create and start a new engine.
+     *
+     * @param loops The number of event-loop threads. Must be &gt; 0.
+     * @return A new instance of this class.
+     */
+    public static FtIoEngine newInstance(final int loops)
+    {
+        if (loops <= 0)
+        {
+            throw new IllegalArgumentException("Number of loops must be > 0.");
+        }
+        FtIoEngine ret = new FtIoEngine(loops);
+        for (Loop loop : ret.loops)
+        {
+            loop.start();
+        }
+        return ret;
+    }
+
+    /**
+     * Hidden constructor.
+     */
+    private FtIoEngine(final int loops)
+    {
+        this.loops = new Loop[loops];
+        for (int i=0; i<loops; i++)
+        {
+            this.loops[i] = new Loop(i);
+        }
+        this.workers = Executors.newCachedThreadPool((final Runnable runnable) ->
+        {
+            Thread thread = new Thread(runnable, "FtIoWorker");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.stopped = false;
+    }
+
+    /**
+     * Destructor.
+     *
+     * Stops the event loops and the workers. The connections that use this engine must have been destroyed before.
+     */
+    public void destroy()
+    {
+        this.stopped = true;
+        for (Loop loop : loops)
+        {
+            LockSupport.unpark(loop);
+            try
+            {
+                loop.join();
+            }
+            catch(InterruptedException dontcare)
+            {
+            }
+        }
+        workers.shutdownNow();
+    }
+
+    /**
+     * Registers a task. It's called for the first time right away.
+     *
+     * @param device The interface adapter the task belongs to, e.g. it's {@link FtSerialPortSenderReceiver}. All
+     * tasks of the same interface adapter are run by the same event loop.
+     * @param task The task.
+     * @return The registration to wake up and to cancel the task.
+     */
+    public Registration register(final Object device, final IFtIoTask task)
+    {
+        if (stopped)
+        {
+            throw new IllegalStateException("Engine has been destroyed.");
+        }
+        Loop loop = devices.computeIfAbsent(device,
+                (final Object key) -> loops[Math.floorMod(next.getAndIncrement(), loops.length)]);
+        Registration ret = new Registration(loop, task);
+        ret.wakeup();
+        return ret;
+    }
+
+    /**
+     * Runs blocking work, e.g. re-establishing a connection, outside the event loops.
+     *
+     * @param job The work.
+     */
+    public void execute(final Runnable job)
+    {
+        workers.execute(job);
+    }
+
+    /**
+     * Returns the number of event-loop threads.
+     *
+     * @return The number of loops.
+     */
+    public int getLoops()
+    {
+        return loops.length;
+    }
+
+    /**
+     * Returns how often the event loops have been woken up, i.e. the number of context switches they caused.
+     *
+     * @return The number of wakeups since start.
+     */
+    public long getWakeups()
+    {
+        return wakeups.get();
+    }
+
+    /**
+     * Returns how often tasks have been called.
+     *
+     * @return The number of calls since start.
+     */
+    public long getPolls()
+    {
+        return polls.get();
+    }
+
+}
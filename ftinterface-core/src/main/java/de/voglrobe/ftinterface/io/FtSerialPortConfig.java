@@ -0,0 +1,412 @@
+package de.voglrobe.ftinterface.io;
+
+import de.voglrobe.ftinterface.async.RetransmissionThread;
+
+/**
+ * A builder for the configuration options of the serial connection to the interface adapter.
+ * <p>
+ * The default configuration is equivalent to the behaviour of {@link FtSerialPortSenderReceiver#newInstance(String)}.
+ *
+ * @author robert
+ */
+public class FtSerialPortConfig
+{
+    /**
+     * The port speed every interface adapter supports after reset. Bit/s.
+     */
+    public static final int SAFE_SPEED = 19200;
+
+    /**
+     * The port speeds that are negotiable with the interface adapter in ascending order. Bit/s.
+     */
+    public static final int[] SUPPORTED_SPEEDS = {19200, 38400, 57600, 115200};
+
+    /**
+     * The default maximum time to wait for the interface adapter to become ready after open. ms.
+     */
+    public static final long DEFAULT_READY_TIMEOUT = 2000L;
+
+    /**
+     * The default delay before the first reconnect attempt. ms.
+     */
+    public static final long DEFAULT_RECONNECT_DELAY = 500L;
+
+    /**
+     * The default maximum delay between two reconnect attempts. ms.
+     */
+    public static final long DEFAULT_RECONNECT_MAX_DELAY = 30000L;
+
+    /**
+     * The default maximum number of retransmissions of a MCC whose ISB is missing.
+     */
+    public static final int DEFAULT_MAX_RETRIES = 3;
+
+    /**
+     * The default maximum time a stepping command is expected to execute. ms.
+     */
+    public static final long DEFAULT_STEPPING_TIMEOUT = 30000L;
+
+    /**
+     * The maximum hold time the interface adapter accepts. ms.
+     */
+    public static final long MAX_HOLD_TIME = 10000L;
+
+    private int speed;
+    private long readyTimeout;
+    private boolean resetOnOpen;
+    private long watchdogTimeout;
+    private long reconnectDelay;
+    private long reconnectMaxDelay;
+    private int maxRetries;
+    private long steppingTimeout;
+    private long holdTime;
+    private IFtSerialPortProvider portProvider;
+    private FtIoEngine ioEngine;
+
+    /**
+     * Constructor.
+     *
+     * The default configuration uses {@link #SAFE_SPEED}, expects the interface adapter to reset on open and waits
+     * up to {@link #DEFAULT_READY_TIMEOUT} for it to become ready.
+     */
+    public FtSerialPortConfig()
+    {
+        this.speed = SAFE_SPEED;
+        this.readyTimeout = DEFAULT_READY_TIMEOUT;
+        this.resetOnOpen = true;
+        this.watchdogTimeout = 0L;
+        this.reconnectDelay = DEFAULT_RECONNECT_DELAY;
+        this.reconnectMaxDelay = DEFAULT_RECONNECT_MAX_DELAY;
+        this.maxRetries = DEFAULT_MAX_RETRIES;
+        this.steppingTimeout = DEFAULT_STEPPING_TIMEOUT;
+        this.holdTime = 0L;
+        this.portProvider = null;
+        this.ioEngine = null;
+    }
+
+    /**
+     * Copy constructor.
+     *
+     * @param other The configuration to copy.
+     */
+    public FtSerialPortConfig(final FtSerialPortConfig other)
+    {
+        this.speed = other.speed;
+        this.readyTimeout = other.readyTimeout;
+        this.resetOnOpen = other.resetOnOpen;
+        this.watchdogTimeout = other.watchdogTimeout;
+        this.reconnectDelay = other.reconnectDelay;
+        this.reconnectMaxDelay = other.reconnectMaxDelay;
+        this.maxRetries = other.maxRetries;
+        this.steppingTimeout = other.steppingTimeout;
+        this.holdTime = other.holdTime;
+        this.portProvider = other.portProvider;
+        this.ioEngine = other.ioEngine;
+    }
+
+    /**
+     * Sets the maximum port speed.
+     * <p>
+     * The connection is always opened with {@link #SAFE_SPEED}. If a higher speed is set, the sender steps up to
+     * the highest speed of {@link #SUPPORTED_SPEEDS} that is not greater than the given one and that the
+     * interface adapter agrees on. Interface adapters without speed negotiation remain at {@link #SAFE_SPEED}.
+     *
+     * @param speed The maximum port speed in Bit/s. Must be &gt;= {@link #SAFE_SPEED}.
+     * @return THIS.
+     */
+    public FtSerialPortConfig speed(final int speed)
+    {
+        if (speed < SAFE_SPEED)
+        {
+            throw new IllegalArgumentException("Port speed must be >= " + SAFE_SPEED + ".");
+        }
+        this.speed = speed;
+        return this;
+    }
+
+    /**
+     * Returns the maximum port speed.
+     *
+     * @return The maximum port speed in Bit/s.
+     */
+    public int getSpeed()
+    {
+        return speed;
+    }
+
+    /**
+     * Sets the maximum time to wait for the interface adapter to become ready after the port has been opened.
+     * <p>
+     * The interface adapter reports it's readiness with a HELLO frame (or an answered ping if it does not reset on
+     * open). Opening finishes as soon as the readiness is reported. Firmware without readiness messages is assumed
+     * to be ready when the time has elapsed.
+     *
+     * @param readyTimeout The maximum time in ms. Must be &gt;= 0.
+     * @return THIS.
+     */
+    public FtSerialPortConfig readyTimeout(final long readyTimeout)
+    {
+        if (readyTimeout < 0)
+        {
+            throw new IllegalArgumentException("Ready timeout must be >= 0.");
+        }
+        this.readyTimeout = readyTimeout;
+        return this;
+    }
+
+    /**
+     * Returns the maximum time to wait for the interface adapter to become ready.
+     *
+     * @return The maximum time in ms.
+     */
+    public long getReadyTimeout()
+    {
+        return readyTimeout;
+    }
+
+    /**
+     * Sets whether the interface adapter resets when the port is opened (Arduino auto-reset via DTR).
+     * <p>
+     * If FALSE, DTR is dropped right after open and the interface adapter is pinged instead of waiting for it's
+     * HELLO frame. Whether the reset is actually suppressed depends on the OS and the board; if it still resets,
+     * the HELLO frame after the reset is accepted as well.
+     *
+     * @param resetOnOpen TRUE (default) if the interface adapter resets on open.
+     * @return THIS.
+     */
+    public FtSerialPortConfig resetOnOpen(final boolean resetOnOpen)
+    {
+        this.resetOnOpen = resetOnOpen;
+        return this;
+    }
+
+    /**
+     * Returns whether the interface adapter is expected to reset on open.
+     *
+     * @return TRUE if the interface adapter resets on open.
+     */
+    public boolean isResetOnOpen()
+    {
+        return resetOnOpen;
+    }
+
+    /**
+     * Sets the watchdog timeout.
+     * <p>
+     * If a MCC has not been answered by an ISB within this time, the interface adapter is considered stalled and
+     * the connection is reset and re-established. The firmware does not answer while it executes a stepping command,
+     * therefore the timeout must be longer than the longest stepping command.
+     *
+     * @param watchdogTimeout The timeout in ms. 0 (default) switches the watchdog off.
+     * @return THIS.
+     */
+    public FtSerialPortConfig watchdogTimeout(final long watchdogTimeout)
+    {
+        if (watchdogTimeout < 0)
+        {
+            throw new IllegalArgumentException("Watchdog timeout must be >= 0.");
+        }
+        this.watchdogTimeout = watchdogTimeout;
+        return this;
+    }
+
+    /**
+     * Returns the watchdog timeout.
+     *
+     * @return The timeout in ms. 0 = watchdog off.
+     */
+    public long getWatchdogTimeout()
+    {
+        return watchdogTimeout;
+    }
+
+    /**
+     * Sets the exponential backoff of the reconnect attempts.
+     *
+     * @param reconnectDelay The delay before the first attempt in ms. Doubled after each failed attempt.
+     * @param reconnectMaxDelay The maximum delay between two attempts in ms.
+     * @return THIS.
+     */
+    public FtSerialPortConfig reconnectDelay(final long reconnectDelay, final long reconnectMaxDelay)
+    {
+        if (reconnectDelay <= 0 || reconnectMaxDelay < reconnectDelay)
+        {
+            throw new IllegalArgumentException("Invalid reconnect delays.");
+        }
+        this.reconnectDelay = reconnectDelay;
+        this.reconnectMaxDelay = reconnectMaxDelay;
+        return this;
+    }
+
+    /**
+     * Returns the delay before the first reconnect attempt.
+     *
+     * @return The delay in ms.
+     */
+    public long getReconnectDelay()
+    {
+        return reconnectDelay;
+    }
+
+    /**
+     * Returns the maximum delay between two reconnect attempts.
+     *
+     * @return The delay in ms.
+     */
+    public long getReconnectMaxDelay()
+    {
+        return reconnectMaxDelay;
+    }
+
+    /**
+     * Sets the maximum number of retransmissions of a MCC.
+     * <p>
+     * MCCs with a sequence number &gt; 0 are retransmitted if their ISB did not arrive within the retransmission
+     * timeout. The timeout is derived from the measured round-trip time. The interface adapter executes a
+     * retransmitted MCC only once and answers it with a fresh ISB otherwise. After the last retransmission the MCC
+     * is considered lost and it's Sync-Lock is released.
+     *
+     * @param maxRetries The maximum number of retransmissions. 0 switches retransmission off.
+     * @return THIS.
+     */
+    public FtSerialPortConfig maxRetries(final int maxRetries)
+    {
+        if (maxRetries < 0)
+        {
+            throw new IllegalArgumentException("Max. retries must be >= 0.");
+        }
+        this.maxRetries = maxRetries;
+        return this;
+    }
+
+    /**
+     * Returns the maximum number of retransmissions of a MCC.
+     *
+     * @return The maximum number of retransmissions. 0 = retransmission off.
+     */
+    public int getMaxRetries()
+    {
+        return maxRetries;
+    }
+
+    /**
+     * Sets the maximum time a stepping command is expected to execute.
+     * <p>
+     * The interface adapter answers a stepping command not before all steps have been performed, thus it's ISB is not
+     * expected within the retransmission timeout. The timers of the MCCs queued behind it are held meanwhile. If
+     * the ISB is still missing after this time plus the retransmission timeout, the stepping command is
+     * retransmitted and eventually given up like any other MCC.
+     *
+     * @param steppingTimeout The timeout in ms. Must be &gt; 0.
+     * @return THIS.
+     */
+    public FtSerialPortConfig steppingTimeout(final long steppingTimeout)
+    {
+        if (steppingTimeout <= 0)
+        {
+            throw new IllegalArgumentException("Stepping timeout must be > 0.");
+        }
+        this.steppingTimeout = steppingTimeout;
+        return this;
+    }
+
+    /**
+     * Returns the maximum time a stepping command is expected to execute.
+     *
+     * @return The timeout in ms.
+     */
+    public long getSteppingTimeout()
+    {
+        return steppingTimeout;
+    }
+
+    /**
+     * Returns the maximum time until the ISB of a MCC arrives or the MCC is given up: the stepping timeout plus
+     * the maximum retransmission timeout of each transmission.
+     *
+     * @return The timeout in ms.
+     */
+    public long getGiveUpTimeout()
+    {
+        return steppingTimeout + (maxRetries + 1) * RetransmissionThread.MAX_RTO;
+    }
+
+    /**
+     * Sets the hold time of the interface adapter, i.e. the time it keeps the outputs after the last MCC.
+     * <p>
+     * The keep-alive of {@link de.voglrobe.ftinterface.FtInterfaceAsync#sendInfinite(FtOutput)} refreshes the
+     * outputs shortly before the hold time elapses and only if no other MCC has been sent in the meantime. A longer
+     * hold time reduces the keep-alive traffic, but the motors keep running that long if the host fails. The hold
+     * time is applied on each (re-)connect. Interface adapters that do not support it keep their default and the
+     * keep-alive falls back to it's fixed interval.
+     *
+     * @param holdTime The hold time in ms [1, {@link #MAX_HOLD_TIME}]. 0 keeps the default of the interface adapter.
+     * @return THIS.
+     */
+    public FtSerialPortConfig holdTime(final long holdTime)
+    {
+        if (holdTime < 0 || holdTime > MAX_HOLD_TIME)
+        {
+            throw new IllegalArgumentException("Hold time out of range [0, " + MAX_HOLD_TIME + "].");
+        }
+        this.holdTime = holdTime;
+        return this;
+    }
+
+    /**
+     * Returns the hold time of the interface adapter.
+     *
+     * @return The hold time in ms. 0 = default of the interface adapter.
+     */
+    public long getHoldTime()
+    {
+        return holdTime;
+    }
+
+    /**
+     * Sets a custom provider of the serial port, e.g. {@link de.voglrobe.ftinterface.sim.SimulatedInterfaceAdapter}.
+     *
+     * @param portProvider The provider or NULL (default) to open the serial port of the given name via RXTX.
+     * @return THIS.
+     */
+    public FtSerialPortConfig portProvider(final IFtSerialPortProvider portProvider)
+    {
+        this.portProvider = portProvider;
+        return this;
+    }
+
+    /**
+     * Returns the custom provider of the serial port.
+     *
+     * @return The provider or NULL if the serial port is opened via RXTX.
+     */
+    public IFtSerialPortProvider getPortProvider()
+    {
+        return portProvider;
+    }
+
+    /**
+     * Sets the I/O engine that multiplexes the reads, writes and timers of this connection with those of other
+     * connections. Without an engine each connection runs it's own threads, which is fine for a few interface
+     * adapters. The engine must outlive all connections that use it.
+     *
+     * @param ioEngine The engine or NULL (default) for threads per connection.
+     * @return THIS.
+     */
+    public FtSerialPortConfig ioEngine(final FtIoEngine ioEngine)
+    {
+        this.ioEngine = ioEngine;
+        return this;
+    }
+
+    /**
+     * Returns the I/O engine of the connection.
+     *
+     * @return The engine or NULL if the connection runs it's own threads.
+     */
+    public FtIoEngine getIoEngine()
+    {
+        return ioEngine;
+    }
+
+}
@@ -1,5 +1,8 @@
 package de.voglrobe.ftinterface.io;
 
+import de.voglrobe.ftinterface.async.RetransmissionThread;
+import de.voglrobe.ftinterface.async.SequenceLockHelper;
+import de.voglrobe.ftinterface.async.SequenceNumberAllocator;
 import de.voglrobe.ftinterface.exceptions.ComException;
 import gnu.io.CommPort;
 import gnu.io.CommPortIdentifier;
@@ -8,8 +11,14 @@ import gnu.io.PortInUseException;
 import gnu.io.SerialPort;
 import gnu.io.UnsupportedCommOperationException;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 /**
  * A sender and receiver for the communication with the serial port of the interface adapter.
@@ -17,21 +26,69 @@ import java.nio.charset.Charset;
  * A client can either provide it's own Thread implementation to asynchronously handle incoming data or can provide a
  * callback object that is notified with every received set of ISBs. 
  * 
+ * The receiver and the transmitter run as threads of their own unless a {@link FtIoEngine} is configured,
+ * see {@link FtSerialPortConfig#ioEngine(FtIoEngine)}.
+ * 
  * @author robert
  */
 public class FtSerialPortSenderReceiver
 {
+    private static final Logger LOGGER = Logger.getLogger(FtSerialPortSenderReceiver.class.getName());
+
     private static final String NULL_CMD = "$0,0,0,0\n";
-    private static final int PORT_SPEED = 19200; // Bit/s
+    private static final byte MCC_START = '$';
+    private static final byte RETRANSMISSION_START = '%'; // Start char of a retransmitted MCC
+    private static final byte PRIORITY_START = '!'; // Start char of a MCC that flushes the command buffer
+    private static final byte JOIN_START = '&'; // Start char of a stepping MCC that joins a running one
     private static final int PORT_CONNECT_TIMEOUT = 10000; // 10 secs
+    private static final String CONFIG_CMD = "#%d,%d\n"; // '#key,value\n'
+    private static final int CONFIG_KEY_PING = 0;
+    private static final int CONFIG_KEY_TELEMETRY = 1;
+    private static final int CONFIG_KEY_SPEED = 2;
+    private static final int CONFIG_KEY_HOLD = 3;
+    private static final int CONFIG_KEY_PROGRAM = 4;
+    private static final String PROGRAM_STEP_CMD = "*%d,%s,%d,%d,%d\n"; // '*index,mcb,a,b,c,duration,until,repeat\n'
+    private static final int PROGRAM_FIRMWARE_VERSION = 4; // first firmware with a program buffer
+    private static final long CONFIG_ACK_TIMEOUT = 500L; // ms
+    private static final byte CTRL_ACK = (byte) 0xC1; // Control frame: ACK of a configuration command
+    private static final int CTRL_ACK_LENGTH = 11; // Start Byte + key + 4 bytes value, Manchester-encoded
+    private static final byte CTRL_HELLO = (byte) 0xC2; // Control frame: firmware is ready after reset
+    private static final int CTRL_HELLO_LENGTH = 3; // Start Byte + firmware version, Manchester-encoded
+    private static final long READY_PING_INTERVAL = 100L; // ms
+    private static final long SPEED_FALLBACK_TIME = 1000L; // ms until an unconfirmed speed is reverted
+    private static final long DTR_PULSE_TIME = 100L; // ms
     
     public static final byte[] NULL_CMD_BYTES = NULL_CMD.getBytes(Charset.forName("US-ASCII"));
+    public static final int MAX_PROGRAM_STEPS = 32; // size of the program buffer of the interface adapter
+    public static final int MAX_PROGRAM_STEP_DURATION = 65535; // ms
+    public static final int MAX_PROGRAM_STEP_REPEAT = 255;
     
-    private SerialPort serialPort;
-    private AbstractSerialReceiverThread serialReceiverThread;
+    private final SequenceLockHelper sequenceLockHelper;
+    private final SequenceNumberAllocator sequenceNumberAllocator;
+    private String portName;
+    private FtSerialPortConfig config;
+    private volatile SerialPort serialPort;
+    private volatile AbstractSerialReceiverThread serialReceiverThread;
+    private volatile IFtInputReceiver inputReceiver;
+    private volatile IFtProgramListener programListener;
+    private RetransmissionThread retransmissionThread;
+    private TransmitterThread transmitterThread;
+    private final Object writeLock = new Object();
+    private final AtomicLong expiredCount = new AtomicLong();
+    private volatile FtInputs lastInputs;
+    private volatile boolean telemetry;
+    private volatile boolean broken;
+    private volatile boolean closed;
+    private volatile long lastReceived;
+    private volatile long unansweredSince;
+    private volatile long lastSent;
+    private volatile long holdTime;
+    private volatile boolean conflating;
+    private int speed;
+    private int firmwareVersion;
     
     /**
-     * Factory method to create a new instance of this class.
+     * Factory method to create a new instance of this class with the default configuration.
      * 
      * @param port the device name of the COM-Port, e.g. '/dev/ttyACM0'.
      * @return A new ready-to-use instance of this class.
@@ -40,8 +97,26 @@ public class FtSerialPortSenderReceiver
     public static FtSerialPortSenderReceiver newInstance(final String port)
             throws ComException
     {
+        return newInstance(port, new FtSerialPortConfig());
+    }
+
+    /**
+     * Factory method to create a new instance of this class.
+     * 
+     * @param port the device name of the COM-Port, e.g. '/dev/ttyACM0'.
+     * @param config The configuration of the serial connection.
+     * @return A new ready-to-use instance of this class.
+     * @throws ComException in case of errors.
+     */
+    public static FtSerialPortSenderReceiver newInstance(final String port, final FtSerialPortConfig config)
+            throws ComException
+    {
+        if (config == null)
+        {
+            throw new IllegalArgumentException("Missing configuration.");
+        }
         FtSerialPortSenderReceiver ret = new FtSerialPortSenderReceiver();
-        ret.open(port, PORT_SPEED);
+        ret.open(port, config);
         return ret;
     }
 
@@ -50,8 +125,24 @@ public class FtSerialPortSenderReceiver
      */
     private FtSerialPortSenderReceiver()
     {
+        this.sequenceLockHelper = new SequenceLockHelper();
+        this.sequenceNumberAllocator = new SequenceNumberAllocator();
         this.serialPort = null;
         this.serialReceiverThread = null;
+        this.inputReceiver = null;
+        this.programListener = null;
+        this.retransmissionThread = null;
+        this.transmitterThread = null;
+        this.telemetry = false;
+        this.broken = false;
+        this.closed = false;
+        this.lastReceived = 0L;
+        this.unansweredSince = 0L;
+        this.lastSent = 0L;
+        this.holdTime = 0L;
+        this.conflating = false;
+        this.speed = FtSerialPortConfig.SAFE_SPEED;
+        this.firmwareVersion = 0;
     }
     
     /**
@@ -59,14 +150,35 @@ public class FtSerialPortSenderReceiver
      * 
      * Must be called at the end of the life-cycle to release system resources (close serial port, stop threads).
      */
-    public void destroy()
+    public synchronized void destroy()
     {
-        this.stopReceiverThread();
-        if (serialPort != null)
+        this.closed = true;
+        if (transmitterThread != null)
+        {
+            transmitterThread.terminate();
+            try
+            {
+                transmitterThread.join();
+            }
+            catch(InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (retransmissionThread != null)
         {
-            serialPort.close();
-            this.serialPort = null;
+            retransmissionThread.terminate();
+            try
+            {
+                retransmissionThread.join();
+            }
+            catch(InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
         }
+        this.stopReceiverThread();
+        this.closePort();
     }
     
     /**
@@ -74,36 +186,436 @@ public class FtSerialPortSenderReceiver
      * 
      * @throws ComException In case of errors. 
      */
-    private void open(final String port, final int speed) throws ComException
+    private void open(final String port, final FtSerialPortConfig config) throws ComException
     {
         if (port == null || port.isEmpty())
         {
             throw new IllegalArgumentException("Missing port name.");
         }
+        this.portName = port;
+        this.config = config;
+        this.openPort(false);
+        if (config.getMaxRetries() > 0)
+        {
+            this.retransmissionThread = new RetransmissionThread(this, config.getMaxRetries(),
+                    config.getSteppingTimeout());
+            retransmissionThread.start(config.getIoEngine());
+        }
+        this.transmitterThread = new TransmitterThread(this);
+        transmitterThread.start(config.getIoEngine());
+    }
+    
+    /**
+     * Re-establishes a lost or stalled connection.
+     * <p>
+     * The serial port is closed and reopened, the interface adapter is reset and the handshake is repeated.
+     * All uncompleted MCCs are released from the Sync-Lock because the interface adapter lost them with the reset.
+     * The telemetry setting and the input receiver callback object are restored. A custom receiver thread
+     * cannot be restarted and must be set again by the client.
+     * 
+     * @throws ComException if the connection could not be re-established.
+     */
+    public synchronized void reconnect() throws ComException
+    {
+        if (closed)
+        {
+            throw new ComException("Connection has been closed.");
+        }
+        List<Integer> lost = sequenceLockHelper.getSeqNrs();
+        if (!lost.isEmpty())
+        {
+            LOGGER.log(Level.WARNING, "Releasing uncompleted MCCs with sequence numbers {0}.", lost);
+        }
+        this.stopReceiverThread();
+        transmitterThread.cancel();
+        transmitterThread.resetOutputs();
+        sequenceLockHelper.flush();
+        if (retransmissionThread != null)
+        {
+            retransmissionThread.flush();
+        }
+        this.closePort();
+        
+        this.openPort(true);
+        if (telemetry)
+        {
+            this.sendConfig(CONFIG_KEY_TELEMETRY, 1);
+        }
+        this.lastReceived = System.currentTimeMillis();
+        this.unansweredSince = 0L;
+        this.broken = false;
+        if (inputReceiver != null)
+        {
+            this.startReceiverThread(new SerialReceiverThread(serialPort, this::onDataReceived, sequenceLockHelper));
+        }
+        else
+        {
+            LOGGER.log(Level.WARNING, "Reconnected without receiver thread.");
+        }
+    }
+    
+    /**
+     * Opens the serial port and performs the handshake with the interface adapter. The port is closed again if
+     * the handshake fails or the calling thread is interrupted.
+     * 
+     * @param reset TRUE to enforce a reset of the interface adapter.
+     * @throws ComException In case of errors. 
+     */
+    private void openPort(final boolean reset) throws ComException
+    {
         try
         {
-            CommPortIdentifier portIdentifier = CommPortIdentifier.getPortIdentifier(port);
-            if (portIdentifier.isCurrentlyOwned())
+            if (config.getPortProvider() != null)
+            {
+                this.serialPort = config.getPortProvider().open(portName);
+            }
+            else
+            {
+                CommPortIdentifier portIdentifier = CommPortIdentifier.getPortIdentifier(portName);
+                if (portIdentifier.isCurrentlyOwned())
+                {
+                    throw new ComException("Port " + portName + "is currently in use.");
+                }
+                CommPort commPort = portIdentifier.open(this.getClass().getName(), PORT_CONNECT_TIMEOUT);
+                if (!(commPort instanceof SerialPort))
+                {
+                    throw new ComException("Only serial ports are supported.");
+                }
+                this.serialPort = (SerialPort) commPort;
+            }
+            if (!config.isResetOnOpen())
+            {
+                serialPort.setDTR(false);
+                if (reset)
+                {
+                    // the falling edge of DTR# resets the interface adapter.
+                    Thread.sleep(DTR_PULSE_TIME);
+                    serialPort.setDTR(true);
+                }
+            }
+            this.setPortSpeed(FtSerialPortConfig.SAFE_SPEED);
+            this.awaitReady(reset || config.isResetOnOpen());
+            
+            if (config.getSpeed() > FtSerialPortConfig.SAFE_SPEED)
+            {
+                this.negotiateSpeed(config.getSpeed());
+            }
+            this.applyHoldTime();
+        }
+        catch(NoSuchPortException | PortInUseException e)
+        {
+            this.closePort();
+            throw new ComException(e);
+        }
+        catch(ComException e)
+        {
+            this.closePort();
+            throw e;
+        }
+        catch(InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            this.closePort();
+            throw new ComException("Interrupted while opening port " + portName + ".", e);
+        }
+    }
+    
+    /**
+     * Closes the serial port if opened.
+     */
+    private void closePort()
+    {
+        SerialPort port = this.serialPort;
+        this.serialPort = null;
+        if (port != null)
+        {
+            try
             {
-                throw new ComException("Port " + port + "is currently in use.");
+                port.close();
             }
-            CommPort commPort = portIdentifier.open(this.getClass().getName(), PORT_CONNECT_TIMEOUT);
-            if (!(commPort instanceof SerialPort))
+            catch(RuntimeException e)
             {
-                throw new ComException("Only serial ports are supported.");
+                LOGGER.log(Level.WARNING, "Unable to close serial port.", e);
             }
-            this.serialPort = (SerialPort) commPort;
+        }
+    }
+    
+    /**
+     * Sets the speed of the opened serial port.
+     * 
+     * @param speed The port speed in Bit/s.
+     * @throws ComException In case of errors.
+     */
+    private void setPortSpeed(final int speed) throws ComException
+    {
+        try
+        {
             serialPort.setSerialPortParams(speed, SerialPort.DATABITS_8, SerialPort.STOPBITS_1, SerialPort.PARITY_NONE);
+            this.speed = speed;
+        }
+        catch(UnsupportedCommOperationException e)
+        {
+            throw new ComException(e);
+        }
+    }
+    
+    /**
+     * Steps up from {@link FtSerialPortConfig#SAFE_SPEED} to the highest port speed both sides agree on.
+     * <p>
+     * The speed is proposed with a configuration command at the current speed. The interface adapter answers with the
+     * highest speed it supports up to the proposed one and switches over. The new speed is confirmed by a ping.
+     * If the ping is not answered, both sides fall back to {@link FtSerialPortConfig#SAFE_SPEED} and the next
+     * lower speed is proposed. Must be called before the receiver thread is started.
+     * 
+     * @param maxSpeed The maximum speed in Bit/s.
+     * @throws ComException In case of errors.
+     * @throws InterruptedException if interrupted while waiting for the fallback.
+     */
+    private void negotiateSpeed(final int maxSpeed) throws ComException, InterruptedException
+    {
+        int limit = maxSpeed;
+        for (int i=FtSerialPortConfig.SUPPORTED_SPEEDS.length-1; i>=0; i--)
+        {
+            int candidate = FtSerialPortConfig.SUPPORTED_SPEEDS[i];
+            if (candidate > limit)
+            {
+                continue;
+            }
+            if (candidate <= FtSerialPortConfig.SAFE_SPEED)
+            {
+                break;
+            }
+            
+            long agreed = this.requestConfig(CONFIG_KEY_SPEED, candidate);
+            if (agreed < 0)
+            {
+                LOGGER.log(Level.INFO, "Interface adapter does not support speed negotiation.");
+                break;
+            }
+            if (agreed <= FtSerialPortConfig.SAFE_SPEED)
+            {
+                break;
+            }
             
-            Thread.sleep(2000L);
+            this.setPortSpeed((int) agreed);
+            Thread.sleep(10L);
+            if (this.requestConfig(CONFIG_KEY_PING, 0) >= 0)
+            {
+                break;
+            }
+            LOGGER.log(Level.WARNING, "Port speed {0} not confirmed. Falling back.", String.valueOf(agreed));
+            this.setPortSpeed(FtSerialPortConfig.SAFE_SPEED);
+            Thread.sleep(SPEED_FALLBACK_TIME);
+            limit = (int) agreed - 1;
+        }
+        LOGGER.log(Level.INFO, "Port speed: {0} Bit/s", String.valueOf(speed));
+    }
+    
+    /**
+     * Configures the hold time of the interface adapter. Must be called before the receiver thread is started.
+     * 
+     * @throws ComException In case of errors.
+     */
+    private void applyHoldTime() throws ComException
+    {
+        this.holdTime = 0L;
+        if (config.getHoldTime() <= 0)
+        {
+            return;
+        }
+        long agreed = this.requestConfig(CONFIG_KEY_HOLD, config.getHoldTime());
+        if (agreed < 0)
+        {
+            LOGGER.log(Level.INFO, "Interface adapter does not support a hold time.");
+            return;
+        }
+        this.holdTime = agreed;
+        LOGGER.log(Level.INFO, "Hold time: {0} ms", String.valueOf(agreed));
+    }
+    
+    /**
+     * Returns the hold time of the interface adapter, i.e. the time it keeps the outputs after the last MCC.
+     * 
+     * @return The hold time in ms or 0 if the default of the interface adapter applies.
+     * See {@link FtSerialPortConfig#holdTime(long)}.
+     */
+    public long getHoldTime()
+    {
+        return holdTime;
+    }
+    
+    /**
+     * Sends a configuration command and waits for it's acknowledgement.
+     * Must not be used while the receiver thread is running.
+     * 
+     * @param key The configuration key.
+     * @param value The configuration value.
+     * @return The value acknowledged (i.e. applied) by the interface adapter or -1 if not acknowledged in time.
+     * @throws ComException In case of errors.
+     */
+    private long requestConfig(final int key, final long value) throws ComException
+    {
+        this.sendConfig(key, value);
+        
+        long deadline = System.currentTimeMillis() + CONFIG_ACK_TIMEOUT;
+        long remaining;
+        while ((remaining = deadline - System.currentTimeMillis()) > 0)
+        {
+            List<Byte> frame = this.awaitControlFrame(remaining, CTRL_ACK);
+            if (frame == null)
+            {
+                break;
+            }
+            if (ManchesterCodec.decode(frame.get(1), frame.get(2)) == key)
+            {
+                return ManchesterCodec.decode(frame, 3, 4);
+            }
+        }
+        return -1L;
+    }
+    
+    /**
+     * Reads from the serial port until a control frame of one of the given types is complete.
+     * All other frames are discarded. Reads byte by byte in order not to consume any data beyond the frame.
+     * Must not be used while the receiver thread is running.
+     * 
+     * @param timeout Maximum time to wait in ms.
+     * @param types The expected control frame types.
+     * @return The complete control frame including the Start Byte or NULL on timeout.
+     * @throws ComException In case of errors or if the calling thread is interrupted.
+     */
+    private List<Byte> awaitControlFrame(final long timeout, final byte... types) throws ComException
+    {
+        long deadline = System.currentTimeMillis() + timeout;
+        List<Byte> frame = new ArrayList<>();
+        int length = 0;
+        try
+        {
+            serialPort.enableReceiveTimeout((int) Math.max(1L, timeout));
+            InputStream is = serialPort.getInputStream();
+            byte[] buffer = new byte[1];
+            while (System.currentTimeMillis() < deadline)
+            {
+                if (Thread.currentThread().isInterrupted())
+                {
+                    throw new ComException("Interrupted while waiting for the interface adapter.");
+                }
+                if (is.read(buffer, 0, 1) <= 0)
+                {
+                    continue;
+                }
+                byte inbyte = buffer[0];
+                if (ManchesterCodec.isStartByte(inbyte) || ManchesterCodec.isControlByte(inbyte))
+                {
+                    frame.clear();
+                    length = 0;
+                    for (byte type : types)
+                    {
+                        if (inbyte == type)
+                        {
+                            length = controlFrameLength(type);
+                        }
+                    }
+                }
+                if (length > 0)
+                {
+                    frame.add(inbyte);
+                    if (frame.size() == length)
+                    {
+                        return frame;
+                    }
+                }
+            }
         }
-        catch(NoSuchPortException | PortInUseException | UnsupportedCommOperationException e)
+        catch(UnsupportedCommOperationException | IOException | NumberFormatException e)
         {
             throw new ComException(e);
         }
-        catch(InterruptedException dontcare)
-        {            
+        finally
+        {
+            serialPort.disableReceiveTimeout();
+        }
+        return null;
+    }
+    
+    /**
+     * Returns the total length of a control frame.
+     * 
+     * @param type The control frame type (Start Byte).
+     * @return The length including the Start Byte or 0 if unknown.
+     */
+    private static int controlFrameLength(final byte type)
+    {
+        switch (type)
+        {
+            case CTRL_ACK:
+                return CTRL_ACK_LENGTH;
+            case CTRL_HELLO:
+                return CTRL_HELLO_LENGTH;
+            default:
+                return 0;
+        }
+    }
+    
+    /**
+     * Waits until the interface adapter is ready to receive commands.
+     * <p>
+     * If the interface adapter has been reset, it's HELLO frame is awaited. Otherwise it is pinged until it answers.
+     * Interface adapters without readiness messages are assumed to be ready after the configured maximum time.
+     * 
+     * @param reset TRUE if the interface adapter has been reset.
+     * @throws ComException In case of errors.
+     */
+    private void awaitReady(final boolean reset) throws ComException
+    {
+        long start = System.currentTimeMillis();
+        long deadline = start + config.getReadyTimeout();
+        List<Byte> frame = null;
+        if (reset)
+        {
+            frame = this.awaitControlFrame(config.getReadyTimeout(), CTRL_HELLO);
+        }
+        else
+        {
+            long remaining;
+            while (frame == null && (remaining = deadline - System.currentTimeMillis()) > 0)
+            {
+                this.sendConfig(CONFIG_KEY_PING, 0);
+                frame = this.awaitControlFrame(Math.min(READY_PING_INTERVAL, remaining), CTRL_HELLO, CTRL_ACK);
+            }
+        }
+        
+        if (frame == null)
+        {
+            LOGGER.log(Level.INFO, "No readiness message within {0} ms. Assuming the interface adapter is ready.",
+                    String.valueOf(config.getReadyTimeout()));
+            return;
         }
+        this.firmwareVersion = frame.get(0) == CTRL_HELLO
+                ? ManchesterCodec.decode(frame.get(1), frame.get(2))
+                : (int) ManchesterCodec.decode(frame, 3, 4);
+        LOGGER.log(Level.INFO, "Interface adapter ready after {0} ms. Firmware version: {1}",
+                new Object[]{String.valueOf(System.currentTimeMillis() - start), String.valueOf(firmwareVersion)});
+    }
+    
+    /**
+     * Returns the firmware version reported by the interface adapter on open.
+     * 
+     * @return The firmware version or 0 if the firmware did not report a version.
+     */
+    public int getFirmwareVersion()
+    {
+        return firmwareVersion;
+    }
+    
+    /**
+     * Returns the negotiated port speed.
+     * 
+     * @return The current port speed in Bit/s.
+     */
+    public int getSpeed()
+    {
+        return speed;
     }
     
     /**
@@ -115,10 +627,10 @@ public class FtSerialPortSenderReceiver
     public void setInputReceiver(final IFtInputReceiver callback) throws ComException
     {
         this.stopReceiverThread();
+        this.inputReceiver = callback;
         if (callback != null)
         {
-            this.serialReceiverThread = new SerialReceiverThread(serialPort, callback);
-            this.startReceiverThread();
+            this.startReceiverThread(new SerialReceiverThread(serialPort, this::onDataReceived, sequenceLockHelper));
         }
     }
     
@@ -132,10 +644,61 @@ public class FtSerialPortSenderReceiver
     public void setInputReceiver(final AbstractSerialReceiverThread thread) throws ComException
     {
         this.stopReceiverThread();
+        this.inputReceiver = null;
         if (thread != null)
         {
-            this.serialReceiverThread = thread;
-            this.startReceiverThread();
+            this.startReceiverThread(thread);
+        }
+    }
+    
+    /**
+     * Called by the receiver thread on each incoming set of ISBs.
+     * 
+     * @param inputs The received ISBs.
+     */
+    private void onDataReceived(final FtInputs inputs)
+    {
+        this.lastReceived = System.currentTimeMillis();
+        this.unansweredSince = 0L;
+        this.lastInputs = inputs;
+        if (retransmissionThread != null && retransmissionThread.isDuplicate(inputs.getSeqNr()))
+        {
+            return;
+        }
+        IFtInputReceiver callback = this.inputReceiver;
+        if (callback != null)
+        {
+            callback.onDataReceived(inputs);
+        }
+        if (retransmissionThread != null)
+        {
+            // after the callback: a MCC is complete as soon as it's ISB has been delivered.
+            retransmissionThread.acknowledge(inputs.getSeqNr());
+        }
+    }
+    
+    /**
+     * Sets the callback object that asynchronously receives the progress of the program on the interface adapter.
+     * 
+     * @param programListener The callback object to set or NULL.
+     */
+    public void setProgramListener(final IFtProgramListener programListener)
+    {
+        this.programListener = programListener;
+    }
+    
+    /**
+     * Called by the receiver thread on each incoming progress frame.
+     * 
+     * @param progress The reported progress.
+     */
+    private void onProgramProgress(final FtProgramProgress progress)
+    {
+        this.lastReceived = System.currentTimeMillis();
+        IFtProgramListener callback = this.programListener;
+        if (callback != null)
+        {
+            callback.onProgress(progress);
         }
     }
     
@@ -144,72 +707,639 @@ public class FtSerialPortSenderReceiver
      */
     private void stopReceiverThread()
     {
-        if (serialReceiverThread != null && serialReceiverThread.isAlive())
+        AbstractSerialReceiverThread thread = this.serialReceiverThread;
+        this.serialReceiverThread = null;
+        if (thread != null && thread.isRunning())
         {
-            serialReceiverThread.terminate();
+            thread.terminate();
             try
             {
-                serialReceiverThread.join(10000L);
+                thread.join(10000L);
             }
-            catch(InterruptedException dontcare)
+            catch(InterruptedException e)
             {
+                Thread.currentThread().interrupt();
             }
-            this.serialReceiverThread = null;
         }
     }
     
     /**
      * Starts the communication with the interface adapter.
      * 
+     * @param thread The receiver thread to start.
      * @throws ComException in case of errors.
      */
-    private void startReceiverThread() throws ComException
+    private void startReceiverThread(final AbstractSerialReceiverThread thread) throws ComException
     {
-        if (serialReceiverThread == null || serialReceiverThread.isAlive())
+        if (thread.isRunning())
         {
             return;
         }
-        serialReceiverThread.start();        
+        thread.setTelemetry(telemetry);
+        thread.setProgramListener(this::onProgramProgress);
+        thread.start(config.getIoEngine(), this);
+        this.serialReceiverThread = thread;
     }
     
     /**
-     * Sends the given data to the interface adapter and returns immediately.
-     * May block if there is not enough space in the RS232 TX Buffer.
+     * Returns whether the connection is broken, i.e. the receiver thread terminated unexpectedly or the interface
+     * adapter could not be written to.
      * 
-     * @param bytes The bytes to send.
-     * @throws ComException in case of errors.
+     * @return TRUE if the connection must be re-established. FALSE if it is up or has been closed on purpose.
      */
-    public void send(byte[] bytes) throws ComException
+    public boolean isBroken()
     {
-        this.send(bytes, null);
+        if (closed)
+        {
+            return false;
+        }
+        AbstractSerialReceiverThread thread = this.serialReceiverThread;
+        return broken || serialPort == null || (thread != null && !thread.isRunning());
     }
     
     /**
-     * Sends the given data to the interface adapter and returns immediately.
-     * May block if there is not enough space in the RS232 TX Buffer.
+     * Returns the time the last set of ISBs has been received.
      * 
-     * @param bytes The bytes to send.
-     * @param flags Optional flags for the sender or receiver.
-     * @throws ComException in case of errors.
+     * @return The time in ms since epoch or 0 if nothing has been received yet.
      */
-    public void send(byte[] bytes, final FtInputsFlags flags) throws ComException
+    public long getLastReceived()
     {
-        if (bytes == null || bytes.length == 0)
-        {
-            return;
-        }
-        if (serialPort == null)
-        {
-            throw new ComException("Serial port is not available.");
-        }
-        
-        this.serialReceiverThread.setFlags(flags);
-        try(OutputStream os = this.serialPort.getOutputStream())
-        {
-            os.write(bytes, 0, bytes.length);
+        return lastReceived;
+    }
+    
+    /**
+     * Returns the time the last MCC has been written to the interface adapter.
+     * 
+     * @return The time in ms since epoch or 0 if nothing has been sent yet.
+     */
+    public long getLastSent()
+    {
+        return lastSent;
+    }
+    
+    /**
+     * Returns the time since when MCCs are waiting for their ISBs.
+     * 
+     * @return The time in ms since epoch the oldest unanswered MCC has been sent or 0 if all MCCs are answered.
+     */
+    public long getUnansweredSince()
+    {
+        return unansweredSince;
+    }
+    
+    /**
+     * Checks whether the ISB of the MCC with the given sequence number is still expected.
+     * 
+     * @param seqNr The sequence number.
+     * @return FALSE if the MCC has been answered or given up after the last retransmission.
+     * Always TRUE if retransmission is switched off.
+     */
+    public boolean isPending(final int seqNr)
+    {
+        return retransmissionThread == null || retransmissionThread.isPending(seqNr);
+    }
+    
+    /**
+     * Returns the retransmission statistics of this connection, e.g. the smoothed round-trip time.
+     * 
+     * @return The thread that retransmits MCCs with missing ISBs or NULL if retransmission is switched off.
+     */
+    public RetransmissionThread getRetransmissionThread()
+    {
+        return retransmissionThread;
+    }
+    
+    /**
+     * Sets the callback object to get notified when a MCC has been given up after the last retransmission.
+     * Does nothing if retransmission is switched off.
+     * 
+     * @param giveUpListener The callback object to set or NULL.
+     */
+    public void setGiveUpListener(final IFtGiveUpListener giveUpListener)
+    {
+        if (retransmissionThread != null)
+        {
+            retransmissionThread.setGiveUpListener(giveUpListener);
+        }
+    }
+    
+    /**
+     * Returns the Sync-Lock of this connection.
+     * 
+     * @return The Sync-Lock that tracks the MCCs waiting for their ISBs.
+     */
+    public SequenceLockHelper getSequenceLockHelper()
+    {
+        return sequenceLockHelper;
+    }
+    
+    /**
+     * Returns the allocator of the sequence numbers of this connection.
+     * 
+     * @return The allocator shared by all components that track the ISBs of their MCCs.
+     */
+    public SequenceNumberAllocator getSequenceNumberAllocator()
+    {
+        return sequenceNumberAllocator;
+    }
+    
+    /**
+     * Returns the configuration of this connection.
+     * 
+     * @return The configuration.
+     */
+    public FtSerialPortConfig getConfig()
+    {
+        return config;
+    }
+    
+    /**
+     * Switches the extended ISB frame with telemetry data on or off.
+     * <p>
+     * If switched on, each ISB additionally carries the firmware timestamp, the remaining steps and the last
+     * tacho period of the motors M1-M3. See {@link FtInputs#getTelemetry()}.
+     * 
+     * @param telemetry TRUE to switch the extended ISB frame on, FALSE to switch it off.
+     * @throws ComException in case of errors.
+     */
+    public void setTelemetry(final boolean telemetry) throws ComException
+    {
+        this.telemetry = telemetry;
+        AbstractSerialReceiverThread thread = this.serialReceiverThread;
+        if (thread != null)
+        {
+            thread.setTelemetry(telemetry);
+        }
+        this.sendConfig(CONFIG_KEY_TELEMETRY, telemetry ? 1 : 0);
+    }
+    
+    /**
+     * Returns whether the extended ISB frame with telemetry data is switched on.
+     * 
+     * @return TRUE if switched on.
+     */
+    public boolean isTelemetry()
+    {
+        return telemetry;
+    }
+    
+    /**
+     * Sends a configuration command '#key,value\n' to the interface adapter.
+     * 
+     * @param key The configuration key.
+     * @param value The configuration value.
+     * @throws ComException in case of errors.
+     */
+    private void sendConfig(final int key, final long value) throws ComException
+    {
+        this.write(String.format(CONFIG_CMD, key, value).getBytes(Charset.forName("US-ASCII")));
+    }
+    
+    /**
+     * Queues the steps of the given program for the program buffer of the interface adapter and returns
+     * immediately. The sequence numbers of the MCCs are ignored.
+     * <p>
+     * The interface adapter waits for conditions on digital inputs only, holds the outputs for up to
+     * {@link #MAX_PROGRAM_STEP_DURATION} ms and repeats a step up to {@link #MAX_PROGRAM_STEP_REPEAT} times.
+     * 
+     * @param program The program. Up to {@link #MAX_PROGRAM_STEPS} steps.
+     * @throws ComException in case of errors, e.g. the firmware does not support programs.
+     */
+    public void uploadProgram(final FtProgram program) throws ComException
+    {
+        this.checkProgramSupport();
+        List<FtProgramStep> steps = program.getSteps();
+        if (steps.isEmpty() || steps.size() > MAX_PROGRAM_STEPS)
+        {
+            throw new IllegalArgumentException("Invalid number of program steps.");
+        }
+        List<byte[]> frames = new ArrayList<>();
+        for (int i=0; i<steps.size(); i++)
+        {
+            FtProgramStep step = steps.get(i);
+            FtInputCondition until = step.getUntil();
+            if (step.getDuration() > MAX_PROGRAM_STEP_DURATION || step.getRepeat() > MAX_PROGRAM_STEP_REPEAT
+                    || (until != null && !until.isDigital()))
+            {
+                throw new IllegalArgumentException(String.format("Program step %d not supported by the firmware.", i));
+            }
+            int condition = until == null ? 0
+                    : (until.getInput().ordinal() + 1) * (until.getState() ? 1 : -1);
+            
+            // '$mcb,a,b,c\n' without sequence number
+            String mcc = new FtOutput(step.getMcc()).seqNr(0).build();
+            frames.add(String.format(PROGRAM_STEP_CMD, i, mcc.substring(1, mcc.length() - 1), step.getDuration(),
+                    condition, step.getRepeat()).getBytes(Charset.forName("US-ASCII")));
+        }
+        for (byte[] frame : frames)
+        {
+            this.send(frame);
+        }
+    }
+    
+    /**
+     * Queues the start of the uploaded program and returns immediately. The program runs after all MCCs queued
+     * before. It's progress is reported to the program listener, see {@link #setProgramListener(IFtProgramListener)}.
+     * 
+     * @param steps The number of steps to run, i.e. the first steps of the program buffer.
+     * @throws ComException in case of errors, e.g. the firmware does not support programs.
+     */
+    public void startProgram(final int steps) throws ComException
+    {
+        this.checkProgramSupport();
+        if (steps <= 0 || steps > MAX_PROGRAM_STEPS)
+        {
+            throw new IllegalArgumentException("Invalid number of program steps.");
+        }
+        this.send(String.format(CONFIG_CMD, CONFIG_KEY_PROGRAM, steps).getBytes(Charset.forName("US-ASCII")));
+    }
+    
+    /**
+     * Stops the program on the interface adapter immediately. The outputs are switched off.
+     * 
+     * @throws ComException in case of errors.
+     */
+    public void stopProgram() throws ComException
+    {
+        this.checkProgramSupport();
+        this.sendConfig(CONFIG_KEY_PROGRAM, 0);
+    }
+    
+    /**
+     * Checks whether the firmware of the interface adapter has a program buffer.
+     * 
+     * @throws ComException if not.
+     */
+    private void checkProgramSupport() throws ComException
+    {
+        if (firmwareVersion < PROGRAM_FIRMWARE_VERSION)
+        {
+            throw new ComException(String.format("Firmware version %d does not support programs.", firmwareVersion));
+        }
+    }
+    
+    /**
+     * Queues the given data for transmission to the interface adapter and returns immediately.
+     * 
+     * @param bytes The bytes to send.
+     * @throws ComException in case of errors.
+     */
+    public void send(byte[] bytes) throws ComException
+    {
+        this.send(bytes, null);
+    }
+    
+    /**
+     * Switches the conflating mode on or off.
+     * <p>
+     * In conflating mode a MCC that has not been written yet is replaced by a newer one instead of being queued,
+     * i.e. the interface adapter always gets the latest MCC and the latency does not grow with the rate of MCCs.
+     * The replaced MCC is released from the Sync-Lock and it's ISB never arrives. Stepping commands are never
+     * replaced and queued in order.
+     * 
+     * @param conflating TRUE to switch the conflating mode on.
+     */
+    public void setConflating(final boolean conflating)
+    {
+        this.conflating = conflating;
+    }
+    
+    /**
+     * Returns whether the conflating mode is switched on.
+     * 
+     * @return TRUE if switched on.
+     */
+    public boolean isConflating()
+    {
+        return conflating;
+    }
+    
+    /**
+     * Queues the given MCC for transmission to the interface adapter and returns immediately.
+     * <p>
+     * MCCs with a sequence number &gt; 0 are retransmitted if their ISB is missing.
+     * See {@link FtSerialPortConfig#maxRetries(int)}.
+     * <p>
+     * The MCC is merged with the outputs last written, i.e. motors not in it's motor mask keep their state.
+     * See {@link FtOutput#mask(int)} and {@link #setConflating(boolean)}.
+     * 
+     * @param output The MCC to send.
+     * @param flags Optional flags for the sender or receiver.
+     * @throws ComException in case of errors.
+     */
+    public void send(final FtOutput output, final FtInputsFlags flags) throws ComException
+    {
+        this.send(output, flags, 0L);
+    }
+    
+    /**
+     * Queues the given MCC for transmission to the interface adapter and returns immediately.
+     * <p>
+     * If the MCC is not written by the given deadline it's discarded: it's ISB is replaced by the last received
+     * input values with the 'expired' flag set, see {@link FtInputsFlags#isExpired()}. Thus stale MCCs never reach
+     * the interface adapter. See {@link #getExpiredCount()}.
+     * 
+     * @param output The MCC to send.
+     * @param flags Optional flags for the sender or receiver.
+     * @param deadline The point in time the MCC must be written by in milliseconds since the epoch. 0 = no deadline.
+     * @throws ComException in case of errors.
+     */
+    public void send(final FtOutput output, final FtInputsFlags flags, final long deadline) throws ComException
+    {
+        TransmitterThread.Frame frame = new TransmitterThread.Frame(output, MCC_START, flags, deadline);
+        if (!conflating || frame.isStepping())
+        {
+            this.submit(frame);
+            return;
+        }
+        if (serialPort == null)
+        {
+            throw new ComException("Serial port is not available.");
+        }
+        TransmitterThread.Frame replaced = transmitterThread.submitLatest(frame);
+        if (replaced != null && replaced.getSeqNr() != frame.getSeqNr())
+        {
+            sequenceLockHelper.removeSeqNr(replaced.getSeqNr());
+        }
+    }
+    
+    /**
+     * Queues the given stepping command for transmission to the interface adapter and returns immediately.
+     * <p>
+     * If the interface adapter is performing a stepping command when it receives this MCC, the motors stepped by
+     * this MCC are started right away and run concurrently, provided that all of them are idle. Otherwise this MCC is
+     * buffered and executed in order like any other MCC. This MCC is answered as soon as it's motors have performed
+     * their steps, i.e. it's ISB may arrive before the ISB of the running stepping command.
+     * 
+     * @param output The stepping command to send.
+     * @param flags Optional flags for the sender or receiver.
+     * @throws ComException in case of errors.
+     */
+    public void sendJoin(final FtOutput output, final FtInputsFlags flags) throws ComException
+    {
+        this.submit(new TransmitterThread.Frame(output, JOIN_START, flags));
+    }
+    
+    /**
+     * Sends the given MCC in the priority lane and returns immediately.
+     * <p>
+     * The MCC bypasses all queued MCCs and is written right after the frame currently being transmitted.
+     * All queued MCCs are cancelled and the interface adapter discards all buffered MCCs and aborts a running
+     * stepping command. All uncompleted MCCs are released from the Sync-Lock. The priority MCC itself is not
+     * retransmitted, non-stepping MCCs expire by the hardware timeout anyway.
+     * 
+     * @param output The MCC to send, e.g. an OFF-command.
+     * @throws ComException in case of errors.
+     */
+    public void sendPriority(final FtOutput output) throws ComException
+    {
+        if (serialPort == null)
+        {
+            throw new ComException("Serial port is not available.");
+        }
+        List<TransmitterThread.Frame> cancelled = transmitterThread.cancel();
+        transmitterThread.submitPriority(new TransmitterThread.Frame(output, PRIORITY_START, null));
+        if (!cancelled.isEmpty())
+        {
+            LOGGER.log(Level.FINE, "{0} queued frames cancelled.", cancelled.size());
+        }
+        if (retransmissionThread != null)
+        {
+            retransmissionThread.flush();
+        }
+        sequenceLockHelper.flush();
+    }
+    
+    /**
+     * Returns the number of frames waiting for transmission.
+     * 
+     * @return The number of queued frames.
+     */
+    public int getQueueSize()
+    {
+        return transmitterThread != null ? transmitterThread.getQueueSize() : 0;
+    }
+    
+    /**
+     * Returns the number of MCCs discarded because their deadline had passed.
+     * 
+     * @return The number of expired MCCs since the creation of this instance.
+     */
+    public long getExpiredCount()
+    {
+        return expiredCount.get();
+    }
+    
+    /**
+     * Called by the transmitter thread for a MCC whose deadline has passed. The MCC is released from the Sync-Lock
+     * and it's submitter is notified with an ISB that has the 'expired' flag set.
+     * 
+     * @param frame The expired MCC.
+     */
+    void expire(final TransmitterThread.Frame frame)
+    {
+        expiredCount.incrementAndGet();
+        LOGGER.log(Level.FINE, "MCC {0} expired.", frame.getSeqNr());
+        sequenceLockHelper.removeSeqNr(frame.getSeqNr());
+        
+        FtInputsFlags flags = new FtInputsFlags();
+        flags.setDurationFinished(frame.getFlags() != null && frame.getFlags().isDurationFinished());
+        flags.setExpired(true);
+        FtInputs last = this.lastInputs;
+        FtInputs inputs = last != null ? new FtInputs(frame.getSeqNr(), last)
+                : new FtInputs(frame.getSeqNr(), 0, 0, 0);
+        inputs.setFlags(flags);
+        IFtInputReceiver callback = this.inputReceiver;
+        if (callback != null)
+        {
+            callback.onDataReceived(inputs);
+        }
+    }
+    
+    /**
+     * Queues the given frame for transmission. A MCC in the mailbox of the conflating mode is queued before.
+     * 
+     * @param frame The frame to transmit.
+     * @throws ComException in case of errors.
+     */
+    private void submit(final TransmitterThread.Frame frame) throws ComException
+    {
+        if (serialPort == null)
+        {
+            throw new ComException("Serial port is not available.");
+        }
+        transmitterThread.flushLatest();
+        transmitterThread.submit(frame);
+    }
+    
+    /**
+     * Called by the transmitter thread to write a frame to the serial port.
+     * 
+     * @param frame The frame to write.
+     */
+    void transmit(final TransmitterThread.Frame frame)
+    {
+        this.track(frame);
+        try
+        {
+            this.write(frame.getBytes());
+        }
+        catch(ComException e)
+        {
+            LOGGER.log(Level.FINE, "Unable to transmit frame.", e);
+        }
+    }
+    
+    /**
+     * Prepares the receiver and the retransmission for a frame that is about to be written.
+     * 
+     * @param frame The frame to write.
+     */
+    private void track(final TransmitterThread.Frame frame)
+    {
+        AbstractSerialReceiverThread thread = this.serialReceiverThread;
+        if (thread != null && frame.getSeqNr() >= 0)
+        {
+            thread.setFlags(frame.getFlags());
+        }
+        if (retransmissionThread != null && frame.getSeqNr() > 0
+                && (frame.getBytes()[0] == MCC_START || frame.getBytes()[0] == JOIN_START))
+        {
+            retransmissionThread.track(frame.getSeqNr(), frame.getBytes(), frame.isStepping());
+        }
+    }
+    
+    /**
+     * Returns whether all queued frames have been transmitted completely.
+     * 
+     * @return TRUE if nothing is waiting for or in transmission.
+     */
+    public boolean isIdle()
+    {
+        return transmitterThread != null && transmitterThread.isIdle();
+    }
+    
+    /**
+     * Writes one MCC per interface adapter within a tight window, e.g. to start the motions of several robots
+     * together. The MCCs bypass the queues. They are encoded before the first one is written and then written
+     * back-to-back from the calling thread.
+     * <p>
+     * The caller must make sure that no other frames are submitted meanwhile and that the senders are idle,
+     * see {@link #isIdle()}. Otherwise a MCC waits for the transmission of the frames ahead of it.
+     * 
+     * @param senders The senders of the interface adapters.
+     * @param outputs The MCCs, one per sender in the same order.
+     * @return The points in time (System.nanoTime()) each MCC has been handed to the serial port and, at index
+     * [1], the estimated points in time each MCC has been transmitted completely.
+     * @throws ComException in case of errors. The MCCs written so far are not revoked.
+     */
+    public static long[][] writeTogether(final List<FtSerialPortSenderReceiver> senders, final List<FtOutput> outputs)
+            throws ComException
+    {
+        if (senders.size() != outputs.size())
+        {
+            throw new IllegalArgumentException("One MCC per interface adapter required.");
+        }
+        int n = senders.size();
+        TransmitterThread.Frame[] frames = new TransmitterThread.Frame[n];
+        for (int i=0; i<n; i++)
+        {
+            FtSerialPortSenderReceiver sender = senders.get(i);
+            if (sender.serialPort == null)
+            {
+                throw new ComException("Serial port is not available.");
+            }
+            frames[i] = sender.transmitterThread.merge(new TransmitterThread.Frame(outputs.get(i), MCC_START, null));
+            sender.track(frames[i]);
+        }
+        
+        long[][] ret = new long[2][n];
+        for (int i=0; i<n; i++)
+        {
+            FtSerialPortSenderReceiver sender = senders.get(i);
+            ret[1][i] = sender.write(frames[i].getBytes());
+            ret[0][i] = System.nanoTime();
+        }
+        return ret;
+    }
+    
+    /**
+     * Retransmits the given MCC. The interface adapter executes it only if the original MCC has been lost.
+     * Otherwise it just answers with a fresh ISB.
+     * 
+     * @param bytes The MCC to retransmit.
+     * @throws ComException in case of errors.
+     */
+    public void retransmit(final byte[] bytes) throws ComException
+    {
+        byte[] retransmission = bytes.clone();
+        retransmission[0] = RETRANSMISSION_START;
+        this.write(retransmission);
+    }
+    
+    /**
+     * Queues the given data for transmission to the interface adapter and returns immediately.
+     * 
+     * @param bytes The bytes to send.
+     * @param flags Optional flags for the sender or receiver.
+     * @throws ComException in case of errors.
+     */
+    public void send(byte[] bytes, final FtInputsFlags flags) throws ComException
+    {
+        if (bytes == null || bytes.length == 0)
+        {
+            return;
+        }
+        this.submit(new TransmitterThread.Frame(bytes, flags, 0, false));
+    }
+    
+    /**
+     * Writes the given data to the serial port.
+     * 
+     * @param bytes The bytes to write.
+     * @return The estimated point in time the bytes have been transmitted completely (System.nanoTime()).
+     * @throws ComException in case of errors.
+     */
+    private long write(byte[] bytes) throws ComException
+    {
+        SerialPort port = this.serialPort;
+        if (port == null)
+        {
+            throw new ComException("Serial port is not available.");
+        }
+        synchronized(writeLock)
+        {
+            this.writePort(port, bytes);
+            TransmitterThread transmitter = this.transmitterThread;
+            return transmitter != null ? transmitter.book(bytes.length) : System.nanoTime();
+        }
+    }
+    
+    /**
+     * Writes the given data to the given serial port.
+     * 
+     * @param port The serial port.
+     * @param bytes The bytes to write.
+     * @throws ComException in case of errors.
+     */
+    private void writePort(final SerialPort port, byte[] bytes) throws ComException
+    {
+        try(OutputStream os = port.getOutputStream())
+        {
+            os.write(bytes, 0, bytes.length);
+            boolean mcc = bytes[0] == MCC_START || bytes[0] == JOIN_START;
+            if (mcc || bytes[0] == RETRANSMISSION_START || bytes[0] == PRIORITY_START)
+            {
+                this.lastSent = System.currentTimeMillis();
+            }
+            if (mcc && unansweredSince == 0L)
+            {
+                this.unansweredSince = System.currentTimeMillis();
+            }
         }
         catch(IOException e)
         {
+            this.broken = true;
             throw new ComException(e);
         }
     }
@@ -0,0 +1,17 @@
+package de.voglrobe.ftinterface.io;
+
+/**
+ * Callback interface to get notified when a MCC has been given up because it's ISB did not arrive even after the
+ * last retransmission.
+ * 
+ * @author robert
+ */
+public interface IFtGiveUpListener
+{
+    /**
+     * Called when the MCC with the given sequence number has been given up. It's ISB will not arrive anymore.
+     * 
+     * @param seqNr The sequence number of the MCC.
+     */
+    void onGiveUp(int seqNr);
+}
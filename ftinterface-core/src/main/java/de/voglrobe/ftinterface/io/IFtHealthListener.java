@@ -0,0 +1,16 @@
+package de.voglrobe.ftinterface.io;
+
+/**
+ * Callback interface to get notified on changes of the connection health.
+ * 
+ * @author robert
+ */
+public interface IFtHealthListener
+{
+    /**
+     * Called when the health state of the connection has changed.
+     * 
+     * @param health The new health state. 
+     */
+    void onHealthChanged(FtHealth health);
+}
@@ -0,0 +1,22 @@
+package de.voglrobe.ftinterface.io;
+
+/**
+ * A task that is run by the event loop of a {@link FtIoEngine}, e.g. the receiver or the transmitter of a
+ * connection.
+ * <p>
+ * A task must never block: it does the work that is due and returns when the next call is due. It's called
+ * again earlier if it's woken up, see {@link FtIoEngine.Registration#wakeup()}. Calls of the same task never
+ * overlap.
+ *
+ * @author robert
+ */
+public interface IFtIoTask
+{
+    /**
+     * Called by the event loop when the task is due or has been woken up.
+     *
+     * @return The time in ns until the next call, 0 to be called again right away or {@link Long#MAX_VALUE} to be
+     * called on the next wakeup only.
+     */
+    long poll();
+}
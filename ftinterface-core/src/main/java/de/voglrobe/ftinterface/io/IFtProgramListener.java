@@ -0,0 +1,16 @@
+package de.voglrobe.ftinterface.io;
+
+/**
+ * Callback interface to get notified on the progress of a motion program.
+ *
+ * @author robert
+ */
+public interface IFtProgramListener
+{
+    /**
+     * Called when a step is started or the state of the program has changed.
+     *
+     * @param progress The current progress.
+     */
+    void onProgress(FtProgramProgress progress);
+}
@@ -0,0 +1,22 @@
+package de.voglrobe.ftinterface.io;
+
+import de.voglrobe.ftinterface.exceptions.ComException;
+import gnu.io.SerialPort;
+
+/**
+ * Callback interface to open the serial port to the interface adapter, e.g. to replace the hardware by a
+ * simulation.
+ * 
+ * @author robert
+ */
+public interface IFtSerialPortProvider
+{
+    /**
+     * Called whenever the connection to the interface adapter is (re-)opened.
+     * 
+     * @param portName The device name of the serial port.
+     * @return The opened serial port.
+     * @throws ComException if the port could not be opened.
+     */
+    SerialPort open(String portName) throws ComException;
+}
@@ -0,0 +1,127 @@
+package de.voglrobe.ftinterface.io;
+
+import java.util.List;
+
+/**
+ * Helpers to encode and decode the Manchester-coded frames sent by the interface adapter.
+ * <p>
+ * A frame starts with a single Start Byte followed by a fixed number of Manchester-coded bytes.
+ * Start Bytes are never ambiguous because every Manchester-coded byte has '01' or '10' in its two upper bits:
+ * <ul>
+ * <li>0B00_xx_xx_xx: ISB frame. The lower 6 bits are the sequence number [0, 63].</li>
+ * <li>0B11_xx_xx_xx: Control frame. The lower 6 bits are the type of the control frame.</li>
+ * </ul>
+ *
+ * @author robert
+ */
+public final class ManchesterCodec
+{
+    /**
+     * Hidden constructor.
+     */
+    private ManchesterCodec()
+    {
+    }
+
+    /**
+     * Convert signed byte to an unsigned int value, e.g. Byte = -1 =&gt; Integer = 255.
+     *
+     * @param b The byte to convert.
+     * @return The unsigned byte value.
+     */
+    public static int toUnsignedInt(final byte b)
+    {
+        return (int) b & 0xFF;
+    }
+
+    /**
+     * Decode a Manchester-encoded byte, given by LSB and MSB. The mapping is: '10' -&gt; 1, '01' -&gt; 0.
+     *
+     * @param lsb The LSB builds the lower nibble of the resulting byte.
+     * @param msb The MSB builds the upper nibble of the resulting byte.
+     * @return The unsinged byte value.
+     * @throws NumberFormatException if LSB and MSB are not Manchester-coded.
+     */
+    public static int decode(final byte lsb, final byte msb)
+    {
+        int decoded = 0;
+        int encoded = toUnsignedInt(msb) << 8 | toUnsignedInt(lsb);
+
+        for (int i=7; i>=0; i--)
+        {
+            decoded = decoded << 1;
+            int value = (encoded >> 2*i) & 3;
+            switch(value)
+            {
+                case 2:
+                    decoded |= 1;
+                    break;
+                case 1:
+                    break;
+                default:
+                    throw new NumberFormatException("Invalid Manchester code.");
+            }
+        }
+        return decoded;
+    }
+
+    /**
+     * Decode an unsigned little-endian value of Manchester-encoded bytes, each given by LSB and MSB.
+     *
+     * @param frame The received frame.
+     * @param offset Index of the LSB of the lowest byte.
+     * @param count Number of decoded bytes, i.e. the number of consumed frame bytes is 2 * count.
+     * @return The unsigned value.
+     * @throws NumberFormatException if the frame bytes are not Manchester-coded.
+     */
+    public static long decode(final List<Byte> frame, final int offset, final int count)
+    {
+        long decoded = 0L;
+        for (int i=count-1; i>=0; i--)
+        {
+            decoded = decoded << 8;
+            decoded |= decode(frame.get(offset + 2*i), frame.get(offset + 2*i + 1));
+        }
+        return decoded;
+    }
+
+    /**
+     * Encode the given byte into Manchester code. The mapping is: 1 -&gt; '10', 0 -&gt; '01'.
+     *
+     * @param b The unsigned byte value to encode.
+     * @return The Manchester code. The lower byte is sent first (LSB), the upper byte second (MSB).
+     */
+    public static int encode(final int b)
+    {
+        int ret = 0;
+        for (int i=7; i>=0; i--)
+        {
+            ret = ret << 2;
+            ret |= ((b >> i) & 1) != 0 ? 2 : 1;
+        }
+        return ret;
+    }
+
+    /**
+     * Check whether the given byte is the Start Byte of an ISB frame (0B00_xx_xx_xx).
+     *
+     * @param b The byte to check.
+     * @return TRUE if the given byte is a Start Byte of an ISB frame, otherwise FALSE.
+     */
+    public static boolean isStartByte(final byte b)
+    {
+        return (toUnsignedInt(b) >> 6) == 0;
+    }
+
+    /**
+     * Check whether the given byte is the Start Byte of a control frame (0B11_xx_xx_xx).
+     *
+     * @param b The byte to check.
+     * @return TRUE if the given byte is a Start Byte of a control frame, otherwise FALSE.
+     */
+    public static boolean isControlByte(final byte b)
+    {
+        return (toUnsignedInt(b) >> 6) == 3;
+    }
+
+}
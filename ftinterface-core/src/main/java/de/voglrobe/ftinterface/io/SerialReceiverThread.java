@@ -2,89 +2,66 @@ package de.voglrobe.ftinterface.io;
 
 import de.voglrobe.ftinterface.async.SequenceLockHelper;
 import gnu.io.SerialPort;
+import gnu.io.SerialPortEvent;
 import gnu.io.UnsupportedCommOperationException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.TooManyListenersException;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
  * A Thread implementation to asynchronously receive ISBs from the interface adapter.
+ * <p>
+ * As a task of a {@link FtIoEngine} the receiver reads the available bytes without blocking whenever the serial
+ * port reports a data-available event. Ports without events are polled.
  * 
  * @author robert
  */
-public class SerialReceiverThread extends AbstractSerialReceiverThread
+public class SerialReceiverThread extends AbstractSerialReceiverThread implements IFtIoTask
 {
     private static final Logger LOGGER = Logger.getLogger(SerialReceiverThread.class.getName());
 
     private static final int PORT_RECEIVE_TIMEOUT = 2000; // 2 secs
+    private static final int ISB_LENGTH = 7; // Start Byte + 3 Manchester-encoded bytes
+    private static final int ISB_TELEMETRY_LENGTH = ISB_LENGTH + 32; // + timestamp, 3 x steps, 3 x periods
+    private static final byte CTRL_PROGRESS = (byte) 0xC3; // Control frame: progress of the program
+    private static final int CTRL_PROGRESS_LENGTH = 13; // Start Byte + state, step, repetition, E1-E8, EX, EY
+    private static final long READ_POLL_INTERVAL = TimeUnit.MILLISECONDS.toNanos(2L); // ports without events
+    private static final long CHECK_INTERVAL = TimeUnit.MILLISECONDS.toNanos(100L); // detects unplugged ports
 
+    private final SequenceLockHelper sequenceLockHelper;
+    private final List<Byte> commandBuffer = new ArrayList<>();
+    private final byte[] buffer = new byte[255];
     private IFtInputReceiver callback;
     private volatile FtInputsFlags flags;
     private volatile boolean stopped;
+    private volatile boolean failed;
+    private volatile boolean events;
+    private volatile FtIoEngine.Registration registration;
 
     /**
-     * Convert signed byte to an unsigned int value, e.g. Byte = -1 => Integer = 255.
-     * 
-     * @param b The byte to convert.
-     * @return The unsigned byte value.
-     */
-    private static int toUnsignedInt(final byte b)
-    {
-        return (int) b & 0xFF;
-    }
-    
-    /**
-     * Decode a Manchester-encoded byte, given by LSB and MSB. The mapping is: '10' -> 1, '01' -> 0.
-     * 
-     * @param lsb The MSB builds the upper nibble of the resulting byte.
-     * @param msb The LSB builds th lower nibble of the resultig byte.
-     * @return The unsinged byte value.
-     */
-    private static int decodeManchester(final byte lsb, final byte msb)
-    {
-        int decoded = 0;
-        int encoded = toUnsignedInt(msb) << 8 | toUnsignedInt(lsb);
-        
-        for (int i=7; i>=0; i--)
-        {
-            decoded = decoded << 1;
-            int value = (encoded >> 2*i) & 3;
-            switch(value)
-            {
-                case 2:
-                    decoded |= 1;
-                    break;
-                case 1:
-                    break;
-                default:
-                    throw new NumberFormatException("Invalid Manchester code.");
-            }
-        }
-        return decoded;
-    }
-    
-    /**
-     * Check whether the given byte is a Start Byte (0B00_xx_xx_xx).
+     * Constructor.
      * 
-     * @param b The byte to check.
-     * @return TRUE if the given byte is a Start Byte, otherwise FALSE.
+     * @param serPort A {@link SerialPort} object connected to the interface adapter and ready to use.
      */
-    private static boolean isStartByte(final byte b)
+    public SerialReceiverThread(final SerialPort serPort)
     {
-        return (toUnsignedInt(b) >> 6) == 0;
+        this(serPort, null);
     }
 
     /**
      * Constructor.
      * 
      * @param serPort A {@link SerialPort} object connected to the interface adapter and ready to use.
+     * @param callback The callback object to notify on each incoming set of ISBs. Can be NULL if not required.
      */
-    public SerialReceiverThread(final SerialPort serPort)
+    public SerialReceiverThread(final SerialPort serPort, final IFtInputReceiver callback)
     {
-        this(serPort, null);
+        this(serPort, callback, null);
     }
 
     /**
@@ -92,13 +69,20 @@ public class SerialReceiverThread extends AbstractSerialReceiverThread
      * 
      * @param serPort A {@link SerialPort} object connected to the interface adapter and ready to use.
      * @param callback The callback object to notify on each incoming set of ISBs. Can be NULL if not required.
+     * @param sequenceLockHelper The Sync-Lock of the connection to release on incoming ISBs. Can be NULL if not
+     * required.
      */
-    public SerialReceiverThread(final SerialPort serPort, final IFtInputReceiver callback)
+    public SerialReceiverThread(final SerialPort serPort, final IFtInputReceiver callback,
+            final SequenceLockHelper sequenceLockHelper)
     {
         super(serPort);
+        this.sequenceLockHelper = sequenceLockHelper;
         this.callback = callback;
         this.stopped = false;
+        this.failed = false;
+        this.events = false;
         this.flags = null;
+        this.registration = null;
     }
 
     @Override
@@ -113,7 +97,19 @@ public class SerialReceiverThread extends AbstractSerialReceiverThread
         LOGGER.log(Level.INFO, "Stopping SerialReceiverThread...");
         this.stopped = true;
         this.callback = null;
-        SequenceLockHelper.INSTANCE.flush();
+        FtIoEngine.Registration task = this.registration;
+        if (task != null)
+        {
+            task.cancel();
+            if (events)
+            {
+                serPort.removeEventListener();
+            }
+        }
+        if (sequenceLockHelper != null)
+        {
+            sequenceLockHelper.flush();
+        }
     }
     
     @Override
@@ -135,37 +131,148 @@ public class SerialReceiverThread extends AbstractSerialReceiverThread
             return;
         }
         
-        List<Byte> commandBuffer = new ArrayList<>();
         try(InputStream is = serPort.getInputStream())
         {
             LOGGER.log(Level.INFO, "Waiting for ISBs...");
             int len;
-            byte[] buffer = new byte[255];            
             while((len = is.read(buffer)) > -1)
             {
                 if (stopped)
                 {
                     break;
                 }
-                for (int i=0; i<len; i++)
+                this.receive(buffer, len);
+            }
+            LOGGER.log(Level.INFO, "SerialReceiverThread stopped.");
+        }
+        catch(IOException e)
+        {
+            LOGGER.log(Level.SEVERE, "Unintended termination of SerialReceiverThread.", e);
+        }
+    }
+
+    /**
+     * Starts the receiver as a task of the given engine or as a Thread of it's own.
+     *
+     * @param engine The I/O engine of the connection or NULL.
+     * @param device The interface adapter to register the receiver for with the engine.
+     */
+    @Override
+    public void start(final FtIoEngine engine, final Object device)
+    {
+        if (engine == null)
+        {
+            this.start();
+            return;
+        }
+        try
+        {
+            serPort.addEventListener((final SerialPortEvent event) ->
+            {
+                FtIoEngine.Registration task = this.registration;
+                if (task != null && event.getEventType() == SerialPortEvent.DATA_AVAILABLE)
                 {
-                    byte inbyte = buffer[i];
-                    if (isStartByte(inbyte)) // Start Byte = sequence number [0, 63].
-                    {
-                        commandBuffer.clear();
-                    }
-                    commandBuffer.add(inbyte);
-                    if (commandBuffer.size() == 7)
-                    {
-                        this.processISBs(commandBuffer);
-                    }                  
+                    task.wakeup();
+                }
+            });
+            serPort.notifyOnDataAvailable(true);
+            this.events = true;
+        }
+        catch(TooManyListenersException e)
+        {
+            LOGGER.log(Level.INFO, "No data-available events, the serial port is polled.");
+        }
+        this.registration = engine.register(device, this);
+    }
+
+    @Override
+    public boolean isRunning()
+    {
+        FtIoEngine.Registration task = this.registration;
+        return task != null ? !failed && !task.isCancelled() : this.isAlive();
+    }
+
+    /**
+     * Reads the available bytes without blocking.
+     *
+     * @return The time in ns until the next read, 0 if more bytes are available.
+     */
+    @Override
+    public long poll()
+    {
+        if (stopped || failed)
+        {
+            return Long.MAX_VALUE;
+        }
+        try
+        {
+            InputStream is = serPort.getInputStream();
+            int available = is.available();
+            if (available > 0)
+            {
+                int len = is.read(buffer, 0, Math.min(available, buffer.length));
+                if (len < 0)
+                {
+                    throw new IOException("End of stream.");
+                }
+                this.receive(buffer, len);
+                if (available > len)
+                {
+                    return 0L;
                 }
             }
-            LOGGER.log(Level.INFO, "SerialReceiverThread stopped.");
         }
         catch(IOException e)
         {
             LOGGER.log(Level.SEVERE, "Unintended termination of SerialReceiverThread.", e);
+            this.failed = true;
+            return Long.MAX_VALUE;
+        }
+        return events ? CHECK_INTERVAL : READ_POLL_INTERVAL;
+    }
+
+    /**
+     * Parses received bytes into frames and processes the complete ones.
+     *
+     * @param data The received bytes.
+     * @param len The number of received bytes.
+     */
+    private void receive(final byte[] data, final int len)
+    {
+        for (int i=0; i<len; i++)
+        {
+            byte inbyte = data[i];
+            if (ManchesterCodec.isStartByte(inbyte) || ManchesterCodec.isControlByte(inbyte))
+            {
+                // a standard frame while waiting for an extended one: telemetry not (yet) switched on.
+                if (commandBuffer.size() == ISB_LENGTH && commandBuffer.get(0) != CTRL_PROGRESS)
+                {
+                    this.processISBs(commandBuffer);
+                }
+                commandBuffer.clear();
+                if (ManchesterCodec.isControlByte(inbyte) && inbyte != CTRL_PROGRESS)
+                {
+                    continue; // other control frames are not forwarded, wait for the next ISB frame
+                }
+            }
+            else if (commandBuffer.isEmpty())
+            {
+                continue; // wait for the next Start Byte = sequence number [0, 63].
+            }
+            commandBuffer.add(inbyte);
+            if (commandBuffer.get(0) == CTRL_PROGRESS)
+            {
+                if (commandBuffer.size() == CTRL_PROGRESS_LENGTH)
+                {
+                    this.processProgress(commandBuffer);
+                    commandBuffer.clear();
+                }
+            }
+            else if (commandBuffer.size() == (telemetry ? ISB_TELEMETRY_LENGTH : ISB_LENGTH))
+            {
+                this.processISBs(commandBuffer);
+                commandBuffer.clear();
+            }
         }
     }
     
@@ -173,7 +280,8 @@ public class SerialReceiverThread extends AbstractSerialReceiverThread
      * Process received ISBs.
      * 
      * @param isbs The ISBs. Index 0: Magic Byte,
-     * Index 1, 2 = digital inputs, Index 3, 4 EX, Index 5, 6 = EY. 
+     * Index 1, 2 = digital inputs, Index 3, 4 EX, Index 5, 6 = EY.
+     * Extended frame only: Index 7-14 = timestamp, Index 15-26 = steps M1-M3, Index 27-38 = periods M1-M3.
      */
     private void processISBs(List<Byte> isbs)
     {
@@ -184,14 +292,21 @@ public class SerialReceiverThread extends AbstractSerialReceiverThread
         
         try
         {
-            int seqNr = toUnsignedInt(isbs.get(0));
-            int di = decodeManchester(isbs.get(1), isbs.get(2));
-            int ex = decodeManchester(isbs.get(3), isbs.get(4));
-            int ey = decodeManchester(isbs.get(5), isbs.get(6));
+            int seqNr = ManchesterCodec.toUnsignedInt(isbs.get(0));
+            int di = ManchesterCodec.decode(isbs.get(1), isbs.get(2));
+            int ex = ManchesterCodec.decode(isbs.get(3), isbs.get(4));
+            int ey = ManchesterCodec.decode(isbs.get(5), isbs.get(6));
             FtInputs inputs = new FtInputs(seqNr, di, ex, ey);
             inputs.setFlags(flags);
+            if (isbs.size() == ISB_TELEMETRY_LENGTH)
+            {
+                inputs.setTelemetry(decodeTelemetry(isbs));
+            }
             
-            SequenceLockHelper.INSTANCE.removeSeqNr(seqNr);
+            if (sequenceLockHelper != null)
+            {
+                sequenceLockHelper.removeSeqNr(seqNr);
+            }
             callback.onDataReceived(inputs);
         }
         catch(NumberFormatException e)
@@ -203,6 +318,60 @@ public class SerialReceiverThread extends AbstractSerialReceiverThread
             this.flags = null;
         }
     }
+    
+    /**
+     * Process a received progress frame.
+     * 
+     * @param frame The progress frame. Index 0: Control Byte, Index 1, 2 = state, Index 3, 4 = step,
+     * Index 5, 6 = repetition, Index 7, 8 = digital inputs, Index 9, 10 = EX, Index 11, 12 = EY.
+     */
+    private void processProgress(List<Byte> frame)
+    {
+        IFtProgramListener listener = this.programListener;
+        if (listener == null)
+        {
+            return;
+        }
+        
+        try
+        {
+            int state = ManchesterCodec.decode(frame.get(1), frame.get(2));
+            int step = ManchesterCodec.decode(frame.get(3), frame.get(4));
+            int repetition = ManchesterCodec.decode(frame.get(5), frame.get(6));
+            FtInputs inputs = new FtInputs(0, ManchesterCodec.decode(frame.get(7), frame.get(8)),
+                    ManchesterCodec.decode(frame.get(9), frame.get(10)),
+                    ManchesterCodec.decode(frame.get(11), frame.get(12)));
+            FtProgramProgress.State[] states = FtProgramProgress.State.values();
+            if (state >= states.length)
+            {
+                throw new NumberFormatException("Invalid program state: " + state);
+            }
+            listener.onProgress(new FtProgramProgress(states[state], step, repetition, inputs));
+        }
+        catch(NumberFormatException e)
+        {
+            LOGGER.log(Level.SEVERE, "Invalid progress frame received.", e);
+        }
+    }
+    
+    /**
+     * Decode the telemetry data of an extended ISB frame.
+     * 
+     * @param isbs The ISBs of an extended frame.
+     * @return The telemetry data.
+     */
+    private static FtInputsTelemetry decodeTelemetry(List<Byte> isbs)
+    {
+        long timestamp = ManchesterCodec.decode(isbs, 7, 4);
+        List<Integer> steps = new ArrayList<>();
+        List<Integer> periods = new ArrayList<>();
+        for (int i=0; i<3; i++)
+        {
+            steps.add((int) ManchesterCodec.decode(isbs, 15 + 4*i, 2));
+            periods.add((int) ManchesterCodec.decode(isbs, 27 + 4*i, 2));
+        }
+        return new FtInputsTelemetry(timestamp, steps, periods);
+    }
 
     
 }
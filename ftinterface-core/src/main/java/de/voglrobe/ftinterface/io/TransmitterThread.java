@@ -0,0 +1,416 @@
+package de.voglrobe.ftinterface.io;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A Thread implementation to transmit the queued frames to the interface adapter.
+ * <p>
+ * Frames are paced to the wire speed, i.e. the next frame is not handed to the serial port before the previous
+ * one has been transmitted. Thus the OS transmit buffer never fills up and a frame in the priority lane is on
+ * the wire right after the frame currently being transmitted. The queue and the priority lane are lock-free.
+ * <p>
+ * In conflating mode a MCC is put into a single-slot mailbox instead of the queue. A newer MCC replaces a MCC
+ * that has not been written yet, i.e. the interface adapter always gets the latest MCC. MCCs are merged per motor
+ * with the outputs last written (see {@link FtOutput#merge(FtOutput)}), thus a MCC that commands some motors only
+ * leaves the other motors in their last state.
+ * <p>
+ * A MCC with a deadline that is dequeued too late is discarded and reported as expired instead of being written.
+ * <p>
+ * The transmitter runs either as a Thread of it's own or as a task of a {@link FtIoEngine}, see
+ * {@link #start(FtIoEngine)}.
+ * <p>
+ * This Thread is not reusable. Once terminated it cannot be restarted.
+ *
+ * @author robert
+ */
+class TransmitterThread extends Thread implements IFtIoTask
+{
+    private static final Logger LOGGER = Logger.getLogger(TransmitterThread.class.getName());
+
+    private static final long IDLE_WAIT = TimeUnit.MILLISECONDS.toNanos(10L);
+    private static final long BITS_PER_BYTE = 10L; // Start bit + 8 data bits + stop bit
+
+    /**
+     * A frame to transmit.
+     */
+    static class Frame
+    {
+        private final byte[] bytes;
+        private final FtInputsFlags flags;
+        private final int seqNr;
+        private final boolean stepping;
+        private final FtOutput output;
+        private final long deadline;
+
+        /**
+         * Constructor.
+         *
+         * @param bytes The bytes to transmit.
+         * @param flags Flags for the receiver or NULL.
+         * @param seqNr The sequence number of a MCC or -1 for other frames.
+         * @param stepping TRUE if the frame is a stepping command.
+         */
+        Frame(final byte[] bytes, final FtInputsFlags flags, final int seqNr, final boolean stepping)
+        {
+            this.bytes = bytes;
+            this.flags = flags;
+            this.seqNr = seqNr;
+            this.stepping = stepping;
+            this.output = null;
+            this.deadline = 0L;
+        }
+
+        /**
+         * Constructor for a MCC that is merged with the outputs last written.
+         *
+         * @param output The MCC to transmit. It's motor mask selects the motors to command.
+         * @param startChar The start char of the frame. Priority frames ('!') carry no sequence number, i.e. they are
+         * neither tracked nor do they set the flags of the receiver.
+         * @param flags Flags for the receiver or NULL.
+         */
+        Frame(final FtOutput output, final byte startChar, final FtInputsFlags flags)
+        {
+            this(output, startChar, flags, 0L);
+        }
+
+        /**
+         * Constructor for a MCC with a deadline that is merged with the outputs last written.
+         *
+         * @param output The MCC to transmit.
+         * @param startChar The start char of the frame.
+         * @param flags Flags for the receiver or NULL.
+         * @param deadline The point in time the MCC must be written by in milliseconds since the epoch.
+         * 0 = no deadline.
+         */
+        Frame(final FtOutput output, final byte startChar, final FtInputsFlags flags, final long deadline)
+        {
+            this.bytes = output.bytes();
+            this.bytes[0] = startChar;
+            this.flags = flags;
+            this.seqNr = startChar != '!' ? output.getSeqNr() : -1;
+            this.stepping = output.isStepping();
+            this.output = new FtOutput(output);
+            this.deadline = deadline;
+        }
+
+        byte[] getBytes()
+        {
+            return bytes;
+        }
+
+        FtInputsFlags getFlags()
+        {
+            return flags;
+        }
+
+        int getSeqNr()
+        {
+            return seqNr;
+        }
+
+        boolean isStepping()
+        {
+            return stepping;
+        }
+
+        FtOutput getOutput()
+        {
+            return output;
+        }
+
+        long getDeadline()
+        {
+            return deadline;
+        }
+
+        boolean isExpired(final long now)
+        {
+            return deadline > 0L && now > deadline;
+        }
+    }
+
+    private final FtSerialPortSenderReceiver ftSenderReceiver;
+    private final Queue<Frame> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicReference<Frame> priority = new AtomicReference<>();
+    private final AtomicReference<Frame> latest = new AtomicReference<>();
+
+    private volatile boolean stopped;
+    private volatile boolean dequeuing;
+    private volatile FtOutput outputs;
+    private volatile long wireBusyUntil;
+    private volatile FtIoEngine.Registration registration;
+
+
+    /**
+     * Constructor.
+     *
+     * @param ftSenderReceiver The sender to transmit the frames with.
+     */
+    TransmitterThread(final FtSerialPortSenderReceiver ftSenderReceiver)
+    {
+        this.ftSenderReceiver = ftSenderReceiver;
+        this.stopped = false;
+        this.outputs = new FtOutput();
+        this.wireBusyUntil = System.nanoTime();
+        this.registration = null;
+        this.setName("TransmitterThread");
+        this.setDaemon(true);
+    }
+
+    /**
+     * Starts the transmitter as a task of the given engine or as a Thread of it's own.
+     *
+     * @param engine The engine or NULL.
+     */
+    void start(final FtIoEngine engine)
+    {
+        if (engine == null)
+        {
+            this.start();
+            return;
+        }
+        this.registration = engine.register(ftSenderReceiver, this);
+    }
+
+    /**
+     * Wakes up the transmitter to write the next frame.
+     */
+    private void wakeup()
+    {
+        FtIoEngine.Registration task = this.registration;
+        if (task != null)
+        {
+            task.wakeup();
+        }
+        else
+        {
+            LockSupport.unpark(this);
+        }
+    }
+
+    /**
+     * Appends a frame to the queue.
+     *
+     * @param frame The frame to transmit.
+     */
+    void submit(final Frame frame)
+    {
+        queue.offer(frame);
+        this.wakeup();
+    }
+
+    /**
+     * Puts a MCC into the mailbox. A MCC in the mailbox that has not been written yet is replaced: both are merged
+     * per motor and the flags, the sequence number and the deadline of the newer one are kept.
+     *
+     * @param frame The MCC to transmit. Must have been created from a {@link FtOutput}.
+     * @return The replaced MCC or NULL.
+     */
+    Frame submitLatest(final Frame frame)
+    {
+        Frame replaced = latest.getAndUpdate((Frame pending) -> pending == null
+                ? frame
+                : new Frame(pending.getOutput().merge(frame.getOutput()), frame.getBytes()[0], frame.getFlags(),
+                        frame.getDeadline()));
+        this.wakeup();
+        return replaced;
+    }
+
+    /**
+     * Moves a MCC from the mailbox to the end of the queue, e.g. to keep it in order with a following frame that
+     * must not be conflated.
+     */
+    void flushLatest()
+    {
+        Frame pending = latest.getAndSet(null);
+        if (pending != null)
+        {
+            queue.offer(pending);
+        }
+    }
+
+    /**
+     * Transmits the given frame before all queued frames.
+     *
+     * @param frame The frame to transmit.
+     */
+    void submitPriority(final Frame frame)
+    {
+        priority.set(frame);
+        this.wakeup();
+    }
+
+    /**
+     * Removes all queued frames and the MCC in the mailbox.
+     *
+     * @return The removed frames.
+     */
+    List<Frame> cancel()
+    {
+        List<Frame> ret = new ArrayList<>();
+        Frame frame = latest.getAndSet(null);
+        if (frame != null)
+        {
+            ret.add(frame);
+        }
+        while ((frame = queue.poll()) != null)
+        {
+            ret.add(frame);
+        }
+        return ret;
+    }
+
+    /**
+     * Returns the number of queued frames.
+     *
+     * @return The queue length.
+     */
+    int getQueueSize()
+    {
+        return queue.size() + (latest.get() != null ? 1 : 0);
+    }
+
+    /**
+     * Returns whether the queue, the mailbox and the priority lane are empty and the wire is free.
+     *
+     * @return TRUE if idle.
+     */
+    boolean isIdle()
+    {
+        // a dequeued frame is not written yet as long as the flag is set
+        return priority.get() == null && queue.isEmpty() && latest.get() == null && !dequeuing
+                && wireBusyUntil - System.nanoTime() <= 0;
+    }
+
+    /**
+     * Forgets the outputs last written, e.g. after the interface adapter has been reset.
+     * The following MCCs are merged with all motors OFF.
+     */
+    void resetOutputs()
+    {
+        this.outputs = new FtOutput();
+    }
+
+    /**
+     * Asks the Thread to terminate and returns immediately.
+     * The caller should sync with the Thread and await it's termination.
+     */
+    void terminate()
+    {
+        LOGGER.log(Level.INFO, "Stopping TransmitterThread...");
+        this.stopped = true;
+        FtIoEngine.Registration task = this.registration;
+        if (task != null)
+        {
+            task.cancel();
+        }
+        LockSupport.unpark(this);
+    }
+
+    /**
+     * Transmits a frame and books the wire for it's transmission time.
+     *
+     * @param frame The frame to transmit.
+     */
+    private void transmit(final Frame frame)
+    {
+        if (frame.isExpired(System.currentTimeMillis()))
+        {
+            ftSenderReceiver.expire(frame);
+            return;
+        }
+        ftSenderReceiver.transmit(this.merge(frame));
+    }
+
+    /**
+     * Merges a MCC with the outputs last written and takes the result as the outputs last written.
+     *
+     * @param frame The frame to write next.
+     * @return The frame to write, i.e. the given one if it's not a MCC or commands all motors.
+     */
+    Frame merge(final Frame frame)
+    {
+        if (frame.getOutput() == null)
+        {
+            return frame;
+        }
+        FtOutput full = outputs.merge(frame.getOutput());
+        this.outputs = full.settle(); // stepping motors stop after their steps
+        if (frame.getOutput().getMask() != FtOutput.MASK_ALL)
+        {
+            return new Frame(full, frame.getBytes()[0], frame.getFlags());
+        }
+        return frame;
+    }
+
+    /**
+     * Books the wire for the transmission time of bytes that have just been written. Called for all writes, i.e.
+     * also for retransmissions and configuration commands that bypass the queue.
+     *
+     * @param length The number of written bytes.
+     * @return The estimated point in time the bytes have been transmitted completely (System.nanoTime()).
+     */
+    long book(final int length)
+    {
+        long byteTime = TimeUnit.SECONDS.toNanos(BITS_PER_BYTE) / ftSenderReceiver.getSpeed();
+        long ret = Math.max(System.nanoTime(), wireBusyUntil) + length * byteTime;
+        this.wireBusyUntil = ret;
+        return ret;
+    }
+
+    /**
+     * Writes the next frame if the wire is free or a frame is in the priority lane.
+     *
+     * @return The time in ns until the wire is free or {@link Long#MAX_VALUE} if there is nothing to write.
+     */
+    @Override
+    public long poll()
+    {
+        if (stopped)
+        {
+            return Long.MAX_VALUE;
+        }
+        this.dequeuing = true;
+        Frame frame = priority.getAndSet(null);
+        if (frame == null && wireBusyUntil - System.nanoTime() <= 0)
+        {
+            frame = queue.poll();
+            if (frame == null)
+            {
+                frame = latest.getAndSet(null);
+            }
+        }
+        if (frame != null)
+        {
+            this.transmit(frame);
+            this.dequeuing = false;
+            return 0L;
+        }
+        this.dequeuing = false;
+        long wait = wireBusyUntil - System.nanoTime();
+        return wait > 0 ? wait : Long.MAX_VALUE;
+    }
+
+    @Override
+    public void run()
+    {
+        while (!stopped)
+        {
+            long wait = this.poll();
+            if (wait > 0)
+            {
+                LockSupport.parkNanos(this, Math.min(wait, IDLE_WAIT));
+            }
+        }
+        LOGGER.log(Level.INFO, "TransmitterThread stopped.");
+    }
+
+}
@@ -0,0 +1,1281 @@
+package de.voglrobe.ftinterface.sim;
+
+import de.voglrobe.ftinterface.exceptions.ComException;
+import de.voglrobe.ftinterface.io.FtProgramProgress;
+import de.voglrobe.ftinterface.io.FtSerialPortConfig;
+import de.voglrobe.ftinterface.io.IFtSerialPortProvider;
+import de.voglrobe.ftinterface.io.ManchesterCodec;
+import gnu.io.SerialPort;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A software simulation of the interface adapter (Arduino firmware plus ft-Interface) for tests and benchmarks.
+ * <p>
+ * The simulation speaks the same serial protocol as the firmware: MCCs ('$'), retransmitted MCCs ('%'),
+ * priority MCCs ('!'), join commands ('&'), configuration commands ('#'), program steps ('*'), ISB frames and
+ * control frames (HELLO, ACK, PROGRESS). The line is modelled with the transmission time of each byte at the
+ * current port speed (10 bits per byte) in both directions. Stepping commands take the configured time per step.
+ * The outputs are switched off if no command arrives within the hold time.
+ * <p>
+ * Usage: <code>new FtSerialPortConfig().portProvider(new SimulatedInterfaceAdapter())</code>.
+ *
+ * @author robert
+ */
+public class SimulatedInterfaceAdapter implements IFtSerialPortProvider
+{
+    private static final Logger LOGGER = Logger.getLogger(SimulatedInterfaceAdapter.class.getName());
+
+    /**
+     * The firmware version reported by the simulation.
+     */
+    public static final int FIRMWARE_VERSION = 4;
+
+    private static final byte CTRL_ACK = (byte) 0xC1;
+    private static final byte CTRL_HELLO = (byte) 0xC2;
+    private static final byte CTRL_PROGRESS = (byte) 0xC3;
+    private static final int CONFIG_PING = 0;
+    private static final int CONFIG_TELEMETRY = 1;
+    private static final int CONFIG_SPEED = 2;
+    private static final int CONFIG_HOLD = 3;
+    private static final int CONFIG_PROGRAM = 4;
+    private static final int PROGRAM_SIZE = 32;
+    private static final long DEFAULT_HOLD_TIME = 125L; // ms
+    private static final int NO_OWNER = -1;
+    private static final long IDLE_WAIT = 1L; // ms
+
+    // delivers the data-available events of all simulations when the last byte of a frame has arrived
+    private static final ScheduledExecutorService EVENTS = Executors.newSingleThreadScheduledExecutor(
+            (final Runnable runnable) ->
+            {
+                Thread thread = new Thread(runnable, "SimulatedLineEvents");
+                thread.setDaemon(true);
+                return thread;
+            });
+
+    /**
+     * A frame received from the host.
+     */
+    public static class ReceivedFrame
+    {
+        private final char startChar;
+        private final String text;
+        private final long arrival;
+
+        private ReceivedFrame(final char startChar, final String text, final long arrival)
+        {
+            this.startChar = startChar;
+            this.text = text;
+            this.arrival = arrival;
+        }
+
+        /**
+         * Returns the start char of the frame.
+         *
+         * @return '$', '%', '!' or '#'.
+         */
+        public char getStartChar()
+        {
+            return startChar;
+        }
+
+        /**
+         * Returns the frame without start char and terminal char, e.g. '85,0,0,0,5'.
+         *
+         * @return The frame text.
+         */
+        public String getText()
+        {
+            return text;
+        }
+
+        /**
+         * Returns the time the start char has been received completely.
+         *
+         * @return The value of {@link System#nanoTime()} at arrival.
+         */
+        public long getArrival()
+        {
+            return arrival;
+        }
+
+        @Override
+        public String toString()
+        {
+            return startChar + text;
+        }
+    }
+
+    /**
+     * A byte on the line with the time it has been transmitted completely.
+     */
+    private static class WireByte
+    {
+        private final byte value;
+        private final long at;
+
+        private WireByte(final byte value, final long at)
+        {
+            this.value = value;
+            this.at = at;
+        }
+    }
+
+    /**
+     * A buffered motor command.
+     */
+    private static class Command
+    {
+        private final int seqNr;
+        private final int mcb;
+        private final int[] steps;
+
+        private Command(final int seqNr, final int mcb, final int[] steps)
+        {
+            this.seqNr = seqNr;
+            this.mcb = mcb;
+            this.steps = steps;
+        }
+    }
+
+    /**
+     * A step of the program buffer.
+     */
+    private static class ProgramStep
+    {
+        private final int mcb;
+        private final int[] steps;
+        private final long duration;
+        private final int until;
+        private final int repeat;
+
+        private ProgramStep(final int[] values)
+        {
+            this.mcb = values[1] & 0xFF;
+            this.steps = new int[] {values[2], values[3], values[4]};
+            this.duration = values[5] & 0xFFFF;
+            this.until = values[6];
+            this.repeat = Math.min(255, values[7]);
+        }
+    }
+
+    // guards both directions of the line
+    private final Object line = new Object();
+    private final Deque<WireByte> rx = new ArrayDeque<>(); // host -> interface adapter
+    private final Deque<WireByte> tx = new ArrayDeque<>(); // interface adapter -> host
+    private long rxFree;
+    private long txFree;
+
+    private final List<ReceivedFrame> received = Collections.synchronizedList(new ArrayList<>());
+
+    private SimulatedSerialPort port;
+    private DeviceThread device;
+
+    private volatile int speed;
+    private volatile boolean telemetry;
+    private volatile boolean autoReset;
+    private volatile boolean unplugged;
+    private volatile long bootTime;
+    private volatile long executionTime;
+    private volatile long stepTime;
+    private volatile double isbLoss;
+    private volatile int digitalInputs;
+    private volatile int analogX;
+    private volatile int analogY;
+    private volatile int mcb;
+    private volatile int resets;
+    private volatile long holdTime;
+    private volatile int holdTimeouts;
+
+
+    /**
+     * Constructor.
+     * <p>
+     * The default simulation resets on open, boots within 20 ms, executes a non-stepping command within 1 ms and
+     * a step within 10 ms.
+     */
+    public SimulatedInterfaceAdapter()
+    {
+        this.port = null;
+        this.device = null;
+        this.speed = FtSerialPortConfig.SAFE_SPEED;
+        this.telemetry = false;
+        this.autoReset = true;
+        this.unplugged = false;
+        this.bootTime = 20L;
+        this.executionTime = 1L;
+        this.stepTime = 10L;
+        this.isbLoss = 0.0;
+        this.digitalInputs = 0;
+        this.analogX = 0;
+        this.analogY = 0;
+        this.mcb = 0;
+        this.resets = 0;
+        this.holdTime = DEFAULT_HOLD_TIME;
+        this.holdTimeouts = 0;
+    }
+
+    /**
+     * Sets whether the interface adapter resets when the port is opened (Arduino auto-reset).
+     *
+     * @param autoReset TRUE (default) to reset on open.
+     * @return THIS.
+     */
+    public SimulatedInterfaceAdapter autoReset(final boolean autoReset)
+    {
+        this.autoReset = autoReset;
+        return this;
+    }
+
+    /**
+     * Sets the timing of the simulation.
+     *
+     * @param bootTime Time from reset until HELLO in ms.
+     * @param executionTime Time to execute a non-stepping command in ms.
+     * @param stepTime Time per step of a stepping command in ms.
+     * @return THIS.
+     */
+    public SimulatedInterfaceAdapter timing(final long bootTime, final long executionTime, final long stepTime)
+    {
+        this.bootTime = bootTime;
+        this.executionTime = executionTime;
+        this.stepTime = stepTime;
+        return this;
+    }
+
+    /**
+     * Sets the probability that an ISB frame gets lost on the line.
+     *
+     * @param isbLoss The probability [0.0, 1.0].
+     * @return THIS.
+     */
+    public SimulatedInterfaceAdapter isbLoss(final double isbLoss)
+    {
+        this.isbLoss = isbLoss;
+        return this;
+    }
+
+    /**
+     * Sets the current input values returned with each ISB frame.
+     *
+     * @param digitalInputs The digital inputs E1-E8 as byte E1|E2|...|E8.
+     * @param analogX The analog input EX [0, 255].
+     * @param analogY The analog input EY [0, 255].
+     */
+    public void setInputs(final int digitalInputs, final int analogX, final int analogY)
+    {
+        this.digitalInputs = digitalInputs;
+        this.analogX = analogX;
+        this.analogY = analogY;
+    }
+
+    /**
+     * Simulates unplugging (TRUE) or plugging in (FALSE) the USB cable. While unplugged, the serial port fails
+     * with an {@link IOException} and cannot be opened.
+     *
+     * @param unplugged TRUE to unplug.
+     */
+    public void setUnplugged(final boolean unplugged)
+    {
+        this.unplugged = unplugged;
+        synchronized(line)
+        {
+            line.notifyAll();
+        }
+    }
+
+    /**
+     * Returns the frames received from the host so far.
+     *
+     * @return A snapshot of the received frames in order of arrival.
+     */
+    public List<ReceivedFrame> getReceivedFrames()
+    {
+        synchronized(received)
+        {
+            return new ArrayList<>(received);
+        }
+    }
+
+    /**
+     * Forgets the frames received so far.
+     */
+    public void clearReceivedFrames()
+    {
+        received.clear();
+    }
+
+    /**
+     * Returns the Motor Control Byte that is currently applied to the motors.
+     *
+     * @return The Motor Control Byte |M1|M2|M3|M4|.
+     */
+    public int getMotorControlByte()
+    {
+        return mcb;
+    }
+
+    /**
+     * Returns the number of times the outputs have been switched off because the hold time elapsed.
+     *
+     * @return The number of hold timeouts since creation.
+     */
+    public int getHoldTimeouts()
+    {
+        return holdTimeouts;
+    }
+
+    /**
+     * Returns the current hold time of the interface adapter.
+     *
+     * @return The hold time in ms.
+     */
+    public long getHoldTime()
+    {
+        return holdTime;
+    }
+
+    /**
+     * Returns the current port speed of the interface adapter.
+     *
+     * @return The port speed in Bit/s.
+     */
+    public int getSpeed()
+    {
+        return speed;
+    }
+
+    /**
+     * Returns the number of resets.
+     *
+     * @return The number of resets since creation.
+     */
+    public int getResets()
+    {
+        return resets;
+    }
+
+    @Override
+    public synchronized SerialPort open(final String portName) throws ComException
+    {
+        if (unplugged)
+        {
+            throw new ComException("Port " + portName + " not available.");
+        }
+        if (port != null && !port.isClosed())
+        {
+            throw new ComException("Port " + portName + " is currently in use.");
+        }
+        this.port = new SimulatedSerialPort(this, portName);
+        if (autoReset || device == null)
+        {
+            this.reset();
+        }
+        return port;
+    }
+
+    /**
+     * Resets the interface adapter. All buffered commands and settings are lost.
+     */
+    public synchronized void reset()
+    {
+        this.terminateDevice();
+        synchronized(line)
+        {
+            rx.clear();
+            tx.clear();
+            line.notifyAll();
+        }
+        this.speed = FtSerialPortConfig.SAFE_SPEED;
+        this.telemetry = false;
+        this.mcb = 0;
+        this.holdTime = DEFAULT_HOLD_TIME;
+        this.resets++;
+        this.device = new DeviceThread();
+        device.start();
+    }
+
+    /**
+     * Stops the simulation. Must be called at the end of the life-cycle.
+     */
+    public synchronized void destroy()
+    {
+        this.terminateDevice();
+    }
+
+    /**
+     * Stops the current device thread.
+     */
+    private void terminateDevice()
+    {
+        if (device != null)
+        {
+            device.terminate();
+            try
+            {
+                device.join();
+            }
+            catch(InterruptedException dontcare)
+            {
+            }
+            this.device = null;
+        }
+    }
+
+    /**
+     * Called by the serial port on close.
+     *
+     * @param closedPort The closed port.
+     */
+    synchronized void disconnect(final SimulatedSerialPort closedPort)
+    {
+        if (port == closedPort)
+        {
+            this.port = null;
+        }
+        synchronized(line)
+        {
+            tx.clear();
+            line.notifyAll();
+        }
+    }
+
+    /**
+     * Returns the transmission time of a single byte at the current port speed.
+     *
+     * @return The time in ns.
+     */
+    private long byteTime()
+    {
+        return TimeUnit.SECONDS.toNanos(10) / speed;
+    }
+
+    /**
+     * Called by the serial port to send data to the interface adapter.
+     */
+    void hostWrite(final SimulatedSerialPort source, final byte[] b, final int off, final int len) throws IOException
+    {
+        if (unplugged)
+        {
+            throw new IOException("Device unplugged.");
+        }
+        if (source.getBaudRate() != speed)
+        {
+            return; // garbage on the line
+        }
+        synchronized(line)
+        {
+            long byteTime = this.byteTime();
+            for (int i=off; i<off+len; i++)
+            {
+                this.rxFree = Math.max(System.nanoTime(), rxFree) + byteTime;
+                rx.addLast(new WireByte(b[i], rxFree));
+            }
+            line.notifyAll();
+        }
+    }
+
+    /**
+     * Called by the serial port to receive data from the interface adapter.
+     *
+     * @return The number of bytes read, 0 on timeout.
+     */
+    int hostRead(final SimulatedSerialPort source, final byte[] b, final int off, final int len, final int timeout)
+            throws IOException
+    {
+        long deadline = timeout > 0 ? System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout) : Long.MAX_VALUE;
+        synchronized(line)
+        {
+            while (true)
+            {
+                if (unplugged)
+                {
+                    throw new IOException("Device unplugged.");
+                }
+                if (source.isClosed())
+                {
+                    return -1;
+                }
+                long now = System.nanoTime();
+                WireByte head = tx.peekFirst();
+                if (head != null && head.at <= now)
+                {
+                    int count = 0;
+                    while (count < len && head != null && head.at <= now)
+                    {
+                        b[off + count++] = tx.pollFirst().value;
+                        head = tx.peekFirst();
+                    }
+                    return count;
+                }
+                long wait = Math.min(head != null ? head.at - now : Long.MAX_VALUE, deadline - now);
+                if (wait <= 0)
+                {
+                    return 0;
+                }
+                try
+                {
+                    TimeUnit.NANOSECONDS.timedWait(line, Math.min(wait, TimeUnit.SECONDS.toNanos(1)));
+                }
+                catch(InterruptedException e)
+                {
+                    return 0;
+                }
+            }
+        }
+    }
+
+    /**
+     * Called by the serial port to get the number of bytes that have arrived at the host.
+     *
+     * @return The number of bytes that can be read without blocking.
+     */
+    int hostAvailable() throws IOException
+    {
+        if (unplugged)
+        {
+            throw new IOException("Device unplugged.");
+        }
+        synchronized(line)
+        {
+            long now = System.nanoTime();
+            int count = 0;
+            for (WireByte wireByte : tx)
+            {
+                if (wireByte.at > now)
+                {
+                    break;
+                }
+                count++;
+            }
+            return count;
+        }
+    }
+
+    /**
+     * Sends data to the host.
+     *
+     * @param data The bytes to send.
+     */
+    private void deviceWrite(final byte... data)
+    {
+        SimulatedSerialPort target;
+        long arrival;
+        synchronized(line)
+        {
+            target = this.port;
+            if (target == null)
+            {
+                return;
+            }
+            long byteTime = this.byteTime();
+            for (byte value : data)
+            {
+                this.txFree = Math.max(System.nanoTime(), txFree) + byteTime;
+                tx.addLast(new WireByte(value, txFree));
+            }
+            arrival = txFree;
+            line.notifyAll();
+        }
+        if (target.isNotifyingOnData())
+        {
+            EVENTS.schedule(target::dataAvailable, arrival - System.nanoTime(), TimeUnit.NANOSECONDS);
+        }
+    }
+
+    /**
+     * Encodes the lowest 'count' bytes of the given value, lowest byte first, Manchester-coded as LSB and MSB.
+     */
+    private static void writeManchester(final List<Byte> frame, final long value, final int count)
+    {
+        for (int i=0; i<count; i++)
+        {
+            int m = ManchesterCodec.encode((int) (value >> 8*i) & 0xFF);
+            frame.add((byte) (m & 0xFF));
+            frame.add((byte) ((m >> 8) & 0xFF));
+        }
+    }
+
+    /**
+     * Sends the given frame to the host.
+     */
+    private void deviceWrite(final List<Byte> frame)
+    {
+        byte[] data = new byte[frame.size()];
+        for (int i=0; i<data.length; i++)
+        {
+            data[i] = frame.get(i);
+        }
+        this.deviceWrite(data);
+    }
+
+    /**
+     * The firmware main loop.
+     */
+    private class DeviceThread extends Thread
+    {
+        private final Deque<Command> commands = new ArrayDeque<>();
+        private final boolean[] executed = new boolean[64];
+        private final long start = System.currentTimeMillis();
+        private final StringBuilder frame = new StringBuilder();
+        private final ProgramStep[] program = new ProgramStep[PROGRAM_SIZE];
+        private int programStart = 0;
+        private boolean programStop = false;
+        private char frameStart = 0;
+        private long frameArrival = 0L;
+        private long clkHold = System.currentTimeMillis();
+        private volatile boolean stopped = false;
+
+        private DeviceThread()
+        {
+            this.setName("SimulatedInterfaceAdapter");
+            this.setDaemon(true);
+        }
+
+        private void terminate()
+        {
+            this.stopped = true;
+            synchronized(line)
+            {
+                line.notifyAll();
+            }
+        }
+
+        @Override
+        public void run()
+        {
+            this.pause(bootTime);
+            if (stopped)
+            {
+                return;
+            }
+            List<Byte> hello = new ArrayList<>();
+            hello.add(CTRL_HELLO);
+            writeManchester(hello, FIRMWARE_VERSION, 1);
+            deviceWrite(hello);
+
+            while (!stopped)
+            {
+                this.serialEvent();
+                Command command = commands.pollFirst();
+                if (command != null)
+                {
+                    this.clkHold = System.currentTimeMillis();
+                    this.execute(command);
+                    continue;
+                }
+                if (programStart > 0)
+                {
+                    // the program runs after the buffered commands
+                    int length = programStart;
+                    this.programStart = 0;
+                    this.runProgram(length);
+                    this.clkHold = System.currentTimeMillis();
+                    continue;
+                }
+                if (mcb != 0 && System.currentTimeMillis() - clkHold >= holdTime)
+                {
+                    mcb = 0;
+                    holdTimeouts++;
+                }
+                synchronized(line)
+                {
+                    WireByte head = rx.peekFirst();
+                    long wait = head != null ? head.at - System.nanoTime()
+                            : TimeUnit.MILLISECONDS.toNanos(IDLE_WAIT);
+                    if (wait > 0 && !stopped)
+                    {
+                        try
+                        {
+                            TimeUnit.NANOSECONDS.timedWait(line, wait);
+                        }
+                        catch(InterruptedException dontcare)
+                        {
+                        }
+                    }
+                }
+            }
+        }
+
+        /**
+         * Waits the given time unless terminated.
+         */
+        private void pause(final long millis)
+        {
+            long until = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis);
+            long wait;
+            while (!stopped && (wait = until - System.nanoTime()) > 0)
+            {
+                LockSupport.parkNanos(Math.min(wait, TimeUnit.MILLISECONDS.toNanos(IDLE_WAIT)));
+            }
+        }
+
+        /**
+         * Returns the next byte that has arrived completely without removing it.
+         *
+         * @return The byte or -1 if nothing has arrived.
+         */
+        private int peek()
+        {
+            synchronized(line)
+            {
+                WireByte head = rx.peekFirst();
+                return head != null && head.at <= System.nanoTime() ? head.value : -1;
+            }
+        }
+
+        /**
+         * Processes all bytes that have arrived completely.
+         */
+        private void serialEvent()
+        {
+            while (!stopped)
+            {
+                WireByte wireByte;
+                synchronized(line)
+                {
+                    WireByte head = rx.peekFirst();
+                    if (head == null || head.at > System.nanoTime())
+                    {
+                        return;
+                    }
+                    wireByte = rx.pollFirst();
+                }
+                char c = (char) wireByte.value;
+                if (c == '$' || c == '%' || c == '!' || c == '&' || c == '#' || c == '*')
+                {
+                    this.frameStart = c;
+                    this.frameArrival = wireByte.at;
+                    frame.setLength(0);
+                }
+                else if (c == '\n')
+                {
+                    if (frameStart != 0)
+                    {
+                        this.process(frameStart, frame.toString(), frameArrival);
+                    }
+                    this.frameStart = 0;
+                }
+                else if (frameStart != 0)
+                {
+                    frame.append(c);
+                }
+            }
+        }
+
+        /**
+         * Parses the comma-separated decimal values of a frame.
+         *
+         * @return The values or NULL if the frame is invalid.
+         */
+        private int[] parse(final String text)
+        {
+            try
+            {
+                String[] items = text.split(",");
+                int[] values = new int[items.length];
+                for (int i=0; i<items.length; i++)
+                {
+                    values[i] = Integer.parseInt(items[i].trim());
+                }
+                return values;
+            }
+            catch(NumberFormatException e)
+            {
+                LOGGER.log(Level.FINE, "Invalid frame: {0}", text);
+                return null;
+            }
+        }
+
+        /**
+         * Creates a motor command from the values of a frame.
+         *
+         * @return The command or NULL if the values are incomplete.
+         */
+        private Command toCommand(final int[] values)
+        {
+            if (values == null || values.length < 4)
+            {
+                return null;
+            }
+            int seqNr = values.length > 4 ? values[4] & 0x3F : 0;
+            return new Command(seqNr, values[0] & 0xFF, new int[] {values[1], values[2], values[3]});
+        }
+
+        /**
+         * Processes a complete frame.
+         */
+        private void process(final char startChar, final String text, final long arrival)
+        {
+            received.add(new ReceivedFrame(startChar, text, arrival));
+            int[] values = this.parse(text);
+            if (values == null)
+            {
+                return;
+            }
+
+            if (startChar == '#')
+            {
+                if (values.length == 2)
+                {
+                    this.configure(values[0], values[1]);
+                }
+                return;
+            }
+            if (startChar == '*')
+            {
+                if (values.length == 8 && values[0] >= 0 && values[0] < PROGRAM_SIZE && Math.abs(values[6]) <= 8
+                        && values[7] > 0)
+                {
+                    program[values[0]] = new ProgramStep(values);
+                }
+                return;
+            }
+            Command command = this.toCommand(values);
+            if (command == null)
+            {
+                return;
+            }
+            int seqNr = command.seqNr;
+            switch(startChar)
+            {
+                case '!':
+                    commands.clear();
+                    executed[seqNr] = false;
+                    commands.addLast(command);
+                    break;
+                case '%':
+                    if (executed[seqNr])
+                    {
+                        this.writeISB(seqNr, new int[3]);
+                        this.clkHold = System.currentTimeMillis();
+                    }
+                    else if (commands.stream().noneMatch((Command c) -> c.seqNr == seqNr))
+                    {
+                        commands.addLast(command);
+                    }
+                    break;
+                default:
+                    executed[seqNr] = false;
+                    commands.addLast(command);
+                    break;
+            }
+        }
+
+        /**
+         * Applies a configuration command and acknowledges it.
+         */
+        private void configure(final int key, final long value)
+        {
+            long ack = value;
+            switch(key)
+            {
+                case CONFIG_PING:
+                    ack = FIRMWARE_VERSION;
+                    break;
+                case CONFIG_TELEMETRY:
+                    telemetry = value != 0;
+                    break;
+                case CONFIG_SPEED:
+                    ack = FtSerialPortConfig.SAFE_SPEED;
+                    for (int candidate : FtSerialPortConfig.SUPPORTED_SPEEDS)
+                    {
+                        if (candidate <= value)
+                        {
+                            ack = candidate;
+                        }
+                    }
+                    break;
+                case CONFIG_HOLD:
+                    ack = Math.max(0L, Math.min(FtSerialPortConfig.MAX_HOLD_TIME, value));
+                    holdTime = ack;
+                    break;
+                case CONFIG_PROGRAM:
+                    ack = Math.max(0L, Math.min(PROGRAM_SIZE, value));
+                    this.programStart = (int) ack;
+                    this.programStop = ack == 0;
+                    break;
+                default:
+                    return;
+            }
+            List<Byte> frame = new ArrayList<>();
+            frame.add(CTRL_ACK);
+            writeManchester(frame, key, 1);
+            writeManchester(frame, ack, 4);
+            deviceWrite(frame);
+            if (key == CONFIG_SPEED)
+            {
+                // switch after the ACK has been sent
+                synchronized(line)
+                {
+                    long drained = txFree - System.nanoTime();
+                    if (drained > 0)
+                    {
+                        LockSupport.parkNanos(drained);
+                    }
+                    speed = (int) ack;
+                }
+            }
+        }
+
+        /**
+         * Executes a motor command. Join commands arriving meanwhile start their idle motors concurrently.
+         * Each command is answered as soon as it's motors have performed their steps.
+         */
+        private void execute(final Command command)
+        {
+            executed[command.seqNr] = true;
+            int current = command.mcb;
+            int[] remaining = new int[3];
+            int[] owner = {command.seqNr, command.seqNr, command.seqNr};
+            boolean stepping = false;
+            for (int i=0; i<3; i++)
+            {
+                int mask = 0xC0 >> 2*i;
+                if ((current & mask) != 0 && command.steps[i] > 0)
+                {
+                    remaining[i] = command.steps[i];
+                    stepping = true;
+                }
+                else if (command.steps[i] < 0)
+                {
+                    current &= ~mask;
+                }
+            }
+            mcb = current;
+
+            if (!stepping)
+            {
+                this.pause(executionTime);
+            }
+            while (stepping && !stopped)
+            {
+                int next = this.peek();
+                if (next == '!')
+                {
+                    break; // priority command aborts the stepping command
+                }
+                if (next == '&')
+                {
+                    current = this.join(current, remaining, owner);
+                    mcb = current;
+                }
+                this.pause(stepTime);
+                stepping = false;
+                for (int i=0; i<3; i++)
+                {
+                    if (remaining[i] > 0 && --remaining[i] == 0)
+                    {
+                        current &= ~(0xC0 >> 2*i);
+                        mcb = current;
+                        this.complete(owner[i], remaining, owner);
+                    }
+                    stepping |= remaining[i] > 0;
+                }
+            }
+            mcb = current;
+
+            // answer all commands not yet answered (non-stepping or aborted)
+            for (int i=0; i<3; i++)
+            {
+                int seqNr = owner[i];
+                if (seqNr != NO_OWNER)
+                {
+                    for (int j=0; j<3; j++)
+                    {
+                        if (owner[j] == seqNr)
+                        {
+                            owner[j] = NO_OWNER;
+                        }
+                    }
+                    this.writeISB(seqNr, remaining);
+                }
+            }
+        }
+
+        /**
+         * Runs the first steps of the program buffer and reports the progress.
+         */
+        private void runProgram(final int length)
+        {
+            this.programStop = false;
+            for (int i=0; i<length; i++)
+            {
+                if (program[i] == null)
+                {
+                    this.writeProgress(FtProgramProgress.State.FAILED, i, 0); // step not uploaded
+                    return;
+                }
+            }
+            for (int i=0; i<length; i++)
+            {
+                for (int r=1; r<=program[i].repeat; r++)
+                {
+                    this.writeProgress(FtProgramProgress.State.RUNNING, i, r);
+                    if (!this.runStep(program[i]))
+                    {
+                        mcb = 0;
+                        this.writeProgress(FtProgramProgress.State.ABORTED, i, r);
+                        return;
+                    }
+                }
+            }
+            this.writeProgress(FtProgramProgress.State.FINISHED, length, 0);
+        }
+
+        /**
+         * Executes a program step: performs the steps, then holds the outputs until the condition is fulfilled or
+         * the duration has elapsed.
+         *
+         * @return FALSE if the program has been aborted.
+         */
+        private boolean runStep(final ProgramStep step)
+        {
+            int current = step.mcb;
+            int[] remaining = new int[3];
+            boolean stepping = false;
+            for (int i=0; i<3; i++)
+            {
+                int mask = 0xC0 >> 2*i;
+                if ((current & mask) != 0 && step.steps[i] > 0)
+                {
+                    remaining[i] = step.steps[i];
+                    stepping = true;
+                }
+                else if (step.steps[i] < 0)
+                {
+                    current &= ~mask;
+                }
+            }
+            mcb = current;
+            while (stepping)
+            {
+                if (this.isProgramAborted())
+                {
+                    return false;
+                }
+                this.pause(stepTime);
+                stepping = false;
+                for (int i=0; i<3; i++)
+                {
+                    if (remaining[i] > 0 && --remaining[i] == 0)
+                    {
+                        current &= ~(0xC0 >> 2*i);
+                        mcb = current;
+                    }
+                    stepping |= remaining[i] > 0;
+                }
+            }
+
+            // hold the outputs
+            long start = System.currentTimeMillis();
+            while ((step.until != 0 && step.duration == 0) || System.currentTimeMillis() - start < step.duration)
+            {
+                if (this.isProgramAborted())
+                {
+                    return false;
+                }
+                if (step.until != 0 && this.isConditionMet(step.until))
+                {
+                    break;
+                }
+                this.pause(IDLE_WAIT);
+            }
+            return !stopped;
+        }
+
+        /**
+         * Checks the input condition of a program step: n = E(n) is +5V, -n = E(n) is 0V.
+         */
+        private boolean isConditionMet(final int until)
+        {
+            boolean high = (digitalInputs >> (8 - Math.abs(until)) & 1) != 0;
+            return until > 0 ? high : !high;
+        }
+
+        /**
+         * Checks whether the running program must be aborted. All arrived frames are processed right away, like the
+         * firmware: configuration commands are applied, motor commands are buffered until the program has ended.
+         * A priority command aborts the program and is left for the main loop.
+         */
+        private boolean isProgramAborted()
+        {
+            int next;
+            while (!stopped && ((next = this.peek()) == '$' || next == '%' || next == '&' || next == '#'
+                    || next == '*'))
+            {
+                StringBuilder text = new StringBuilder();
+                long arrival = this.readFrame(text);
+                this.process((char) next, text.toString(), arrival);
+            }
+            return stopped || this.peek() == '!' || programStop;
+        }
+
+        /**
+         * Sends the progress frame with the state of the program and the current input values.
+         */
+        private void writeProgress(final FtProgramProgress.State state, final int step, final int repetition)
+        {
+            List<Byte> progress = new ArrayList<>();
+            progress.add(CTRL_PROGRESS);
+            writeManchester(progress, state.ordinal(), 1);
+            writeManchester(progress, step, 1);
+            writeManchester(progress, repetition, 1);
+            writeManchester(progress, digitalInputs, 1);
+            writeManchester(progress, analogX, 1);
+            writeManchester(progress, analogY, 1);
+            deviceWrite(progress);
+        }
+
+        /**
+         * Answers the command with the given sequence number if none of it's motors is running any more.
+         */
+        private void complete(final int seqNr, final int[] remaining, final int[] owner)
+        {
+            for (int i=0; i<3; i++)
+            {
+                if (remaining[i] > 0 && owner[i] == seqNr)
+                {
+                    return;
+                }
+            }
+            for (int i=0; i<3; i++)
+            {
+                if (owner[i] == seqNr)
+                {
+                    owner[i] = NO_OWNER;
+                }
+            }
+            this.writeISB(seqNr, remaining);
+        }
+
+        /**
+         * Reads a join command and starts it's stepping motors if all of them are idle. Otherwise the join command
+         * is buffered like a normal command.
+         *
+         * @return The new Motor Control Byte.
+         */
+        private int join(final int current, final int[] remaining, final int[] owner)
+        {
+            StringBuilder text = new StringBuilder();
+            long arrival = this.readFrame(text);
+            received.add(new ReceivedFrame('&', text.toString(), arrival));
+            Command command = this.toCommand(this.parse(text.toString()));
+            if (command == null)
+            {
+                return current;
+            }
+            boolean joinable = false;
+            for (int i=0; i<3; i++)
+            {
+                if ((command.mcb & 0xC0 >> 2*i) != 0 && command.steps[i] > 0)
+                {
+                    joinable = remaining[i] == 0;
+                    if (!joinable)
+                    {
+                        break;
+                    }
+                }
+            }
+            if (!joinable)
+            {
+                executed[command.seqNr] = false;
+                commands.addLast(command);
+                return current;
+            }
+            executed[command.seqNr] = true;
+            int ret = current;
+            for (int i=0; i<3; i++)
+            {
+                int mask = 0xC0 >> 2*i;
+                if ((command.mcb & mask) != 0 && command.steps[i] > 0)
+                {
+                    ret = (ret & ~mask) | (command.mcb & mask);
+                    remaining[i] = command.steps[i];
+                    owner[i] = command.seqNr;
+                }
+            }
+            return ret;
+        }
+
+        /**
+         * Reads the next frame from the line and waits for it's bytes to arrive.
+         *
+         * @param text Receives the frame without start char and terminal char.
+         * @return The arrival time of the start char.
+         */
+        private long readFrame(final StringBuilder text)
+        {
+            long arrival = 0L;
+            while (!stopped)
+            {
+                WireByte wireByte = null;
+                synchronized(line)
+                {
+                    WireByte head = rx.peekFirst();
+                    if (head != null && head.at <= System.nanoTime())
+                    {
+                        wireByte = rx.pollFirst();
+                    }
+                }
+                if (wireByte == null)
+                {
+                    LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(IDLE_WAIT) / 10L);
+                    continue;
+                }
+                if (arrival == 0L)
+                {
+                    arrival = wireByte.at; // start char
+                    continue;
+                }
+                if (wireByte.value == '\n')
+                {
+                    break;
+                }
+                text.append((char) wireByte.value);
+            }
+            return arrival;
+        }
+
+        /**
+         * Sends the ISB frame with the current input values.
+         */
+        private void writeISB(final int seqNr, final int[] remaining)
+        {
+            if (isbLoss > 0 && ThreadLocalRandom.current().nextDouble() < isbLoss)
+            {
+                return;
+            }
+            List<Byte> isb = new ArrayList<>();
+            isb.add((byte) seqNr);
+            writeManchester(isb, digitalInputs, 1);
+            writeManchester(isb, analogX, 1);
+            writeManchester(isb, analogY, 1);
+            if (telemetry)
+            {
+                writeManchester(isb, System.currentTimeMillis() - start, 4);
+                for (int i=0; i<3; i++)
+                {
+                    writeManchester(isb, remaining[i], 2);
+                }
+                for (int i=0; i<3; i++)
+                {
+                    writeManchester(isb, stepTime, 2);
+                }
+            }
+            deviceWrite(isb);
+        }
+    }
+
+}
@@ -0,0 +1,504 @@
+package de.voglrobe.ftinterface.sim;
+
+import de.voglrobe.ftinterface.io.ManchesterCodec;
+import gnu.io.SerialPort;
+import gnu.io.SerialPortEvent;
+import gnu.io.SerialPortEventListener;
+import gnu.io.UnsupportedCommOperationException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.TooManyListenersException;
+
+/**
+ * A {@link SerialPort} connected to a {@link SimulatedInterfaceAdapter} instead of real hardware.
+ * <p>
+ * Only the features used by the ft-Interface are supported: port speed, DTR, receive timeout, data-available
+ * events and the input and output streams. Closing the streams has no effect, closing the port closes the
+ * streams.
+ *
+ * @author robert
+ */
+public class SimulatedSerialPort extends SerialPort
+{
+    private final SimulatedInterfaceAdapter adapter;
+    private final InputStream inputStream;
+    private final OutputStream outputStream;
+
+    private volatile boolean closed;
+    private volatile int baudRate;
+    private volatile boolean dtr;
+    private volatile int receiveTimeout;
+    private volatile SerialPortEventListener listener;
+    private volatile boolean notifyOnData;
+
+    /**
+     * Constructor.
+     *
+     * @param adapter The simulated interface adapter on the other end of the line.
+     * @param portName The name of the port.
+     */
+    SimulatedSerialPort(final SimulatedInterfaceAdapter adapter, final String portName)
+    {
+        this.adapter = adapter;
+        this.name = portName;
+        this.closed = false;
+        this.baudRate = adapter.getSpeed();
+        this.dtr = true;
+        this.receiveTimeout = 0;
+        this.listener = null;
+        this.notifyOnData = false;
+        this.inputStream = new InputStream()
+        {
+            @Override
+            public int read() throws IOException
+            {
+                byte[] b = new byte[1];
+                int len = this.read(b, 0, 1);
+                return len > 0 ? ManchesterCodec.toUnsignedInt(b[0]) : -1;
+            }
+
+            @Override
+            public int available() throws IOException
+            {
+                if (closed)
+                {
+                    throw new IOException("Port closed.");
+                }
+                return adapter.hostAvailable();
+            }
+
+            @Override
+            public int read(final byte[] b, final int off, final int len) throws IOException
+            {
+                if (closed)
+                {
+                    return -1;
+                }
+                return adapter.hostRead(SimulatedSerialPort.this, b, off, len, receiveTimeout);
+            }
+
+            @Override
+            public void close()
+            {
+            }
+        };
+        this.outputStream = new OutputStream()
+        {
+            @Override
+            public void write(final int b) throws IOException
+            {
+                this.write(new byte[] {(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(final byte[] b, final int off, final int len) throws IOException
+            {
+                if (closed)
+                {
+                    throw new IOException("Port closed.");
+                }
+                adapter.hostWrite(SimulatedSerialPort.this, b, off, len);
+            }
+
+            @Override
+            public void close()
+            {
+            }
+        };
+    }
+
+    /**
+     * Returns whether this port has been closed.
+     *
+     * @return TRUE if closed.
+     */
+    boolean isClosed()
+    {
+        return closed;
+    }
+
+    /**
+     * Returns whether the listener wants to be notified on data-available events.
+     *
+     * @return TRUE if events are enabled.
+     */
+    boolean isNotifyingOnData()
+    {
+        return notifyOnData && listener != null && !closed;
+    }
+
+    /**
+     * Called by the interface adapter when data have arrived at the host.
+     */
+    void dataAvailable()
+    {
+        SerialPortEventListener lsnr = this.listener;
+        if (notifyOnData && lsnr != null && !closed)
+        {
+            lsnr.serialEvent(new SerialPortEvent(this, SerialPortEvent.DATA_AVAILABLE, false, true));
+        }
+    }
+
+    @Override
+    public void close()
+    {
+        this.closed = true;
+        adapter.disconnect(this);
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException
+    {
+        return inputStream;
+    }
+
+    @Override
+    public OutputStream getOutputStream() throws IOException
+    {
+        return outputStream;
+    }
+
+    @Override
+    public void setSerialPortParams(final int baudRate, final int dataBits, final int stopBits, final int parity)
+            throws UnsupportedCommOperationException
+    {
+        this.baudRate = baudRate;
+    }
+
+    @Override
+    public int getBaudRate()
+    {
+        return baudRate;
+    }
+
+    @Override
+    public boolean isDTR()
+    {
+        return dtr;
+    }
+
+    @Override
+    public void setDTR(final boolean dtr)
+    {
+        boolean reset = dtr && !this.dtr;
+        this.dtr = dtr;
+        if (reset)
+        {
+            adapter.reset();
+        }
+    }
+
+    @Override
+    public void enableReceiveTimeout(final int time) throws UnsupportedCommOperationException
+    {
+        this.receiveTimeout = time;
+    }
+
+    @Override
+    public void disableReceiveTimeout()
+    {
+        this.receiveTimeout = 0;
+    }
+
+    @Override
+    public boolean isReceiveTimeoutEnabled()
+    {
+        return receiveTimeout > 0;
+    }
+
+    @Override
+    public int getReceiveTimeout()
+    {
+        return receiveTimeout;
+    }
+
+    @Override
+    public void enableReceiveFraming(int framingByte) throws UnsupportedCommOperationException
+    {
+        throw new UnsupportedCommOperationException();
+    }
+
+    @Override
+    public void disableReceiveFraming()
+    {
+    }
+
+    @Override
+    public boolean isReceiveFramingEnabled()
+    {
+        return false;
+    }
+
+    @Override
+    public int getReceiveFramingByte()
+    {
+        return 0;
+    }
+
+    @Override
+    public void enableReceiveThreshold(int thresh) throws UnsupportedCommOperationException
+    {
+        throw new UnsupportedCommOperationException();
+    }
+
+    @Override
+    public void disableReceiveThreshold()
+    {
+    }
+
+    @Override
+    public int getReceiveThreshold()
+    {
+        return 0;
+    }
+
+    @Override
+    public boolean isReceiveThresholdEnabled()
+    {
+        return false;
+    }
+
+    @Override
+    public void setInputBufferSize(int size)
+    {
+    }
+
+    @Override
+    public int getInputBufferSize()
+    {
+        return 0;
+    }
+
+    @Override
+    public void setOutputBufferSize(int size)
+    {
+    }
+
+    @Override
+    public int getOutputBufferSize()
+    {
+        return 0;
+    }
+
+    @Override
+    public int getDataBits()
+    {
+        return DATABITS_8;
+    }
+
+    @Override
+    public int getStopBits()
+    {
+        return STOPBITS_1;
+    }
+
+    @Override
+    public int getParity()
+    {
+        return PARITY_NONE;
+    }
+
+    @Override
+    public void setFlowControlMode(int flowcontrol) throws UnsupportedCommOperationException
+    {
+    }
+
+    @Override
+    public int getFlowControlMode()
+    {
+        return FLOWCONTROL_NONE;
+    }
+
+    @Override
+    public void setRTS(boolean rts)
+    {
+    }
+
+    @Override
+    public boolean isCTS()
+    {
+        return true;
+    }
+
+    @Override
+    public boolean isDSR()
+    {
+        return true;
+    }
+
+    @Override
+    public boolean isCD()
+    {
+        return true;
+    }
+
+    @Override
+    public boolean isRI()
+    {
+        return false;
+    }
+
+    @Override
+    public boolean isRTS()
+    {
+        return false;
+    }
+
+    @Override
+    public void sendBreak(int duration)
+    {
+    }
+
+    @Override
+    public synchronized void addEventListener(SerialPortEventListener lsnr) throws TooManyListenersException
+    {
+        if (listener != null)
+        {
+            throw new TooManyListenersException();
+        }
+        this.listener = lsnr;
+    }
+
+    @Override
+    public synchronized void removeEventListener()
+    {
+        this.listener = null;
+    }
+
+    @Override
+    public void notifyOnDataAvailable(boolean enable)
+    {
+        this.notifyOnData = enable;
+    }
+
+    @Override
+    public void notifyOnOutputEmpty(boolean enable)
+    {
+    }
+
+    @Override
+    public void notifyOnCTS(boolean enable)
+    {
+    }
+
+    @Override
+    public void notifyOnDSR(boolean enable)
+    {
+    }
+
+    @Override
+    public void notifyOnRingIndicator(boolean enable)
+    {
+    }
+
+    @Override
+    public void notifyOnCarrierDetect(boolean enable)
+    {
+    }
+
+    @Override
+    public void notifyOnOverrunError(boolean enable)
+    {
+    }
+
+    @Override
+    public void notifyOnParityError(boolean enable)
+    {
+    }
+
+    @Override
+    public void notifyOnFramingError(boolean enable)
+    {
+    }
+
+    @Override
+    public void notifyOnBreakInterrupt(boolean enable)
+    {
+    }
+
+    @Override
+    public byte getParityErrorChar() throws UnsupportedCommOperationException
+    {
+        throw new UnsupportedCommOperationException();
+    }
+
+    @Override
+    public boolean setParityErrorChar(byte b) throws UnsupportedCommOperationException
+    {
+        throw new UnsupportedCommOperationException();
+    }
+
+    @Override
+    public byte getEndOfInputChar() throws UnsupportedCommOperationException
+    {
+        throw new UnsupportedCommOperationException();
+    }
+
+    @Override
+    public boolean setEndOfInputChar(byte b) throws UnsupportedCommOperationException
+    {
+        throw new UnsupportedCommOperationException();
+    }
+
+    @Override
+    public boolean setUARTType(String type, boolean test) throws UnsupportedCommOperationException
+    {
+        throw new UnsupportedCommOperationException();
+    }
+
+    @Override
+    public String getUARTType() throws UnsupportedCommOperationException
+    {
+        throw new UnsupportedCommOperationException();
+    }
+
+    @Override
+    public boolean setBaudBase(int baudBase) throws UnsupportedCommOperationException, IOException
+    {
+        throw new UnsupportedCommOperationException();
+    }
+
+    @Override
+    public int getBaudBase() throws UnsupportedCommOperationException, IOException
+    {
+        throw new UnsupportedCommOperationException();
+    }
+
+    @Override
+    public boolean setDivisor(int divisor) throws UnsupportedCommOperationException, IOException
+    {
+        throw new UnsupportedCommOperationException();
+    }
+
+    @Override
+    public int getDivisor() throws UnsupportedCommOperationException, IOException
+    {
+        throw new UnsupportedCommOperationException();
+    }
+
+    @Override
+    public boolean setLowLatency() throws UnsupportedCommOperationException
+    {
+        return true;
+    }
+
+    @Override
+    public boolean getLowLatency() throws UnsupportedCommOperationException
+    {
+        return true;
+    }
+
+    @Override
+    public boolean setCallOutHangup(boolean noHup) throws UnsupportedCommOperationException
+    {
+        throw new UnsupportedCommOperationException();
+    }
+
+    @Override
+    public boolean getCallOutHangup() throws UnsupportedCommOperationException
+    {
+        throw new UnsupportedCommOperationException();
+    }
+
+}
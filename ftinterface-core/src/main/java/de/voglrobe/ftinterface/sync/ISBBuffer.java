@@ -20,19 +20,19 @@ public class ISBBuffer
      */
     public ISBBuffer()
     {
-        this.seqNr = 0;
+        this.seqNr = 1;
     }
     
     /**
      * Returns the next free sequence number.
      * 
-     * @return The next free sequence number from the cyclic range [0, 63].
-     * Starts from 0 again if the last sequence number was 63.
+     * @return The next free sequence number from the cyclic range [1, 63].
+     * Starts from 1 again if the last sequence number was 63. 0 is reserved for MCCs without sequence number.
      */
     public synchronized int requestSeqNr()
     {
         int ret = seqNr;
-        this.seqNr = (seqNr + 1) % 63;
+        this.seqNr = seqNr % 63 + 1;
         if (inputMap.containsKey(ret))
         {
             inputMap.remove(ret);
@@ -46,9 +46,30 @@ public class ISBBuffer
      * @param seqNr The sequence number.
      * @param input The ISBs to store.
      */
-    public void store(final int seqNr, final FtInputs input)
+    public synchronized void store(final int seqNr, final FtInputs input)
     {
         this.inputMap.put(seqNr, input);
+        this.notifyAll();
+    }
+    
+    /**
+     * Waits until the ISBs with the given sequence number are present.
+     * 
+     * @param seqNr The sequence number.
+     * @param timeout The maximum time to wait in ms.
+     * @return The input data or NULL if not present after the given time.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    public synchronized FtInputs await(final int seqNr, final long timeout) throws InterruptedException
+    {
+        long deadline = System.currentTimeMillis() + timeout;
+        long remaining = timeout;
+        while (!inputMap.containsKey(seqNr) && remaining > 0)
+        {
+            this.wait(remaining);
+            remaining = deadline - System.currentTimeMillis();
+        }
+        return inputMap.get(seqNr);
     }
     
     /**
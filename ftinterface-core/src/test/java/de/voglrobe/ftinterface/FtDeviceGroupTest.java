@@ -0,0 +1,99 @@
+package de.voglrobe.ftinterface;
+
+import de.voglrobe.ftinterface.io.FtOutput;
+import de.voglrobe.ftinterface.sim.SimulatedInterfaceAdapter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+
+/**
+ * Start of several simulated interface adapters within a tight window.
+ *
+ * @author robert
+ */
+public class FtDeviceGroupTest
+{
+    private static final int DEVICES = 4;
+    private static final long MAX_SKEW = TimeUnit.MILLISECONDS.toNanos(2L);
+
+    @Rule
+    public final SimulationRule simulation = new SimulationRule();
+
+    /**
+     * Waits until the simulation received the MCC with the given sequence number.
+     *
+     * @return The arrival time in ns or -1 on timeout.
+     */
+    private static long awaitArrival(final SimulatedInterfaceAdapter sim, final int seqNr)
+    {
+        long deadline = System.currentTimeMillis() + 5000L;
+        while (System.currentTimeMillis() < deadline)
+        {
+            for (SimulatedInterfaceAdapter.ReceivedFrame frame : sim.getReceivedFrames())
+            {
+                if (frame.getStartChar() == '$' && frame.getText().endsWith("," + seqNr))
+                {
+                    return frame.getArrival();
+                }
+            }
+            Thread.yield();
+        }
+        return -1L;
+    }
+
+    @Test
+    public void testStart() throws Exception
+    {
+        List<SimulatedInterfaceAdapter> sims = new ArrayList<>();
+        List<FtInterfaceAsync> ifaces = new ArrayList<>();
+        for (int i=0; i<DEVICES; i++)
+        {
+            SimulatedInterfaceAdapter sim = new SimulatedInterfaceAdapter();
+            sims.add(sim);
+            ifaces.add(simulation.open(sim, null));
+        }
+        FtDeviceGroup group = FtDeviceGroup.newInstance(ifaces.toArray(new FtInterfaceAsync[DEVICES]));
+
+        // traffic on the first interface must be transmitted before
+        for (int n=1; n<=10; n++)
+        {
+            ifaces.get(0).send(new FtOutput().m2(FtOutput.Direction.ON).seqNr(n), false, null);
+        }
+        for (int i=0; i<DEVICES; i++)
+        {
+            group.stage(ifaces.get(i), new FtOutput().m1(FtOutput.Direction.RIGHT, 50).seqNr(40 + i));
+        }
+        FtDeviceGroup.Start start = group.start(1000L);
+        System.out.println("Group start: " + start);
+
+        long first = Long.MAX_VALUE;
+        long last = Long.MIN_VALUE;
+        for (int i=0; i<DEVICES; i++)
+        {
+            long arrival = awaitArrival(sims.get(i), 40 + i);
+            Assert.assertTrue(arrival > 0L);
+            first = Math.min(first, arrival);
+            last = Math.max(last, arrival);
+        }
+        System.out.println(String.format("Measured arrival skew: %d us",
+                TimeUnit.NANOSECONDS.toMicros(last - first)));
+        Assert.assertEquals(DEVICES, start.getInterfaces().size());
+        Assert.assertTrue(start.getWriteSkew() < MAX_SKEW);
+        Assert.assertTrue(last - first < MAX_SKEW);
+        Assert.assertEquals(0L, start.getWritten(ifaces.get(0)));
+
+        // the staged MCCs are discarded
+        try
+        {
+            group.start(100L);
+            Assert.fail("Nothing staged.");
+        }
+        catch(IllegalStateException expected)
+        {
+        }
+    }
+
+}
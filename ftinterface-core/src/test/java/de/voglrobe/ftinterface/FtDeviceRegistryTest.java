@@ -0,0 +1,145 @@
+package de.voglrobe.ftinterface;
+
+import de.voglrobe.ftinterface.io.FtHealth;
+import de.voglrobe.ftinterface.io.FtInputs;
+import de.voglrobe.ftinterface.io.FtOutput;
+import de.voglrobe.ftinterface.io.FtSerialPortConfig;
+import de.voglrobe.ftinterface.sim.SimulatedInterfaceAdapter;
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Several simulated interface adapters in one registry.
+ *
+ * @author robert
+ */
+public class FtDeviceRegistryTest
+{
+    /**
+     * Records the events of the registry.
+     */
+    private static class Recorder implements IFtDeviceListener
+    {
+        private final List<String> added = new CopyOnWriteArrayList<>();
+        private final List<String> removed = new CopyOnWriteArrayList<>();
+        private final Map<String, List<FtInputs>> isbs = new ConcurrentHashMap<>();
+
+        @Override
+        public void onDeviceAdded(final String deviceId, final FtInterfaceAsync iface)
+        {
+            added.add(deviceId);
+        }
+
+        @Override
+        public void onDeviceRemoved(final String deviceId)
+        {
+            removed.add(deviceId);
+        }
+
+        @Override
+        public void onDataReceived(final String deviceId, final FtInputs inputs)
+        {
+            isbs.computeIfAbsent(deviceId, (final String key) -> new CopyOnWriteArrayList<>()).add(inputs);
+        }
+
+        @Override
+        public void onHealthChanged(final String deviceId, final FtHealth health)
+        {
+        }
+    }
+
+    @Test
+    public void testOpenAndClose() throws Exception
+    {
+        Recorder recorder = new Recorder();
+        FtDeviceRegistry registry = FtDeviceRegistry.newInstance(new FtSerialPortConfig(), recorder);
+        List<SimulatedInterfaceAdapter> sims = Arrays.asList(new SimulatedInterfaceAdapter(),
+                new SimulatedInterfaceAdapter(), new SimulatedInterfaceAdapter());
+        try
+        {
+            for (int i=0; i<sims.size(); i++)
+            {
+                registry.open("robot" + i, sims.get(i));
+            }
+            Assert.assertEquals(Arrays.asList("robot0", "robot1", "robot2"), recorder.added);
+            try
+            {
+                registry.open("robot1", new SimulatedInterfaceAdapter());
+                Assert.fail("Device id registered twice.");
+            }
+            catch(IllegalStateException expected)
+            {
+            }
+
+            for (int i=0; i<sims.size(); i++)
+            {
+                registry.get("robot" + i).sendInfinite(new FtOutput().m1(FtOutput.Direction.ON).seqNr(10 + i));
+            }
+            Thread.sleep(300L);
+            for (int i=0; i<sims.size(); i++)
+            {
+                Assert.assertEquals(FtOutput.M1_ON, sims.get(i).getMotorControlByte());
+                Assert.assertEquals(10 + i, recorder.isbs.get("robot" + i).get(0).getSeqNr());
+            }
+
+            registry.close("robot1");
+            Assert.assertEquals(Arrays.asList("robot1"), recorder.removed);
+            Assert.assertNull(registry.get("robot1"));
+            Assert.assertEquals(2, registry.getDeviceIds().size());
+        }
+        finally
+        {
+            registry.destroy();
+            sims.forEach(SimulatedInterfaceAdapter::destroy);
+        }
+        Assert.assertTrue(registry.getDeviceIds().isEmpty());
+    }
+
+    @Test
+    public void testDiscover() throws Exception
+    {
+        File dev = Files.createTempDirectory("dev").toFile();
+        Map<String, SimulatedInterfaceAdapter> sims = new ConcurrentHashMap<>();
+        FtSerialPortConfig config = new FtSerialPortConfig().portProvider((final String portName) ->
+                sims.computeIfAbsent(new File(portName).getName(), (final String name) ->
+                        new SimulatedInterfaceAdapter()).open(portName));
+        Recorder recorder = new Recorder();
+        FtDeviceRegistry registry = FtDeviceRegistry.newInstance(config, recorder);
+        try
+        {
+            File acm0 = new File(dev, "ttyACM0");
+            File usb0 = new File(dev, "ttyUSB0");
+            Assert.assertTrue(acm0.createNewFile());
+            Assert.assertTrue(usb0.createNewFile());
+            Assert.assertTrue(new File(dev, "ttyS0").createNewFile());
+
+            Assert.assertEquals(Arrays.asList("ttyACM0", "ttyUSB0"), registry.discover(dev));
+            Assert.assertTrue(registry.discover(dev).isEmpty());
+
+            // unplugged
+            Assert.assertTrue(usb0.delete());
+            Assert.assertTrue(registry.discover(dev).isEmpty());
+            Assert.assertEquals(Arrays.asList("ttyUSB0"), recorder.removed);
+            Assert.assertNotNull(registry.get("ttyACM0"));
+            Assert.assertNull(registry.get("ttyUSB0"));
+        }
+        finally
+        {
+            registry.destroy();
+            sims.values().forEach(SimulatedInterfaceAdapter::destroy);
+            for (File file : dev.listFiles())
+            {
+                file.delete();
+            }
+            dev.delete();
+        }
+    }
+
+}
@@ -0,0 +1,82 @@
+package de.voglrobe.ftinterface;
+
+import de.voglrobe.ftinterface.io.FtInputs;
+import de.voglrobe.ftinterface.io.FtOutput;
+import de.voglrobe.ftinterface.sim.SimulatedInterfaceAdapter;
+import java.util.List;
+import java.util.stream.Collectors;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+
+/**
+ * MCCs sent atomically are not interleaved with MCCs of other threads.
+ *
+ * @author robert
+ */
+public class FtInterfaceAsyncAtomicTest
+{
+    @Rule
+    public final SimulationRule simulation = new SimulationRule();
+
+    /**
+     * Returns the position of the MCC with the given sequence number in the received frames or -1.
+     */
+    private static int indexOf(final List<String> mccs, final int seqNr)
+    {
+        for (int i=0; i<mccs.size(); i++)
+        {
+            if (mccs.get(i).endsWith("," + seqNr))
+            {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    @Test
+    public void testContiguous() throws Exception
+    {
+        SimulatedInterfaceAdapter sim = new SimulatedInterfaceAdapter();
+        FtInterfaceAsync iface = simulation.open(sim, (final FtInputs inputs) -> {});
+        Thread worker = new Thread(() ->
+        {
+            try
+            {
+                iface.sendAtomically(() ->
+                {
+                    iface.send(new FtOutput().m1(FtOutput.Direction.ON).seqNr(1), false, null);
+                    try
+                    {
+                        Thread.sleep(300L);
+                    }
+                    catch(InterruptedException dontcare)
+                    {
+                    }
+                    iface.send(new FtOutput().m2(FtOutput.Direction.ON).seqNr(2), false, null);
+                });
+            }
+            catch(Exception e)
+            {
+                throw new RuntimeException(e);
+            }
+        });
+        worker.start();
+        Thread.sleep(100L);
+
+        // waits until the atomic MCCs have been sent
+        iface.send(new FtOutput().m3(FtOutput.Direction.ON).seqNr(3), false, null);
+        worker.join();
+        Thread.sleep(300L);
+
+        List<String> mccs = sim.getReceivedFrames().stream()
+                .filter(frame -> frame.getStartChar() == '$')
+                .map(SimulatedInterfaceAdapter.ReceivedFrame::getText)
+                .collect(Collectors.toList());
+        int first = indexOf(mccs, 1);
+        int second = indexOf(mccs, 2);
+        int third = indexOf(mccs, 3);
+        Assert.assertTrue(mccs.toString(), first >= 0 && first < second && second < third);
+    }
+
+}
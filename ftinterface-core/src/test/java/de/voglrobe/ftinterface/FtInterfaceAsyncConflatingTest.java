@@ -0,0 +1,125 @@
+package de.voglrobe.ftinterface;
+
+import de.voglrobe.ftinterface.io.FtInputs;
+import de.voglrobe.ftinterface.io.FtOutput;
+import de.voglrobe.ftinterface.sim.SimulatedInterfaceAdapter;
+import java.util.List;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+
+/**
+ * Conflating mode under load, tested against the simulated interface adapter at 19200 Bit/s.
+ *
+ * @author robert
+ */
+public class FtInterfaceAsyncConflatingTest
+{
+    private static final int SAMPLES = 20;
+    private static final int MAX_OVERTAKEN = 2; // the frames already written to the line
+
+    @Rule
+    public final SimulationRule simulation = new SimulationRule();
+
+    private volatile boolean stopped;
+
+    private void snort(final long duration)
+    {
+        try
+        {
+            Thread.sleep(duration);
+        }
+        catch(InterruptedException dontcare)
+        {
+        }
+    }
+
+    /**
+     * Waits until the simulation received a MCC whose text starts with the given prefix.
+     *
+     * @return The index of the frame or -1 on timeout.
+     */
+    private static int awaitFrame(final SimulatedInterfaceAdapter sim, final int skip, final String prefix)
+    {
+        long deadline = System.currentTimeMillis() + 5000L;
+        while (System.currentTimeMillis() < deadline)
+        {
+            List<SimulatedInterfaceAdapter.ReceivedFrame> frames = sim.getReceivedFrames();
+            for (int i=skip; i<frames.size(); i++)
+            {
+                SimulatedInterfaceAdapter.ReceivedFrame frame = frames.get(i);
+                if (frame.getStartChar() == '$' && frame.getText().startsWith(prefix))
+                {
+                    return i;
+                }
+            }
+            Thread.yield();
+        }
+        return -1;
+    }
+
+    @Test
+    public void testMergedUnderLoad() throws Exception
+    {
+        SimulatedInterfaceAdapter sim = new SimulatedInterfaceAdapter();
+        FtInterfaceAsync iface = simulation.open(sim, (final FtInputs inputs) ->
+        {
+            // Do nothing
+        });
+        iface.setConflating(true);
+        this.stopped = false;
+        Thread producer = new Thread(() ->
+        {
+            int seqNr = 0;
+            while (!stopped)
+            {
+                try
+                {
+                    // 1000 MCCs/s for M1 only, the wire carries less than 150 MCCs/s.
+                    for (int i=0; i<10; i++)
+                    {
+                        seqNr = seqNr % 63 + 1;
+                        iface.send(new FtOutput().m1(FtOutput.Direction.ON).mask(FtOutput.MASK_M1).seqNr(seqNr),
+                                false, null);
+                    }
+                }
+                catch(Exception dontcare)
+                {
+                }
+                snort(10L);
+            }
+        });
+        try
+        {
+            producer.start();
+            snort(200L);
+
+            // the merged MCC is sent next, no queued MCC gets in between
+            int maxOvertaken = 0;
+            for (int i=0; i<SAMPLES; i++)
+            {
+                snort(50L);
+                // M2 is merged into the M1 stream: 96 = M1 RIGHT + M2 LEFT, 80 = M1 RIGHT + M2 RIGHT
+                boolean left = i % 2 == 0;
+                FtOutput m2 = new FtOutput()
+                        .m2(left ? FtOutput.Direction.LEFT : FtOutput.Direction.RIGHT)
+                        .mask(FtOutput.MASK_M2);
+                int skip = sim.getReceivedFrames().size();
+                iface.send(m2, false, null);
+                int index = awaitFrame(sim, skip, left ? "96," : "80,");
+                Assert.assertTrue("Merged MCC not received.", index >= 0);
+                maxOvertaken = Math.max(maxOvertaken, index - skip);
+            }
+
+            System.out.println(String.format("Conflating mode: max. %d frames before the merged MCC",
+                    maxOvertaken));
+            Assert.assertTrue(maxOvertaken <= MAX_OVERTAKEN);
+        }
+        finally
+        {
+            this.stopped = true;
+            producer.join();
+        }
+    }
+
+}
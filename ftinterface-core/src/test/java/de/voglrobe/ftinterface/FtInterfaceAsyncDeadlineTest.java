@@ -0,0 +1,116 @@
+package de.voglrobe.ftinterface;
+
+import de.voglrobe.ftinterface.io.FtInputs;
+import de.voglrobe.ftinterface.io.FtOutput;
+import de.voglrobe.ftinterface.sim.SimulatedInterfaceAdapter;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+
+/**
+ * MCCs with a deadline are discarded instead of being sent late.
+ *
+ * @author robert
+ */
+public class FtInterfaceAsyncDeadlineTest
+{
+    private static final int BURST = 40;
+
+    @Rule
+    public final SimulationRule simulation = new SimulationRule();
+
+    /**
+     * Checks whether the simulation received a MCC with the given sequence number.
+     */
+    private static boolean isReceived(final SimulatedInterfaceAdapter sim, final int seqNr)
+    {
+        return sim.getReceivedFrames().stream()
+                .anyMatch(frame -> frame.getStartChar() == '$' && frame.getText().endsWith("," + seqNr));
+    }
+
+    /**
+     * Waits until an ISB has been received for the given sequence number.
+     */
+    private static FtInputs await(final Map<Integer, FtInputs> isbs, final int seqNr) throws InterruptedException
+    {
+        long deadline = System.currentTimeMillis() + 5000L;
+        while (!isbs.containsKey(seqNr) && System.currentTimeMillis() < deadline)
+        {
+            Thread.sleep(10L);
+        }
+        return isbs.get(seqNr);
+    }
+
+    @Test
+    public void testExpiredInQueue() throws Exception
+    {
+        SimulatedInterfaceAdapter sim = new SimulatedInterfaceAdapter();
+        Map<Integer, FtInputs> isbs = new ConcurrentHashMap<>();
+        FtInterfaceAsync iface = simulation.open(sim,
+                (final FtInputs inputs) -> isbs.putIfAbsent(inputs.getSeqNr(), inputs));
+        // the wire carries less than 150 MCCs/s, i.e. most of the burst waits too long
+        long deadline = System.currentTimeMillis() + 50L;
+        for (int i=1; i<=BURST; i++)
+        {
+            iface.send(new FtOutput().m1(FtOutput.Direction.ON).seqNr(i), false, null, deadline);
+        }
+
+        int expired = 0;
+        for (int i=1; i<=BURST; i++)
+        {
+            FtInputs isb = await(isbs, i);
+            Assert.assertNotNull("No ISB for MCC " + i, isb);
+            boolean stale = isb.getFlags() != null && isb.getFlags().isExpired();
+            Assert.assertNotEquals(stale, isReceived(sim, i));
+            expired += stale ? 1 : 0;
+        }
+        System.out.println(String.format("%d of %d MCCs expired.", expired, BURST));
+        Assert.assertTrue(expired > BURST / 2);
+        Assert.assertFalse(isbs.get(1).getFlags() != null && isbs.get(1).getFlags().isExpired());
+        Assert.assertEquals(expired, iface.getExpiredCount());
+    }
+
+    @Test
+    public void testExpiredBehindDuration() throws Exception
+    {
+        SimulatedInterfaceAdapter sim = new SimulatedInterfaceAdapter();
+        Map<Integer, FtInputs> isbs = new ConcurrentHashMap<>();
+        FtInterfaceAsync iface = simulation.open(sim,
+                (final FtInputs inputs) -> isbs.putIfAbsent(inputs.getSeqNr(), inputs));
+        Thread worker = new Thread(() ->
+        {
+            try
+            {
+                iface.send(new FtOutput().m1(FtOutput.Direction.ON).seqNr(1), 1L);
+            }
+            catch(Exception e)
+            {
+                throw new RuntimeException(e);
+            }
+        });
+        worker.start();
+        Thread.sleep(100L);
+
+        // waits for the lock of the send-with-duration
+        iface.send(new FtOutput().m2(FtOutput.Direction.ON).seqNr(2), true, null,
+                System.currentTimeMillis() + 200L);
+        iface.sendInfinite(new FtOutput().m3(FtOutput.Direction.ON).seqNr(3), System.currentTimeMillis() - 1L);
+        worker.join();
+
+        Assert.assertTrue(await(isbs, 2).getFlags().isExpired());
+        Assert.assertTrue(await(isbs, 3).getFlags().isExpired());
+        Assert.assertFalse(isReceived(sim, 2));
+        Assert.assertFalse(isReceived(sim, 3));
+        Assert.assertEquals(2L, iface.getExpiredCount());
+
+        // a MCC in time is sent as usual
+        iface.send(new FtOutput().m2(FtOutput.Direction.ON).seqNr(4), true, null,
+                System.currentTimeMillis() + 1000L);
+        FtInputs isb = await(isbs, 4);
+        Assert.assertTrue(isb.getFlags() == null || !isb.getFlags().isExpired());
+        Assert.assertTrue(isReceived(sim, 4));
+    }
+
+}
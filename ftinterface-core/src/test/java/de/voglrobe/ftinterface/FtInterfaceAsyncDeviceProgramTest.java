@@ -0,0 +1,111 @@
+package de.voglrobe.ftinterface;
+
+import de.voglrobe.ftinterface.io.FtInputCondition;
+import de.voglrobe.ftinterface.io.FtInputs;
+import de.voglrobe.ftinterface.io.FtOutput;
+import de.voglrobe.ftinterface.io.FtProgram;
+import de.voglrobe.ftinterface.io.FtProgramProgress;
+import de.voglrobe.ftinterface.io.FtProgramStep;
+import de.voglrobe.ftinterface.sim.SimulatedInterfaceAdapter;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+
+/**
+ * Motion programs run in the program buffer of the simulated interface adapter.
+ *
+ * @author robert
+ */
+public class FtInterfaceAsyncDeviceProgramTest
+{
+    private static final int E1 = 0B1000_0000;
+    private static final long HOLD_TIME = 60000L; // ms, far beyond the timeout of the test
+    private static final FtProgramProgress STEP1 = new FtProgramProgress(FtProgramProgress.State.RUNNING, 1, 1);
+
+    @Rule
+    public final SimulationRule simulation = new SimulationRule();
+
+    @Test
+    public void testRunDeviceProgram() throws Exception
+    {
+        SimulatedInterfaceAdapter sim = new SimulatedInterfaceAdapter().timing(20L, 1L, 10L);
+        FtInterfaceAsync iface = simulation.open(sim, null);
+        List<FtProgramProgress> progress = new CopyOnWriteArrayList<>();
+        FtProgram program = new FtProgram()
+                .add(new FtProgramStep(new FtOutput().m1(FtOutput.Direction.RIGHT, 10)).repeat(3))
+                .add(new FtProgramStep(new FtOutput().m2(FtOutput.Direction.ON))
+                        .until(FtInputCondition.digital(FtInputs.IN.E1, true)).duration(HOLD_TIME))
+                .add(new FtProgramStep(new FtOutput().m4(FtOutput.Direction.ON)).duration(300L));
+        iface.uploadDeviceProgram(program);
+
+        CompletableFuture<FtProgramProgress> result = iface.startDeviceProgram(progress::add);
+        SimulationRule.await("Step 1 not started.", () -> progress.contains(STEP1));
+        SimulationRule.await("M2 not switched on.", () -> sim.getMotorControlByte() == FtOutput.M2_ON);
+        Assert.assertEquals(1, iface.getDeviceProgramProgress().getStep());
+
+        // the condition ends the hold of M2, not the duration
+        sim.setInputs(E1, 0, 0);
+        FtProgramProgress end = result.get(5L, TimeUnit.SECONDS);
+        System.out.println(String.format("Device program finished: %s", progress));
+
+        Assert.assertEquals(FtProgramProgress.State.FINISHED, end.getState());
+        Assert.assertEquals(3, end.getStep());
+        Assert.assertTrue(end.getInputs().getDigitalIn().get(0));
+        Assert.assertEquals(new FtProgramProgress(FtProgramProgress.State.RUNNING, 0, 3), progress.get(2));
+        Assert.assertEquals(new FtProgramProgress(FtProgramProgress.State.RUNNING, 2, 1), progress.get(4));
+
+        // the program stays in the buffer
+        progress.clear();
+        sim.setInputs(0, 0, 0);
+        result = iface.startDeviceProgram(progress::add);
+        SimulationRule.await("Step 1 not started again.", () -> progress.contains(STEP1));
+        iface.stopDeviceProgram();
+        end = result.get(5L, TimeUnit.SECONDS);
+        Assert.assertEquals(FtProgramProgress.State.ABORTED, end.getState());
+        Assert.assertEquals(1, end.getStep());
+        Assert.assertEquals(0, sim.getMotorControlByte());
+    }
+
+    @Test
+    public void testSoftInterrupt() throws Exception
+    {
+        SimulatedInterfaceAdapter sim = new SimulatedInterfaceAdapter();
+        FtInterfaceAsync iface = simulation.open(sim, null);
+        iface.uploadDeviceProgram(new FtProgram()
+                .add(new FtProgramStep(new FtOutput().m1(FtOutput.Direction.ON)).duration(400L).repeat(2)));
+        CompletableFuture<FtProgramProgress> result = iface.startDeviceProgram(null);
+        Thread.sleep(200L);
+        Assert.assertEquals(FtOutput.M1_ON, sim.getMotorControlByte());
+
+        iface.softInterrupt(new FtOutput());
+        FtProgramProgress end = result.get(5L, TimeUnit.SECONDS);
+        Assert.assertEquals(FtProgramProgress.State.ABORTED, end.getState());
+        Assert.assertEquals(0, end.getStep());
+        Assert.assertEquals(1, end.getRepetition());
+    }
+
+    @Test
+    public void testStopBehindQueuedCommand() throws Exception
+    {
+        SimulatedInterfaceAdapter sim = new SimulatedInterfaceAdapter();
+        FtInterfaceAsync iface = simulation.open(sim, null);
+        iface.uploadDeviceProgram(new FtProgram()
+                .add(new FtProgramStep(new FtOutput().m1(FtOutput.Direction.ON)).duration(HOLD_TIME)));
+        CompletableFuture<FtProgramProgress> result = iface.startDeviceProgram(null);
+        SimulationRule.await("M1 not switched on.", () -> sim.getMotorControlByte() == FtOutput.M1_ON);
+
+        // the stop is not blocked by the MCC queued before it, the MCC runs after the program
+        iface.send(new FtOutput().m2(FtOutput.Direction.ON));
+        SimulationRule.await("Queued MCC not received.", () -> sim.getReceivedFrames().stream()
+                .anyMatch((SimulatedInterfaceAdapter.ReceivedFrame frame) -> frame.getStartChar() == '$'));
+        iface.stopDeviceProgram();
+        FtProgramProgress end = result.get(5L, TimeUnit.SECONDS);
+        Assert.assertEquals(FtProgramProgress.State.ABORTED, end.getState());
+        SimulationRule.await("Queued MCC not executed.", () -> sim.getMotorControlByte() == FtOutput.M2_ON);
+    }
+
+}
@@ -0,0 +1,46 @@
+package de.voglrobe.ftinterface;
+
+import de.voglrobe.ftinterface.io.FtOutput;
+import de.voglrobe.ftinterface.io.FtSerialPortConfig;
+import de.voglrobe.ftinterface.sim.SimulatedInterfaceAdapter;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+
+/**
+ * Keep-alive traffic of an infinite MCC with the hold time of the interface adapter, measured against the
+ * simulated interface adapter.
+ *
+ * @author robert
+ */
+public class FtInterfaceAsyncKeepAliveTest
+{
+    private static final long HOLD_TIME = 500L; // ms
+    private static final long DURATION = 2000L; // ms
+
+    @Rule
+    public final SimulationRule simulation = new SimulationRule();
+
+    @Test
+    public void testRefreshBeforeHoldTime() throws Exception
+    {
+        SimulatedInterfaceAdapter sim = new SimulatedInterfaceAdapter();
+        FtInterfaceAsync iface = simulation.open(sim, new FtSerialPortConfig().holdTime(HOLD_TIME), null);
+        Assert.assertEquals(HOLD_TIME, sim.getHoldTime());
+        sim.clearReceivedFrames();
+
+        iface.sendInfinite(new FtOutput().m1(FtOutput.Direction.ON));
+        Thread.sleep(DURATION);
+
+        long refreshes = sim.getReceivedFrames().stream()
+                .filter((SimulatedInterfaceAdapter.ReceivedFrame frame) -> frame.getStartChar() == '$')
+                .count();
+        System.out.println(String.format("Refreshes within %d ms: %d", DURATION, refreshes));
+
+        // the fixed keep-alive sent every 200 ms
+        Assert.assertTrue(refreshes < DURATION / 200L);
+        Assert.assertEquals(FtOutput.M1_ON, sim.getMotorControlByte());
+        Assert.assertEquals(0, sim.getHoldTimeouts());
+    }
+
+}
@@ -0,0 +1,46 @@
+package de.voglrobe.ftinterface;
+
+import de.voglrobe.ftinterface.exceptions.ComException;
+import de.voglrobe.ftinterface.io.FtSerialPortConfig;
+import de.voglrobe.ftinterface.sim.SimulatedInterfaceAdapter;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * The readiness handshake on open, tested against the simulated interface adapter.
+ *
+ * @author robert
+ */
+public class FtInterfaceAsyncOpenTest
+{
+    @Test
+    public void testInterruptedOpen() throws Exception
+    {
+        SimulatedInterfaceAdapter sim = new SimulatedInterfaceAdapter();
+        try
+        {
+            Thread.currentThread().interrupt();
+            try
+            {
+                FtInterfaceAsync.newInstance("sim", new FtSerialPortConfig().portProvider(sim), null).destroy();
+                Assert.fail("Interrupted open succeeded.");
+            }
+            catch(ComException expected)
+            {
+                // the interrupt is not lost
+                Assert.assertTrue(Thread.interrupted());
+            }
+
+            // the port has been closed, it can be opened again
+            FtInterfaceAsync iface = FtInterfaceAsync.newInstance("sim", new FtSerialPortConfig().portProvider(sim),
+                    null);
+            iface.destroy();
+        }
+        finally
+        {
+            Thread.interrupted();
+            sim.destroy();
+        }
+    }
+
+}
@@ -0,0 +1,124 @@
+package de.voglrobe.ftinterface;
+
+import de.voglrobe.ftinterface.io.FtInputs;
+import de.voglrobe.ftinterface.io.FtOutput;
+import de.voglrobe.ftinterface.sim.SimulatedInterfaceAdapter;
+import java.util.List;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+
+/**
+ * Priority lane under load, tested against the simulated interface adapter at 19200 Bit/s.
+ *
+ * @author robert
+ */
+public class FtInterfaceAsyncPriorityTest
+{
+    private static final int INTERRUPTS = 20;
+    private static final int MAX_OVERTAKEN = 2; // the frames already written to the line
+
+    @Rule
+    public final SimulationRule simulation = new SimulationRule();
+
+    private volatile boolean stopped;
+
+    private void snort(final long duration)
+    {
+        try
+        {
+            Thread.sleep(duration);
+        }
+        catch(InterruptedException dontcare)
+        {
+        }
+    }
+
+    /**
+     * Waits until the simulation received a frame with the given start char.
+     *
+     * @return The index of the frame or -1 on timeout.
+     */
+    private static int awaitFrame(final SimulatedInterfaceAdapter sim, final int skip, final char startChar)
+    {
+        long deadline = System.currentTimeMillis() + 5000L;
+        while (System.currentTimeMillis() < deadline)
+        {
+            List<SimulatedInterfaceAdapter.ReceivedFrame> frames = sim.getReceivedFrames();
+            for (int i=skip; i<frames.size(); i++)
+            {
+                if (frames.get(i).getStartChar() == startChar)
+                {
+                    return i;
+                }
+            }
+            Thread.yield();
+        }
+        return -1;
+    }
+
+    @Test
+    public void testSoftInterruptUnderLoad() throws Exception
+    {
+        SimulatedInterfaceAdapter sim = new SimulatedInterfaceAdapter();
+        FtInterfaceAsync iface = simulation.open(sim, (final FtInputs inputs) ->
+        {
+            // Do nothing
+        });
+        this.stopped = false;
+        Thread producer = new Thread(() ->
+        {
+            int seqNr = 0;
+            while (!stopped)
+            {
+                try
+                {
+                    // 1000 MCCs/s, the wire carries less than 150 MCCs/s.
+                    for (int i=0; i<10; i++)
+                    {
+                        seqNr = seqNr % 63 + 1;
+                        iface.send(new FtOutput().m1(FtOutput.Direction.ON).seqNr(seqNr), false, null);
+                    }
+                }
+                catch(Exception dontcare)
+                {
+                }
+                snort(10L);
+            }
+        });
+        try
+        {
+            producer.start();
+            snort(200L);
+
+            // a marker MCC in the normal lane waits behind the load, the priority MCC overtakes it
+            FtOutput marker = new FtOutput().m2(FtOutput.Direction.LEFT);
+            FtOutput stop = new FtOutput();
+            int maxOvertaken = 0;
+            for (int i=0; i<INTERRUPTS; i++)
+            {
+                snort(100L);
+                int skip = sim.getReceivedFrames().size();
+                iface.send(marker, false, null);
+                Assert.assertTrue("No load.", iface.getSenderReceiver().getQueueSize() > 1);
+                iface.softInterrupt(stop);
+                int index = awaitFrame(sim, skip, '!');
+                Assert.assertTrue("Priority MCC not received.", index >= 0);
+                maxOvertaken = Math.max(maxOvertaken, index - skip);
+            }
+
+            System.out.println(String.format("Priority lane: max. %d frames before the priority MCC",
+                    maxOvertaken));
+            Assert.assertTrue(maxOvertaken <= MAX_OVERTAKEN);
+            // the queued markers are cancelled
+            Assert.assertFalse(sim.getReceivedFrames().stream()
+                    .anyMatch((SimulatedInterfaceAdapter.ReceivedFrame frame) -> "32,0,0,0".equals(frame.getText())));
+        }
+        finally
+        {
+            this.stopped = true;
+            producer.join();
+        }
+    }
+
+}
@@ -0,0 +1,104 @@
+package de.voglrobe.ftinterface;
+
+import de.voglrobe.ftinterface.async.ProgramRunner;
+import de.voglrobe.ftinterface.io.FtInputCondition;
+import de.voglrobe.ftinterface.io.FtInputs;
+import de.voglrobe.ftinterface.io.FtOutput;
+import de.voglrobe.ftinterface.io.FtProgram;
+import de.voglrobe.ftinterface.io.FtProgramProgress;
+import de.voglrobe.ftinterface.io.FtProgramStep;
+import de.voglrobe.ftinterface.io.FtSerialPortConfig;
+import de.voglrobe.ftinterface.sim.SimulatedInterfaceAdapter;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+
+/**
+ * Motion programs run on the host, advanced by the ISBs of the simulated interface adapter.
+ *
+ * @author robert
+ */
+public class FtInterfaceAsyncProgramTest
+{
+    private static final int E1 = 0B1000_0000;
+    private static final long HOLD_TIME = 60000L; // ms, far beyond the timeout of the test
+    private static final FtProgramProgress STEP1 = new FtProgramProgress(FtProgramProgress.State.RUNNING, 1, 1);
+
+    @Rule
+    public final SimulationRule simulation = new SimulationRule();
+
+    @Test
+    public void testRunProgram() throws Exception
+    {
+        SimulatedInterfaceAdapter sim = new SimulatedInterfaceAdapter().timing(20L, 1L, 10L);
+        FtInterfaceAsync iface = simulation.open(sim, null);
+        List<FtProgramProgress> progress = new CopyOnWriteArrayList<>();
+        FtProgram program = new FtProgram()
+                .add(new FtProgramStep(new FtOutput().m1(FtOutput.Direction.RIGHT, 10)).repeat(3))
+                .add(new FtProgramStep(new FtOutput().m2(FtOutput.Direction.ON))
+                        .until(FtInputCondition.digital(FtInputs.IN.E1, true)).duration(HOLD_TIME))
+                .add(new FtProgramStep(new FtOutput().m4(FtOutput.Direction.ON)).duration(300L));
+
+        ProgramRunner runner = iface.runProgram(program, progress::add);
+        SimulationRule.await("Step 1 not started.", () -> progress.contains(STEP1));
+        SimulationRule.await("M2 not switched on.", () -> sim.getMotorControlByte() == FtOutput.M2_ON);
+        Assert.assertEquals(1, runner.getProgress().getStep());
+
+        // the condition ends the hold of M2, not the duration
+        sim.setInputs(E1, 0, 0);
+        FtProgramProgress end = runner.getResult().get(5L, TimeUnit.SECONDS);
+        System.out.println(String.format("Motion program finished: %s", progress));
+
+        Assert.assertEquals(FtProgramProgress.State.FINISHED, end.getState());
+        Assert.assertEquals(3, end.getStep());
+        Assert.assertEquals(new FtProgramProgress(FtProgramProgress.State.RUNNING, 0, 3), progress.get(2));
+        Assert.assertEquals(new FtProgramProgress(FtProgramProgress.State.RUNNING, 2, 1), progress.get(4));
+    }
+
+    @Test
+    public void testPauseAndAbort() throws Exception
+    {
+        SimulatedInterfaceAdapter sim = new SimulatedInterfaceAdapter();
+        FtInterfaceAsync iface = simulation.open(sim, null);
+        FtProgram program = new FtProgram()
+                .add(new FtProgramStep(new FtOutput().m1(FtOutput.Direction.ON)).duration(400L).repeat(2));
+        ProgramRunner runner = iface.runProgram(program, null);
+        Thread.sleep(200L);
+        runner.pause();
+        Thread.sleep(300L);
+        Assert.assertEquals(FtProgramProgress.State.PAUSED, runner.getProgress().getState());
+        // not refreshed while paused
+        Assert.assertEquals(0, sim.getMotorControlByte());
+
+        runner.resume();
+        Thread.sleep(100L);
+        Assert.assertEquals(FtProgramProgress.State.RUNNING, runner.getProgress().getState());
+        Assert.assertEquals(FtOutput.M1_ON, sim.getMotorControlByte());
+
+        iface.softInterrupt(new FtOutput());
+        FtProgramProgress end = runner.getResult().get(5L, TimeUnit.SECONDS);
+        Assert.assertEquals(FtProgramProgress.State.ABORTED, end.getState());
+        Assert.assertEquals(0, end.getStep());
+    }
+
+    @Test
+    public void testLostStepFails() throws Exception
+    {
+        SimulatedInterfaceAdapter sim = new SimulatedInterfaceAdapter();
+        FtInterfaceAsync iface = simulation.open(sim, new FtSerialPortConfig().maxRetries(1), null);
+        sim.isbLoss(1.0);
+        FtProgram program = new FtProgram()
+                .add(new FtProgramStep(new FtOutput().m1(FtOutput.Direction.ON)).duration(HOLD_TIME));
+        ProgramRunner runner = iface.runProgram(program, null);
+
+        // the MCC of the step is given up, the hold is never started
+        FtProgramProgress end = runner.getResult().get(5L, TimeUnit.SECONDS);
+        Assert.assertEquals(FtProgramProgress.State.FAILED, end.getState());
+        Assert.assertEquals(0, end.getStep());
+        Assert.assertEquals(0, iface.getSequenceNumberAllocator().getAllocated());
+    }
+
+}
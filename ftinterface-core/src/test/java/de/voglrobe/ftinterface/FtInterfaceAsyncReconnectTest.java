@@ -0,0 +1,132 @@
+package de.voglrobe.ftinterface;
+
+import de.voglrobe.ftinterface.io.FtHealth;
+import de.voglrobe.ftinterface.io.FtInputs;
+import de.voglrobe.ftinterface.io.FtIoEngine;
+import de.voglrobe.ftinterface.io.FtOutput;
+import de.voglrobe.ftinterface.io.FtSerialPortConfig;
+import de.voglrobe.ftinterface.sim.SimulatedInterfaceAdapter;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+
+/**
+ * Recovery of a broken or stalled serial link, tested against the simulated interface adapter.
+ *
+ * @author robert
+ */
+public class FtInterfaceAsyncReconnectTest
+{
+    private static final long TIMEOUT = 5000L; // ms
+
+    @Rule
+    public final SimulationRule simulation = new SimulationRule();
+
+    /**
+     * Waits until the interface reports the given health.
+     */
+    private static void awaitHealth(final FtInterfaceAsync iface, final FtHealth health) throws InterruptedException
+    {
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (iface.getHealth() != health && System.currentTimeMillis() < deadline)
+        {
+            Thread.sleep(10L);
+        }
+        Assert.assertEquals(health, iface.getHealth());
+    }
+
+    @Test
+    public void testReconnectBrokenLink() throws Exception
+    {
+        SimulatedInterfaceAdapter sim = new SimulatedInterfaceAdapter().timing(20L, 1L, 50L);
+        List<FtInputs> isbs = new CopyOnWriteArrayList<>();
+        List<FtHealth> health = new CopyOnWriteArrayList<>();
+        FtInterfaceAsync iface = simulation.open(sim, new FtSerialPortConfig().reconnectDelay(50L, 200L), isbs::add);
+        iface.setHealthListener(health::add);
+        // a long stepping command is lost with the reset
+        CompletableFuture<FtInputs> steps = iface.schedule(new FtOutput().m1(FtOutput.Direction.LEFT, 1000));
+        sim.setUnplugged(true);
+        awaitHealth(iface, FtHealth.RECONNECTING);
+        sim.setUnplugged(false);
+        awaitHealth(iface, FtHealth.CONNECTED);
+
+        Assert.assertEquals(Arrays.asList(FtHealth.RECONNECTING, FtHealth.CONNECTED), health);
+        try
+        {
+            // cancelled right after the reconnect
+            steps.get(TIMEOUT, TimeUnit.MILLISECONDS);
+            Assert.fail("Lost stepping command completed.");
+        }
+        catch(CancellationException expected)
+        {
+        }
+        Assert.assertTrue(sim.getResets() >= 2);
+
+        // the connection is usable again, a send-with-duration is not blocked by the lost MCC
+        iface.send(new FtOutput().m2(FtOutput.Direction.ON).seqNr(2), 1L);
+        Assert.assertTrue(isbs.stream().anyMatch((FtInputs inputs) -> inputs.getSeqNr() == 2));
+    }
+
+    @Test
+    public void testReconnectStalledLink() throws Exception
+    {
+        SimulatedInterfaceAdapter sim = new SimulatedInterfaceAdapter();
+        List<FtInputs> isbs = new CopyOnWriteArrayList<>();
+        List<FtHealth> health = new CopyOnWriteArrayList<>();
+        FtInterfaceAsync iface = simulation.open(sim,
+                new FtSerialPortConfig().watchdogTimeout(300L).reconnectDelay(50L, 200L), isbs::add);
+        iface.setHealthListener(health::add);
+        // the link is up but the interface adapter does not answer anymore
+        int resets = sim.getResets();
+        sim.isbLoss(1.0);
+        iface.send(new FtOutput().m1(FtOutput.Direction.ON).seqNr(1));
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (!health.contains(FtHealth.CONNECTED) && System.currentTimeMillis() < deadline)
+        {
+            Thread.sleep(10L);
+        }
+        sim.isbLoss(0.0);
+
+        Assert.assertEquals(Arrays.asList(FtHealth.STALLED, FtHealth.RECONNECTING, FtHealth.CONNECTED), health);
+        Assert.assertTrue(sim.getResets() > resets);
+
+        iface.send(new FtOutput().m2(FtOutput.Direction.ON).seqNr(2), 1L);
+        Assert.assertTrue(isbs.stream().anyMatch((FtInputs inputs) -> inputs.getSeqNr() == 2));
+    }
+
+    @Test
+    public void testReconnectIoEngine() throws Exception
+    {
+        FtIoEngine engine = FtIoEngine.newInstance(1);
+        SimulatedInterfaceAdapter sim = new SimulatedInterfaceAdapter();
+        List<FtInputs> isbs = new CopyOnWriteArrayList<>();
+        FtInterfaceAsync iface = simulation.open(sim,
+                new FtSerialPortConfig().ioEngine(engine).reconnectDelay(50L, 200L), isbs::add);
+        try
+        {
+            iface.send(new FtOutput().m1(FtOutput.Direction.ON).seqNr(1), 1L);
+            Assert.assertEquals(1, isbs.get(0).getSeqNr());
+
+            // the receiver task detects the unplugged device, a worker of the engine reconnects
+            sim.setUnplugged(true);
+            awaitHealth(iface, FtHealth.RECONNECTING);
+            sim.setUnplugged(false);
+            awaitHealth(iface, FtHealth.CONNECTED);
+
+            iface.send(new FtOutput().m2(FtOutput.Direction.ON).seqNr(2), 1L);
+            Assert.assertTrue(isbs.stream().anyMatch((FtInputs inputs) -> inputs.getSeqNr() == 2));
+        }
+        finally
+        {
+            iface.destroy();
+            engine.destroy();
+        }
+    }
+
+}
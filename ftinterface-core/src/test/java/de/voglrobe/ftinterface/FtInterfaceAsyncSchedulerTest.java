@@ -0,0 +1,77 @@
+package de.voglrobe.ftinterface;
+
+import de.voglrobe.ftinterface.io.FtInputs;
+import de.voglrobe.ftinterface.exceptions.ComException;
+import de.voglrobe.ftinterface.io.FtOutput;
+import de.voglrobe.ftinterface.io.FtSerialPortConfig;
+import de.voglrobe.ftinterface.sim.SimulatedInterfaceAdapter;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+
+/**
+ * Concurrent stepping commands of different motors, tested against the simulated interface adapter.
+ *
+ * @author robert
+ */
+public class FtInterfaceAsyncSchedulerTest
+{
+    private static final int STEPS = 50; // 10 ms per step
+
+    @Rule
+    public final SimulationRule simulation = new SimulationRule();
+
+    @Test
+    public void testConcurrentMotors() throws Exception
+    {
+        SimulatedInterfaceAdapter sim = new SimulatedInterfaceAdapter().timing(20L, 1L, 10L);
+        FtInterfaceAsync iface = simulation.open(sim, null);
+        iface.setTelemetry(true);
+        CompletableFuture<FtInputs> m1 = iface.schedule(new FtOutput().m1(FtOutput.Direction.RIGHT, STEPS));
+        Thread.sleep(100L);
+        CompletableFuture<FtInputs> m2 = iface.schedule(new FtOutput().m2(FtOutput.Direction.LEFT, STEPS));
+        CompletableFuture<FtInputs> m1Again = iface.schedule(new FtOutput().m1(FtOutput.Direction.LEFT, 10));
+
+        m2.get(5L, TimeUnit.SECONDS);
+        Assert.assertTrue("M1 must not wait for M2.", m1.isDone());
+        m1Again.get(5L, TimeUnit.SECONDS);
+
+        // M2 is still stepping when M1 is done, serialized it would not have started yet
+        int m2Remaining = m1.get().getTelemetry().getSteps().get(1);
+        System.out.println(String.format("Remaining steps of M2 when M1 was done: %d of %d", m2Remaining, STEPS));
+        Assert.assertTrue(m2Remaining > 0 && m2Remaining < STEPS);
+        Assert.assertEquals(0, (int) m2.get().getTelemetry().getSteps().get(1));
+        Assert.assertTrue(sim.getReceivedFrames().stream()
+                .anyMatch((SimulatedInterfaceAdapter.ReceivedFrame frame) -> frame.getStartChar() == '&'));
+        Assert.assertEquals(0, sim.getMotorControlByte());
+    }
+
+    @Test
+    public void testGivenUpRequestFails() throws Exception
+    {
+        SimulatedInterfaceAdapter sim = new SimulatedInterfaceAdapter().timing(20L, 1L, 10L);
+        FtInterfaceAsync iface = simulation.open(sim, new FtSerialPortConfig().maxRetries(1).steppingTimeout(200L),
+                null);
+        sim.isbLoss(1.0);
+        CompletableFuture<FtInputs> lost = iface.schedule(new FtOutput().m1(FtOutput.Direction.RIGHT, 5));
+        try
+        {
+            lost.get(5L, TimeUnit.SECONDS);
+            Assert.fail("Given-up stepping command completed.");
+        }
+        catch(ExecutionException expected)
+        {
+            Assert.assertTrue(expected.getCause() instanceof ComException);
+        }
+        sim.isbLoss(0.0);
+        Assert.assertEquals(0, iface.getSequenceNumberAllocator().getAllocated());
+
+        // the motor is free again
+        iface.schedule(new FtOutput().m1(FtOutput.Direction.LEFT, 5)).get(5L, TimeUnit.SECONDS);
+        Assert.assertEquals(0, iface.getSequenceNumberAllocator().getAllocated());
+    }
+
+}
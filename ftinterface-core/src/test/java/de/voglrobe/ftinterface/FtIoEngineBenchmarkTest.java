@@ -0,0 +1,144 @@
+package de.voglrobe.ftinterface;
+
+import de.voglrobe.ftinterface.io.FtInputs;
+import de.voglrobe.ftinterface.io.FtIoEngine;
+import de.voglrobe.ftinterface.io.FtOutput;
+import de.voglrobe.ftinterface.io.FtSerialPortConfig;
+import de.voglrobe.ftinterface.sim.SimulatedInterfaceAdapter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * 32 simulated interface adapters served by threads per connection and by a shared I/O engine.
+ *
+ * @author robert
+ */
+public class FtIoEngineBenchmarkTest
+{
+    private static final int DEVICES = 32;
+    private static final int ROUNDS = 20;
+    private static final long ROUND_TIME = 40L; // ms
+
+    /**
+     * The result of a run.
+     */
+    private static class Result
+    {
+        private int threads;
+        private int answered;
+        private long median;
+        private long p99;
+
+        @Override
+        public String toString()
+        {
+            return String.format("%d host threads, %d of %d ISBs, latency median %d us, p99 %d us", threads,
+                    answered, DEVICES * ROUNDS, median, p99);
+        }
+    }
+
+    /**
+     * Opens the interfaces, sends a MCC to each interface per round and measures the time until it's ISB arrives.
+     *
+     * @param engine The I/O engine or NULL for threads per connection.
+     */
+    private static Result run(final FtIoEngine engine) throws Exception
+    {
+        List<SimulatedInterfaceAdapter> sims = new ArrayList<>();
+        List<FtInterfaceAsync> ifaces = new ArrayList<>();
+        List<Map<Integer, Long>> sent = new ArrayList<>();
+        List<Long> latencies = new CopyOnWriteArrayList<>();
+        Result ret = new Result();
+        try
+        {
+            int base = Thread.activeCount();
+            for (int i=0; i<DEVICES; i++)
+            {
+                SimulatedInterfaceAdapter sim = new SimulatedInterfaceAdapter();
+                sims.add(sim);
+                Map<Integer, Long> outstanding = new ConcurrentHashMap<>();
+                sent.add(outstanding);
+                ifaces.add(FtInterfaceAsync.newInstance("sim" + i,
+                        new FtSerialPortConfig().portProvider(sim).ioEngine(engine), (final FtInputs inputs) ->
+                {
+                    Long at = outstanding.remove(inputs.getSeqNr());
+                    if (at != null)
+                    {
+                        latencies.add(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - at));
+                    }
+                }));
+            }
+            // each simulation runs a firmware thread, the rest are threads of the connections
+            ret.threads = Thread.activeCount() - base - DEVICES;
+
+            for (int n=1; n<=ROUNDS; n++)
+            {
+                for (int i=0; i<DEVICES; i++)
+                {
+                    sent.get(i).put(n, System.nanoTime());
+                    ifaces.get(i).send(new FtOutput()
+                            .m1(n % 2 == 0 ? FtOutput.Direction.LEFT : FtOutput.Direction.RIGHT).seqNr(n));
+                }
+                Thread.sleep(ROUND_TIME);
+            }
+            Thread.sleep(200L);
+
+            List<Long> sorted = new ArrayList<>(latencies);
+            Collections.sort(sorted);
+            ret.answered = sorted.size();
+            ret.median = sorted.isEmpty() ? 0L : sorted.get(sorted.size() / 2);
+            ret.p99 = sorted.isEmpty() ? 0L : sorted.get(sorted.size() * 99 / 100);
+            return ret;
+        }
+        finally
+        {
+            // a receiver thread ends within it's receive timeout, thus the interfaces are destroyed in parallel
+            List<Thread> destroyers = new ArrayList<>();
+            for (FtInterfaceAsync iface : ifaces)
+            {
+                Thread destroyer = new Thread(iface::destroy);
+                destroyer.start();
+                destroyers.add(destroyer);
+            }
+            for (Thread destroyer : destroyers)
+            {
+                destroyer.join();
+            }
+            sims.forEach(SimulatedInterfaceAdapter::destroy);
+        }
+    }
+
+    @Test
+    public void testBenchmark() throws Exception
+    {
+        Result threads = run(null);
+        System.out.println("Threads per connection: " + threads);
+
+        FtIoEngine engine = FtIoEngine.newInstance(2);
+        try
+        {
+            long wakeups = engine.getWakeups();
+            Result loops = run(engine);
+            System.out.println(String.format("I/O engine with %d loops: %s, %d loop wakeups, %d task calls",
+                    engine.getLoops(), loops, engine.getWakeups() - wakeups, engine.getPolls()));
+
+            Assert.assertEquals(DEVICES * ROUNDS, threads.answered);
+            Assert.assertEquals(DEVICES * ROUNDS, loops.answered);
+            Assert.assertTrue(threads.threads >= 4 * DEVICES);
+            Assert.assertTrue(loops.threads <= engine.getLoops());
+            Assert.assertTrue(loops.median < threads.median + 5000L);
+        }
+        finally
+        {
+            engine.destroy();
+        }
+    }
+
+}
@@ -0,0 +1,91 @@
+package de.voglrobe.ftinterface;
+
+import de.voglrobe.ftinterface.exceptions.ComException;
+import de.voglrobe.ftinterface.io.FtSerialPortConfig;
+import de.voglrobe.ftinterface.io.IFtInputReceiver;
+import de.voglrobe.ftinterface.sim.SimulatedInterfaceAdapter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.BooleanSupplier;
+import org.junit.Assert;
+import org.junit.rules.ExternalResource;
+
+/**
+ * Test fixture: opens interfaces to simulated interface adapters and destroys them after the test.
+ * <p>
+ * Usage: <code>@Rule public final SimulationRule simulation = new SimulationRule();</code>, then
+ * <code>FtInterfaceAsync iface = simulation.open(new SimulatedInterfaceAdapter(), receiver);</code>.
+ *
+ * @author robert
+ */
+public class SimulationRule extends ExternalResource
+{
+    private static final long TIMEOUT = 5000L; // ms
+
+    private final List<SimulatedInterfaceAdapter> simulations = new ArrayList<>();
+    private final List<FtInterfaceAsync> interfaces = new ArrayList<>();
+
+    /**
+     * Opens an interface to the given simulation with the default configuration.
+     *
+     * @param sim The simulated interface adapter.
+     * @param inputReceiver The receiver of the ISBs or NULL.
+     * @return The opened interface.
+     * @throws ComException if the interface cannot be opened.
+     */
+    public FtInterfaceAsync open(final SimulatedInterfaceAdapter sim, final IFtInputReceiver inputReceiver)
+            throws ComException
+    {
+        return this.open(sim, new FtSerialPortConfig(), inputReceiver);
+    }
+
+    /**
+     * Opens an interface to the given simulation.
+     *
+     * @param sim The simulated interface adapter.
+     * @param config The configuration, it's port provider is set to the simulation.
+     * @param inputReceiver The receiver of the ISBs or NULL.
+     * @return The opened interface.
+     * @throws ComException if the interface cannot be opened.
+     */
+    public FtInterfaceAsync open(final SimulatedInterfaceAdapter sim, final FtSerialPortConfig config,
+            final IFtInputReceiver inputReceiver) throws ComException
+    {
+        simulations.add(sim);
+        FtInterfaceAsync ret = FtInterfaceAsync.newInstance("sim" + interfaces.size(), config.portProvider(sim),
+                inputReceiver);
+        interfaces.add(ret);
+        return ret;
+    }
+
+    /**
+     * Waits until the given condition is met, e.g. an ISB or a progress event has been received.
+     *
+     * @param message The message if the condition is not met within the timeout.
+     * @param condition The condition.
+     * @throws InterruptedException if interrupted.
+     */
+    public static void await(final String message, final BooleanSupplier condition) throws InterruptedException
+    {
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (!condition.getAsBoolean() && System.currentTimeMillis() < deadline)
+        {
+            Thread.sleep(5L);
+        }
+        Assert.assertTrue(message, condition.getAsBoolean());
+    }
+
+    @Override
+    protected void after()
+    {
+        for (FtInterfaceAsync iface : interfaces)
+        {
+            iface.destroy();
+        }
+        for (SimulatedInterfaceAdapter sim : simulations)
+        {
+            sim.destroy();
+        }
+    }
+
+}
@@ -0,0 +1,203 @@
+package de.voglrobe.ftinterface.async;
+
+import de.voglrobe.ftinterface.io.FtInputs;
+import de.voglrobe.ftinterface.io.FtOutput;
+import de.voglrobe.ftinterface.io.FtSerialPortConfig;
+import de.voglrobe.ftinterface.io.FtSerialPortSenderReceiver;
+import de.voglrobe.ftinterface.sim.SimulatedInterfaceAdapter;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Retransmission of MCCs with missing ISBs, tested against the simulated interface adapter.
+ *
+ * @author robert
+ */
+public class RetransmissionThreadTest
+{
+    private static final long TIMEOUT = 10000L; // ms
+
+    private final BlockingQueue<FtInputs> isbs = new LinkedBlockingQueue<>();
+    private SimulatedInterfaceAdapter sim;
+    private FtSerialPortSenderReceiver sender;
+
+    /**
+     * Opens a connection to a new simulation.
+     */
+    private RetransmissionThread open(final FtSerialPortConfig config) throws Exception
+    {
+        this.sim = new SimulatedInterfaceAdapter();
+        this.sender = FtSerialPortSenderReceiver.newInstance("sim", config.portProvider(sim));
+        sender.setInputReceiver(isbs::add);
+        return sender.getRetransmissionThread();
+    }
+
+    /**
+     * Waits for the ISB with the given sequence number.
+     */
+    private FtInputs awaitIsb(final int seqNr) throws InterruptedException
+    {
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        FtInputs inputs;
+        while ((inputs = isbs.poll(deadline - System.currentTimeMillis(), TimeUnit.MILLISECONDS)) != null)
+        {
+            if (inputs.getSeqNr() == seqNr)
+            {
+                return inputs;
+            }
+        }
+        Assert.fail("No ISB for sequence number " + seqNr + ".");
+        return null;
+    }
+
+    /**
+     * Waits until the MCC with the given sequence number is complete. It's acknowledged after the ISB has been
+     * delivered.
+     */
+    private void awaitAcknowledged(final RetransmissionThread retransmission, final int seqNr)
+            throws InterruptedException
+    {
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (retransmission.isPending(seqNr) && System.currentTimeMillis() < deadline)
+        {
+            Thread.sleep(1L);
+        }
+        Assert.assertFalse(retransmission.isPending(seqNr));
+    }
+
+    /**
+     * Waits until the simulation has received a retransmission.
+     */
+    private void awaitRetransmission() throws InterruptedException
+    {
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (this.getReceived('%').isEmpty() && System.currentTimeMillis() < deadline)
+        {
+            Thread.sleep(5L);
+        }
+        Assert.assertFalse(this.getReceived('%').isEmpty());
+    }
+
+    /**
+     * Returns the frames with the given start char received by the simulation.
+     */
+    private List<SimulatedInterfaceAdapter.ReceivedFrame> getReceived(final char startChar)
+    {
+        return sim.getReceivedFrames().stream()
+                .filter((SimulatedInterfaceAdapter.ReceivedFrame frame) -> frame.getStartChar() == startChar)
+                .collect(Collectors.toList());
+    }
+
+    @After
+    public void tearDown()
+    {
+        if (sender != null)
+        {
+            sender.destroy();
+        }
+        if (sim != null)
+        {
+            sim.destroy();
+        }
+    }
+
+    @Test
+    public void testRtoFromRoundTrips() throws Exception
+    {
+        RetransmissionThread retransmission = this.open(new FtSerialPortConfig());
+        for (int i=1; i<=10; i++)
+        {
+            sender.send(new FtOutput().m1(FtOutput.Direction.ON).seqNr(i), null);
+            this.awaitIsb(i);
+            this.awaitAcknowledged(retransmission, i);
+        }
+
+        Assert.assertEquals(10, retransmission.getSamples());
+        Assert.assertEquals(0, retransmission.getRetransmissions());
+        Assert.assertTrue(retransmission.getSmoothedRtt() > 0.0);
+        long expected = Math.round(retransmission.getSmoothedRtt() + 4.0 * retransmission.getRttVariation());
+        Assert.assertEquals(Math.min(5000L, Math.max(30L, expected)), retransmission.getRto());
+    }
+
+    @Test
+    public void testKarnAndDuplicate() throws Exception
+    {
+        RetransmissionThread retransmission = this.open(new FtSerialPortConfig().maxRetries(3));
+        sim.isbLoss(1.0);
+        sender.send(new FtOutput().m1(FtOutput.Direction.ON).seqNr(7), null);
+        this.awaitRetransmission();
+        sim.isbLoss(0.0);
+        this.awaitIsb(7);
+        this.awaitAcknowledged(retransmission, 7);
+
+        // the answer is ambiguous: not sampled, the initial RTO applies
+        Assert.assertTrue(retransmission.getRetransmissions() >= 1);
+        Assert.assertEquals(0, retransmission.getSamples());
+        Assert.assertEquals(500L, retransmission.getRto());
+
+        // a late answer of the original MCC is dropped once
+        Assert.assertTrue(retransmission.isDuplicate(7));
+        Assert.assertFalse(retransmission.isDuplicate(7));
+        Assert.assertEquals(1, retransmission.getDuplicates());
+    }
+
+    @Test
+    public void testGiveUp() throws Exception
+    {
+        RetransmissionThread retransmission = this.open(new FtSerialPortConfig().maxRetries(2));
+        CompletableFuture<Integer> givenUp = new CompletableFuture<>();
+        sender.setGiveUpListener(givenUp::complete);
+        sim.isbLoss(1.0);
+        sender.getSequenceLockHelper().addSeqNr(9);
+        sender.send(new FtOutput().m1(FtOutput.Direction.ON).seqNr(9), null);
+
+        Assert.assertEquals(Integer.valueOf(9), givenUp.get(TIMEOUT, TimeUnit.MILLISECONDS));
+        Assert.assertEquals(2, retransmission.getRetransmissions());
+        Assert.assertEquals(1, retransmission.getLost());
+        Assert.assertFalse(retransmission.isPending(9));
+        Assert.assertTrue(sender.getSequenceLockHelper().getSeqNrs().isEmpty());
+        Assert.assertEquals(1, this.getReceived('$').size());
+        Assert.assertEquals(2, this.getReceived('%').size());
+    }
+
+    @Test
+    public void testSteppingHoldBounded() throws Exception
+    {
+        RetransmissionThread retransmission = this.open(new FtSerialPortConfig().steppingTimeout(200L));
+        sim.isbLoss(1.0);
+        sender.send(new FtOutput().m1(FtOutput.Direction.LEFT, 5).seqNr(3), null);
+        Thread.sleep(100L);
+        sim.isbLoss(0.0);
+
+        // no later ISB overtakes the stepping command, it's retransmitted after the stepping timeout
+        this.awaitIsb(3);
+        this.awaitAcknowledged(retransmission, 3);
+        this.awaitRetransmission();
+        long sent = this.getReceived('$').get(0).getArrival();
+        long retransmitted = this.getReceived('%').get(0).getArrival();
+        Assert.assertTrue(TimeUnit.NANOSECONDS.toMillis(retransmitted - sent) >= 200L);
+        Assert.assertEquals(1, retransmission.getRetransmissions());
+        Assert.assertEquals(0, retransmission.getLost());
+    }
+
+    @Test
+    public void testSyncWaitBounded() throws Exception
+    {
+        this.open(new FtSerialPortConfig());
+
+        // a MCC that never gets an answer does not block the synchronous send forever
+        sender.getSequenceLockHelper().addSeqNr(4);
+        long start = System.currentTimeMillis();
+        sender.getSequenceLockHelper().check(300L);
+        Assert.assertTrue(System.currentTimeMillis() - start < TIMEOUT);
+        Assert.assertTrue(sender.getSequenceLockHelper().getSeqNrs().isEmpty());
+    }
+
+}
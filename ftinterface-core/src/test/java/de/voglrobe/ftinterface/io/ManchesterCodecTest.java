@@ -0,0 +1,50 @@
+package de.voglrobe.ftinterface.io;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ *
+ * @author robert
+ */
+public class ManchesterCodecTest
+{
+    @Test
+    public void testEncodeDecode() throws Exception
+    {
+        for (int b=0; b<256; b++)
+        {
+            int m = ManchesterCodec.encode(b);
+            byte lsb = (byte) (m & 0xFF);
+            byte msb = (byte) ((m >> 8) & 0xFF);
+            Assert.assertFalse(ManchesterCodec.isStartByte(lsb));
+            Assert.assertFalse(ManchesterCodec.isStartByte(msb));
+            Assert.assertFalse(ManchesterCodec.isControlByte(lsb));
+            Assert.assertFalse(ManchesterCodec.isControlByte(msb));
+            Assert.assertEquals(b, ManchesterCodec.decode(lsb, msb));
+        }
+    }
+
+    @Test
+    public void testDecodeLittleEndian() throws Exception
+    {
+        long value = 0xDEADBEEFL;
+        List<Byte> frame = new ArrayList<>();
+        frame.add((byte) 0xC1);
+        for (int i=0; i<4; i++)
+        {
+            int m = ManchesterCodec.encode((int) (value >> 8*i) & 0xFF);
+            frame.add((byte) (m & 0xFF));
+            frame.add((byte) ((m >> 8) & 0xFF));
+        }
+        Assert.assertEquals(value, ManchesterCodec.decode(frame, 1, 4));
+    }
+
+    @Test(expected = NumberFormatException.class)
+    public void testDecodeInvalid() throws Exception
+    {
+        ManchesterCodec.decode((byte) 0xFF, (byte) 0x55);
+    }
+}
@@ -0,0 +1,233 @@
+package de.voglrobe.ftinterface.server;
+
+import java.lang.reflect.Method;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * This class executes the commands of the WebSocket sessions off the Jetty threads.
+ * <p>
+ * The commands of an interface adapter are executed one after the other, the commands of different interface
+ * adapters run concurrently. A command may block, e.g. a MCC with a duration, without delaying the WebSocket
+ * callbacks of any session. The commands run on virtual threads if the JVM supports them (Java 21+), otherwise
+ * on a pool of platform threads that are created on demand.
+ * <p>
+ * Each session has a {@link CommandQuota}. A command beyond the quota is not admitted, the session is busy then.
+ * The admitted commands of a session are executed in the order of submission. The sessions of an interface
+ * adapter take turns (weighted round-robin): a session executes up to 'weight' commands in a row, then the next
+ * session with pending commands is served. Thus an aggressive session cannot starve the others.
+ *
+ * @author robert
+ */
+public class CommandExecutor
+{
+    private static final Logger LOGGER = Logger.getLogger(CommandExecutor.class.getName());
+
+    /**
+     * The pending commands of a session.
+     */
+    private static class SessionQueue
+    {
+        private final CommandQuota quota;
+        private final Queue<Runnable> tasks = new ArrayDeque<>();
+        private int served = 0;
+
+        private SessionQueue(final CommandQuota quota)
+        {
+            this.quota = quota;
+        }
+    }
+
+    /**
+     * The queue of the commands of an interface adapter. Runs on one thread of the executor at a time.
+     */
+    private class SerialQueue implements Runnable
+    {
+        private final Map<CommandQuota, SessionQueue> sessions = new HashMap<>();
+        private final Deque<SessionQueue> ready = new ArrayDeque<>();
+        private int size = 0;
+        private boolean active = false;
+
+        private synchronized void submit(final CommandQuota quota, final Runnable task)
+        {
+            SessionQueue queue = sessions.get(quota);
+            if (queue == null)
+            {
+                queue = new SessionQueue(quota);
+                sessions.put(quota, queue);
+                ready.add(queue);
+            }
+            queue.tasks.add(task);
+            size++;
+            if (!active)
+            {
+                this.active = true;
+                executor.execute(this);
+            }
+        }
+
+        private synchronized int size()
+        {
+            return size + (active ? 1 : 0);
+        }
+
+        /**
+         * Takes the next command round-robin. Must be called while holding the lock.
+         */
+        private SessionQueue next()
+        {
+            SessionQueue queue = ready.peek();
+            if (queue == null)
+            {
+                return null;
+            }
+            queue.served++;
+            if (queue.tasks.size() == 1)
+            {
+                ready.poll();
+                sessions.remove(queue.quota);
+            }
+            else if (queue.served >= queue.quota.getWeight())
+            {
+                // turn of the next session
+                queue.served = 0;
+                ready.add(ready.poll());
+            }
+            return queue;
+        }
+
+        @Override
+        public void run()
+        {
+            while(true)
+            {
+                SessionQueue queue;
+                Runnable task;
+                synchronized(this)
+                {
+                    queue = this.next();
+                    if (queue == null)
+                    {
+                        this.active = false;
+                        return;
+                    }
+                    task = queue.tasks.poll();
+                    size--;
+                }
+                try
+                {
+                    task.run();
+                }
+                catch(RuntimeException e)
+                {
+                    LOGGER.log(Level.SEVERE, "Error executing command.", e);
+                }
+                finally
+                {
+                    queue.quota.release();
+                }
+            }
+        }
+    }
+
+    private final ExecutorService executor;
+    private final boolean virtual;
+    private final Map<String, SerialQueue> queues = new ConcurrentHashMap<>();
+
+    /**
+     * Factory to create a new instance of this class.
+     *
+     * @return A new instance of this class.
+     */
+    public static CommandExecutor newInstance()
+    {
+        try
+        {
+            // Java 21+, the server is built for Java 8
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return new CommandExecutor((ExecutorService) factory.invoke(null), true);
+        }
+        catch(ReflectiveOperationException | RuntimeException e)
+        {
+            AtomicInteger count = new AtomicInteger();
+            return new CommandExecutor(Executors.newCachedThreadPool((final Runnable runnable) ->
+            {
+                Thread thread = new Thread(runnable, "FtCommand-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }), false);
+        }
+    }
+
+    /**
+     * Constructor with the given executor, e.g. for tests.
+     *
+     * @param executor The executor of the commands.
+     * @param virtual TRUE if the executor runs the commands on virtual threads.
+     */
+    CommandExecutor(final ExecutorService executor, final boolean virtual)
+    {
+        this.executor = executor;
+        this.virtual = virtual;
+        LOGGER.log(Level.INFO, "Commands are executed on {0} threads.", virtual ? "virtual" : "platform");
+    }
+
+    /**
+     * Returns whether the commands run on virtual threads.
+     *
+     * @return TRUE if virtual threads, FALSE if platform threads.
+     */
+    public boolean isVirtual()
+    {
+        return virtual;
+    }
+
+    /**
+     * Queues a command of a session if it's quota admits it and returns immediately.
+     *
+     * @param deviceId The id of the interface adapter.
+     * @param quota The quota of the session.
+     * @param mccs The number of MCCs of the command.
+     * @param command The command.
+     * @return TRUE if queued, FALSE if the session is busy.
+     */
+    public boolean submit(final String deviceId, final CommandQuota quota, final int mccs, final Runnable command)
+    {
+        if (!quota.tryAcquire(mccs))
+        {
+            return false;
+        }
+        queues.computeIfAbsent(deviceId, (final String key) -> new SerialQueue()).submit(quota, command);
+        return true;
+    }
+
+    /**
+     * Returns the number of pending commands of an interface adapter, the running one included.
+     *
+     * @param deviceId The id of the interface adapter.
+     * @return The number of commands.
+     */
+    public int getPending(final String deviceId)
+    {
+        SerialQueue queue = queues.get(deviceId);
+        return queue != null ? queue.size() : 0;
+    }
+
+    /**
+     * Discards the pending commands and interrupts the running ones.
+     */
+    public void destroy()
+    {
+        executor.shutdownNow();
+    }
+
+}
@@ -0,0 +1,162 @@
+package de.voglrobe.ftinterface.server;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * This class implements the admission control of the commands of a WebSocket session, see
+ * {@link CommandExecutor}.
+ * <p>
+ * A token bucket limits the rate of the MCCs: it holds up to 'burst' tokens and is refilled by 'rate' tokens per
+ * second, each MCC takes one token. A batch larger than the bucket is admitted if the bucket is full. Besides, the
+ * number of pending commands of the session is limited. The weight is the share of the session in the
+ * round-robin scheduling of the commands of an interface adapter.
+ *
+ * @author robert
+ */
+public class CommandQuota
+{
+    private final double rate; // tokens per s, 0 = unlimited
+    private final double burst;
+    private final int weight;
+    private final int maxPending;
+    private final LongSupplier clock; // ns
+    private double tokens;
+    private long refilled; // ns
+    private int pending;
+    private long admitted;
+    private long rejected;
+
+    /**
+     * Constructor.
+     *
+     * @param rate The max. number of MCCs per second. 0 means unlimited.
+     * @param burst The max. number of MCCs at once. Must be &gt; 0 if the rate is limited.
+     * @param weight The share in the round-robin scheduling. Must be &gt; 0.
+     * @param maxPending The max. number of pending commands. Must be &gt; 0.
+     */
+    public CommandQuota(final double rate, final int burst, final int weight, final int maxPending)
+    {
+        this(rate, burst, weight, maxPending, System::nanoTime);
+    }
+
+    /**
+     * Constructor with the given clock, e.g. for tests.
+     *
+     * @param rate The max. number of MCCs per second. 0 means unlimited.
+     * @param burst The max. number of MCCs at once. Must be &gt; 0 if the rate is limited.
+     * @param weight The share in the round-robin scheduling. Must be &gt; 0.
+     * @param maxPending The max. number of pending commands. Must be &gt; 0.
+     * @param clock The source of the current time in ns.
+     */
+    CommandQuota(final double rate, final int burst, final int weight, final int maxPending,
+            final LongSupplier clock)
+    {
+        if (rate < 0.0 || (rate > 0.0 && burst <= 0) || weight <= 0 || maxPending <= 0)
+        {
+            throw new IllegalArgumentException("Invalid quota.");
+        }
+        this.rate = rate;
+        this.burst = burst;
+        this.weight = weight;
+        this.maxPending = maxPending;
+        this.clock = clock;
+        this.tokens = burst;
+        this.refilled = clock.getAsLong();
+        this.pending = 0;
+        this.admitted = 0L;
+        this.rejected = 0L;
+    }
+
+    /**
+     * Returns the share of the session in the round-robin scheduling.
+     *
+     * @return The weight, i.e. the max. number of commands in a row.
+     */
+    public int getWeight()
+    {
+        return weight;
+    }
+
+    /**
+     * Refills the bucket. Must be called while holding the lock.
+     */
+    private void refill()
+    {
+        long now = clock.getAsLong();
+        tokens = Math.min(burst, tokens + rate * (now - refilled) / TimeUnit.SECONDS.toNanos(1));
+        refilled = now;
+    }
+
+    /**
+     * Admits a command if the session is within it's limits.
+     *
+     * @param mccs The number of MCCs of the command.
+     * @return TRUE if admitted, FALSE if the session is busy.
+     */
+    public synchronized boolean tryAcquire(final int mccs)
+    {
+        if (rate > 0.0)
+        {
+            this.refill();
+        }
+        if (pending >= maxPending || (rate > 0.0 && tokens < Math.min(mccs, burst)))
+        {
+            rejected += mccs;
+            return false;
+        }
+        if (rate > 0.0)
+        {
+            tokens -= mccs;
+        }
+        pending++;
+        admitted += mccs;
+        return true;
+    }
+
+    /**
+     * Called when an admitted command has been executed.
+     */
+    public synchronized void release()
+    {
+        pending--;
+    }
+
+    /**
+     * Returns the time until the bucket holds enough tokens for the given number of MCCs.
+     *
+     * @param mccs The number of MCCs.
+     * @return The time in ms, 0 if there are enough tokens.
+     */
+    public synchronized long getRetryAfter(final int mccs)
+    {
+        if (rate == 0.0)
+        {
+            return 0L;
+        }
+        this.refill();
+        double missing = Math.min(mccs, burst) - tokens;
+        return missing > 0.0 ? (long) Math.ceil(missing * 1000.0 / rate) : 0L;
+    }
+
+    /**
+     * Returns the number of admitted MCCs.
+     *
+     * @return The number of MCCs.
+     */
+    public synchronized long getAdmitted()
+    {
+        return admitted;
+    }
+
+    /**
+     * Returns the number of MCCs rejected as busy.
+     *
+     * @return The number of MCCs.
+     */
+    public synchronized long getRejected()
+    {
+        return rejected;
+    }
+
+}
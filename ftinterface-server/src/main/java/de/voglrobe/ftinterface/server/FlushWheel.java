@@ -0,0 +1,158 @@
+package de.voglrobe.ftinterface.server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A Thread implementation of a timer wheel that flushes the conflated ISBs of the rate-limited sessions, see
+ * {@link SessionOutbox#flush()}.
+ * <p>
+ * All sessions share this single thread: the wheel has a fixed number of slots, one per tick, and a session that
+ * has a pending ISB is put into the slot of the tick it's due. Each tick the thread flushes the sessions of the
+ * current slot only, i.e. the cost depends on the number of due sessions, not on the number of sessions or on
+ * the rate of the interface adapters. Delays longer than the wheel are cut to the wheel.
+ *
+ * @author robert
+ */
+public class FlushWheel extends Thread
+{
+    private static final Logger LOGGER = Logger.getLogger(FlushWheel.class.getName());
+
+    private static final int SLOTS = 512;
+
+    private final long tick; // ms
+    private final LongSupplier clock; // ns
+    private final List<Queue<SessionOutbox>> slots;
+    private volatile long cursor;
+    private long next; // ns, the time of the current slot
+    private volatile boolean stopped;
+
+    /**
+     * Constructor.
+     *
+     * @param tick The resolution of the wheel in ms. Must be &gt; 0.
+     */
+    public FlushWheel(final long tick)
+    {
+        this(tick, System::nanoTime);
+    }
+
+    /**
+     * Constructor with the given clock, e.g. for tests.
+     *
+     * @param tick The resolution of the wheel in ms. Must be &gt; 0.
+     * @param clock The source of the current time in ns.
+     */
+    FlushWheel(final long tick, final LongSupplier clock)
+    {
+        if (tick <= 0)
+        {
+            throw new IllegalArgumentException("Tick must be > 0.");
+        }
+        this.tick = tick;
+        this.clock = clock;
+        this.slots = new ArrayList<>(SLOTS);
+        for (int i=0; i<SLOTS; i++)
+        {
+            slots.add(new ConcurrentLinkedQueue<>());
+        }
+        this.cursor = 0L;
+        this.next = clock.getAsLong();
+        this.stopped = false;
+        this.setName("FlushWheel");
+        this.setDaemon(true);
+    }
+
+    /**
+     * Returns the resolution of the wheel.
+     *
+     * @return The tick in ms.
+     */
+    public long getTick()
+    {
+        return tick;
+    }
+
+    /**
+     * Returns the max. rate the wheel can flush a session with, i.e. one flush per tick.
+     *
+     * @return The rate in Hz.
+     */
+    public int getMaxRate()
+    {
+        return (int) (1000L / tick);
+    }
+
+    /**
+     * Flushes the session after the given delay, at the earliest with the next tick. Returns immediately.
+     *
+     * @param outbox The outbox of the session.
+     * @param delay The delay in ms.
+     */
+    public void schedule(final SessionOutbox outbox, final long delay)
+    {
+        long ticks = Math.min(Math.max(1L, (delay + tick - 1) / tick), SLOTS - 1);
+        slots.get((int) ((cursor + ticks) % SLOTS)).add(outbox);
+    }
+
+    /**
+     * Sets the terminate flag and returns immediately.
+     * The caller should wait until this thread has been terminated.
+     */
+    public void terminate()
+    {
+        this.stopped = true;
+        this.interrupt();
+    }
+
+    @Override
+    public void run()
+    {
+        LOGGER.log(Level.INFO, "Starting FlushWheel, tick {0} ms.", tick);
+        this.next = clock.getAsLong();
+        while(!stopped)
+        {
+            this.flushDue();
+            try
+            {
+                TimeUnit.NANOSECONDS.sleep(next - clock.getAsLong());
+            }
+            catch(InterruptedException dontcare)
+            {
+            }
+        }
+        LOGGER.log(Level.INFO, "FlushWheel terminated.");
+    }
+
+    /**
+     * Flushes the sessions of the slots that are due and advances the wheel. Catches up if a tick has been missed.
+     */
+    void flushDue()
+    {
+        while (clock.getAsLong() - next >= 0L)
+        {
+            Queue<SessionOutbox> slot = slots.get((int) (cursor % SLOTS));
+            SessionOutbox outbox;
+            while ((outbox = slot.poll()) != null)
+            {
+                try
+                {
+                    outbox.flush();
+                }
+                catch(RuntimeException e)
+                {
+                    LOGGER.log(Level.WARNING, "Error flushing WebSocket session.", e);
+                }
+            }
+            this.cursor = cursor + 1;
+            next += TimeUnit.MILLISECONDS.toNanos(tick);
+        }
+    }
+
+}
@@ -1,15 +1,25 @@
 package de.voglrobe.ftinterface.server;
 
+import de.voglrobe.ftinterface.FtDeviceRegistry;
 import de.voglrobe.ftinterface.FtInterfaceAsync;
+import de.voglrobe.ftinterface.IFtDeviceListener;
 import de.voglrobe.ftinterface.exceptions.ComException;
+import de.voglrobe.ftinterface.io.FtHealth;
 import de.voglrobe.ftinterface.io.FtInputs;
+import de.voglrobe.ftinterface.io.FtIoEngine;
+import de.voglrobe.ftinterface.io.FtMccMessage;
+import de.voglrobe.ftinterface.io.FtSerialPortConfig;
 import de.voglrobe.ftinterface.server.websocket.FtWebSocket;
+import de.voglrobe.ftinterface.server.websocket.FtWebSocketCreator;
+import de.voglrobe.ftinterface.sim.SimulatedInterfaceAdapter;
 import java.io.BufferedReader;
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Properties;
 import java.util.concurrent.BlockingQueue;
@@ -17,6 +27,8 @@ import java.util.concurrent.LinkedBlockingQueue;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import org.eclipse.jetty.websocket.api.Session;
+import static spark.Spark.awaitInitialization;
+import static spark.Spark.get;
 import static spark.Spark.init;
 import static spark.Spark.port;
 import static spark.Spark.secure;
@@ -29,11 +41,44 @@ import static spark.Spark.webSocket;
  * <p>
  * It opens a WebSocket on port 9091 (default) and waits for incoming MCCs.
  * MCCs are expected in JSON. See de.voglrobe.ftinterface.io.FtMccMessage.
- * The URL is: ws://&lt;host&gt;:9091/ftinterface.
+ * One server drives any number of interface adapters, see {@link FtDeviceRegistry}. Each interface adapter is
+ * addressed by it's device id, i.e. the file name of it's serial port (e.g. 'ttyACM0') or 'sim0', 'sim1', ... for
+ * simulated ones. The URL is: ws://&lt;host&gt;:9091/ftinterface/&lt;deviceId&gt;. The URL
+ * ws://&lt;host&gt;:9091/ftinterface addresses the default device, i.e. the first configured one.
  * <p>
- * ISBs are returned asynchronously in JSON format. See {@link de.voglrobe.ftinterface.io.FtInputs}. 
+ * ISBs are returned asynchronously in JSON format to the session that has sent the MCC with their sequence
+ * number, see {@link SessionRegistry}. Observer sessions, e.g. ws://&lt;host&gt;:9091/ftinterface/ttyACM0?observe=true,
+ * receive all ISBs of their interface adapter. See {@link de.voglrobe.ftinterface.io.FtInputs}. Changes of the
+ * connection health are sent to the sessions of the interface adapter as <code>{"health": "RECONNECTING"}</code>.
+ * The current health is also available at http://&lt;host&gt;:9091/health (default device) and
+ * http://&lt;host&gt;:9091/health/&lt;deviceId&gt;, the list of all interface adapters at
+ * http://&lt;host&gt;:9091/devices.
  * <p>
- * The port number and the name of the serial device are configurable in 'Application.properties'.
+ * Each session has a bounded outbound queue, i.e. a slow client does not delay the others. If it's queue is full,
+ * the slow-consumer policy drops the oldest ISB, conflates to the latest ISB or closes the session, see
+ * {@link SessionOutbox.Policy}. A session may choose it's policy by the URL, e.g.
+ * ws://&lt;host&gt;:9091/ftinterface/ttyACM0?slowconsumer=CONFLATE. The lag of all sessions is available at
+ * http://&lt;host&gt;:9091/sessions.
+ * <p>
+ * A session may subscribe to some fields of the ISBs and/or to the changes only, e.g.
+ * ws://&lt;host&gt;:9091/ftinterface/ttyACM0?fields=E3,EX&amp;delta=true, see {@link IsbFilter}. A session that
+ * does not need every ISB, e.g. a dashboard, may limit it's update rate, e.g. ?rate=5 (Hz). Then the ISBs are
+ * conflated to the newest one, ISBs carrying an event are sent nevertheless, see {@link SessionOutbox}. A session
+ * that tolerates a few ms of latency may batch it's ISBs, e.g. ?batch=20&amp;batchsize=8, i.e. an ISB is held for
+ * up to 20 ms and up to 8 ISBs are sent in one frame as JSON array or binary ISBs back to back.
+ * <p>
+ * Clients that request the WebSocket subprotocol {@value #BINARY_PROTOCOL} in the handshake, i.e. by the header
+ * 'Sec-WebSocket-Protocol', may send binary MCCs and receive binary ISBs instead of JSON, see
+ * {@link FtMccMessage#toBinary()} and {@link FtInputs#toBinary()}. The server confirms the subprotocol, see
+ * {@link FtWebSocketCreator}. Program, health and progress messages remain JSON.
+ * <p>
+ * Several MCCs may be sent in one message, atomically or pipelined, and are answered with one acknowledgement, see
+ * {@link de.voglrobe.ftinterface.io.FtMccBatch}. MCCs are executed by the {@link CommandExecutor} in the order of
+ * receipt per interface adapter, i.e. a MCC with a duration does not block the WebSocket. The sessions of an
+ * interface adapter take turns and their MCC rate may be limited, a session beyond it's limit gets
+ * <code>{"busy": {"seqnrs": [5], "retryAfter": 120}}</code>, see {@link CommandQuota}.
+ * <p>
+ * The port number, the names and the speed of the serial devices are configurable in 'Application.properties'.
  * 
  * @author robert
  */
@@ -45,34 +90,266 @@ public class FtServer
     private static final String PROP_KEY_WEBSOCKET_PORT = "de.voglrobe.ftserver.websocket.port";
     private static final String PROP_SERIAL_DEVICE_NAME = "de.voglrobe.ftserver.serial.devicename";
     private static final String PROP_DRYRUN             = "de.voglrobe.ftserver.dryrun";
+    private static final String PROP_SERIAL_TELEMETRY   = "de.voglrobe.ftserver.serial.telemetry";
+    private static final String PROP_SERIAL_SPEED       = "de.voglrobe.ftserver.serial.speed";
+    private static final String PROP_SERIAL_READY_TIMEOUT = "de.voglrobe.ftserver.serial.readytimeout";
+    private static final String PROP_SERIAL_RESET_ON_OPEN = "de.voglrobe.ftserver.serial.resetonopen";
+    private static final String PROP_SERIAL_WATCHDOG    = "de.voglrobe.ftserver.serial.watchdog";
+    private static final String PROP_SERIAL_RECONNECT_DELAY = "de.voglrobe.ftserver.serial.reconnectdelay";
+    private static final String PROP_SERIAL_RECONNECT_MAX_DELAY = "de.voglrobe.ftserver.serial.reconnectmaxdelay";
+    private static final String PROP_SERIAL_MAX_RETRIES = "de.voglrobe.ftserver.serial.maxretries";
+    private static final String PROP_SERIAL_STEPPING_TIMEOUT = "de.voglrobe.ftserver.serial.steppingtimeout";
+    private static final String PROP_SERIAL_CONFLATING  = "de.voglrobe.ftserver.serial.conflating";
+    private static final String PROP_SERIAL_HOLD_TIME   = "de.voglrobe.ftserver.serial.holdtime";
+    private static final String PROP_SERIAL_DISCOVER    = "de.voglrobe.ftserver.serial.discover";
+    private static final String PROP_SIMULATED          = "de.voglrobe.ftserver.simulated";
+    private static final String PROP_IO_LOOPS           = "de.voglrobe.ftserver.io.loops";
+    private static final String PROP_SESSION_QUEUE_SIZE = "de.voglrobe.ftserver.session.queuesize";
+    private static final String PROP_SESSION_SLOW_CONSUMER = "de.voglrobe.ftserver.session.slowconsumer";
+    private static final String PROP_SESSION_COMMAND_RATE = "de.voglrobe.ftserver.session.commandrate";
+    private static final String PROP_SESSION_COMMAND_BURST = "de.voglrobe.ftserver.session.commandburst";
+    private static final String PROP_SESSION_COMMAND_QUEUE = "de.voglrobe.ftserver.session.commandqueue";
+    
+    /**
+     * The query parameter of the WebSocket URL to choose the slow-consumer policy of a session.
+     */
+    public static final String PARAM_SLOW_CONSUMER = "slowconsumer";
+    
+    /**
+     * The query parameter of the WebSocket URL to receive all ISBs of the interface adapter, e.g. for monitoring.
+     */
+    public static final String PARAM_OBSERVE = "observe";
+    
+    /**
+     * The WebSocket subprotocol of the binary MCCs and ISBs, see {@link FtMccMessage#toBinary()} and
+     * {@link FtInputs#toBinary()}.
+     */
+    public static final String BINARY_PROTOCOL = "ftinterface.binary";
+    
+    /**
+     * The query parameter of the WebSocket URL to choose the subprotocol without the handshake, e.g.
+     * ?protocol=ftinterface.binary. Kept for clients of older server versions, which did not confirm the
+     * subprotocol.
+     */
+    public static final String PARAM_PROTOCOL = "protocol";
+    
+    /**
+     * The query parameter of the WebSocket URL to receive the changed fields of the ISBs only, see {@link IsbFilter}.
+     */
+    public static final String PARAM_DELTA = "delta";
+    
+    /**
+     * The query parameter of the WebSocket URL to restrict the ISBs to some fields, e.g. ?fields=E3,EX. See
+     * {@link IsbFilter.Field}.
+     */
+    public static final String PARAM_FIELDS = "fields";
+    
+    /**
+     * The query parameter of the WebSocket URL to limit the update rate of a session in Hz, e.g. ?rate=5. Higher
+     * rates than one ISB per tick of the flush wheel (i.e. 100 Hz) are cut to it.
+     */
+    public static final String PARAM_RATE = "rate";
+    
+    /**
+     * The query parameter of the WebSocket URL to batch the ISBs of a session: the max. time in ms to hold an ISB,
+     * e.g. ?batch=20.
+     */
+    public static final String PARAM_BATCH = "batch";
+    
+    /**
+     * The query parameter of the WebSocket URL to choose the max. number of ISBs in a batch, e.g. ?batchsize=8.
+     */
+    public static final String PARAM_BATCH_SIZE = "batchsize";
+    
+    /**
+     * The query parameter of the WebSocket URL to choose the share of a session in the scheduling of the commands of
+     * it's interface adapter, e.g. ?weight=2. See {@link CommandExecutor}.
+     */
+    public static final String PARAM_WEIGHT = "weight";
+    
+    private static final String HEALTH_MSG = "{\"health\": \"%s\"}";
+    private static final String SIMULATED_DEVICE = "sim";
+    private static final long FLUSH_TICK = 10L; // ms
+    private static final int DEFAULT_BATCH_SIZE = 16;
+    private static final int MAX_WEIGHT = 8;
     
 
-    private static final List<Session> SESSIONS = new ArrayList<>();
-    private static FtInterfaceAsync IFACE = null;
+    private static final SessionRegistry SESSIONS = new SessionRegistry();
+    private static final FlushWheel WHEEL = new FlushWheel(FLUSH_TICK);
+    private static final CommandExecutor COMMANDS = CommandExecutor.newInstance();
+    private static FtDeviceRegistry REGISTRY = null;
+    private static String DEFAULT_DEVICE = null;
     private static boolean IS_DRYRUN = false;
+    private static int QUEUE_SIZE = 64;
+    private static SessionOutbox.Policy SLOW_CONSUMER = SessionOutbox.Policy.DROP_OLDEST;
+    private static double COMMAND_RATE = 0.0;
+    private static int COMMAND_BURST = 10;
+    private static int COMMAND_QUEUE = 16;
     
     private final Properties props;
     
     /**
-     * Returns the interface instance.
+     * Returns the interface instance of the default device.
      * 
-     * @return the interface instance.
+     * @return the interface instance or NULL if there is none.
      */
     public static FtInterfaceAsync getFtInterface()
     {
-        return IFACE;
+        return FtServer.getFtInterface(DEFAULT_DEVICE);
+    }
+    
+    /**
+     * Returns the interface instance of the given device.
+     * 
+     * @param deviceId The id of the interface adapter.
+     * @return the interface instance or NULL if there is no such device.
+     */
+    public static FtInterfaceAsync getFtInterface(final String deviceId)
+    {
+        return REGISTRY != null ? REGISTRY.get(deviceId) : null;
+    }
+    
+    /**
+     * Returns the id of the default device, i.e. the device addressed by the URL without device id.
+     * 
+     * @return The device id.
+     */
+    public static String getDefaultDevice()
+    {
+        return DEFAULT_DEVICE;
     }
     
     /**
      * Returns the registered sessions.
      * 
-     * @return The registered sessions (open WebSocket connections). 
+     * @return The registry of the open WebSocket connections. 
      */
-    public static List<Session> getSessions()
+    public static SessionRegistry getSessions()
     {
         return SESSIONS;
     }
     
+    /**
+     * Returns the executor of the commands of the sessions.
+     * 
+     * @return The executor, it serializes the commands per interface adapter.
+     */
+    public static CommandExecutor getCommands()
+    {
+        return COMMANDS;
+    }
+    
+    /**
+     * Returns the first value of a query parameter of the WebSocket URL.
+     * 
+     * @param session The session.
+     * @param name The name of the parameter.
+     * @return The value or NULL if not present.
+     */
+    public static String getParameter(final Session session, final String name)
+    {
+        List<String> param = session.getUpgradeRequest().getParameterMap().get(name);
+        return param != null && !param.isEmpty() ? param.get(0) : null;
+    }
+    
+    /**
+     * Returns the first value of a numeric query parameter of the WebSocket URL.
+     * 
+     * @param session The session.
+     * @param name The name of the parameter.
+     * @param defaultValue The value if the parameter is not present or invalid.
+     * @return The value, at least 0.
+     */
+    private static int getIntParameter(final Session session, final String name, final int defaultValue)
+    {
+        String param = FtServer.getParameter(session, name);
+        if (param != null)
+        {
+            try
+            {
+                return Math.max(0, Integer.parseInt(param));
+            }
+            catch(NumberFormatException e)
+            {
+                LOGGER.log(Level.WARNING, "Invalid value {0} of query parameter {1} ignored.",
+                        new Object[] {param, name});
+            }
+        }
+        return defaultValue;
+    }
+    
+    /**
+     * Registers a session with the given device. The slow-consumer policy is taken from the query parameter
+     * {@link #PARAM_SLOW_CONSUMER} of the URL, if present. The session is an observer if the query parameter
+     * {@link #PARAM_OBSERVE} is 'true'. The ISBs are sent in the binary format if the client has requested the
+     * {@link #BINARY_PROTOCOL}. The ISB subscription is taken from the query parameters {@link #PARAM_FIELDS} and
+     * {@link #PARAM_DELTA}, the max. update rate from {@link #PARAM_RATE} and the batching from {@link #PARAM_BATCH}
+     * and {@link #PARAM_BATCH_SIZE}, the share in the scheduling of the commands from {@link #PARAM_WEIGHT}.
+     * 
+     * @param session The new session.
+     * @param deviceId The id of the interface adapter.
+     * @return The outbox of the session.
+     */
+    public static SessionOutbox addSession(final Session session, final String deviceId)
+    {
+        SessionOutbox.Policy policy = SLOW_CONSUMER;
+        String param = FtServer.getParameter(session, PARAM_SLOW_CONSUMER);
+        if (param != null)
+        {
+            try
+            {
+                policy = SessionOutbox.Policy.valueOf(param.toUpperCase());
+            }
+            catch(IllegalArgumentException e)
+            {
+                LOGGER.log(Level.WARNING, "Unknown slow-consumer policy {0} ignored.", param);
+            }
+        }
+        boolean binary = session.getUpgradeRequest().hasSubProtocol(BINARY_PROTOCOL)
+                || BINARY_PROTOCOL.equals(FtServer.getParameter(session, PARAM_PROTOCOL));
+        IsbFilter filter = null;
+        try
+        {
+            filter = IsbFilter.newInstance(FtServer.getParameter(session, PARAM_FIELDS),
+                    Boolean.parseBoolean(FtServer.getParameter(session, PARAM_DELTA)));
+        }
+        catch(IllegalArgumentException e)
+        {
+            LOGGER.log(Level.WARNING, "Unknown ISB field ignored, sending all fields: {0}", e.getMessage());
+        }
+        SessionOutbox outbox = new SessionOutbox(session, deviceId, QUEUE_SIZE, policy, binary, filter)
+                .throttle(WHEEL, Math.min(Math.max(0, FtServer.getIntParameter(session, PARAM_RATE, 0)),
+                        WHEEL.getMaxRate()))
+                .batch(WHEEL, FtServer.getIntParameter(session, PARAM_BATCH, 0),
+                        Math.max(1, FtServer.getIntParameter(session, PARAM_BATCH_SIZE, DEFAULT_BATCH_SIZE)))
+                .quota(new CommandQuota(COMMAND_RATE, COMMAND_BURST,
+                        Math.min(Math.max(1, FtServer.getIntParameter(session, PARAM_WEIGHT, 1)), MAX_WEIGHT),
+                        COMMAND_QUEUE));
+        SESSIONS.add(outbox, Boolean.parseBoolean(FtServer.getParameter(session, PARAM_OBSERVE)));
+        return outbox;
+    }
+    
+    /**
+     * Unregisters a session. Does nothing if it's not registered.
+     * 
+     * @param session The closed session.
+     */
+    public static void removeSession(final Session session)
+    {
+        SESSIONS.remove(session);
+    }
+    
+    /**
+     * Returns the outbox of a registered session. All messages to the session must be sent by it's outbox.
+     * 
+     * @param session The session.
+     * @return The outbox or NULL if the session is not registered.
+     */
+    public static SessionOutbox getOutbox(final Session session)
+    {
+        return SESSIONS.get(session);
+    }
+    
     /**
      * Returns whether the server is in dry-run mode.
      * 
@@ -131,8 +408,71 @@ public class FtServer
         final int webSocketPort = Integer.parseInt(this.props.getProperty(PROP_KEY_WEBSOCKET_PORT, "9091"));
         LOGGER.log(Level.INFO, "WebSocket URL: ws://localhost:{0}/ftinterface", String.valueOf(webSocketPort));
         
-        final String serialDeviceName = this.props.getProperty(PROP_SERIAL_DEVICE_NAME, "/dev/ttyACM0");
-        LOGGER.log(Level.INFO, "Serial device name: {0}", serialDeviceName);
+        final int simulated = Integer.parseInt(this.props.getProperty(PROP_SIMULATED, "0"));
+        LOGGER.log(Level.INFO, "Simulated devices: {0}", String.valueOf(simulated));
+        
+        final long discoverInterval = Long.parseLong(this.props.getProperty(PROP_SERIAL_DISCOVER, "0"));
+        LOGGER.log(Level.INFO, "Serial discovery interval: {0} ms", String.valueOf(discoverInterval));
+        
+        final String serialDeviceNames = this.props.getProperty(PROP_SERIAL_DEVICE_NAME,
+                simulated > 0 || discoverInterval > 0 ? "" : "/dev/ttyACM0");
+        LOGGER.log(Level.INFO, "Serial device names: {0}", serialDeviceNames);
+        
+        final int ioLoops = Integer.parseInt(this.props.getProperty(PROP_IO_LOOPS, "2"));
+        LOGGER.log(Level.INFO, "I/O loops: {0}", String.valueOf(ioLoops));
+        
+        final int serialSpeed = Integer.parseInt(this.props.getProperty(PROP_SERIAL_SPEED,
+                String.valueOf(FtSerialPortConfig.SAFE_SPEED)));
+        LOGGER.log(Level.INFO, "Serial speed (max.): {0}", String.valueOf(serialSpeed));
+        
+        final long readyTimeout = Long.parseLong(this.props.getProperty(PROP_SERIAL_READY_TIMEOUT,
+                String.valueOf(FtSerialPortConfig.DEFAULT_READY_TIMEOUT)));
+        LOGGER.log(Level.INFO, "Serial ready timeout: {0} ms", String.valueOf(readyTimeout));
+        
+        final boolean resetOnOpen = Boolean.parseBoolean(this.props.getProperty(PROP_SERIAL_RESET_ON_OPEN, "true"));
+        LOGGER.log(Level.INFO, "Serial reset on open: {0}", String.valueOf(resetOnOpen));
+        
+        final long watchdogTimeout = Long.parseLong(this.props.getProperty(PROP_SERIAL_WATCHDOG, "0"));
+        LOGGER.log(Level.INFO, "Serial watchdog timeout: {0} ms", String.valueOf(watchdogTimeout));
+        
+        final long reconnectDelay = Long.parseLong(this.props.getProperty(PROP_SERIAL_RECONNECT_DELAY,
+                String.valueOf(FtSerialPortConfig.DEFAULT_RECONNECT_DELAY)));
+        final long reconnectMaxDelay = Long.parseLong(this.props.getProperty(PROP_SERIAL_RECONNECT_MAX_DELAY,
+                String.valueOf(FtSerialPortConfig.DEFAULT_RECONNECT_MAX_DELAY)));
+        LOGGER.log(Level.INFO, "Serial reconnect delay: {0} - {1} ms",
+                new Object[] {String.valueOf(reconnectDelay), String.valueOf(reconnectMaxDelay)});
+        
+        final int maxRetries = Integer.parseInt(this.props.getProperty(PROP_SERIAL_MAX_RETRIES,
+                String.valueOf(FtSerialPortConfig.DEFAULT_MAX_RETRIES)));
+        LOGGER.log(Level.INFO, "Serial max. retransmissions: {0}", String.valueOf(maxRetries));
+        
+        final long steppingTimeout = Long.parseLong(this.props.getProperty(PROP_SERIAL_STEPPING_TIMEOUT,
+                String.valueOf(FtSerialPortConfig.DEFAULT_STEPPING_TIMEOUT)));
+        LOGGER.log(Level.INFO, "Serial stepping timeout: {0} ms", String.valueOf(steppingTimeout));
+        
+        final long holdTime = Long.parseLong(this.props.getProperty(PROP_SERIAL_HOLD_TIME, "0"));
+        LOGGER.log(Level.INFO, "Serial hold time: {0} ms", String.valueOf(holdTime));
+        
+        final boolean telemetry = Boolean.parseBoolean(this.props.getProperty(PROP_SERIAL_TELEMETRY, "false"));
+        LOGGER.log(Level.INFO, "Telemetry: {0}", String.valueOf(telemetry));
+        
+        final boolean conflating = Boolean.parseBoolean(this.props.getProperty(PROP_SERIAL_CONFLATING, "false"));
+        LOGGER.log(Level.INFO, "Conflating: {0}", String.valueOf(conflating));
+        
+        QUEUE_SIZE = Integer.parseInt(this.props.getProperty(PROP_SESSION_QUEUE_SIZE, String.valueOf(QUEUE_SIZE)));
+        SLOW_CONSUMER = SessionOutbox.Policy.valueOf(this.props.getProperty(PROP_SESSION_SLOW_CONSUMER,
+                SLOW_CONSUMER.name()).toUpperCase());
+        LOGGER.log(Level.INFO, "Session queue size: {0}, slow consumers: {1}",
+                new Object[] {String.valueOf(QUEUE_SIZE), SLOW_CONSUMER});
+        COMMAND_RATE = Double.parseDouble(this.props.getProperty(PROP_SESSION_COMMAND_RATE,
+                String.valueOf(COMMAND_RATE)));
+        COMMAND_BURST = Integer.parseInt(this.props.getProperty(PROP_SESSION_COMMAND_BURST,
+                String.valueOf(COMMAND_BURST)));
+        COMMAND_QUEUE = Integer.parseInt(this.props.getProperty(PROP_SESSION_COMMAND_QUEUE,
+                String.valueOf(COMMAND_QUEUE)));
+        LOGGER.log(Level.INFO, "Session command rate: {0}/s, burst: {1}, queue: {2}",
+                new Object[] {String.valueOf(COMMAND_RATE), String.valueOf(COMMAND_BURST),
+                    String.valueOf(COMMAND_QUEUE)});
         
         IS_DRYRUN = Boolean.parseBoolean(this.props.getProperty(PROP_DRYRUN, "false"));
         LOGGER.log(Level.INFO, "Dry-run: {0}", String.valueOf(IS_DRYRUN));
@@ -141,19 +481,91 @@ public class FtServer
         LOGGER.log(Level.INFO, "SSL-Keystore: {0}", keystore);
         
         
-        // Init interface
-        final BlockingQueue<FtInputs> isbQueue = new LinkedBlockingQueue<>();
+        // Init interfaces
+        final BlockingQueue<ISBThread.DeviceInputs> isbQueue = new LinkedBlockingQueue<>();
+        final List<SimulatedInterfaceAdapter> simulations = new ArrayList<>();
+        FtIoEngine engine = null;
         if (!IS_DRYRUN)
         {
-            FtServer.IFACE = FtInterfaceAsync.newInstance(serialDeviceName, (final FtInputs inputs)->
+            engine = FtIoEngine.newInstance(ioLoops);
+            final FtSerialPortConfig serialConfig = new FtSerialPortConfig()
+                    .speed(serialSpeed)
+                    .readyTimeout(readyTimeout)
+                    .resetOnOpen(resetOnOpen)
+                    .watchdogTimeout(watchdogTimeout)
+                    .reconnectDelay(reconnectDelay, reconnectMaxDelay)
+                    .maxRetries(maxRetries)
+                    .steppingTimeout(steppingTimeout)
+                    .holdTime(holdTime)
+                    .ioEngine(engine);
+            FtServer.REGISTRY = FtDeviceRegistry.newInstance(serialConfig, new IFtDeviceListener()
             {
-                isbQueue.offer(inputs);
+                @Override
+                public void onDeviceAdded(final String deviceId, final FtInterfaceAsync iface)
+                {
+                    iface.setConflating(conflating);
+                    iface.setGiveUpListener((final int seqNr) -> SESSIONS.giveUp(deviceId, seqNr));
+                    try
+                    {
+                        iface.setTelemetry(telemetry);
+                    }
+                    catch(ComException e)
+                    {
+                        LOGGER.log(Level.SEVERE, "Unable to set telemetry of device " + deviceId + ".", e);
+                    }
+                }
+
+                @Override
+                public void onDeviceRemoved(final String deviceId)
+                {
+                    FtServer.broadcastHealth(deviceId, FtHealth.DISCONNECTED);
+                }
+
+                @Override
+                public void onDataReceived(final String deviceId, final FtInputs inputs)
+                {
+                    isbQueue.offer(new ISBThread.DeviceInputs(deviceId, inputs));
+                }
+
+                @Override
+                public void onHealthChanged(final String deviceId, final FtHealth health)
+                {
+                    FtServer.broadcastHealth(deviceId, health);
+                }
             });
+            
+            for (String serialDeviceName : serialDeviceNames.split(","))
+            {
+                if (!serialDeviceName.trim().isEmpty())
+                {
+                    String deviceId = new File(serialDeviceName.trim()).getName();
+                    FtServer.REGISTRY.open(deviceId, serialDeviceName.trim());
+                    if (DEFAULT_DEVICE == null)
+                    {
+                        DEFAULT_DEVICE = deviceId;
+                    }
+                }
+            }
+            for (int i=0; i<simulated; i++)
+            {
+                SimulatedInterfaceAdapter simulation = new SimulatedInterfaceAdapter();
+                simulations.add(simulation);
+                FtServer.REGISTRY.open(SIMULATED_DEVICE + i, simulation);
+                if (DEFAULT_DEVICE == null)
+                {
+                    DEFAULT_DEVICE = SIMULATED_DEVICE + i;
+                }
+            }
+            if (discoverInterval > 0)
+            {
+                FtServer.REGISTRY.startDiscovery(discoverInterval);
+            }
         }
 
         // Start ISB Thread
         final ISBThread isbThread = new ISBThread(isbQueue);
         isbThread.start();
+        WHEEL.start();
 
         // Open WebSocket
         port(webSocketPort);
@@ -162,7 +574,44 @@ public class FtServer
             secure(keystore, "", null, null);
         }
         webSocket("/ftinterface", FtWebSocket.class);
+        webSocket("/ftinterface/*", FtWebSocket.class);
+        get("/health", (request, response) ->
+        {
+            response.type("application/json");
+            return String.format(HEALTH_MSG, FtServer.getHealth(FtServer.getDefaultDevice()));
+        });
+        get("/health/:device", (request, response) ->
+        {
+            response.type("application/json");
+            return String.format(HEALTH_MSG, FtServer.getHealth(request.params(":device")));
+        });
+        get("/devices", (request, response) ->
+        {
+            response.type("application/json");
+            List<String> devices = new ArrayList<>();
+            for (String deviceId : REGISTRY != null ? REGISTRY.getDeviceIds() : Collections.<String>emptySet())
+            {
+                devices.add(String.format("\"%s\": \"%s\"", deviceId, FtServer.getHealth(deviceId)));
+            }
+            return "{\"devices\": {" + String.join(", ", devices) + "}}";
+        });
+        get("/sessions", (request, response) ->
+        {
+            response.type("application/json");
+            List<String> sessions = new ArrayList<>();
+            SESSIONS.getAll().forEach((final SessionOutbox outbox) -> sessions.add(outbox.toJson()));
+            return "{\"sessions\": [" + String.join(", ", sessions) + "]}";
+        });
         init();
+        awaitInitialization();
+        try
+        {
+            FtWebSocketCreator.install();
+        }
+        catch(ReflectiveOperationException | RuntimeException e)
+        {
+            LOGGER.log(Level.WARNING, "WebSocket subprotocol not negotiable, use ?protocol=" + BINARY_PROTOCOL, e);
+        }
 
         // Wait for ENTER to terminate
         try(BufferedReader br = new BufferedReader(new InputStreamReader(System.in)))
@@ -177,22 +626,54 @@ public class FtServer
         
         // Close WebSocket
         stop();
+        COMMANDS.destroy();
         
         // Stop ISB Thread
         isbThread.terminate();
+        WHEEL.terminate();
         try
         {
             isbThread.join();
+            WHEEL.join();
         }
         catch (InterruptedException dontcare)
         {
         }
         
-        // Stop interface
+        // Stop interfaces
         if (!IS_DRYRUN)
         {
-            FtServer.IFACE.destroy();
+            FtServer.REGISTRY.destroy();
+            simulations.forEach(SimulatedInterfaceAdapter::destroy);
+            engine.destroy();
+        }
+    }
+    
+    /**
+     * Returns the connection health of the given device.
+     * 
+     * @param deviceId The id of the interface adapter.
+     * @return The health state, {@link FtHealth#DISCONNECTED} if there is no such device.
+     */
+    private static FtHealth getHealth(final String deviceId)
+    {
+        if (IS_DRYRUN)
+        {
+            return FtHealth.CONNECTED;
         }
+        FtInterfaceAsync iface = FtServer.getFtInterface(deviceId);
+        return iface != null ? iface.getHealth() : FtHealth.DISCONNECTED;
+    }
+    
+    /**
+     * Sends the given connection health to all sessions registered with the device.
+     * 
+     * @param deviceId The id of the interface adapter.
+     * @param health The new health state.
+     */
+    private static void broadcastHealth(final String deviceId, final FtHealth health)
+    {
+        SESSIONS.broadcast(deviceId, String.format(HEALTH_MSG, health));
     }
     
     /**
@@ -217,7 +698,7 @@ public class FtServer
             FtServer server = FtServer.newInstance();
             server.run();
         }
-        catch(NumberFormatException e)
+        catch(IllegalArgumentException e)
         {
             LOGGER.log(Level.SEVERE, "Invalid configuration option.", e);
             System.err.println("Invalid configuration option. See logfile for details.");
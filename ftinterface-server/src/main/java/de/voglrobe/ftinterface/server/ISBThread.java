@@ -1,16 +1,16 @@
 package de.voglrobe.ftinterface.server;
 
 import de.voglrobe.ftinterface.io.FtInputs;
-import java.io.IOException;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import org.eclipse.jetty.websocket.api.Session;
 
 
 /**
- * A Thread implementation to send back ISBs to all registered sessions.
+ * A Thread implementation to send back ISBs to the session that has sent the corresponding MCC and to the
+ * observers of the interface adapter, see {@link SessionRegistry}. The ISBs are queued to the
+ * {@link SessionOutbox} of each session, i.e. this thread never waits for a client.
  * <p>
  * The ISBs are an instance of {@link FtInputs} in JSON format. Example:
  * <pre> {
@@ -26,8 +26,49 @@ public class ISBThread extends Thread
 {
     private static final Logger LOGGER = Logger.getLogger(ISBThread.class.getName());
     
+    /**
+     * An ISB and the id of the interface adapter that has sent it.
+     */
+    public static class DeviceInputs
+    {
+        private final String deviceId;
+        private final FtInputs inputs;
+
+        /**
+         * Constructor.
+         *
+         * @param deviceId The id of the interface adapter.
+         * @param inputs The ISB.
+         */
+        public DeviceInputs(final String deviceId, final FtInputs inputs)
+        {
+            this.deviceId = deviceId;
+            this.inputs = inputs;
+        }
+
+        /**
+         * Returns the id of the interface adapter.
+         *
+         * @return The device id.
+         */
+        public String getDeviceId()
+        {
+            return deviceId;
+        }
+
+        /**
+         * Returns the ISB.
+         *
+         * @return The ISB.
+         */
+        public FtInputs getInputs()
+        {
+            return inputs;
+        }
+    }
+
     private volatile boolean stopped;
-    private final BlockingQueue<FtInputs> queue;
+    private final BlockingQueue<DeviceInputs> queue;
     
     
     /**
@@ -35,7 +76,7 @@ public class ISBThread extends Thread
      * 
      * @param queue The queue for incoming ISBs.
      */
-    public ISBThread(final BlockingQueue<FtInputs> queue)
+    public ISBThread(final BlockingQueue<DeviceInputs> queue)
     {
         this.stopped = false;
         this.queue = queue;
@@ -59,24 +100,15 @@ public class ISBThread extends Thread
         {
             try
             {
-                FtInputs inputs = queue.poll(5, TimeUnit.SECONDS);
+                DeviceInputs isb = queue.poll(5, TimeUnit.SECONDS);
                 if (stopped)
                 {
                     break;
                 }
-                if (inputs != null)
+                if (isb != null)
                 {
-                    FtServer.getSessions().forEach((Session session)->
-                    {
-                        try
-                        {
-                            session.getRemote().sendString(inputs.toJson());
-                        }
-                        catch (IOException e)
-                        {
-                            LOGGER.log(Level.SEVERE, "Error sending ISBS back!", e);
-                        }
-                    });
+                    // serialized once per format, sent asynchronously by the outboxes
+                    FtServer.getSessions().deliver(isb.getDeviceId(), new IsbPayload(isb.getInputs()));
                 }
             }
             catch (InterruptedException dontcare)
@@ -0,0 +1,177 @@
+package de.voglrobe.ftinterface.server;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonNull;
+import com.google.gson.JsonObject;
+import de.voglrobe.ftinterface.io.FtInputs;
+import de.voglrobe.ftinterface.io.FtInputsFlags;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * This class implements the ISB subscription of a session: a field filter and/or the delta mode.
+ * <p>
+ * The filter restricts the ISBs to the selected fields, e.g. 'E3,EX'. The flags 'durationFinished' and 'expired'
+ * are events, i.e. an ISB is sent for them only if they are set. In delta mode the last delivered state is kept
+ * and an ISB carries the changed fields only, an ISB without changes is not sent at all. The digital inputs keep
+ * the array of the full ISB, see {@link FtInputs#toJson()}, i.e. E1 is at index 0. An input that is not selected
+ * or has not changed is NULL. The array is omitted if all inputs are NULL. Example:
+ * <pre> {"seqnr": 7, "di": [null, null, true, null, null, null, null, null], "ex": 120}</pre>
+ * Binary sessions receive the ISBs that pass the filter in full.
+ *
+ * @author robert
+ */
+public class IsbFilter
+{
+    /**
+     * The fields of an ISB.
+     */
+    public enum Field
+    {
+        E1, E2, E3, E4, E5, E6, E7, E8, EX, EY, DURATIONFINISHED, EXPIRED, TELEMETRY
+    }
+
+    private static final Set<Field> DIGITAL_INPUTS = EnumSet.range(Field.E1, Field.E8);
+
+    private final Set<Field> fields;
+    private final boolean delta;
+    private FtInputs last;
+
+    /**
+     * Creates the subscription of a session.
+     *
+     * @param fields Comma-separated field names (case-insensitive), see {@link Field}, or NULL for all fields.
+     * @param delta TRUE to send the changed fields only.
+     * @return The subscription or NULL if the session receives all ISBs in full.
+     * @throws IllegalArgumentException in case of an unknown field name.
+     */
+    public static IsbFilter newInstance(final String fields, final boolean delta) throws IllegalArgumentException
+    {
+        Set<Field> selected = EnumSet.allOf(Field.class);
+        if (fields != null && !fields.trim().isEmpty())
+        {
+            selected = EnumSet.noneOf(Field.class);
+            for (String field : fields.split(","))
+            {
+                selected.add(Field.valueOf(field.trim().toUpperCase()));
+            }
+        }
+        if (!delta && selected.size() == Field.values().length)
+        {
+            return null;
+        }
+        return new IsbFilter(selected, delta);
+    }
+
+    /**
+     * Hidden constructor.
+     */
+    private IsbFilter(final Set<Field> fields, final boolean delta)
+    {
+        this.fields = fields;
+        this.delta = delta;
+        this.last = null;
+    }
+
+    /**
+     * Forgets the last delivered state, i.e. the next ISB carries all selected fields. Called if ISBs of the
+     * session have been dropped.
+     */
+    public synchronized void reset()
+    {
+        this.last = null;
+    }
+
+    /**
+     * Returns whether a field has to be sent.
+     */
+    private boolean isSelected(final Field field, final Object value, final Object lastValue)
+    {
+        return fields.contains(field) && (!delta || last == null || !Objects.equals(value, lastValue));
+    }
+
+    /**
+     * Applies the subscription to an ISB and records it as delivered.
+     *
+     * @param inputs The ISB.
+     * @return The ISB in JSON format with the selected fields or NULL if it's not sent.
+     */
+    public synchronized String toJson(final FtInputs inputs)
+    {
+        JsonObject ret = this.apply(inputs);
+        return ret != null ? ret.toString() : null;
+    }
+
+    /**
+     * Applies the subscription to an ISB of a binary session and records it as delivered.
+     *
+     * @param inputs The ISB.
+     * @return TRUE if the ISB is sent.
+     */
+    public synchronized boolean accept(final FtInputs inputs)
+    {
+        return this.apply(inputs) != null;
+    }
+
+    /**
+     * Selects the fields to send and records the ISB as delivered.
+     */
+    private JsonObject apply(final FtInputs inputs)
+    {
+        JsonObject ret = new JsonObject();
+        ret.addProperty("seqnr", inputs.getSeqNr());
+        List<Boolean> digitalIn = inputs.getDigitalIn();
+        JsonArray di = new JsonArray();
+        boolean changed = false;
+        for (Field field : DIGITAL_INPUTS)
+        {
+            Boolean value = digitalIn.get(field.ordinal());
+            if (this.isSelected(field, value, last != null ? last.getDigitalIn().get(field.ordinal()) : null))
+            {
+                di.add(value);
+                changed = true;
+            }
+            else
+            {
+                di.add(JsonNull.INSTANCE);
+            }
+        }
+        if (changed)
+        {
+            ret.add("di", di);
+        }
+        if (this.isSelected(Field.EX, inputs.getEx(), last != null ? last.getEx() : null))
+        {
+            ret.addProperty("ex", inputs.getEx());
+        }
+        if (this.isSelected(Field.EY, inputs.getEy(), last != null ? last.getEy() : null))
+        {
+            ret.addProperty("ey", inputs.getEy());
+        }
+        FtInputsFlags flags = inputs.getFlags();
+        JsonObject events = new JsonObject();
+        if (flags != null && flags.isDurationFinished() && fields.contains(Field.DURATIONFINISHED))
+        {
+            events.addProperty("durationFinished", true);
+        }
+        if (flags != null && flags.isExpired() && fields.contains(Field.EXPIRED))
+        {
+            events.addProperty("expired", true);
+        }
+        if (events.entrySet().size() > 0)
+        {
+            ret.add("flags", events);
+        }
+        if (inputs.getTelemetry() != null
+                && this.isSelected(Field.TELEMETRY, inputs.getTelemetry(), last != null ? last.getTelemetry() : null))
+        {
+            ret.add("telemetry", new Gson().toJsonTree(inputs.getTelemetry()));
+        }
+        this.last = inputs;
+        return ret.entrySet().size() > 1 ? ret : null;
+    }
+
+}
@@ -0,0 +1,67 @@
+package de.voglrobe.ftinterface.server;
+
+import de.voglrobe.ftinterface.io.FtInputs;
+
+/**
+ * An ISB on it's way to the sessions. It's serialized at most once per format, the serialized forms are shared
+ * by all sessions it's delivered to.
+ *
+ * @author robert
+ */
+public class IsbPayload
+{
+    private final FtInputs inputs;
+    private String json;
+    private byte[] binary;
+
+    /**
+     * Constructor.
+     *
+     * @param inputs The ISB.
+     */
+    public IsbPayload(final FtInputs inputs)
+    {
+        this.inputs = inputs;
+        this.json = null;
+        this.binary = null;
+    }
+
+    /**
+     * Returns the ISB.
+     *
+     * @return The ISB.
+     */
+    public FtInputs getInputs()
+    {
+        return inputs;
+    }
+
+    /**
+     * Returns the ISB in JSON format.
+     *
+     * @return The JSON string.
+     */
+    public synchronized String getJson()
+    {
+        if (json == null)
+        {
+            this.json = inputs.toJson();
+        }
+        return json;
+    }
+
+    /**
+     * Returns the ISB in the binary format, see {@link FtInputs#toBinary()}. The array must not be modified.
+     *
+     * @return The binary ISB.
+     */
+    public synchronized byte[] getBinary()
+    {
+        if (binary == null)
+        {
+            this.binary = inputs.toBinary();
+        }
+        return binary;
+    }
+
+}
@@ -0,0 +1,638 @@
+package de.voglrobe.ftinterface.server;
+
+import de.voglrobe.ftinterface.io.FtInputs;
+import de.voglrobe.ftinterface.io.FtInputsFlags;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.StringJoiner;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.eclipse.jetty.websocket.api.Session;
+import org.eclipse.jetty.websocket.api.StatusCode;
+import org.eclipse.jetty.websocket.api.WriteCallback;
+
+/**
+ * This class implements the bounded outbound queue of a WebSocket session.
+ * <p>
+ * Messages are sent asynchronously one after the other, i.e. the caller never waits for the client. ISBs are
+ * sent in JSON or, if the session has negotiated the binary subprotocol, in the binary format (see
+ * {@link de.voglrobe.ftinterface.io.FtInputs#toBinary()}). Control messages are always JSON. If the client
+ * falls behind, the queue fills up and the slow-consumer {@link Policy} of the session decides what happens to
+ * further ISBs. Control messages (e.g. health or program progress) are never dropped. The lag of the session is
+ * available by {@link #getLag()} and {@link #toJson()}.
+ * <p>
+ * A session may limit it's update rate, see {@link #throttle(FlushWheel, int)}. Then the ISBs are conflated to
+ * the newest one, which is sent by the shared {@link FlushWheel} once per period. ISBs carrying an event, i.e. a
+ * changed digital input or the flags 'durationFinished' or 'expired', are sent immediately and are never
+ * conflated.
+ * <p>
+ * A session may also batch it's ISBs, see {@link #batch(FlushWheel, int, int)}. Then the queued ISBs are held
+ * for up to the batching window or until the batch is full and are sent in one frame: a JSON array, e.g.
+ * <code>[{"seqnr": 1, ...}, {"seqnr": 2, ...}]</code>, or the binary ISBs back to back.
+ *
+ * @author robert
+ */
+public class SessionOutbox implements WriteCallback
+{
+    private static final Logger LOGGER = Logger.getLogger(SessionOutbox.class.getName());
+
+    private static final String METRICS_MSG = "{\"device\": \"%s\", \"remote\": \"%s\", \"policy\": \"%s\", "
+            + "\"binary\": %b, \"rate\": %d, \"batch\": %d, \"queued\": %d, \"maxQueued\": %d, \"sent\": %d, "
+            + "\"frames\": %d, \"dropped\": %d, \"conflated\": %d, \"failed\": %d, \"lag\": %d, \"maxLag\": %d, "
+            + "\"commands\": %d, \"busy\": %d}";
+
+    /**
+     * What to do with an ISB if the queue of a session is full.
+     */
+    public enum Policy
+    {
+        /**
+         * Drop the oldest queued ISB.
+         */
+        DROP_OLDEST,
+
+        /**
+         * Drop all queued ISBs, i.e. the client gets the latest state only.
+         */
+        CONFLATE,
+
+        /**
+         * Close the session.
+         */
+        DISCONNECT
+    }
+
+    /**
+     * A queued message.
+     */
+    private static class Message
+    {
+        private final String text;
+        private final byte[] binary;
+        private final boolean droppable;
+        private final long queued;
+        private final int count;
+
+        private Message(final String text, final byte[] binary, final boolean droppable, final long queued,
+                final int count)
+        {
+            this.text = text;
+            this.binary = binary;
+            this.droppable = droppable;
+            this.queued = queued;
+            this.count = count;
+        }
+    }
+
+    private final Session session;
+    private final String deviceId;
+    private final int capacity;
+    private final Policy policy;
+    private final boolean binary;
+    private final IsbFilter filter;
+    private final LongSupplier clock; // ns
+    private final Deque<Message> queue = new ArrayDeque<>();
+    private Message inFlight;
+    private boolean closed;
+    private FlushWheel wheel;
+    private int rate; // Hz, 0 = unlimited
+    private IsbPayload pending;
+    private FtInputs lastSeen;
+    private long lastFlush; // ns
+    private long conflated;
+    private int batchWindow; // ms, 0 = no batching
+    private int batchSize;
+    private boolean batchScheduled;
+    private long frames;
+    private CommandQuota quota;
+    private int maxQueued;
+    private long sent;
+    private long dropped;
+    private long failed;
+    private long maxLag; // ns
+
+    /**
+     * Constructor.
+     *
+     * @param session The WebSocket session.
+     * @param deviceId The id of the interface adapter the session is bound to.
+     * @param capacity The max. number of queued messages. Must be &gt; 0.
+     * @param policy The slow-consumer policy.
+     * @param binary TRUE to send the ISBs in the binary format.
+     * @param filter The ISB subscription of the session or NULL to send all ISBs in full.
+     */
+    public SessionOutbox(final Session session, final String deviceId, final int capacity, final Policy policy,
+            final boolean binary, final IsbFilter filter)
+    {
+        this(session, deviceId, capacity, policy, binary, filter, System::nanoTime);
+    }
+
+    /**
+     * Constructor with the given clock, e.g. for tests.
+     *
+     * @param session The WebSocket session.
+     * @param deviceId The id of the interface adapter the session is bound to.
+     * @param capacity The max. number of queued messages. Must be &gt; 0.
+     * @param policy The slow-consumer policy.
+     * @param binary TRUE to send the ISBs in the binary format.
+     * @param filter The ISB subscription of the session or NULL to send all ISBs in full.
+     * @param clock The source of the current time in ns.
+     */
+    SessionOutbox(final Session session, final String deviceId, final int capacity, final Policy policy,
+            final boolean binary, final IsbFilter filter, final LongSupplier clock)
+    {
+        if (capacity <= 0)
+        {
+            throw new IllegalArgumentException("Capacity must be > 0.");
+        }
+        this.session = session;
+        this.deviceId = deviceId;
+        this.capacity = capacity;
+        this.policy = policy;
+        this.binary = binary;
+        this.filter = filter;
+        this.clock = clock;
+        this.inFlight = null;
+        this.closed = false;
+        this.wheel = null;
+        this.rate = 0;
+        this.pending = null;
+        this.lastSeen = null;
+        this.lastFlush = clock.getAsLong();
+        this.batchWindow = 0;
+        this.batchSize = 1;
+        this.batchScheduled = false;
+        this.quota = new CommandQuota(0.0, 0, 1, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Limits the update rate of the session. Must be called before the session is registered.
+     *
+     * @param wheel The timer wheel that flushes the conflated ISBs.
+     * @param rate The max. number of ISBs per second, events not included. 0 means unlimited. Must not exceed
+     *        the resolution of the wheel, see {@link FlushWheel#getMaxRate()}.
+     * @return THIS.
+     */
+    public SessionOutbox throttle(final FlushWheel wheel, final int rate)
+    {
+        if (rate < 0 || rate > wheel.getMaxRate())
+        {
+            throw new IllegalArgumentException("Rate must be in [0, " + wheel.getMaxRate() + "].");
+        }
+        this.wheel = wheel;
+        this.rate = rate;
+        return this;
+    }
+
+    /**
+     * Batches the ISBs of the session. Must be called before the session is registered.
+     *
+     * @param wheel The timer wheel that sends the batches when their window is over.
+     * @param window The max. time to hold an ISB in ms. 0 means no batching.
+     * @param size The max. number of ISBs in a batch. Must be &gt; 0.
+     * @return THIS.
+     */
+    public SessionOutbox batch(final FlushWheel wheel, final int window, final int size)
+    {
+        if (window < 0 || size <= 0)
+        {
+            throw new IllegalArgumentException("Window must be >= 0 and size must be > 0.");
+        }
+        this.wheel = wheel;
+        this.batchWindow = window;
+        this.batchSize = size;
+        return this;
+    }
+
+    /**
+     * Sets the admission control of the commands of the session. Must be called before the session is registered.
+     *
+     * @param quota The quota. The default quota admits all commands.
+     * @return THIS.
+     */
+    public SessionOutbox quota(final CommandQuota quota)
+    {
+        this.quota = quota;
+        return this;
+    }
+
+    /**
+     * Returns the admission control of the commands of the session.
+     *
+     * @return The quota.
+     */
+    public CommandQuota getQuota()
+    {
+        return quota;
+    }
+
+    /**
+     * Returns the WebSocket session.
+     *
+     * @return The session.
+     */
+    public Session getSession()
+    {
+        return session;
+    }
+
+    /**
+     * Returns the id of the interface adapter the session is bound to.
+     *
+     * @return The device id.
+     */
+    public String getDeviceId()
+    {
+        return deviceId;
+    }
+
+    /**
+     * Returns whether the ISBs are sent in the binary format.
+     *
+     * @return TRUE if binary, FALSE if JSON.
+     */
+    public boolean isBinary()
+    {
+        return binary;
+    }
+
+    /**
+     * Queues an ISB or, if the update rate of the session is limited, conflates it. Returns immediately.
+     *
+     * @param isb The ISB.
+     */
+    public void offer(final IsbPayload isb)
+    {
+        if (rate == 0)
+        {
+            this.enqueue(isb);
+            return;
+        }
+        synchronized(this)
+        {
+            boolean event = this.isEvent(isb.getInputs());
+            this.lastSeen = isb.getInputs();
+            if (pending != null)
+            {
+                // superseded by the newer ISB, either conflated or sent right away
+                conflated++;
+            }
+            if (!event)
+            {
+                boolean scheduled = pending != null;
+                this.pending = isb;
+                if (!scheduled)
+                {
+                    // the period may be over already, e.g. after an event
+                    long elapsed = TimeUnit.NANOSECONDS.toMillis(clock.getAsLong() - lastFlush);
+                    wheel.schedule(this, Math.max(0L, 1000L / rate - elapsed));
+                }
+                return;
+            }
+            this.pending = null;
+            this.lastFlush = clock.getAsLong();
+            // queued while holding the lock, thus the wheel cannot send an older ISB after this one
+            this.enqueue(isb);
+        }
+    }
+
+    /**
+     * Returns whether an ISB must not be conflated.
+     */
+    private boolean isEvent(final FtInputs inputs)
+    {
+        FtInputsFlags flags = inputs.getFlags();
+        if (flags != null && (flags.isDurationFinished() || flags.isExpired()))
+        {
+            return true;
+        }
+        return lastSeen == null || !lastSeen.getDigitalIn().equals(inputs.getDigitalIn());
+    }
+
+    /**
+     * Sends the conflated ISB and the held batch, if any. Called by the {@link FlushWheel} when the period or the
+     * batching window of the session is over.
+     */
+    public synchronized void flush()
+    {
+        if (pending != null)
+        {
+            IsbPayload isb = pending;
+            this.pending = null;
+            this.lastFlush = clock.getAsLong();
+            this.enqueue(isb);
+        }
+        if (batchScheduled)
+        {
+            this.batchScheduled = false;
+            if (inFlight == null)
+            {
+                this.sendNext();
+            }
+        }
+    }
+
+    /**
+     * Queues an ISB unless the subscription of the session filters it out.
+     */
+    private void enqueue(final IsbPayload isb)
+    {
+        if (filter == null)
+        {
+            this.offer(binary ? this.newMessage(null, isb.getBinary(), true)
+                    : this.newMessage(isb.getJson(), null, true));
+        }
+        else if (binary)
+        {
+            if (filter.accept(isb.getInputs()))
+            {
+                this.offer(this.newMessage(null, isb.getBinary(), true));
+            }
+        }
+        else
+        {
+            String json = filter.toJson(isb.getInputs());
+            if (json != null)
+            {
+                this.offer(this.newMessage(json, null, true));
+            }
+        }
+    }
+
+    /**
+     * Creates a message queued now.
+     */
+    private Message newMessage(final String text, final byte[] binary, final boolean droppable)
+    {
+        return new Message(text, binary, droppable, clock.getAsLong(), 1);
+    }
+
+    /**
+     * Queues a control message that must not be dropped. Returns immediately.
+     *
+     * @param payload The message.
+     */
+    public void offerControl(final String payload)
+    {
+        this.offer(this.newMessage(payload, null, false));
+    }
+
+    /**
+     * Queues a message and applies the slow-consumer policy if the queue is full.
+     */
+    private void offer(final Message message)
+    {
+        synchronized(this)
+        {
+            if (closed)
+            {
+                return;
+            }
+            if (message.droppable && queue.size() >= capacity)
+            {
+                switch(policy)
+                {
+                    case DISCONNECT:
+                        this.closed = true;
+                        dropped += queue.size() + 1;
+                        queue.clear();
+                        break;
+                    case CONFLATE:
+                        this.dropAll();
+                        break;
+                    case DROP_OLDEST:
+                    default:
+                        this.dropOldest();
+                        break;
+                }
+            }
+            if (!closed)
+            {
+                queue.add(message);
+                maxQueued = Math.max(maxQueued, queue.size());
+                if (inFlight == null)
+                {
+                    if (batchWindow > 0 && message.droppable && queue.size() < batchSize)
+                    {
+                        // hold the ISB until the batch is full or the window is over
+                        if (!batchScheduled)
+                        {
+                            this.batchScheduled = true;
+                            wheel.schedule(this, batchWindow);
+                        }
+                    }
+                    else
+                    {
+                        this.sendNext();
+                    }
+                }
+                return;
+            }
+        }
+        LOGGER.log(Level.WARNING, "Closing slow WebSocket session of device {0}.", deviceId);
+        session.close(StatusCode.TRY_AGAIN_LATER, "Slow consumer");
+    }
+
+    /**
+     * Drops the oldest queued ISB.
+     */
+    private void dropOldest()
+    {
+        this.resetFilter();
+        Iterator<Message> iter = queue.iterator();
+        while (iter.hasNext())
+        {
+            if (iter.next().droppable)
+            {
+                iter.remove();
+                dropped++;
+                return;
+            }
+        }
+    }
+
+    /**
+     * Drops all queued ISBs.
+     */
+    private void dropAll()
+    {
+        this.resetFilter();
+        Iterator<Message> iter = queue.iterator();
+        while (iter.hasNext())
+        {
+            if (iter.next().droppable)
+            {
+                iter.remove();
+                dropped++;
+            }
+        }
+    }
+
+    /**
+     * Makes the next ISB carry all subscribed fields, since the client has missed changes.
+     */
+    private void resetFilter()
+    {
+        if (filter != null)
+        {
+            filter.reset();
+        }
+    }
+
+    /**
+     * Sends the next queued message. Must be called while holding the lock.
+     */
+    private void sendNext()
+    {
+        this.inFlight = queue.poll();
+        if (inFlight != null && inFlight.droppable && batchWindow > 0)
+        {
+            this.inFlight = this.nextBatch(inFlight);
+        }
+        if (inFlight != null)
+        {
+            try
+            {
+                if (inFlight.text != null)
+                {
+                    session.getRemote().sendString(inFlight.text, this);
+                }
+                else
+                {
+                    session.getRemote().sendBytes(ByteBuffer.wrap(inFlight.binary), this);
+                }
+            }
+            catch(RuntimeException e)
+            {
+                this.writeFailed(e);
+            }
+        }
+    }
+
+    /**
+     * Combines the given ISB and the following queued ISBs into one frame. Must be called while holding the lock.
+     */
+    private Message nextBatch(final Message first)
+    {
+        int count = 1;
+        StringJoiner json = new StringJoiner(",", "[", "]");
+        ByteBuffer bytes = null;
+        if (binary)
+        {
+            bytes = ByteBuffer.allocate(first.binary.length * batchSize + 64);
+            bytes.put(first.binary);
+        }
+        else
+        {
+            json.add(first.text);
+        }
+        while (count < batchSize && queue.peek() != null && queue.peek().droppable)
+        {
+            Message next = queue.peek();
+            if (binary)
+            {
+                if (next.binary.length > bytes.remaining())
+                {
+                    break;
+                }
+                bytes.put(next.binary);
+            }
+            else
+            {
+                json.add(next.text);
+            }
+            queue.poll();
+            count++;
+        }
+        if (binary)
+        {
+            byte[] batch = new byte[bytes.position()];
+            bytes.flip();
+            bytes.get(batch);
+            return new Message(null, batch, true, first.queued, count);
+        }
+        return new Message(json.toString(), null, true, first.queued, count);
+    }
+
+    @Override
+    public synchronized void writeSuccess()
+    {
+        if (inFlight != null)
+        {
+            sent += inFlight.count;
+            frames++;
+            maxLag = Math.max(maxLag, clock.getAsLong() - inFlight.queued);
+        }
+        this.sendNext();
+    }
+
+    @Override
+    public synchronized void writeFailed(final Throwable cause)
+    {
+        failed++;
+        LOGGER.log(Level.FINE, "Error sending WebSocket message.", cause);
+        if (!session.isOpen())
+        {
+            this.close();
+            return;
+        }
+        this.sendNext();
+    }
+
+    /**
+     * Discards all queued messages and refuses further ones, e.g. when the session has been closed.
+     */
+    public synchronized void close()
+    {
+        this.closed = true;
+        this.inFlight = null;
+        this.pending = null;
+        this.batchScheduled = false;
+        queue.clear();
+    }
+
+    /**
+     * Returns the current lag of the session, i.e. how long the oldest undelivered message has been waiting.
+     *
+     * @return The lag in ms, 0 if all messages have been delivered.
+     */
+    public synchronized long getLag()
+    {
+        Message oldest = inFlight != null ? inFlight : queue.peek();
+        return oldest != null ? TimeUnit.NANOSECONDS.toMillis(clock.getAsLong() - oldest.queued) : 0L;
+    }
+
+    /**
+     * Returns the number of ISBs dropped by the slow-consumer policy.
+     *
+     * @return The number of dropped ISBs.
+     */
+    public synchronized long getDropped()
+    {
+        return dropped;
+    }
+
+    /**
+     * Returns the metrics of the session in JSON format. Example:
+     * <pre> {"device": "ttyACM0", "remote": "/192.168.0.17:51234", "policy": "DROP_OLDEST", "binary": false,
+     *  "rate": 5, "batch": 0, "queued": 0, "maxQueued": 3, "sent": 1250, "frames": 1250, "dropped": 0,
+     *  "conflated": 8040, "failed": 0, "lag": 0, "maxLag": 12, "commands": 310, "busy": 0}</pre>
+     * 'lag' is the current lag and 'maxLag' the longest time a message took until it was written, both in ms.
+     * 'conflated' is the number of ISBs superseded by a newer one because of the update rate, 'sent' counts the
+     * messages and 'frames' the WebSocket frames, which differ if the session batches it's ISBs. 'commands' is the
+     * number of admitted MCCs and 'busy' the number of MCCs rejected by the {@link CommandQuota}.
+     *
+     * @return The metrics.
+     */
+    public synchronized String toJson()
+    {
+        return String.format(METRICS_MSG, deviceId, session.getRemoteAddress(), policy, binary, rate, batchWindow,
+                queue.size(), maxQueued, sent, frames, dropped, conflated, failed, this.getLag(),
+                TimeUnit.NANOSECONDS.toMillis(maxLag), quota.getAdmitted(), quota.getRejected());
+    }
+
+}
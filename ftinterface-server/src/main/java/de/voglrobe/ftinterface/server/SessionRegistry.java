@@ -0,0 +1,294 @@
+package de.voglrobe.ftinterface.server;
+
+import de.voglrobe.ftinterface.async.SequenceNumberAllocator;
+import de.voglrobe.ftinterface.exceptions.ComException;
+import de.voglrobe.ftinterface.io.FtInputs;
+import de.voglrobe.ftinterface.io.FtInputsFlags;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.CopyOnWriteArrayList;
+import org.eclipse.jetty.websocket.api.Session;
+
+/**
+ * This class implements the thread-safe registry of the WebSocket sessions of all interface adapters.
+ * <p>
+ * The sequence numbers of the MCCs are allocated by the server from the {@link SequenceNumberAllocator} of the
+ * interface adapter, i.e. clients cannot collide with each other nor with the stepping scheduler or a motion program
+ * even if they use the same numbers. The registry records which session has sent the MCC with which allocated
+ * sequence number and the sequence number chosen by the client. An ISB is delivered to the session that has sent
+ * it's MCC only, with the sequence number of the client, i.e. a client receives the ISBs of it's own MCCs (including
+ * their keep-alives). Observer sessions receive all ISBs of their interface adapter with the allocated sequence
+ * numbers. ISBs whose sequence number has not been allocated by the registry (e.g. 0 or of a program) are delivered
+ * to all sessions of the interface adapter.
+ * <p>
+ * A sequence number is kept until the MCC has finished: a MCC without duration on it's first ISB, a MCC with
+ * duration on it's final ISB or when the blocking send returns, an infinite MCC when the same session sends it's
+ * next MCC. The infinite MCCs of other sessions are not affected. A MCC that has been given up by the
+ * retransmission finishes right away. If all sequence numbers are in use, the oldest one of the registry is
+ * reclaimed.
+ *
+ * @author robert
+ */
+public class SessionRegistry
+{
+    /**
+     * The session that has sent a MCC and the sequence number chosen by the client. Owns the allocated sequence
+     * number.
+     */
+    private static class Origin
+    {
+        private final SessionOutbox outbox;
+        private final int clientSeqNr;
+        private final int duration;
+        private volatile int seqNr;
+        private volatile boolean removed;
+
+        private Origin(final SessionOutbox outbox, final int clientSeqNr, final int duration)
+        {
+            this.outbox = outbox;
+            this.clientSeqNr = clientSeqNr;
+            this.duration = duration;
+            this.seqNr = 0;
+            this.removed = false;
+        }
+    }
+
+    /**
+     * The sessions of an interface adapter.
+     */
+    private static class Device
+    {
+        private final List<SessionOutbox> sessions = new CopyOnWriteArrayList<>();
+        private final List<SessionOutbox> observers = new CopyOnWriteArrayList<>();
+        private final Deque<Origin> origins = new ConcurrentLinkedDeque<>();
+        private volatile SequenceNumberAllocator allocator;
+    }
+
+    private final Map<String, Device> devices = new ConcurrentHashMap<>();
+    private final Map<Session, SessionOutbox> outboxes = new ConcurrentHashMap<>();
+
+    /**
+     * Returns the sessions of an interface adapter.
+     */
+    private Device device(final String deviceId)
+    {
+        return devices.computeIfAbsent(deviceId, (final String key) -> new Device());
+    }
+
+    /**
+     * Registers a session.
+     *
+     * @param outbox The outbox of the new session.
+     * @param observer TRUE if the session receives all ISBs of the interface adapter.
+     */
+    public void add(final SessionOutbox outbox, final boolean observer)
+    {
+        outboxes.put(outbox.getSession(), outbox);
+        Device device = this.device(outbox.getDeviceId());
+        device.sessions.add(outbox);
+        if (observer)
+        {
+            device.observers.add(outbox);
+        }
+    }
+
+    /**
+     * Unregisters a session, closes it's outbox and releases it's sequence numbers. Does nothing if it's not
+     * registered.
+     *
+     * @param session The closed session.
+     */
+    public void remove(final Session session)
+    {
+        SessionOutbox outbox = outboxes.remove(session);
+        if (outbox == null)
+        {
+            return;
+        }
+        outbox.close();
+        Device device = this.device(outbox.getDeviceId());
+        device.sessions.remove(outbox);
+        device.observers.remove(outbox);
+        for (Origin origin : device.origins)
+        {
+            if (origin.outbox == outbox)
+            {
+                origin.removed = true;
+                this.finish(device, origin);
+            }
+        }
+    }
+
+    /**
+     * Returns the outbox of a registered session.
+     *
+     * @param session The session.
+     * @return The outbox or NULL if the session is not registered.
+     */
+    public SessionOutbox get(final Session session)
+    {
+        return outboxes.get(session);
+    }
+
+    /**
+     * Returns the outboxes of all registered sessions.
+     *
+     * @return The outboxes.
+     */
+    public Collection<SessionOutbox> getAll()
+    {
+        return new ArrayList<>(outboxes.values());
+    }
+
+    /**
+     * Allocates a sequence number of the interface adapter for a MCC of the session. The infinite MCCs the session
+     * has sent before have finished, those of other sessions are kept. If all sequence numbers are in use, the
+     * oldest one allocated by the registry is reclaimed.
+     *
+     * @param allocator The allocator of the interface adapter.
+     * @param outbox The outbox of the session that sends the MCC.
+     * @param clientSeqNr The sequence number chosen by the client.
+     * @param duration The duration of the MCC in ms, 0 = none, negative = infinite.
+     * @return The sequence number to send the MCC with [1, 63].
+     * @throws ComException if no sequence number is available, i.e. all are in use by others.
+     */
+    public int allocate(final SequenceNumberAllocator allocator, final SessionOutbox outbox, final int clientSeqNr,
+            final int duration) throws ComException
+    {
+        Device device = this.device(outbox.getDeviceId());
+        device.allocator = allocator;
+        for (Origin origin : device.origins)
+        {
+            if (origin.duration < 0 && origin.outbox == outbox)
+            {
+                this.finish(device, origin);
+            }
+        }
+        Origin origin = new Origin(outbox, clientSeqNr, duration);
+        try
+        {
+            origin.seqNr = allocator.allocate(origin);
+        }
+        catch(ComException e)
+        {
+            Origin oldest = device.origins.peekFirst();
+            if (oldest == null)
+            {
+                throw e;
+            }
+            this.finish(device, oldest);
+            origin.seqNr = allocator.allocate(origin);
+        }
+        device.origins.add(origin);
+        return origin.seqNr;
+    }
+
+    /**
+     * Releases the sequence number of a MCC of the session, e.g. when the blocking send of a MCC with duration
+     * returns or the MCC could not be sent. Does nothing if the MCC has finished already.
+     *
+     * @param outbox The outbox of the session that has sent the MCC.
+     * @param seqNr The allocated sequence number of the MCC.
+     */
+    public void release(final SessionOutbox outbox, final int seqNr)
+    {
+        Device device = this.device(outbox.getDeviceId());
+        for (Origin origin : device.origins)
+        {
+            if (origin.outbox == outbox && origin.seqNr == seqNr)
+            {
+                this.finish(device, origin);
+            }
+        }
+    }
+
+    /**
+     * Releases the sequence number of a MCC the interface adapter has given up, i.e. it's ISB will not arrive
+     * anymore. Does nothing if the number has not been allocated by the registry or the MCC has finished already.
+     *
+     * @param deviceId The id of the interface adapter.
+     * @param seqNr The allocated sequence number of the given-up MCC.
+     */
+    public void giveUp(final String deviceId, final int seqNr)
+    {
+        Device device = this.device(deviceId);
+        SequenceNumberAllocator allocator = device.allocator;
+        Object owner = allocator != null ? allocator.getOwner(seqNr) : null;
+        if (owner instanceof Origin)
+        {
+            this.finish(device, (Origin) owner);
+        }
+    }
+
+    /**
+     * Releases the sequence number of a finished MCC. It's owner is kept by the allocator until the number is
+     * allocated again, thus late ISBs are still delivered to the session.
+     */
+    private void finish(final Device device, final Origin origin)
+    {
+        if (device.origins.remove(origin))
+        {
+            device.allocator.release(origin.seqNr, origin);
+        }
+    }
+
+    /**
+     * Delivers an ISB to the session that has sent the MCC with the sequence number and to the observers.
+     *
+     * @param deviceId The id of the interface adapter that has sent the ISB.
+     * @param payload The ISB.
+     */
+    public void deliver(final String deviceId, final IsbPayload payload)
+    {
+        FtInputs inputs = payload.getInputs();
+        Device device = this.device(deviceId);
+        SequenceNumberAllocator allocator = device.allocator;
+        Object owner = allocator != null ? allocator.getOwner(inputs.getSeqNr()) : null;
+        if (!(owner instanceof Origin) || ((Origin) owner).removed)
+        {
+            device.sessions.forEach((final SessionOutbox outbox) -> outbox.offer(payload));
+            return;
+        }
+        Origin origin = (Origin) owner;
+        FtInputsFlags flags = inputs.getFlags();
+        if (origin.duration == 0 || (flags != null && (flags.isDurationFinished() || flags.isExpired())))
+        {
+            this.finish(device, origin);
+        }
+        if (origin.clientSeqNr == inputs.getSeqNr())
+        {
+            origin.outbox.offer(payload);
+        }
+        else
+        {
+            FtInputs rewritten = new FtInputs(origin.clientSeqNr, inputs);
+            rewritten.setFlags(inputs.getFlags());
+            rewritten.setTelemetry(inputs.getTelemetry());
+            origin.outbox.offer(new IsbPayload(rewritten));
+        }
+        device.observers.forEach((final SessionOutbox outbox) ->
+        {
+            if (outbox != origin.outbox)
+            {
+                outbox.offer(payload);
+            }
+        });
+    }
+
+    /**
+     * Sends a control message to all sessions of an interface adapter.
+     *
+     * @param deviceId The id of the interface adapter.
+     * @param payload The message.
+     */
+    public void broadcast(final String deviceId, final String payload)
+    {
+        this.device(deviceId).sessions.forEach((final SessionOutbox outbox) -> outbox.offerControl(payload));
+    }
+
+}
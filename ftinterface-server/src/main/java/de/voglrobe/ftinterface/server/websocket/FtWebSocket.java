@@ -3,12 +3,24 @@ package de.voglrobe.ftinterface.server.websocket;
 import com.google.gson.JsonSyntaxException;
 import de.voglrobe.ftinterface.FtInterfaceAsync;
 import de.voglrobe.ftinterface.exceptions.ComException;
+import de.voglrobe.ftinterface.io.FtInputs;
+import de.voglrobe.ftinterface.io.FtInputsFlags;
+import de.voglrobe.ftinterface.io.FtMccBatch;
 import de.voglrobe.ftinterface.io.FtMccMessage;
+import de.voglrobe.ftinterface.io.FtOutput;
+import de.voglrobe.ftinterface.io.FtProgramMessage;
+import de.voglrobe.ftinterface.io.FtProgramProgress;
 import de.voglrobe.ftinterface.server.FtServer;
-import java.io.IOException;
+import de.voglrobe.ftinterface.server.IsbPayload;
+import de.voglrobe.ftinterface.server.SessionOutbox;
+import de.voglrobe.ftinterface.server.SessionRegistry;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import org.eclipse.jetty.websocket.api.Session;
+import org.eclipse.jetty.websocket.api.StatusCode;
 import org.eclipse.jetty.websocket.api.annotations.OnWebSocketClose;
 import org.eclipse.jetty.websocket.api.annotations.OnWebSocketConnect;
 import org.eclipse.jetty.websocket.api.annotations.OnWebSocketMessage;
@@ -16,6 +28,14 @@ import org.eclipse.jetty.websocket.api.annotations.WebSocket;
 
 /**
  * This class implements the WebSocket receiver callbacks (open, close. message).
+ * <p>
+ * A session is bound to the interface adapter of it's URL path, i.e. '/ftinterface/&lt;deviceId&gt;', or to the
+ * default device for '/ftinterface'. MCCs are received as JSON text or, with the binary subprotocol, as binary
+ * messages, see {@link FtServer#BINARY_PROTOCOL}. Several MCCs may be sent in one message, see {@link FtMccBatch}.
+ * The MCCs are handed over to the {@link de.voglrobe.ftinterface.server.CommandExecutor}, i.e. the callbacks return
+ * immediately even if a MCC has a duration. A MCC that cannot be sent is reported by a negative acknowledgement,
+ * e.g. <code>{"ack": {"seqnrs": [5], "failed": [5]}}</code>. MCCs beyond the quota of the session are rejected, see
+ * {@link #busy(SessionOutbox, List)}.
  * 
  * @author robert
  */
@@ -24,11 +44,13 @@ public class FtWebSocket
 {
     private static final Logger LOGGER = Logger.getLogger(FtWebSocket.class.getName());
     
-    private static final String DRY_RUN_MSG = 
-            "{\"seqnr\": %d, \"di\": [false, true, false, false, false, false, false, false], \"ex\": 231, \"ey\": 255"
-            + ", \"flags\":{\"durationFinished\": true}}";
+    private static final String PROGRESS_MSG = "{\"progress\": %s}";
     
-    private final FtInterfaceAsync ftInterface;
+    private static final String ACK_MSG = "{\"ack\": {\"seqnrs\": %s, \"failed\": %s}}";
+    
+    private static final String BUSY_MSG = "{\"busy\": {\"seqnrs\": %s, \"retryAfter\": %d}}";
+    
+    private static final String PATH = "/ftinterface";
     
     /**
      * Constructor.
@@ -36,19 +58,41 @@ public class FtWebSocket
     public FtWebSocket()
     {
         super();
-        this.ftInterface = FtServer.getFtInterface();
     }
     
     /**
-     * Called on connection opened.
+     * Returns the id of the interface adapter the session is bound to.
+     * 
+     * @param session A session instance.
+     * @return The device id taken from the URL path or the default device.
+     */
+    private static String getDeviceId(final Session session)
+    {
+        String path = session.getUpgradeRequest().getRequestURI().getPath();
+        if (path != null && path.startsWith(PATH + "/") && path.length() > PATH.length() + 1)
+        {
+            return path.substring(PATH.length() + 1);
+        }
+        return FtServer.getDefaultDevice();
+    }
+    
+    /**
+     * Called on connection opened. Sessions of unknown devices are closed.
      * 
      * @param session A session instance. 
      */
     @OnWebSocketConnect
     public void onConnected(final Session session)
     {
-        LOGGER.log(Level.INFO, "Connected to WebSocket.");
-        FtServer.getSessions().add(session);
+        String deviceId = FtWebSocket.getDeviceId(session);
+        if (!FtServer.isDryRun() && FtServer.getFtInterface(deviceId) == null)
+        {
+            LOGGER.log(Level.WARNING, "WebSocket connection to unknown device {0} refused.", deviceId);
+            session.close(StatusCode.POLICY_VIOLATION, "Unknown device " + deviceId);
+            return;
+        }
+        LOGGER.log(Level.INFO, "Connected to WebSocket of device {0}.", deviceId);
+        FtServer.addSession(session, deviceId);
     }
     
     /**
@@ -62,7 +106,7 @@ public class FtWebSocket
     public void onClosed(final Session session, final int statusCode, final String reason)
     {
         LOGGER.log(Level.INFO, "WebSocket closed.");
-        FtServer.getSessions().remove(session);
+        FtServer.removeSession(session);
     }
     
     /**
@@ -79,13 +123,24 @@ public class FtWebSocket
      *     "m2steps": 200,
      *     "m3steps": 300
      *  },
-     *  "duration": 0
+     *  "duration": 0,
+     *  "maxAge": 250
      * }</pre>
+     * The optional 'deadline' (ms since the epoch) and 'maxAge' (ms since receipt) discard the MCC if it cannot be
+     * sent in time. Such a MCC is answered with an ISB that has the 'expired' flag set.
+     * Or an instance of {@link FtMccBatch} in JSON format to send several MCCs at once, see
+     * {@link #onMccBatch(Session, FtMccBatch, long)}.
+     * Or an instance of {@link FtProgramMessage} in JSON format to control the motion program, see
+     * {@link #onProgramMessage(Session, FtProgramMessage)}.
      */
     @OnWebSocketMessage
     public void onMessage(final Session session, final String message)
     {
-        LOGGER.log(Level.INFO, "WebSocket message received: {0}.", message);
+        long received = System.currentTimeMillis();
+        if (LOGGER.isLoggable(Level.FINE))
+        {
+            LOGGER.log(Level.FINE, "WebSocket message received: {0}.", message);
+        }
         if (message == null)
         {
             return;
@@ -93,42 +148,310 @@ public class FtWebSocket
         
         try
         {
-            FtMccMessage ftMessage = FtMccMessage.fromJson(message);
-            if (FtServer.isDryRun())
+            if (FtProgramMessage.isProgramMessage(message))
             {
-                session.getRemote().sendString(String.format(DRY_RUN_MSG, ftMessage.getMcc().getSeqNr()));
+                this.onProgramMessage(session, FtProgramMessage.fromJson(message));
+                return;
+            }
+            if (FtMccBatch.isBatchMessage(message))
+            {
+                this.onMccBatch(session, FtMccBatch.fromJson(message), received);
                 return;
             }
             
-            if (ftInterface != null)
+            this.onMccMessage(session, FtMccMessage.fromJson(message), received);
+        }
+        catch(JsonSyntaxException e)
+        {
+            LOGGER.log(Level.SEVERE, "Invalid JSON message received.", e);            
+        }
+    }
+    
+    /**
+     * Called on received binary messages of the binary subprotocol.
+     * 
+     * @param session A session instance.
+     * @param data The received data.
+     * @param offset The offset of the message in the data.
+     * @param length The length of the message.
+     * Must be an instance of {@link FtMccMessage} in the binary format, see {@link FtMccMessage#toBinary()}, or
+     * several of them back to back, see {@link FtMccBatch#toBinary()}.
+     */
+    @OnWebSocketMessage
+    public void onMessage(final Session session, final byte[] data, final int offset, final int length)
+    {
+        long received = System.currentTimeMillis();
+        LOGGER.log(Level.FINE, "WebSocket binary message received: {0} bytes.", length);
+        try
+        {
+            if (length == FtMccMessage.BINARY_LENGTH)
+            {
+                this.onMccMessage(session, FtMccMessage.fromBinary(data, offset, length), received);
+            }
+            else
+            {
+                this.onMccBatch(session, FtMccBatch.fromBinary(data, offset, length), received);
+            }
+        }
+        catch(IllegalArgumentException e)
+        {
+            LOGGER.log(Level.SEVERE, "Invalid binary message received.", e);
+        }
+    }
+    
+    /**
+     * Called on received MCC messages.
+     * 
+     * @param session A session instance.
+     * @param ftMessage The received message.
+     * @param received The point in time the message has been received in ms since the epoch.
+     */
+    private void onMccMessage(final Session session, final FtMccMessage ftMessage, final long received)
+    {
+        SessionOutbox outbox = FtServer.getOutbox(session);
+        if (FtServer.isDryRun())
+        {
+            FtWebSocket.dryRun(outbox, ftMessage);
+            return;
+        }
+        
+        FtInterfaceAsync ftInterface = FtServer.getFtInterface(FtWebSocket.getDeviceId(session));
+        if (ftInterface == null || outbox == null)
+        {
+            return;
+        }
+        List<Integer> seqNrs = Collections.singletonList(ftMessage.getMcc().getSeqNr());
+        Runnable command = () ->
+        {
+            try
+            {
+                FtWebSocket.send(ftInterface, outbox, ftMessage, received);
+            }
+            catch(ComException e)
+            {
+                LOGGER.log(Level.SEVERE, "Unable to send output to interface.", e);
+                outbox.offerControl(String.format(ACK_MSG, seqNrs, seqNrs));
+            }
+        };
+        if (!FtServer.getCommands().submit(FtWebSocket.getDeviceId(session), outbox.getQuota(), 1, command))
+        {
+            FtWebSocket.busy(outbox, seqNrs);
+        }
+    }
+    
+    /**
+     * Answers MCCs beyond the quota of the session with a busy message. Example:
+     * <pre> {"busy": {"seqnrs": [5], "retryAfter": 120}}</pre>
+     * 'retryAfter' is the time in ms until the quota admits the MCCs again at the earliest.
+     * 
+     * @param outbox The outbox of the session.
+     * @param seqNrs The sequence numbers of the client of the rejected MCCs.
+     */
+    private static void busy(final SessionOutbox outbox, final List<Integer> seqNrs)
+    {
+        LOGGER.log(Level.FINE, "Session busy, {0} MCCs rejected.", seqNrs.size());
+        outbox.offerControl(String.format(BUSY_MSG, seqNrs, outbox.getQuota().getRetryAfter(seqNrs.size())));
+    }
+    
+    /**
+     * Called on received batches of MCC messages. The MCCs are sent in order, contiguously if the batch is atomic.
+     * An atomic batch stops at the first failed MCC, the following ones fail as well. The batch is answered with
+     * one acknowledgement carrying the sequence numbers of the client as soon as all MCCs have been sent. Example:
+     * <pre> {"ack": {"seqnrs": [1, 2, 3], "failed": [3]}}</pre>
+     * 
+     * @param session A session instance.
+     * @param batch The received batch.
+     * @param received The point in time the batch has been received in ms since the epoch.
+     */
+    private void onMccBatch(final Session session, final FtMccBatch batch, final long received)
+    {
+        SessionOutbox outbox = FtServer.getOutbox(session);
+        FtInterfaceAsync ftInterface = FtServer.getFtInterface(FtWebSocket.getDeviceId(session));
+        if (outbox == null || (ftInterface == null && !FtServer.isDryRun()))
+        {
+            return;
+        }
+        List<Integer> seqNrs = new ArrayList<>();
+        List<FtMccMessage> messages = batch.getMessages();
+        messages.forEach((final FtMccMessage message) -> seqNrs.add(message.getMcc().getSeqNr()));
+        if (FtServer.isDryRun())
+        {
+            messages.forEach((final FtMccMessage message) -> FtWebSocket.dryRun(outbox, message));
+            outbox.offerControl(String.format(ACK_MSG, seqNrs, Collections.emptyList()));
+            return;
+        }
+        Runnable command = () -> outbox.offerControl(String.format(ACK_MSG, seqNrs,
+                FtWebSocket.send(ftInterface, outbox, batch, seqNrs, received)));
+        if (!FtServer.getCommands().submit(FtWebSocket.getDeviceId(session), outbox.getQuota(), seqNrs.size(),
+                command))
+        {
+            FtWebSocket.busy(outbox, seqNrs);
+        }
+    }
+    
+    /**
+     * Sends a batch of MCC messages to the interface adapter. Blocks if a message has a duration.
+     * 
+     * @param ftInterface The interface of the session.
+     * @param outbox The outbox of the session.
+     * @param batch The batch.
+     * @param seqNrs The sequence numbers of the client.
+     * @param received The point in time the batch has been received in ms since the epoch.
+     * @return The sequence numbers of the client of the failed MCCs.
+     */
+    private static List<Integer> send(final FtInterfaceAsync ftInterface, final SessionOutbox outbox,
+            final FtMccBatch batch, final List<Integer> seqNrs, final long received)
+    {
+        List<Integer> failed = new ArrayList<>();
+        List<FtMccMessage> messages = batch.getMessages();
+        if (batch.isAtomic())
+        {
+            int[] sent = {0};
+            try
             {
-                int duration = ftMessage.getDuration();
-                if (duration > 0)
+                ftInterface.sendAtomically(() ->
                 {
-                    // blocking!!
-                    ftInterface.send(ftMessage.getMcc(), duration);                
-                }
-                else if (duration == 0)
+                    for (FtMccMessage message : messages)
+                    {
+                        FtWebSocket.send(ftInterface, outbox, message, received);
+                        sent[0]++;
+                    }
+                });
+            }
+            catch(ComException e)
+            {
+                LOGGER.log(Level.SEVERE, "Unable to send atomic batch to interface.", e);
+                failed.addAll(seqNrs.subList(sent[0], seqNrs.size()));
+            }
+        }
+        else
+        {
+            for (int i=0; i<messages.size(); i++)
+            {
+                try
                 {
-                    ftInterface.send(ftMessage.getMcc());                
+                    FtWebSocket.send(ftInterface, outbox, messages.get(i), received);
                 }
-                else
+                catch(ComException e)
                 {
-                    ftInterface.sendInfinite(ftMessage.getMcc());
+                    LOGGER.log(Level.SEVERE, "Unable to send output to interface.", e);
+                    failed.add(seqNrs.get(i));
                 }
             }
         }
-        catch(JsonSyntaxException e)
+        return failed;
+    }
+    
+    /**
+     * Sends a MCC message to the interface adapter. Blocks if the message has a duration.
+     * 
+     * @param ftInterface The interface of the session.
+     * @param outbox The outbox of the session.
+     * @param ftMessage The message.
+     * @param received The point in time the message has been received in ms since the epoch.
+     * @throws ComException in case of errors.
+     */
+    private static void send(final FtInterfaceAsync ftInterface, final SessionOutbox outbox,
+            final FtMccMessage ftMessage, final long received) throws ComException
+    {
+        // the ISBs of this MCC are returned to this session only, with the sequence number of the client
+        FtOutput mcc = ftMessage.getMcc();
+        int duration = ftMessage.getDuration();
+        long deadline = ftMessage.getDeadline(received);
+        SessionRegistry sessions = FtServer.getSessions();
+        mcc.seqNr(sessions.allocate(ftInterface.getSequenceNumberAllocator(), outbox, mcc.getSeqNr(), duration));
+        boolean sent = false;
+        try
         {
-            LOGGER.log(Level.SEVERE, "Invalid JSON message received.", e);            
+            if (duration > 0)
+            {
+                // blocking!!
+                ftInterface.send(mcc, duration, deadline);                
+            }
+            else if (duration == 0)
+            {
+                ftInterface.send(mcc, true, null, deadline);                
+            }
+            else
+            {
+                ftInterface.sendInfinite(mcc, deadline);
+            }
+            sent = true;
         }
-        catch (IOException e)
+        finally
         {
-            LOGGER.log(Level.SEVERE, "Return response message in dry-run failed", e);
+            if (!sent || duration > 0)
+            {
+                sessions.release(outbox, mcc.getSeqNr());
+            }
         }
-        catch(ComException e)
+    }
+    
+    /**
+     * Answers a MCC message with a fixed ISB in dry-run mode.
+     * 
+     * @param outbox The outbox of the session or NULL.
+     * @param ftMessage The message.
+     */
+    private static void dryRun(final SessionOutbox outbox, final FtMccMessage ftMessage)
+    {
+        if (outbox != null)
         {
-            LOGGER.log(Level.SEVERE, "Unable to send output to interface.", e);
+            FtInputs inputs = new FtInputs(ftMessage.getMcc().getSeqNr(), 0b0100_0000, 231, 255);
+            FtInputsFlags flags = new FtInputsFlags();
+            flags.setDurationFinished(true);
+            inputs.setFlags(flags);
+            outbox.offer(new IsbPayload(inputs));
+        }
+    }
+    
+    /**
+     * Called on received motion program messages. The program runs on the server, it's progress is sent back
+     * to the session that started it. Example:
+     * <pre> {"progress": {"state": "RUNNING", "step": 2, "repetition": 1}}</pre>
+     * 
+     * @param session A session instance.
+     * @param ftMessage The received message.
+     */
+    private void onProgramMessage(final Session session, final FtProgramMessage ftMessage)
+    {
+        SessionOutbox outbox = FtServer.getOutbox(session);
+        if (FtServer.isDryRun())
+        {
+            FtProgramProgress progress = new FtProgramProgress(FtProgramProgress.State.FINISHED,
+                    ftMessage.getProgram() != null ? ftMessage.getProgram().getSteps().size() : 0, 0);
+            if (outbox != null)
+            {
+                outbox.offerControl(String.format(PROGRESS_MSG, progress.toJson()));
+            }
+            return;
+        }
+        FtInterfaceAsync ftInterface = FtServer.getFtInterface(FtWebSocket.getDeviceId(session));
+        if (ftInterface == null || outbox == null)
+        {
+            return;
+        }
+        
+        switch(ftMessage.getAction())
+        {
+            case START:
+                if (ftMessage.getProgram() != null)
+                {
+                    ftInterface.runProgram(ftMessage.getProgram(), (final FtProgramProgress progress) ->
+                            outbox.offerControl(String.format(PROGRESS_MSG, progress.toJson())));
+                }
+                break;
+            case PAUSE:
+                ftInterface.pauseProgram();
+                break;
+            case RESUME:
+                ftInterface.resumeProgram();
+                break;
+            case ABORT:
+            default:
+                // aborts the program and stops all motors immediately.
+                ftInterface.softInterrupt(new FtOutput());
+                break;
         }
     }
     
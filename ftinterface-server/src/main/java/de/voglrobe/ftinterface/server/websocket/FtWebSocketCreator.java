@@ -0,0 +1,97 @@
+package de.voglrobe.ftinterface.server.websocket;
+
+import de.voglrobe.ftinterface.server.FtServer;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.List;
+import org.eclipse.jetty.server.Handler;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.eclipse.jetty.websocket.server.WebSocketUpgradeFilter;
+import org.eclipse.jetty.websocket.server.pathmap.PathMappings;
+import org.eclipse.jetty.websocket.servlet.ServletUpgradeRequest;
+import org.eclipse.jetty.websocket.servlet.ServletUpgradeResponse;
+import org.eclipse.jetty.websocket.servlet.WebSocketCreator;
+import spark.Spark;
+
+/**
+ * This class negotiates the WebSocket subprotocol in the handshake: a client that requests
+ * {@link FtServer#BINARY_PROTOCOL} gets it confirmed by the 'Sec-WebSocket-Protocol' header of the response.
+ * Browsers close the connection if a requested subprotocol is not confirmed.
+ * <p>
+ * Spark does not expose the creators of it's WebSocket handlers, thus {@link #install()} wraps the creators of all
+ * WebSocket paths once the embedded server has been started.
+ *
+ * @author robert
+ */
+public class FtWebSocketCreator implements WebSocketCreator
+{
+    private final WebSocketCreator creator;
+
+    /**
+     * Constructor.
+     *
+     * @param creator The creator of the WebSocket handler.
+     */
+    public FtWebSocketCreator(final WebSocketCreator creator)
+    {
+        this.creator = creator;
+    }
+
+    @Override
+    public Object createWebSocket(final ServletUpgradeRequest request, final ServletUpgradeResponse response)
+    {
+        if (request.hasSubProtocol(FtServer.BINARY_PROTOCOL))
+        {
+            response.setAcceptedSubProtocol(FtServer.BINARY_PROTOCOL);
+        }
+        return creator.createWebSocket(request, response);
+    }
+
+    /**
+     * Wraps the creators of the WebSocket paths registered with Spark. Must be called after the embedded server
+     * has been initialized, see {@link Spark#awaitInitialization()}.
+     *
+     * @throws ReflectiveOperationException if the embedded server of Spark is not accessible.
+     */
+    public static void install() throws ReflectiveOperationException
+    {
+        Object instance = Spark.getInstance();
+        Object sparkServer = FtWebSocketCreator.getField(instance.getClass(), instance, "server");
+        Server server = (Server) FtWebSocketCreator.getField(sparkServer.getClass(), sparkServer, "server");
+        for (Handler handler : server.getChildHandlersByClass(ServletContextHandler.class))
+        {
+            Object filter = ((ServletContextHandler) handler).getAttribute(WebSocketUpgradeFilter.class.getName());
+            if (filter instanceof WebSocketUpgradeFilter)
+            {
+                PathMappings<WebSocketCreator> mappings = ((WebSocketUpgradeFilter) filter).getMappings();
+                List<PathMappings.MappedResource<WebSocketCreator>> resources = new ArrayList<>(
+                        mappings.getMappings());
+                mappings.reset();
+                for (PathMappings.MappedResource<WebSocketCreator> resource : resources)
+                {
+                    WebSocketCreator creator = resource.getResource();
+                    mappings.put(resource.getPathSpec(),
+                            creator instanceof FtWebSocketCreator ? creator : new FtWebSocketCreator(creator));
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads a private field.
+     */
+    private static Object getField(final Class<?> type, final Object object, final String name)
+            throws ReflectiveOperationException
+    {
+        Field field = type.getDeclaredField(name);
+        field.setAccessible(true);
+        Object ret = field.get(object);
+        if (ret == null)
+        {
+            throw new NoSuchFieldException(name + " not initialized.");
+        }
+        return ret;
+    }
+
+}
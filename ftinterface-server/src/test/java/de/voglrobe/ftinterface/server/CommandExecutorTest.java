@@ -0,0 +1,126 @@
+package de.voglrobe.ftinterface.server;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * The order of the commands of the sessions, executed step by step by a manual executor.
+ *
+ * @author robert
+ */
+public class CommandExecutorTest
+{
+    /**
+     * Executor that runs the submitted tasks on demand on the calling thread.
+     */
+    private static class ManualExecutor extends AbstractExecutorService
+    {
+        private final Queue<Runnable> tasks = new ArrayDeque<>();
+
+        @Override
+        public void execute(final Runnable command)
+        {
+            tasks.add(command);
+        }
+
+        private int runAll()
+        {
+            int count = 0;
+            Runnable task;
+            while ((task = tasks.poll()) != null)
+            {
+                task.run();
+                count++;
+            }
+            return count;
+        }
+
+        @Override
+        public void shutdown()
+        {
+        }
+
+        @Override
+        public List<Runnable> shutdownNow()
+        {
+            return Collections.emptyList();
+        }
+
+        @Override
+        public boolean isShutdown()
+        {
+            return false;
+        }
+
+        @Override
+        public boolean isTerminated()
+        {
+            return false;
+        }
+
+        @Override
+        public boolean awaitTermination(final long timeout, final TimeUnit unit)
+        {
+            return true;
+        }
+    }
+
+    private final ManualExecutor executor = new ManualExecutor();
+    private final CommandExecutor commands = new CommandExecutor(executor, false);
+    private final List<String> executed = new CopyOnWriteArrayList<>();
+
+    /**
+     * Submits a command that records it's name.
+     */
+    private boolean submit(final String deviceId, final CommandQuota quota, final String name)
+    {
+        return commands.submit(deviceId, quota, 1, () -> executed.add(name));
+    }
+
+    @Test
+    public void testOrder()
+    {
+        CommandQuota quota = new CommandQuota(0.0, 0, 1, 3);
+        Assert.assertTrue(this.submit("dev1", quota, "A1"));
+        Assert.assertTrue(this.submit("dev1", quota, "A2"));
+        Assert.assertTrue(this.submit("dev1", quota, "A3"));
+        Assert.assertFalse(this.submit("dev1", quota, "A4")); // busy
+
+        // the commands of another interface adapter run concurrently
+        CommandQuota other = new CommandQuota(0.0, 0, 1, 3);
+        Assert.assertTrue(this.submit("dev2", other, "B1"));
+        Assert.assertEquals(2, executor.runAll());
+
+        Assert.assertEquals(Arrays.asList("A1", "A2", "A3", "B1"), executed);
+        Assert.assertEquals(0, commands.getPending("dev1"));
+        Assert.assertTrue(this.submit("dev1", quota, "A4")); // released
+    }
+
+    @Test
+    public void testWeightedRoundRobin()
+    {
+        CommandQuota quotaA = new CommandQuota(0.0, 0, 2, 10);
+        CommandQuota quotaB = new CommandQuota(0.0, 0, 1, 10);
+        for (int i=1; i<=4; i++)
+        {
+            Assert.assertTrue(this.submit("dev", quotaA, "A" + i));
+        }
+        for (int i=1; i<=3; i++)
+        {
+            Assert.assertTrue(this.submit("dev", quotaB, "B" + i));
+        }
+        Assert.assertEquals(1, executor.runAll());
+
+        Assert.assertEquals(Arrays.asList("A1", "A2", "B1", "A3", "A4", "B2", "B3"), executed);
+        Assert.assertEquals(0, commands.getPending("dev"));
+    }
+
+}
@@ -0,0 +1,65 @@
+package de.voglrobe.ftinterface.server;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * The admission control of the commands of a session, tested with a simulated clock.
+ *
+ * @author robert
+ */
+public class CommandQuotaTest
+{
+    private final AtomicLong now = new AtomicLong(0L); // ns
+
+    /**
+     * Advances the clock.
+     */
+    private void advance(final long ms)
+    {
+        now.addAndGet(TimeUnit.MILLISECONDS.toNanos(ms));
+    }
+
+    @Test
+    public void testTokenBucket()
+    {
+        CommandQuota quota = new CommandQuota(10.0, 3, 1, 100, now::get);
+        Assert.assertTrue(quota.tryAcquire(1));
+        Assert.assertTrue(quota.tryAcquire(1));
+        Assert.assertTrue(quota.tryAcquire(1));
+        Assert.assertFalse(quota.tryAcquire(1));
+        Assert.assertEquals(100L, quota.getRetryAfter(1));
+
+        this.advance(100L);
+        Assert.assertEquals(0L, quota.getRetryAfter(1));
+        Assert.assertTrue(quota.tryAcquire(1));
+        Assert.assertFalse(quota.tryAcquire(1));
+        Assert.assertEquals(4L, quota.getAdmitted());
+        Assert.assertEquals(2L, quota.getRejected());
+
+        // a batch larger than the bucket needs a full bucket
+        this.advance(200L);
+        Assert.assertFalse(quota.tryAcquire(5));
+        this.advance(100L);
+        Assert.assertTrue(quota.tryAcquire(5));
+        Assert.assertEquals(300L, quota.getRetryAfter(1));
+    }
+
+    @Test
+    public void testMaxPending()
+    {
+        CommandQuota quota = new CommandQuota(0.0, 0, 1, 2, now::get);
+        Assert.assertTrue(quota.tryAcquire(10));
+        Assert.assertTrue(quota.tryAcquire(10));
+        Assert.assertFalse(quota.tryAcquire(1));
+        Assert.assertEquals(0L, quota.getRetryAfter(1));
+
+        quota.release();
+        Assert.assertTrue(quota.tryAcquire(1));
+        Assert.assertEquals(21L, quota.getAdmitted());
+        Assert.assertEquals(1L, quota.getRejected());
+    }
+
+}
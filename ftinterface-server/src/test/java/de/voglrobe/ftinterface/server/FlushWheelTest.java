@@ -0,0 +1,126 @@
+package de.voglrobe.ftinterface.server;
+
+import com.google.gson.JsonParser;
+import de.voglrobe.ftinterface.io.FtInputs;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * The update rate and the batching of the sessions, flushed by a timer wheel that is driven by a simulated clock.
+ *
+ * @author robert
+ */
+public class FlushWheelTest
+{
+    private static final long TICK = 10L; // ms
+    private static final int E1 = 0B1000_0000;
+
+    private final AtomicLong now = new AtomicLong(0L); // ns
+    private final FlushWheel wheel = new FlushWheel(TICK, now::get);
+    private final SessionStub stub = new SessionStub();
+    private final SessionOutbox outbox = new SessionOutbox(stub.getSession(), "dev", 64,
+            SessionOutbox.Policy.DROP_OLDEST, false, null, now::get);
+
+    /**
+     * Returns an ISB with the given sequence number and digital inputs.
+     */
+    private static IsbPayload isb(final int seqNr, final int digitalIn)
+    {
+        return new IsbPayload(new FtInputs(seqNr, digitalIn, 0, 0));
+    }
+
+    /**
+     * Advances the clock and runs the due ticks of the wheel.
+     */
+    private void advance(final long ms)
+    {
+        now.addAndGet(TimeUnit.MILLISECONDS.toNanos(ms));
+        wheel.flushDue();
+    }
+
+    @Test
+    public void testRate()
+    {
+        outbox.throttle(wheel, 10);
+        outbox.offer(isb(1, 0)); // the first ISB is sent right away
+        outbox.offer(isb(2, 0));
+        outbox.offer(isb(3, 0)); // conflated with 2
+        Assert.assertEquals(Arrays.asList(1), stub.getSeqNrs());
+
+        this.advance(50L);
+        Assert.assertEquals(Arrays.asList(1), stub.getSeqNrs());
+        this.advance(50L);
+        Assert.assertEquals(Arrays.asList(1, 3), stub.getSeqNrs());
+
+        // a changed digital input is an event, it's not delayed
+        outbox.offer(isb(4, 0));
+        outbox.offer(isb(5, E1));
+        Assert.assertEquals(Arrays.asList(1, 3, 5), stub.getSeqNrs());
+        this.advance(100L);
+        Assert.assertEquals(Arrays.asList(1, 3, 5), stub.getSeqNrs());
+    }
+
+    @Test
+    public void testBatch()
+    {
+        outbox.batch(wheel, 20, 3);
+        outbox.offer(isb(1, 0));
+        outbox.offer(isb(2, 0));
+        this.advance(10L);
+        Assert.assertTrue(stub.getTexts().isEmpty());
+
+        // the window is over
+        this.advance(10L);
+        List<String> texts = stub.getTexts();
+        Assert.assertEquals(1, texts.size());
+        Assert.assertEquals(2, new JsonParser().parse(texts.get(0)).getAsJsonArray().size());
+
+        // the batch is full before the window is over
+        outbox.offer(isb(3, 0));
+        outbox.offer(isb(4, 0));
+        outbox.offer(isb(5, 0));
+        texts = stub.getTexts();
+        Assert.assertEquals(2, texts.size());
+        Assert.assertEquals(3, new JsonParser().parse(texts.get(1)).getAsJsonArray().size());
+        this.advance(20L);
+        Assert.assertEquals(2, stub.getTexts().size());
+    }
+
+    @Test
+    public void testCatchUp()
+    {
+        outbox.throttle(wheel, 10);
+        outbox.offer(isb(1, 0));
+        outbox.offer(isb(2, 0));
+
+        // missed ticks are processed at once
+        this.advance(500L);
+        Assert.assertEquals(Arrays.asList(1, 2), stub.getSeqNrs());
+    }
+
+    @Test
+    public void testPeriodOver()
+    {
+        outbox.throttle(wheel, 10);
+        outbox.offer(isb(1, 0));
+        this.advance(250L);
+
+        // the period is over already, the ISB is sent with the next slot of the wheel
+        outbox.offer(isb(2, 0));
+        Assert.assertEquals(Arrays.asList(1), stub.getSeqNrs());
+        this.advance(2 * TICK);
+        Assert.assertEquals(Arrays.asList(1, 2), stub.getSeqNrs());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testMaxRate()
+    {
+        // one flush per tick at most
+        outbox.throttle(wheel, (int) (1000L / TICK) + 1);
+    }
+
+}
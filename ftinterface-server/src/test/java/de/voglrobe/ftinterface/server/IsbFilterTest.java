@@ -0,0 +1,111 @@
+package de.voglrobe.ftinterface.server;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import de.voglrobe.ftinterface.io.FtInputs;
+import de.voglrobe.ftinterface.io.FtInputsFlags;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * The ISB subscription of a session: field filter and delta mode.
+ *
+ * @author robert
+ */
+public class IsbFilterTest
+{
+    private static final int E1 = 0B1000_0000;
+    private static final int E3 = 0B0010_0000;
+
+    /**
+     * Parses the filtered ISB.
+     */
+    private static JsonObject parse(final String json)
+    {
+        return new JsonParser().parse(json).getAsJsonObject();
+    }
+
+    /**
+     * Returns the number of digital inputs sent, i.e. not NULL. The array has the length of the full ISB.
+     */
+    private static int countDigitalIn(final JsonObject isb)
+    {
+        JsonArray di = isb.getAsJsonArray("di");
+        Assert.assertEquals(8, di.size());
+        int ret = 0;
+        for (JsonElement value : di)
+        {
+            ret += value.isJsonNull() ? 0 : 1;
+        }
+        return ret;
+    }
+
+    @Test
+    public void testFields()
+    {
+        Assert.assertNull(IsbFilter.newInstance(null, false));
+        IsbFilter filter = IsbFilter.newInstance("e3, EX", false);
+
+        JsonObject isb = parse(filter.toJson(new FtInputs(7, E1 | E3, 120, 33)));
+        Assert.assertEquals(7, isb.get("seqnr").getAsInt());
+        Assert.assertEquals(1, countDigitalIn(isb));
+        Assert.assertTrue(isb.getAsJsonArray("di").get(2).getAsBoolean());
+        Assert.assertEquals(120, isb.get("ex").getAsInt());
+        Assert.assertFalse(isb.has("ey"));
+
+        // events are sent only if subscribed
+        FtInputs inputs = new FtInputs(8, 0, 0, 0);
+        FtInputsFlags flags = new FtInputsFlags();
+        flags.setDurationFinished(true);
+        inputs.setFlags(flags);
+        Assert.assertFalse(parse(filter.toJson(inputs)).has("flags"));
+        filter = IsbFilter.newInstance("durationFinished", false);
+        Assert.assertTrue(parse(filter.toJson(inputs)).getAsJsonObject("flags").get("durationFinished")
+                .getAsBoolean());
+        Assert.assertNull(filter.toJson(new FtInputs(9, 0, 0, 0)));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnknownField()
+    {
+        IsbFilter.newInstance("E1,EZ", false);
+    }
+
+    @Test
+    public void testDelta()
+    {
+        IsbFilter filter = IsbFilter.newInstance(null, true);
+        JsonObject isb = parse(filter.toJson(new FtInputs(1, E1, 10, 20)));
+        Assert.assertEquals(8, countDigitalIn(isb));
+        Assert.assertEquals(new FtInputs(1, E1, 10, 20).getDigitalIn(),
+                FtInputs.fromJson(isb.toString()).getDigitalIn());
+        Assert.assertTrue(isb.has("ex"));
+        Assert.assertTrue(isb.has("ey"));
+
+        // unchanged
+        Assert.assertNull(filter.toJson(new FtInputs(2, E1, 10, 20)));
+
+        // EX changed
+        isb = parse(filter.toJson(new FtInputs(3, E1, 11, 20)));
+        Assert.assertEquals(2, isb.entrySet().size());
+        Assert.assertEquals(11, isb.get("ex").getAsInt());
+
+        // E3 changed
+        isb = parse(filter.toJson(new FtInputs(4, E1 | E3, 11, 20)));
+        Assert.assertEquals(1, countDigitalIn(isb));
+        Assert.assertTrue(isb.getAsJsonArray("di").get(2).getAsBoolean());
+        Assert.assertFalse(isb.has("ex"));
+
+        // all fields again after a reset, e.g. because ISBs have been dropped
+        filter.reset();
+        isb = parse(filter.toJson(new FtInputs(5, E1 | E3, 11, 20)));
+        Assert.assertEquals(8, countDigitalIn(isb));
+
+        // binary sessions get the changed ISBs in full
+        Assert.assertFalse(filter.accept(new FtInputs(6, E1 | E3, 11, 20)));
+        Assert.assertTrue(filter.accept(new FtInputs(7, E1 | E3, 11, 21)));
+    }
+
+}
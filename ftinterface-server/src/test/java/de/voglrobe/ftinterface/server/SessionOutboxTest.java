@@ -0,0 +1,88 @@
+package de.voglrobe.ftinterface.server;
+
+import de.voglrobe.ftinterface.io.FtInputs;
+import java.util.Arrays;
+import java.util.Collections;
+import org.eclipse.jetty.websocket.api.StatusCode;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * The slow-consumer policies of the outbox of a session, tested with a stalled client.
+ *
+ * @author robert
+ */
+public class SessionOutboxTest
+{
+    private static final int CAPACITY = 2;
+    private static final String CONTROL = "{\"health\": \"CONNECTED\"}";
+
+    private final SessionStub stub = new SessionStub();
+
+    /**
+     * Returns an ISB with the given sequence number.
+     */
+    private static IsbPayload isb(final int seqNr)
+    {
+        return new IsbPayload(new FtInputs(seqNr, 0, 0, 0));
+    }
+
+    /**
+     * Returns an outbox of the stub session with the given policy.
+     */
+    private SessionOutbox open(final SessionOutbox.Policy policy)
+    {
+        return new SessionOutbox(stub.getSession(), "dev", CAPACITY, policy, false, null);
+    }
+
+    @Test
+    public void testDropOldest()
+    {
+        SessionOutbox outbox = this.open(SessionOutbox.Policy.DROP_OLDEST);
+        stub.setStalled(true);
+        outbox.offer(isb(1)); // in flight
+        outbox.offerControl(CONTROL);
+        outbox.offer(isb(2));
+        outbox.offer(isb(3)); // full, 2 is dropped, the control message is kept
+        Assert.assertEquals(1, outbox.getDropped());
+
+        stub.setStalled(false);
+        Assert.assertEquals(Arrays.asList(isb(1).getJson(), CONTROL, isb(3).getJson()), stub.getTexts());
+        Assert.assertEquals(0L, outbox.getLag());
+    }
+
+    @Test
+    public void testConflate()
+    {
+        SessionOutbox outbox = this.open(SessionOutbox.Policy.CONFLATE);
+        stub.setStalled(true);
+        outbox.offer(isb(1)); // in flight
+        outbox.offer(isb(2));
+        outbox.offer(isb(3));
+        outbox.offer(isb(4)); // full, all queued ISBs are dropped
+        Assert.assertEquals(2, outbox.getDropped());
+
+        stub.setStalled(false);
+        Assert.assertEquals(Arrays.asList(1, 4), stub.getSeqNrs());
+    }
+
+    @Test
+    public void testDisconnect()
+    {
+        SessionOutbox outbox = this.open(SessionOutbox.Policy.DISCONNECT);
+        stub.setStalled(true);
+        outbox.offer(isb(1)); // in flight
+        outbox.offer(isb(2));
+        outbox.offer(isb(3));
+        Assert.assertEquals(0, stub.getCloseCode());
+        outbox.offer(isb(4)); // full, the session is closed
+        Assert.assertEquals(StatusCode.TRY_AGAIN_LATER, stub.getCloseCode());
+        Assert.assertEquals(3, outbox.getDropped());
+
+        // nothing is queued anymore
+        outbox.offerControl(CONTROL);
+        stub.setStalled(false);
+        Assert.assertEquals(Collections.singletonList(1), stub.getSeqNrs());
+    }
+
+}
@@ -0,0 +1,171 @@
+package de.voglrobe.ftinterface.server;
+
+import de.voglrobe.ftinterface.async.SequenceNumberAllocator;
+import de.voglrobe.ftinterface.io.FtInputs;
+import de.voglrobe.ftinterface.io.FtInputsFlags;
+import java.util.Arrays;
+import java.util.Collections;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * The allocation of the sequence numbers of the sessions and the routing of the ISBs.
+ *
+ * @author robert
+ */
+public class SessionRegistryTest
+{
+    private static final String DEVICE = "dev";
+
+    private final SessionRegistry registry = new SessionRegistry();
+    private final SequenceNumberAllocator allocator = new SequenceNumberAllocator();
+    private final SessionStub stubA = new SessionStub();
+    private final SessionStub stubB = new SessionStub();
+    private final SessionStub stubObserver = new SessionStub();
+    private final SessionOutbox outboxA = this.open(stubA, false);
+    private final SessionOutbox outboxB = this.open(stubB, false);
+    private final SessionOutbox observer = this.open(stubObserver, true);
+
+    /**
+     * Registers a session of the stub.
+     */
+    private SessionOutbox open(final SessionStub stub, final boolean isObserver)
+    {
+        SessionOutbox ret = new SessionOutbox(stub.getSession(), DEVICE, 64, SessionOutbox.Policy.DROP_OLDEST, false,
+                null);
+        registry.add(ret, isObserver);
+        return ret;
+    }
+
+    /**
+     * Returns an ISB with the given sequence number and flags.
+     */
+    private static IsbPayload isb(final int seqNr, final boolean durationFinished)
+    {
+        FtInputs inputs = new FtInputs(seqNr, 0, 0, 0);
+        if (durationFinished)
+        {
+            FtInputsFlags flags = new FtInputsFlags();
+            flags.setDurationFinished(true);
+            inputs.setFlags(flags);
+        }
+        return new IsbPayload(inputs);
+    }
+
+    @Test
+    public void testAllocate() throws Exception
+    {
+        Object other = new Object();
+        int taken = allocator.allocate(other);
+        int seqNr = registry.allocate(allocator, outboxA, 1, 1000);
+        Assert.assertNotEquals(taken, seqNr);
+        Assert.assertTrue(seqNr >= 1 && seqNr <= SequenceNumberAllocator.MAX_SEQNR);
+
+        // all numbers in use, the oldest one of the registry is reclaimed
+        for (int i=2; i<SequenceNumberAllocator.MAX_SEQNR; i++)
+        {
+            registry.allocate(allocator, outboxB, i, 1000);
+        }
+        Assert.assertEquals(SequenceNumberAllocator.MAX_SEQNR, allocator.getAllocated());
+        Assert.assertEquals(seqNr, registry.allocate(allocator, outboxB, 99, 1000));
+        Assert.assertSame(other, allocator.getOwner(taken));
+
+        // the ISB of the reclaimed number belongs to the new MCC
+        registry.deliver(DEVICE, isb(seqNr, false));
+        Assert.assertEquals(Collections.singletonList(99), stubB.getSeqNrs());
+        Assert.assertTrue(stubA.getSeqNrs().isEmpty());
+    }
+
+    @Test
+    public void testDeliver() throws Exception
+    {
+        int seqNr = registry.allocate(allocator, outboxA, 42, 0);
+        registry.deliver(DEVICE, isb(seqNr, false));
+        Assert.assertEquals(Collections.singletonList(42), stubA.getSeqNrs());
+        Assert.assertTrue(stubB.getSeqNrs().isEmpty());
+        Assert.assertEquals(Collections.singletonList(seqNr), stubObserver.getSeqNrs());
+        Assert.assertEquals(0, allocator.getAllocated());
+
+        // a late ISB still reaches the session
+        registry.deliver(DEVICE, isb(seqNr, false));
+        Assert.assertEquals(Arrays.asList(42, 42), stubA.getSeqNrs());
+
+        // seqnr 0 concerns all sessions
+        registry.deliver(DEVICE, isb(0, false));
+        Assert.assertEquals(Arrays.asList(42, 42, 0), stubA.getSeqNrs());
+        Assert.assertEquals(Collections.singletonList(0), stubB.getSeqNrs());
+        Assert.assertEquals(Arrays.asList(seqNr, seqNr, 0), stubObserver.getSeqNrs());
+    }
+
+    @Test
+    public void testLifetime() throws Exception
+    {
+        // an infinite MCC holds it's number until the next MCC of the session
+        int infinite = registry.allocate(allocator, outboxA, 7, -1);
+        registry.deliver(DEVICE, isb(infinite, false));
+        registry.deliver(DEVICE, isb(infinite, false));
+        Assert.assertTrue(allocator.isAllocated(infinite));
+        registry.allocate(allocator, outboxA, 8, 0);
+        Assert.assertFalse(allocator.isAllocated(infinite));
+        Assert.assertEquals(Arrays.asList(7, 7), stubA.getSeqNrs());
+
+        // a MCC with duration holds it's number until the duration has finished
+        int seqNr = registry.allocate(allocator, outboxB, 8, 500);
+        registry.deliver(DEVICE, isb(seqNr, false));
+        Assert.assertTrue(allocator.isAllocated(seqNr));
+        registry.deliver(DEVICE, isb(seqNr, true));
+        Assert.assertFalse(allocator.isAllocated(seqNr));
+        Assert.assertEquals(Arrays.asList(8, 8), stubB.getSeqNrs());
+
+        // the number is released when the blocking send returns
+        seqNr = registry.allocate(allocator, outboxB, 9, 500);
+        registry.release(outboxB, seqNr);
+        Assert.assertFalse(allocator.isAllocated(seqNr));
+    }
+
+    @Test
+    public void testRemove() throws Exception
+    {
+        int seqNr = registry.allocate(allocator, outboxA, 42, 500);
+        registry.remove(stubA.getSession());
+        Assert.assertEquals(0, allocator.getAllocated());
+        Assert.assertNull(registry.get(stubA.getSession()));
+
+        // the ISBs of a closed session concern all sessions
+        registry.deliver(DEVICE, isb(seqNr, false));
+        Assert.assertTrue(stubA.getSeqNrs().isEmpty());
+        Assert.assertEquals(Collections.singletonList(seqNr), stubB.getSeqNrs());
+        Assert.assertEquals(Collections.singletonList(seqNr), stubObserver.getSeqNrs());
+    }
+
+    @Test
+    public void testInfiniteOfOtherSession() throws Exception
+    {
+        int infinite = registry.allocate(allocator, outboxA, 7, -1);
+        registry.allocate(allocator, outboxB, 8, -1);
+
+        // the keep-alives of the first session still reach it
+        Assert.assertTrue(allocator.isAllocated(infinite));
+        registry.deliver(DEVICE, isb(infinite, false));
+        Assert.assertEquals(Collections.singletonList(7), stubA.getSeqNrs());
+        Assert.assertTrue(stubB.getSeqNrs().isEmpty());
+    }
+
+    @Test
+    public void testGiveUp() throws Exception
+    {
+        int infinite = registry.allocate(allocator, outboxA, 7, -1);
+        int seqNr = registry.allocate(allocator, outboxB, 8, 500);
+        registry.giveUp(DEVICE, infinite);
+        Assert.assertFalse(allocator.isAllocated(infinite));
+        Assert.assertTrue(allocator.isAllocated(seqNr));
+
+        // numbers not allocated by the registry are ignored
+        Object other = new Object();
+        int taken = allocator.allocate(other);
+        registry.giveUp(DEVICE, taken);
+        Assert.assertSame(other, allocator.getOwner(taken));
+        Assert.assertTrue(allocator.isAllocated(taken));
+    }
+
+}
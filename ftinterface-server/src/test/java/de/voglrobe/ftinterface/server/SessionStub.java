@@ -0,0 +1,157 @@
+package de.voglrobe.ftinterface.server;
+
+import de.voglrobe.ftinterface.io.FtInputs;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import org.eclipse.jetty.websocket.api.RemoteEndpoint;
+import org.eclipse.jetty.websocket.api.Session;
+import org.eclipse.jetty.websocket.api.WriteCallback;
+
+/**
+ * Test fixture: a WebSocket session that records the sent text messages instead of writing them. The writes complete
+ * right away unless the session is stalled, i.e. the client does not read.
+ *
+ * @author robert
+ */
+public class SessionStub implements InvocationHandler
+{
+    private final Session session;
+    private final RemoteEndpoint remote;
+    private final List<String> texts = new ArrayList<>();
+    private final List<WriteCallback> held = new ArrayList<>();
+    private boolean stalled = false;
+    private int closeCode = 0;
+
+    /**
+     * Constructor.
+     */
+    public SessionStub()
+    {
+        ClassLoader loader = SessionStub.class.getClassLoader();
+        this.session = (Session) Proxy.newProxyInstance(loader, new Class<?>[] {Session.class}, this);
+        this.remote = (RemoteEndpoint) Proxy.newProxyInstance(loader, new Class<?>[] {RemoteEndpoint.class}, this);
+    }
+
+    /**
+     * Returns the session to pass to the code under test.
+     *
+     * @return The session.
+     */
+    public Session getSession()
+    {
+        return session;
+    }
+
+    /**
+     * Returns the sent text messages.
+     *
+     * @return The messages in the order of sending.
+     */
+    public synchronized List<String> getTexts()
+    {
+        return new ArrayList<>(texts);
+    }
+
+    /**
+     * Returns the sequence numbers of the sent JSON ISBs.
+     *
+     * @return The sequence numbers in the order of sending.
+     */
+    public synchronized List<Integer> getSeqNrs()
+    {
+        List<Integer> ret = new ArrayList<>();
+        for (String text : texts)
+        {
+            ret.add(FtInputs.fromJson(text).getSeqNr());
+        }
+        return ret;
+    }
+
+    /**
+     * Returns the status code the session has been closed with.
+     *
+     * @return The status code or 0 if open.
+     */
+    public synchronized int getCloseCode()
+    {
+        return closeCode;
+    }
+
+    /**
+     * Stalls or resumes the client. On resume the held writes complete.
+     *
+     * @param stalled TRUE to hold the writes.
+     */
+    public void setStalled(final boolean stalled)
+    {
+        List<WriteCallback> completed;
+        synchronized(this)
+        {
+            this.stalled = stalled;
+            completed = new ArrayList<>(held);
+            held.clear();
+        }
+        if (!stalled)
+        {
+            completed.forEach(WriteCallback::writeSuccess);
+        }
+    }
+
+    @Override
+    public Object invoke(final Object proxy, final Method method, final Object[] args)
+    {
+        switch(method.getName())
+        {
+            case "getRemote":
+                return remote;
+            case "sendString":
+                synchronized(this)
+                {
+                    texts.add((String) args[0]);
+                }
+                this.complete((WriteCallback) args[1]);
+                return null;
+            case "isOpen":
+                synchronized(this)
+                {
+                    return closeCode == 0;
+                }
+            case "close":
+                synchronized(this)
+                {
+                    this.closeCode = args != null && args.length > 0 ? (Integer) args[0] : 1000;
+                }
+                return null;
+            case "getRemoteAddress":
+                return null;
+            case "hashCode":
+                return System.identityHashCode(proxy);
+            case "equals":
+                return proxy == args[0];
+            case "toString":
+                return "SessionStub";
+            default:
+                throw new UnsupportedOperationException(method.getName());
+        }
+    }
+
+    /**
+     * Completes a write unless stalled.
+     */
+    private void complete(final WriteCallback callback)
+    {
+        synchronized(this)
+        {
+            if (stalled)
+            {
+                held.add(callback);
+                return;
+            }
+        }
+        callback.writeSuccess();
+    }
+
+}